@@ -8,32 +8,70 @@ package uk.ac.earlham.lcaparse;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Convert accessions to taxa IDs.
  * 
+ * Small maps are read into a Hashtable. Full NCBI maps should be compiled into
+ * an AccessionTaxonIndex (-compileaccessionmap), which is memory-mapped, with
+ * recently seen accessions kept in a small cache.
+ * 
  * @author Richard M. Leggett
  */
 public class AccessionTaxonConvertor {
+    private final static int CACHE_SIZE = 10000;
     private Hashtable<String, Long> accessionToTaxon = new Hashtable<String, Long>();
+    private AccessionTaxonIndex index = null;
+    private Map<String, Long> recentAccessions = new LinkedHashMap<String, Long>(CACHE_SIZE, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
     private Hashtable<String, Integer> warningAccession = new Hashtable<String, Integer>();
     int count = 0;
     
     public AccessionTaxonConvertor() {  
     }
     
+    /**
+    * Read a map file, or memory-map it if it's a compiled index.
+    *
+    * @param  mapFilename  map or index pathname
+    * @param  twoColumn    true for accession and taxon columns, false for NCBI accession2taxid format
+    */
     public void readMapFile(String mapFilename, boolean twoColumn) {
         BufferedReader br;
         String line;
+        
+        if (AccessionTaxonIndex.isIndex(mapFilename)) {
+            try {
+                System.out.println("Mapping "+mapFilename);
+                index = AccessionTaxonIndex.open(mapFilename);
+                System.out.println("Index has "+index.getEntryCount()+" accessions");
+            } catch (Exception e) {
+                System.out.println("AccessionTaxonConvertor exception");
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        
         try {
             System.out.println("Reading "+mapFilename);
             br = new BufferedReader(new FileReader(mapFilename));
-            br.readLine();
             while ((line = br.readLine()) != null) {
                 String[] fields = line.split("\t");
+                
+                // Skip NCBI header
+                if (fields[0].equals("accession")) {
+                    continue;
+                }
+                
                 String accession;
                 long taxonId;
-                if (twoColumn) {
+                if (twoColumn || (fields.length == 2)) {
                     accession = fields[0];
                     taxonId = Long.parseLong(fields[1]);                
                 } else {
@@ -64,7 +102,22 @@ public class AccessionTaxonConvertor {
             accession = accession.substring(0, accession.indexOf('.'));
         }
         
-        if (accessionToTaxon.containsKey(accession)) {
+        if (index != null) {
+            Long taxon;
+            synchronized (recentAccessions) {
+                taxon = recentAccessions.get(accession);
+            }
+            if (taxon == null) {
+                taxon = index.getTaxon(accession);
+                synchronized (recentAccessions) {
+                    recentAccessions.put(accession, taxon);
+                }
+            }
+            r = taxon;
+            if (r == -1) {
+                warnAccession(accession);
+            }
+        } else if (accessionToTaxon.containsKey(accession)) {
             r = accessionToTaxon.get(accession);
         } else {
             warnAccession(accession);
@@ -0,0 +1,566 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+
+package uk.ac.earlham.lcaparse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import uk.ac.earlham.marti.core.CompressedFile;
+
+/**
+ * Sorted, memory-mapped index of accession to taxon ID.
+ *
+ * Built once from an NCBI accession2taxid file (or a two column accession and
+ * taxon file) with -compileaccessionmap, then memory-mapped, so a lookup is a
+ * binary search over the file rather than a Hashtable of hundreds of millions
+ * of entries on the heap. Layout (all values big-endian, sections 8-byte
+ * aligned):
+ *
+ *   header      magic, version, bits per taxon, counts, section positions
+ *   blockStart  long[blockCount], offset of each block within keys
+ *   taxa        long[], taxon IDs bit-packed in accession order
+ *   keys        sorted accessions in blocks of ENTRIES_PER_BLOCK. Each is stored
+ *               as the number of bytes shared with the previous accession,
+ *               suffix length and suffix. The first in a block shares nothing.
+ *
+ * Indexes of the full NCBI map are bigger than the 2Gb a single buffer can
+ * map, so the file is mapped as a series of segments.
+ *
+ * @author Richard M. Leggett
+ */
+public class AccessionTaxonIndex {
+    private final static long MAGIC = 0x4D41525469414343L; // "MARTiACC"
+    private final static int FORMAT_VERSION = 1;
+    private final static int HEADER_SIZE = 64;
+    private final static int ENTRIES_PER_BLOCK = 64;
+    private final static int MAX_ACCESSION_LENGTH = 255;
+    private final static int RUN_ENTRIES = 1 << 22;
+    private final static int SEGMENT_SHIFT = 30;
+    private final static long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+    private MappedByteBuffer[] segments;
+    private int bitsPerTaxon;
+    private long entryCount;
+    private long blockCount;
+    private long blockStartPosition;
+    private long taxaPosition;
+    private long keysPosition;
+
+    private AccessionTaxonIndex() {
+    }
+
+    /**
+    * Check if a file is an accession index, rather than a text map.
+    *
+    * @param  filename  pathname
+    * @return true if file starts with the index magic number
+    */
+    public static boolean isIndex(String filename) {
+        try (RandomAccessFile raf = new RandomAccessFile(filename, "r")) {
+            return (raf.length() >= HEADER_SIZE) && (raf.readLong() == MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+    * Memory-map an index file.
+    *
+    * @param  indexFilename  index pathname
+    * @return index object
+    * @throws IOException if the file can't be mapped
+    */
+    public static AccessionTaxonIndex open(String indexFilename) throws IOException {
+        AccessionTaxonIndex ati = new AccessionTaxonIndex();
+
+        try (RandomAccessFile raf = new RandomAccessFile(indexFilename, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            int segmentCount = (int)((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            ati.segments = new MappedByteBuffer[segmentCount];
+            for (int i=0; i<segmentCount; i++) {
+                long start = (long)i << SEGMENT_SHIFT;
+                ati.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_MASK + 1, size - start));
+            }
+        }
+
+        ati.readHeader();
+
+        return ati;
+    }
+
+    private void readHeader() throws IOException {
+        if ((segments.length == 0) || (segments[0].capacity() < HEADER_SIZE) ||
+            (getLong(0) != MAGIC) || (segments[0].getInt(8) != FORMAT_VERSION)) {
+            throw new IOException("Not an accession index");
+        }
+
+        bitsPerTaxon = segments[0].getInt(12);
+        entryCount = getLong(16);
+        blockCount = getLong(24);
+        blockStartPosition = getLong(32);
+        taxaPosition = getLong(40);
+        keysPosition = getLong(48);
+
+        if (keysPosition + getLong(56) > ((long)(segments.length - 1) << SEGMENT_SHIFT) + segments[segments.length - 1].capacity()) {
+            throw new IOException("Truncated accession index");
+        }
+    }
+
+    private byte getByte(long position) {
+        return segments[(int)(position >>> SEGMENT_SHIFT)].get((int)(position & SEGMENT_MASK));
+    }
+
+    // Longs are 8-byte aligned, so never cross a segment boundary
+    private long getLong(long position) {
+        return segments[(int)(position >>> SEGMENT_SHIFT)].getLong((int)(position & SEGMENT_MASK));
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+    * Look up the taxon for an accession.
+    *
+    * @param  accession  accession, without version
+    * @return taxon ID, or -1 if not in the index
+    */
+    public long getTaxon(String accession) {
+        byte[] key = accession.getBytes(StandardCharsets.UTF_8);
+        byte[] current = new byte[MAX_ACCESSION_LENGTH];
+        long block = -1;
+        long low = 0;
+        long high = blockCount - 1;
+
+        // Find last block starting at or before the accession
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            if (compareFirstKey(mid, key) <= 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (block == -1) {
+            return -1;
+        }
+
+        long position = keysPosition + getLong(blockStartPosition + (8 * block));
+        long entry = block * ENTRIES_PER_BLOCK;
+        long end = Math.min(entry + ENTRIES_PER_BLOCK, entryCount);
+        for (; entry<end; entry++) {
+            int shared = getByte(position) & 0xFF;
+            int suffix = getByte(position + 1) & 0xFF;
+            position += 2;
+            for (int i=0; i<suffix; i++) {
+                current[shared + i] = getByte(position + i);
+            }
+            position += suffix;
+
+            int c = compare(current, shared + suffix, key, key.length);
+            if (c == 0) {
+                return getPackedTaxon(entry);
+            } else if (c > 0) {
+                break;
+            }
+        }
+
+        return -1;
+    }
+
+    private int compareFirstKey(long block, byte[] key) {
+        long position = keysPosition + getLong(blockStartPosition + (8 * block));
+        int length = getByte(position + 1) & 0xFF;
+        position += 2;
+
+        for (int i=0; (i<length) && (i<key.length); i++) {
+            int c = (getByte(position + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+
+        return length - key.length;
+    }
+
+    private static int compare(byte[] a, int aLength, byte[] b, int bLength) {
+        for (int i=0; (i<aLength) && (i<bLength); i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+
+        return aLength - bLength;
+    }
+
+    private long getPackedTaxon(long entry) {
+        long bit = entry * bitsPerTaxon;
+        long wordPosition = taxaPosition + ((bit >>> 6) << 3);
+        int offset = (int)(bit & 63);
+        long value = getLong(wordPosition) >>> offset;
+
+        if (offset + bitsPerTaxon > 64) {
+            value |= getLong(wordPosition + 8) << (64 - offset);
+        }
+
+        return value & ((1L << bitsPerTaxon) - 1);
+    }
+
+    /**
+    * Sort an accession map and write an index. The map is sorted in runs of
+    * RUN_ENTRIES which are then merged, so memory use doesn't depend on the
+    * size of the map. If an accession appears more than once, the last entry
+    * wins, as when the map is read into a Hashtable.
+    *
+    * @param  mapFilename    NCBI accession2taxid file, or two column accession
+    *                        and taxon file (may be gzipped)
+    * @param  indexFilename  index pathname to write
+    */
+    public static void compile(String mapFilename, String indexFilename) {
+        long startTime = System.nanoTime();
+        long timeDiff;
+        ArrayList<File> runFiles = new ArrayList<File>();
+        File keysFile = new File(indexFilename + ".keys");
+        File taxaFile = new File(indexFilename + ".taxa");
+        File tempFile = new File(indexFilename + ".tmp");
+        long lineCount = 0;
+        long skipped = 0;
+
+        try {
+            // Read map into sorted runs
+            System.out.println("Reading "+mapFilename);
+            InputStream is = CompressedFile.openInputStream(mapFilename);
+            BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 1 << 16);
+            SortRun run = new SortRun();
+            int taxonField = -1;
+            String line;
+
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split("\t");
+
+                // NCBI files have a header and taxon in the third column
+                if (taxonField == -1) {
+                    if (fields[0].equals("accession")) {
+                        taxonField = 2;
+                        continue;
+                    }
+                    taxonField = fields.length == 2 ? 1:2;
+                }
+
+                lineCount++;
+                if (lineCount % 10000000 == 0) {
+                    System.out.println("    Read "+lineCount+" entries");
+                }
+
+                String accession = fields[0];
+                if (accession.contains(".")) {
+                    accession = accession.substring(0, accession.indexOf('.'));
+                }
+                byte[] key = accession.getBytes(StandardCharsets.UTF_8);
+                long taxonId = fields.length > taxonField ? Long.parseLong(fields[taxonField]):-1;
+
+                if ((key.length == 0) || (key.length > MAX_ACCESSION_LENGTH) || (taxonId < 0) || (taxonId > Integer.MAX_VALUE)) {
+                    if (skipped++ < 10) {
+                        System.out.println("Warning: skipping map line "+line);
+                    }
+                    continue;
+                }
+
+                run.add(key, (int)taxonId);
+                if (run.size() == RUN_ENTRIES) {
+                    runFiles.add(run.writeSorted(indexFilename + ".run" + runFiles.size()));
+                }
+            }
+            br.close();
+
+            if ((run.size() > 0) || (runFiles.size() == 0)) {
+                runFiles.add(run.writeSorted(indexFilename + ".run" + runFiles.size()));
+            }
+
+            // Merge runs into prefix compressed keys and a list of taxa
+            System.out.println("Merging "+runFiles.size()+" sorted runs");
+            PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+            for (int i=0; i<runFiles.size(); i++) {
+                RunReader r = new RunReader(runFiles.get(i), i);
+                if (r.next()) {
+                    queue.add(r);
+                } else {
+                    r.close();
+                }
+            }
+
+            IndexWriter iw = new IndexWriter(keysFile, taxaFile);
+            while (!queue.isEmpty()) {
+                RunReader r = queue.poll();
+                iw.add(r.key, r.length, r.taxon);
+
+                // Drop the same accession from earlier runs
+                while (!queue.isEmpty() && (compare(queue.peek().key, queue.peek().length, r.key, r.length) == 0)) {
+                    RunReader duplicate = queue.poll();
+                    if (duplicate.next()) {
+                        queue.add(duplicate);
+                    } else {
+                        duplicate.close();
+                    }
+                }
+
+                if (r.next()) {
+                    queue.add(r);
+                } else {
+                    r.close();
+                }
+            }
+            iw.close();
+
+            for (File f : runFiles) {
+                f.delete();
+            }
+
+            iw.writeIndex(tempFile, keysFile, taxaFile);
+            keysFile.delete();
+            taxaFile.delete();
+
+            File indexFile = new File(indexFilename);
+            if (indexFile.exists()) {
+                indexFile.delete();
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                System.out.println("Error: couldn't rename "+tempFile.getPath()+" to "+indexFilename);
+                System.exit(1);
+            }
+
+            timeDiff = (System.nanoTime() - startTime) / 1000000;
+            System.out.println("Written index of "+iw.entryCount+" accessions ("+skipped+" lines skipped) in "+timeDiff+" ms");
+        } catch (Exception e) {
+            System.out.println("Accession index exception");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+    * One run of map entries, sorted in memory and written to a temporary file.
+    */
+    private static class SortRun {
+        private byte[] pool = new byte[RUN_ENTRIES * 12];
+        private int poolSize = 0;
+        private int[] offset = new int[RUN_ENTRIES];
+        private int[] length = new int[RUN_ENTRIES];
+        private int[] taxon = new int[RUN_ENTRIES];
+        private int size = 0;
+
+        public void add(byte[] key, int taxonId) {
+            if (poolSize + key.length > pool.length) {
+                pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + key.length));
+            }
+            System.arraycopy(key, 0, pool, poolSize, key.length);
+            offset[size] = poolSize;
+            length[size] = key.length;
+            taxon[size] = taxonId;
+            poolSize += key.length;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private int compareEntries(int a, int b) {
+            int n = Math.min(length[a], length[b]);
+            for (int i=0; i<n; i++) {
+                int c = (pool[offset[a] + i] & 0xFF) - (pool[offset[b] + i] & 0xFF);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return length[a] - length[b];
+        }
+
+        public File writeSorted(String filename) throws IOException {
+            Integer[] order = new Integer[size];
+            for (int i=0; i<size; i++) {
+                order[i] = i;
+            }
+
+            // Stable, so equal accessions stay in file order
+            Arrays.sort(order, (a, b) -> compareEntries(a, b));
+
+            File f = new File(filename);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+            for (int i=0; i<size; i++) {
+                int e = order[i];
+                if ((i + 1 < size) && (compareEntries(e, order[i + 1]) == 0)) {
+                    continue;
+                }
+                dos.writeByte(length[e]);
+                dos.write(pool, offset[e], length[e]);
+                dos.writeInt(taxon[e]);
+            }
+            dos.close();
+
+            poolSize = 0;
+            size = 0;
+
+            return f;
+        }
+    }
+
+    /**
+    * Reader for a sorted run, ordered by current accession and then latest run first.
+    */
+    private static class RunReader implements Comparable<RunReader> {
+        private DataInputStream dis;
+        private int runNumber;
+        private byte[] key = new byte[MAX_ACCESSION_LENGTH];
+        private int length = 0;
+        private int taxon = 0;
+
+        public RunReader(File f, int n) throws IOException {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+            runNumber = n;
+        }
+
+        public boolean next() throws IOException {
+            int l = dis.read();
+            if (l == -1) {
+                return false;
+            }
+            length = l;
+            dis.readFully(key, 0, length);
+            taxon = dis.readInt();
+            return true;
+        }
+
+        public void close() throws IOException {
+            dis.close();
+        }
+
+        public int compareTo(RunReader r) {
+            int c = compare(key, length, r.key, r.length);
+            return c != 0 ? c:r.runNumber - runNumber;
+        }
+    }
+
+    /**
+    * Writes merged entries to temporary keys and taxa files, then assembles the index.
+    */
+    private static class IndexWriter {
+        private DataOutputStream keys;
+        private DataOutputStream taxa;
+        private long[] blockStart = new long[1024];
+        private long blockCount = 0;
+        private long entryCount = 0;
+        private long keysSize = 0;
+        private long maxTaxon = 0;
+        private byte[] previous = new byte[MAX_ACCESSION_LENGTH];
+        private int previousLength = 0;
+
+        public IndexWriter(File keysFile, File taxaFile) throws IOException {
+            keys = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keysFile), 1 << 16));
+            taxa = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(taxaFile), 1 << 16));
+        }
+
+        public void add(byte[] key, int length, int taxon) throws IOException {
+            int shared = 0;
+
+            if (entryCount % ENTRIES_PER_BLOCK == 0) {
+                if (blockCount == blockStart.length) {
+                    blockStart = Arrays.copyOf(blockStart, blockStart.length * 2);
+                }
+                blockStart[(int)blockCount++] = keysSize;
+            } else {
+                while ((shared < length) && (shared < previousLength) && (key[shared] == previous[shared])) {
+                    shared++;
+                }
+            }
+
+            keys.writeByte(shared);
+            keys.writeByte(length - shared);
+            keys.write(key, shared, length - shared);
+            keysSize += 2 + length - shared;
+            System.arraycopy(key, 0, previous, 0, length);
+            previousLength = length;
+
+            taxa.writeInt(taxon);
+            maxTaxon = Math.max(maxTaxon, taxon);
+            entryCount++;
+        }
+
+        public void close() throws IOException {
+            keys.close();
+            taxa.close();
+        }
+
+        public void writeIndex(File indexFile, File keysFile, File taxaFile) throws IOException {
+            int bits = Math.max(1, 64 - Long.numberOfLeadingZeros(maxTaxon));
+            long taxaWords = ((entryCount * bits) + 63) / 64;
+            long blockStartPosition = HEADER_SIZE;
+            long taxaPosition = blockStartPosition + (8 * blockCount);
+            long keysPosition = taxaPosition + (8 * taxaWords);
+
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16));
+            dos.writeLong(MAGIC);
+            dos.writeInt(FORMAT_VERSION);
+            dos.writeInt(bits);
+            dos.writeLong(entryCount);
+            dos.writeLong(blockCount);
+            dos.writeLong(blockStartPosition);
+            dos.writeLong(taxaPosition);
+            dos.writeLong(keysPosition);
+            dos.writeLong(keysSize);
+
+            for (int i=0; i<blockCount; i++) {
+                dos.writeLong(blockStart[i]);
+            }
+
+            // Pack taxa, lowest bits first
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(taxaFile), 1 << 16));
+            long word = 0;
+            int used = 0;
+            for (long i=0; i<entryCount; i++) {
+                long taxon = dis.readInt();
+                word |= taxon << used;
+                used += bits;
+                if (used >= 64) {
+                    dos.writeLong(word);
+                    used -= 64;
+                    word = used > 0 ? taxon >>> (bits - used):0;
+                }
+            }
+            if (used > 0) {
+                dos.writeLong(word);
+            }
+            dis.close();
+
+            byte[] buffer = new byte[1 << 16];
+            InputStream is = new FileInputStream(keysFile);
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                dos.write(buffer, 0, n);
+            }
+            is.close();
+            dos.close();
+        }
+    }
+}
@@ -40,8 +40,13 @@ public class BlastHit implements LCAHit,Comparable {
     private boolean validAlignment = false;
     
     public BlastHit(Taxonomy t, AccessionTaxonConvertor atc, String line, int format, boolean parse, boolean formatHasStitle) {
-        String[] fields = line.split("\t");
-                
+        this(t, atc, new BlastTabReader(line), format, parse, formatHasStitle);
+    }
+    
+    /**
+    * Create a hit from the current line of a BlastTabReader.
+    */
+    public BlastHit(Taxonomy t, AccessionTaxonConvertor atc, BlastTabReader fields, int format, boolean parse, boolean formatHasStitle) {
         taxonomy = t;
         accTaxConvert = atc;
         parseTaxon = parse;
@@ -59,48 +64,33 @@ public class BlastHit implements LCAHit,Comparable {
                 
         if (taxonId == -1) {            
             taxonomy.warnTaxa(targetName);
-        } else {
-            cacheTaxonIdPath();
         }        
     }
         
-    private void parseNanoOKWithStitle(String[] fields ) {
+    private void parseNanoOKWithStitle(BlastTabReader fields) {
         // NanoOK14: "qseqid sseqid pident length mismatch gapopen qstart qend sstart send evalue bitscore stitle staxids"
         // NanoOK15: "qseqid sseqid pident length mismatch gapopen qstart qend sstart send evalue bitscore stitle qcovs staxids"
 
-        if ((fields.length == 14) || (fields.length == 15)) {        
-            queryName = fields[0];
-            targetName = fields[1];
-            identity = Double.parseDouble(fields[2]);
-            length = Integer.parseInt(fields[3]);
-            mismatches = Integer.parseInt(fields[4]);
+        if ((fields.getFieldCount() == 14) || (fields.getFieldCount() == 15)) {        
+            queryName = fields.getQueryName(0);
+            targetName = fields.getString(1);
+            identity = fields.getDouble(2);
+            length = fields.getInt(3);
+            mismatches = fields.getInt(4);
             // gapopen            
-            queryStart = Integer.parseInt(fields[6]);
-            queryEnd = Integer.parseInt(fields[7]);
-            targetStart = Integer.parseInt(fields[8]);
-            targetEnd = Integer.parseInt(fields[9]);
-            eValueString = fields[10] ; eValue = Double.parseDouble(eValueString);
-            bitscoreString = fields[11] ; bitscore = Double.parseDouble(bitscoreString);
-            stitle = fields[12];
+            queryStart = fields.getInt(6);
+            queryEnd = fields.getInt(7);
+            targetStart = fields.getInt(8);
+            targetEnd = fields.getInt(9);
+            eValueString = fields.getString(10) ; eValue = fields.getDouble(10);
+            bitscoreString = fields.getString(11) ; bitscore = fields.getDouble(11);
+            stitle = fields.getString(12);
             
-            if (fields.length == 14) {
-                String taxaString = fields[13];
-                String[] taxa = taxaString.split(";");
-                
-                try {
-                    taxonId = Integer.parseInt(taxa[0]);
-                } catch (NumberFormatException e) {                    
-                    taxonId = -2;
-                }
-            } else if (fields.length == 15) {
-                queryCoverage = Double.parseDouble(fields[13]);
-                String taxaString = fields[14];
-                String[] taxa = taxaString.split(";");
-                try {
-                    taxonId = Integer.parseInt(taxa[0]);
-                } catch (NumberFormatException e) {                    
-                    taxonId = -2;
-                }
+            if (fields.getFieldCount() == 14) {
+                taxonId = fields.getTaxonId(13);
+            } else if (fields.getFieldCount() == 15) {
+                queryCoverage = fields.getDouble(13);
+                taxonId = fields.getTaxonId(14);
             }
             
             validAlignment = true;
@@ -110,38 +100,29 @@ public class BlastHit implements LCAHit,Comparable {
         }
     }
     
-    private void parseNanoOK(String[] fields ) {
+    private void parseNanoOK(BlastTabReader fields) {
         // NanoOK13: "qseqid sseqid pident length mismatch gapopen qstart qend sstart send evalue bitscore staxids"
         // NanoOK14: "qseqid sseqid pident length mismatch gapopen qstart qend sstart send evalue bitscore qcovs staxids"
 
-        if ((fields.length == 13) || (fields.length == 14)) {        
-            queryName = fields[0];
-            targetName = fields[1];
-            identity = Double.parseDouble(fields[2]);
-            length = Integer.parseInt(fields[3]);
-            mismatches = Integer.parseInt(fields[4]);
+        if ((fields.getFieldCount() == 13) || (fields.getFieldCount() == 14)) {        
+            queryName = fields.getQueryName(0);
+            targetName = fields.getString(1);
+            identity = fields.getDouble(2);
+            length = fields.getInt(3);
+            mismatches = fields.getInt(4);
             // gapopen            
-            queryStart = Integer.parseInt(fields[6]);
-            queryEnd = Integer.parseInt(fields[7]);
-            targetStart = Integer.parseInt(fields[8]);
-            targetEnd = Integer.parseInt(fields[9]);
-            eValueString = fields[10] ; eValue = Double.parseDouble(eValueString);
-            bitscoreString = fields[11] ; bitscore = Double.parseDouble(bitscoreString);
+            queryStart = fields.getInt(6);
+            queryEnd = fields.getInt(7);
+            targetStart = fields.getInt(8);
+            targetEnd = fields.getInt(9);
+            eValue = fields.getDouble(10);
+            bitscore = fields.getDouble(11);
             
-            if (fields.length == 13) {
-                String taxaString = fields[12];
-                String[] taxa = taxaString.split(";");
-                
-                try {
-                    taxonId = Integer.parseInt(taxa[0]);
-                } catch (NumberFormatException e) {                    
-                    taxonId = -2;
-                }
-            } else if (fields.length == 14) {
-                queryCoverage = Double.parseDouble(fields[12]);
-                String taxaString = fields[13];
-                String[] taxa = taxaString.split(";");
-                taxonId = Integer.parseInt(taxa[0]);
+            if (fields.getFieldCount() == 13) {
+                taxonId = fields.getTaxonId(12);
+            } else if (fields.getFieldCount() == 14) {
+                queryCoverage = fields.getDouble(12);
+                taxonId = fields.getTaxonId(13);
             }
             
             validAlignment = true;
@@ -157,7 +138,7 @@ public class BlastHit implements LCAHit,Comparable {
         return s;
     }
 
-    private void parseBlastTab(String[] fields) {
+    private void parseBlastTab(BlastTabReader fields) {
         // 1.	 qseqid	 query (e.g., unknown gene) sequence id
         // 2.	 sseqid	 subject (e.g., reference genome) sequence id
         // 3.	 pident	 percentage of identical matches
@@ -171,29 +152,22 @@ public class BlastHit implements LCAHit,Comparable {
         // 11.	 evalue	 expect value
         // 12.	 bitscore	 bit score
 
-        if (fields.length >= 12) {        
-            queryName = fields[0];
-            targetName = fields[1];
-            identity = Double.parseDouble(fields[2]);
-            length = Integer.parseInt(fields[3]);
-            mismatches = Integer.parseInt(fields[4]);
+        if (fields.getFieldCount() >= 12) {        
+            queryName = fields.getQueryName(0);
+            targetName = fields.getString(1);
+            identity = fields.getDouble(2);
+            length = fields.getInt(3);
+            mismatches = fields.getInt(4);
             // gapopen            
-            queryStart = Integer.parseInt(fields[6]);
-            queryEnd = Integer.parseInt(fields[7]);
-            targetStart = Integer.parseInt(fields[8]);
-            targetEnd = Integer.parseInt(fields[9]);
-            eValue = Double.parseDouble(fields[10]);
-            bitscore = Double.parseDouble(fields[11]);
+            queryStart = fields.getInt(6);
+            queryEnd = fields.getInt(7);
+            targetStart = fields.getInt(8);
+            targetEnd = fields.getInt(9);
+            eValue = fields.getDouble(10);
+            bitscore = fields.getDouble(11);
             
-            if (fields.length == 13) {
-                String taxaString = fields[12];
-                String[] taxa = taxaString.split(";");
-                
-                try {
-                    taxonId = Integer.parseInt(taxa[0]);
-                } catch (NumberFormatException e) {                    
-                    taxonId = -2;
-                }
+            if (fields.getFieldCount() == 13) {
+                taxonId = fields.getTaxonId(12);
                 
             } else {
                 if (parseTaxon) {
@@ -261,12 +235,13 @@ public class BlastHit implements LCAHit,Comparable {
         return targetEnd;
     }
         
+    // Original text is only kept for formats with stitle (used for AMR walkout output)
     public String getEValueString() {
-        return eValueString;
+        return eValueString != null ? eValueString:Double.toString(eValue);
     }
     
     public String getBitscoreString() {
-        return bitscoreString;
+        return bitscoreString != null ? bitscoreString:Double.toString(bitscore);
     }
     
     public void setTaxonIdPath(ArrayList<Long> path) {
@@ -278,6 +253,7 @@ public class BlastHit implements LCAHit,Comparable {
     }
             
     public int getTaxonLevel() {
+        cacheTaxonIdPath();
         if (taxonIdPath != null) {
             return taxonIdPath.size(); // 1-offset
         }
@@ -286,6 +262,7 @@ public class BlastHit implements LCAHit,Comparable {
         
     // Note level is 1-offset
     public long getTaxonNode(int level) {
+        cacheTaxonIdPath();
         if (taxonIdPath != null) {
             if (level <= taxonIdPath.size()) {
                 return taxonIdPath.get(taxonIdPath.size() - level);
@@ -295,7 +272,8 @@ public class BlastHit implements LCAHit,Comparable {
     }    
     
     private void cacheTaxonIdPath() {
-        if (taxonId != -1) {
+        // Path is only built when needed, as findAncestor no longer uses it
+        if ((taxonIdPath == null) && (taxonId != -1)) {
             taxonIdPath = taxonomy.getTaxonIdPathFromId(taxonId);
         }
     }         
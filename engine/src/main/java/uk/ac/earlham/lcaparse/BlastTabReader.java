@@ -0,0 +1,308 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+
+package uk.ac.earlham.lcaparse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Tab separated line reader for BLAST tabular output.
+ *
+ * Lines are tokenised in a reusable byte buffer and numeric fields parsed in
+ * place, so reading a hit doesn't create a String per line or per field.
+ * Fields follow String.split("\t") conventions - trailing empty fields are
+ * dropped - so field counts match what the line based parsers expected.
+ *
+ * @author Richard M. Leggett
+ */
+public class BlastTabReader {
+    private final static int BUFFER_SIZE = 1 << 16;
+    private final static double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private InputStream inputStream = null;
+    private byte[] buffer = null;
+    private int bufferPosition = 0;
+    private int bufferLimit = 0;
+    private byte[] line = new byte[1024];
+    private int lineLength = 0;
+    private int[] fieldStart = new int[32];
+    private int[] fieldEnd = new int[32];
+    private int fieldCount = 0;
+    private String lastQueryName = null;
+    private byte[] lastQueryBytes = new byte[256];
+    private int lastQueryLength = -1;
+
+    /**
+    * Read lines from a stream (which may be a GZIPInputStream).
+    *
+    * @param  is  input stream
+    */
+    public BlastTabReader(InputStream is) {
+        inputStream = is;
+        buffer = new byte[BUFFER_SIZE];
+    }
+
+    /**
+    * Tokenise a single line that has already been read.
+    *
+    * @param  s  line of BLAST output
+    */
+    public BlastTabReader(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        line = b.length > 0 ? b:line;
+        lineLength = b.length;
+        tokenise();
+    }
+
+    private boolean fillBuffer() throws IOException {
+        int n = inputStream.read(buffer, 0, buffer.length);
+        bufferPosition = 0;
+        bufferLimit = n > 0 ? n:0;
+        return n > 0;
+    }
+
+    /**
+    * Move to the next line with any content, as LCAFileParser skips blank lines.
+    *
+    * @return false at end of file
+    */
+    public boolean nextLine() throws IOException {
+        do {
+            if (!readLine()) {
+                return false;
+            }
+        } while (lineLength <= 1);
+
+        tokenise();
+        return true;
+    }
+
+    private boolean readLine() throws IOException {
+        boolean gotData = false;
+        lineLength = 0;
+
+        while (true) {
+            if (bufferPosition >= bufferLimit) {
+                if (!fillBuffer()) {
+                    return gotData;
+                }
+            }
+
+            gotData = true;
+            int start = bufferPosition;
+            int end = start;
+            while ((end < bufferLimit) && (buffer[end] != '\n')) {
+                end++;
+            }
+
+            appendToLine(start, end);
+            bufferPosition = end;
+
+            if (end < bufferLimit) {
+                bufferPosition++;
+                if ((lineLength > 0) && (line[lineLength - 1] == '\r')) {
+                    lineLength--;
+                }
+                return true;
+            }
+        }
+    }
+
+    private void appendToLine(int start, int end) {
+        int n = end - start;
+        if (lineLength + n > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + n));
+        }
+        System.arraycopy(buffer, start, line, lineLength, n);
+        lineLength += n;
+    }
+
+    private void tokenise() {
+        fieldCount = 0;
+        int start = 0;
+
+        for (int i=0; i<=lineLength; i++) {
+            if ((i == lineLength) || (line[i] == '\t')) {
+                if (fieldCount == fieldStart.length) {
+                    fieldStart = Arrays.copyOf(fieldStart, fieldCount * 2);
+                    fieldEnd = Arrays.copyOf(fieldEnd, fieldCount * 2);
+                }
+                fieldStart[fieldCount] = start;
+                fieldEnd[fieldCount] = i;
+                fieldCount++;
+                start = i + 1;
+            }
+        }
+
+        // As String.split, drop trailing empty fields
+        while ((fieldCount > 1) && (fieldStart[fieldCount - 1] == fieldEnd[fieldCount - 1])) {
+            fieldCount--;
+        }
+    }
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    public String getString(int f) {
+        return new String(line, fieldStart[f], fieldEnd[f] - fieldStart[f], StandardCharsets.UTF_8);
+    }
+
+    /**
+    * Get a field as a String, returning the same object as last time if it hasn't
+    * changed. BLAST output is grouped by query, so query names are only created
+    * once per group.
+    *
+    * @param  f  field number
+    * @return field contents
+    */
+    public String getQueryName(int f) {
+        int length = fieldEnd[f] - fieldStart[f];
+
+        if ((length != lastQueryLength) ||
+            !Arrays.equals(line, fieldStart[f], fieldEnd[f], lastQueryBytes, 0, length)) {
+            if (length > lastQueryBytes.length) {
+                lastQueryBytes = new byte[length];
+            }
+            System.arraycopy(line, fieldStart[f], lastQueryBytes, 0, length);
+            lastQueryLength = length;
+            lastQueryName = getString(f);
+        }
+
+        return lastQueryName;
+    }
+
+    /**
+    * Parse an integer field, with the same rules as Integer.parseInt.
+    *
+    * @param  f  field number
+    * @return value
+    * @throws NumberFormatException if the field isn't an integer
+    */
+    public int getInt(int f) {
+        return parseInt(fieldStart[f], fieldEnd[f]);
+    }
+
+    private int parseInt(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        long value = 0;
+
+        if ((i < end) && ((line[i] == '-') || (line[i] == '+'))) {
+            negative = line[i] == '-';
+            i++;
+        }
+
+        if ((i == end) || (end - i > 10)) {
+            return Integer.parseInt(new String(line, start, end - start, StandardCharsets.UTF_8));
+        }
+
+        for (; i<end; i++) {
+            int d = line[i] - '0';
+            if ((d < 0) || (d > 9)) {
+                throw new NumberFormatException("For input string: \"" + new String(line, start, end - start, StandardCharsets.UTF_8) + "\"");
+            }
+            value = (value * 10) + d;
+        }
+
+        value = negative ? -value:value;
+        if ((value < Integer.MIN_VALUE) || (value > Integer.MAX_VALUE)) {
+            throw new NumberFormatException("For input string: \"" + new String(line, start, end - start, StandardCharsets.UTF_8) + "\"");
+        }
+
+        return (int)value;
+    }
+
+    /**
+    * Parse a floating point field. Plain decimals with up to 15 significant digits
+    * (identities, bit scores, most e-values) are converted directly, which gives
+    * the same correctly rounded result as Double.parseDouble. Anything else is
+    * passed to Double.parseDouble.
+    *
+    * @param  f  field number
+    * @return value
+    */
+    public double getDouble(int f) {
+        int start = fieldStart[f];
+        int end = fieldEnd[f];
+        int i = start;
+        boolean negative = false;
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+
+        if ((i < end) && ((line[i] == '-') || (line[i] == '+'))) {
+            negative = line[i] == '-';
+            i++;
+        }
+
+        boolean seenPoint = false;
+        boolean seenDigit = false;
+        boolean simple = true;
+        for (; i<end; i++) {
+            byte b = line[i];
+            if ((b >= '0') && (b <= '9')) {
+                seenDigit = true;
+                if ((mantissa > 0) || (b != '0')) {
+                    digits++;
+                }
+                mantissa = (mantissa * 10) + (b - '0');
+                if (seenPoint) {
+                    exponent--;
+                }
+            } else if ((b == '.') && !seenPoint) {
+                seenPoint = true;
+            } else if (((b == 'e') || (b == 'E')) && seenDigit) {
+                try {
+                    exponent += parseInt(i + 1, end);
+                } catch (NumberFormatException e) {
+                    simple = false;
+                }
+                break;
+            } else {
+                simple = false;
+                break;
+            }
+        }
+
+        if (simple && seenDigit && (digits <= 15) && (exponent >= -22) && (exponent <= 22)) {
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent]:mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value:value;
+        }
+
+        return Double.parseDouble(new String(line, start, end - start, StandardCharsets.UTF_8));
+    }
+
+    /**
+    * Parse a taxon ID field (e.g. staxids), taking the first of a semicolon
+    * separated list.
+    *
+    * @param  f  field number
+    * @return taxon ID, or -2 if it isn't a number (e.g. N/A)
+    */
+    public long getTaxonId(int f) {
+        int end = fieldStart[f];
+        while ((end < fieldEnd[f]) && (line[end] != ';')) {
+            end++;
+        }
+
+        try {
+            return parseInt(fieldStart[f], end);
+        } catch (NumberFormatException e) {
+            return -2;
+        }
+    }
+
+    public void close() throws IOException {
+        if (inputStream != null) {
+            inputStream.close();
+        }
+    }
+}
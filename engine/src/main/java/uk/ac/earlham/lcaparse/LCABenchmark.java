@@ -0,0 +1,81 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+
+package uk.ac.earlham.lcaparse;
+
+import java.io.File;
+import java.util.Hashtable;
+import uk.ac.earlham.marti.core.MARTiEngineOptions;
+
+/**
+ * Compare findAncestor with the original path walk on a BLAST chunk.
+ *
+ * @author Richard M. Leggett
+ */
+public class LCABenchmark {
+    private final static int REPEATS = 5;
+
+    public static void run(MARTiEngineOptions options, String taxonomyDir, String blastFilename) {
+        LCAParseOptions lcaParseOptions = new LCAParseOptions(taxonomyDir, null, "nanook", false, options.getLCAMaxHits(), options.getLCAScorePercent(), options.getLCAMinIdentity(), options.getLCAMinQueryCoverage(), options.getLCAMinCombinedScore(), options.getLCAMinLength());
+        Taxonomy taxonomy = new Taxonomy(options, lcaParseOptions, taxonomyDir + File.separator + "nodes.dmp", taxonomyDir + File.separator + "names.dmp");
+        LCAFileParser parser = new LCAFileParser(taxonomy, lcaParseOptions, null, false, options.getLog());
+        int maxHits = lcaParseOptions.getMaxHitsToConsider();
+
+        System.out.println("Reading "+blastFilename);
+        parser.parseFile(blastFilename);
+        parser.removePoorAlignments();
+        Hashtable<String, LCAHitSet> hitsByQuery = parser.getHitsByQuery();
+        LCAHitSet[] hitSets = hitsByQuery.values().toArray(new LCAHitSet[0]);
+        int hits = 0;
+        for (int i=0; i<hitSets.length; i++) {
+            hits += Math.min(hitSets[i].getNumberOfAlignments(), maxHits);
+        }
+        System.out.println("Got "+hitSets.length+" reads and "+hits+" hits to consider");
+
+        for (int s=0; s<2; s++) {
+            boolean limitToSpecies = s == 1 ? true:false;
+            long[] byPath = new long[hitSets.length];
+            long[] byIndex = new long[hitSets.length];
+            long pathTime = Long.MAX_VALUE;
+            long indexTime = Long.MAX_VALUE;
+            int differences = 0;
+
+            for (int r=0; r<REPEATS; r++) {
+                // Clear path lists, so path walk includes building them as the old parser did for every hit
+                for (int i=0; i<hitSets.length; i++) {
+                    for (int j=0; j<hitSets[i].getNumberOfAlignments(); j++) {
+                        hitSets[i].getAlignment(j).setTaxonIdPath(null);
+                    }
+                }
+
+                long startTime = System.nanoTime();
+                for (int i=0; i<hitSets.length; i++) {
+                    byPath[i] = taxonomy.findAncestorByPath(hitSets[i], maxHits, limitToSpecies);
+                }
+                pathTime = Math.min(pathTime, System.nanoTime() - startTime);
+
+                startTime = System.nanoTime();
+                for (int i=0; i<hitSets.length; i++) {
+                    byIndex[i] = taxonomy.findAncestor(hitSets[i], maxHits, limitToSpecies);
+                }
+                indexTime = Math.min(indexTime, System.nanoTime() - startTime);
+            }
+
+            for (int i=0; i<hitSets.length; i++) {
+                if (byPath[i] != byIndex[i]) {
+                    if (differences < 10) {
+                        System.out.println("Difference for "+hitSets[i].getQueryName()+": path "+byPath[i]+" index "+byIndex[i]);
+                    }
+                    differences++;
+                }
+            }
+
+            System.out.println("limitToSpecies "+limitToSpecies);
+            System.out.printf("    Path walk: %.3f ms (best of %d)\n", pathTime / 1000000.0, REPEATS);
+            System.out.printf("    LCA index: %.3f ms (best of %d)\n", indexTime / 1000000.0, REPEATS);
+            System.out.println("  Differences: "+differences);
+        }
+    }
+}
@@ -6,14 +6,14 @@
 package uk.ac.earlham.lcaparse;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -22,8 +22,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
 import uk.ac.earlham.marti.core.MARTiLog;
+import uk.ac.earlham.marti.core.ChunkReadLengths;
+import uk.ac.earlham.marti.core.CompressedFile;
 
 /**
  * Carry out Lowest Common Ancestor based classification.
@@ -42,6 +43,12 @@ public class LCAFileParser {
     private String lastFilename = "";
     private boolean keepRejectedAlignments = false;
     private boolean runningCARD;
+    private int totalCount = 0;
+    private int unknownTaxaCount = 0;
+    private int readsWithHits = 0;
+    private long bpWithHits = 0;
+    private int poorAlignmentReads = 0;
+    private long poorAlignmentBp = 0;
 
     public LCAFileParser(Taxonomy t, LCAParseOptions o, AccessionTaxonConvertor atc, boolean rCard, MARTiLog l) {
         taxonomy = t;
@@ -104,6 +111,43 @@ public class LCAFileParser {
         return hs;
     }
     
+    private boolean isBlastFormat() {
+        return (options.getFileFormat() == LCAParseOptions.FORMAT_NANOOK) ||
+               (options.getFileFormat() == LCAParseOptions.FORMAT_BLASTTAB) ||
+               (options.getFileFormat() == LCAParseOptions.FORMAT_BLASTTAXON);
+    }
+    
+    private InputStream openFile(String filename) throws IOException {
+        InputStream is = null;
+        File f = new File(filename);
+        
+        if (f.exists()) {
+            is = new FileInputStream(filename);
+        } else {
+            f = new File(filename + ".gz");
+            if (f.exists()) {
+                is = CompressedFile.openInputStream(filename + ".gz");
+            } else {
+                log.printlnLogAndScreen("Error: can't find " + filename +" or unzipped version");
+            }
+        }
+        
+        return is;
+    }
+    
+    private void addHitSet(LCAHitSet hs) {
+        LCAHitSet existing = hitsByQuery.get(hs.getQueryName());
+        
+        // Hits for a query are normally contiguous, but cope if they're not
+        if (existing != null) {
+            for (int i=0; i<hs.getNumberOfAlignments(); i++) {
+                existing.addAlignment(hs.getAlignment(i));
+            }
+        } else {
+            hitsByQuery.put(hs.getQueryName(), hs);
+        }
+    }
+    
     /**
     * Carry out LCA on a file. Uses LCAHit abstraction, so could be BLAST, SAM etc. 
     *
@@ -111,63 +155,17 @@ public class LCAFileParser {
     * @return number of reads with hits
     */
     public int parseFile(String filename) {
-        BufferedReader br = null;
-        InputStream fileStream = null;
-        InputStream gzipStream = null;
-        Reader decoder = null;
-        
         try {
-            File f = new File(filename);
-            if (f.exists()) {
-                br = new BufferedReader(new FileReader(filename));
-            } else {
-                filename = filename + ".gz";
-                f = new File(filename);
-                if (f.exists()) {
-                    fileStream = new FileInputStream(filename);
-                    gzipStream = new GZIPInputStream(fileStream);
-                    decoder = new InputStreamReader(gzipStream, "US-ASCII");
-                    br = new BufferedReader(decoder);    
-                } else {
-                    log.printlnLogAndScreen("Error: can't find " + filename +" or unzipped version");
-                }
-            }
+            InputStream is = openFile(filename);
             
-            if (br != null) {
-                String line;
-                String lastQuery = "";
-                int equal = 0;
-
-                do {
-                    line = br.readLine();
-                    if (line != null) {
-                        if (line.length() > 1) {
-                            LCAHit ah = createNewHit(taxonomy, accTaxConvert, line);
-                            long taxonId = ah.getTaxonId();
-                            String queryName = ah.getQueryName();
-                            LCAHitSet hs;
-
-                            if (hitsByQuery.containsKey(queryName)) {
-                                hs = hitsByQuery.get(queryName);
-                            } else {
-                                hs = createNewHitSet(queryName);
-                            }
-                            hs.addAlignment(ah);
-
-                            hitsByQuery.put(queryName, hs);
-                        }
-                    }
-                } while (line != null);
-                lastFilename = filename;
-
-                br.close();
-                if(fileStream != null) {
-                    decoder.close();
-                    gzipStream.close();
-                    fileStream.close();
+            if (is != null) {
+                if (isBlastFormat()) {
+                    parseBlastFile(is);
+                } else {
+                    parseLineFile(is);
                 }
-
-                //printEquals();
+                is.close();
+                lastFilename = new File(filename).exists() ? filename:filename + ".gz";
             }
         } catch (Exception e) {
             System.out.println("readProcessFile Exception:");
@@ -178,6 +176,55 @@ public class LCAFileParser {
         return hitsByQuery.size();
     }
     
+    /**
+    * Parse BLAST tabular output a query group at a time. Hits are tokenised
+    * straight from the byte buffer and each query name is only created once.
+    */
+    private void parseBlastFile(InputStream is) throws IOException {
+        BlastTabReader reader = new BlastTabReader(is);
+        LCAHitSet hs = null;
+        
+        while (reader.nextLine()) {
+            BlastHit bh = new BlastHit(taxonomy, accTaxConvert, reader, options.getFileFormat(), true, runningCARD);
+            String queryName = bh.getQueryName();
+            
+            if ((hs == null) || (!queryName.equals(hs.getQueryName()))) {
+                if (hs != null) {
+                    addHitSet(hs);
+                }
+                hs = createNewHitSet(queryName);
+            }
+            
+            hs.addAlignment(bh);
+        }
+        
+        if (hs != null) {
+            addHitSet(hs);
+        }
+    }
+    
+    private void parseLineFile(InputStream is) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(is, "US-ASCII"));
+        String line;
+        
+        while ((line = br.readLine()) != null) {
+            if (line.length() > 1) {
+                LCAHit ah = createNewHit(taxonomy, accTaxConvert, line);
+                String queryName = ah.getQueryName();
+                LCAHitSet hs;
+
+                if (hitsByQuery.containsKey(queryName)) {
+                    hs = hitsByQuery.get(queryName);
+                } else {
+                    hs = createNewHitSet(queryName);
+                }
+                hs.addAlignment(ah);
+
+                hitsByQuery.put(queryName, hs);
+            }
+        }
+    }
+    
     public ArrayList<String> removePoorAlignments() {
         Set<String> keys = hitsByQuery.keySet();
         ArrayList<String> idsToRemove = new ArrayList<String>();
@@ -197,15 +244,164 @@ public class LCAFileParser {
         return idsToRemove;
     }
     
-    public void registerTaxonomyData() {
+    public void registerTaxonomyData(int bc) {
         Set<String> keys = hitsByQuery.keySet();
-        ArrayList<String> idsToRemove = new ArrayList<String>();
         for (String queryName : keys) {
             LCAHitSet hs = hitsByQuery.get(queryName);
-            taxonomy.registerNodeData(hs.getAssignedTaxon(), hs.getMeanIdentity(), hs.getBestIdentity());
+            taxonomy.registerNodeData(bc, hs.getAssignedTaxon(), hs.getMeanIdentity(), hs.getBestIdentity());
         }
     }
         
+    /**
+    * Find LCA for a read with a good alignment and record it in the per taxon
+    * summary counts.
+    *
+    * @param  hs   hits for the read
+    * @return assigned taxon
+    */
+    private long assignTaxon(LCAHitSet hs) {
+        if (hs.hasUnknownTaxa()) {
+            unknownTaxaCount++;
+        }
+
+        if (options.sortHitsbyBitscore()) {
+            hs.sortHits();                
+        }
+
+        long ancestor = taxonomy.findAncestor(hs, options.getMaxHitsToConsider(), options.limitToSpecies());
+        int count = 0;
+        if (countsPerTaxon.containsKey(ancestor)) {
+            count = countsPerTaxon.get(ancestor);
+        }
+        count++;
+        countsPerTaxon.put(ancestor, count);
+        totalCount++;
+        hs.setAssignedTaxon(ancestor);
+        
+        return ancestor;
+    }
+    
+    private void writePerReadLine(PrintWriter pwPerRead, LCAHitSet hs, long ancestor) {
+        String ancestorRank = "";
+        TaxonomyNode n = taxonomy.getNodeFromTaxonId(ancestor);
+        if (n != null) {
+            ancestorRank = n.getRankString();
+        }
+
+        pwPerRead.print(hs.getQueryName() + "\t");
+        pwPerRead.print(ancestor + "\t");
+        pwPerRead.print(taxonomy.getNameFromTaxonId(ancestor)+ "\t");
+        pwPerRead.print(ancestorRank + "\t");
+        pwPerRead.printf("%.1f\t", hs.getBestIdentity());
+        pwPerRead.printf("%.1f", hs.getMeanIdentity());
+        pwPerRead.println("");
+    }
+    
+    /**
+    * Parse, classify and count a file in a single pass. BLAST writes all hits for
+    * a query together, so as soon as the query name changes the read's LCA is
+    * found, its per read line written, and it is counted against barcode bc
+    * along with its node data. Only one read's hits are held at a time and
+    * hitsByQuery stays empty. Formats that aren't grouped by query (PAF, SAM)
+    * go through parseFile and the separate passes instead.
+    *
+    * @param  filename          filename of alignment file
+    * @param  summaryFilename   per taxon summary file
+    * @param  perReadFilename   per read file
+    * @param  bc                barcode to count reads against
+    * @param  readLengths       lengths of the chunk's reads, for yields
+    * @return number of reads with hits
+    */
+    public int classifyFile(String filename, String summaryFilename, String perReadFilename, int bc, ChunkReadLengths readLengths) {
+        if (!isBlastFormat()) {
+            return classifyParsedFile(filename, summaryFilename, perReadFilename, bc, readLengths);
+        }
+        
+        try {
+            InputStream is = openFile(filename);
+            
+            if (is != null) {
+                PrintWriter pwPerRead = new PrintWriter(new BufferedWriter(new FileWriter(perReadFilename), 1 << 16));
+                BlastTabReader reader = new BlastTabReader(is);
+                LCAHitSet hs = null;
+
+                while (reader.nextLine()) {
+                    BlastHit bh = new BlastHit(taxonomy, accTaxConvert, reader, options.getFileFormat(), true, runningCARD);
+                    String queryName = bh.getQueryName();
+
+                    if ((hs == null) || (!queryName.equals(hs.getQueryName()))) {
+                        if (hs != null) {
+                            classifyRead(hs, pwPerRead, bc, readLengths);
+                        }
+                        hs = createNewHitSet(queryName);
+                    }
+
+                    hs.addAlignment(bh);
+                }
+
+                if (hs != null) {
+                    classifyRead(hs, pwPerRead, bc, readLengths);
+                }
+                
+                reader.close();
+                pwPerRead.close();
+                lastFilename = new File(filename).exists() ? filename:filename + ".gz";
+            }
+        } catch (Exception e) {
+            System.out.println("classifyFile Exception:");
+            e.printStackTrace();
+            System.exit(1);
+        }
+        
+        writeSummary(summaryFilename);
+        
+        return readsWithHits;
+    }
+    
+    private void classifyRead(LCAHitSet hs, PrintWriter pwPerRead, int bc, ChunkReadLengths readLengths) {
+        long readLength = readLengths.getLength(hs.getQueryName());
+        
+        readsWithHits++;
+        bpWithHits += readLength;
+        
+        if (hs.hasGoodAlignment()) {
+            long ancestor = assignTaxon(hs);
+            writePerReadLine(pwPerRead, hs, ancestor);
+            taxonomy.countRead(bc, ancestor, readLength);
+            taxonomy.registerNodeData(bc, ancestor, hs.getMeanIdentity(), hs.getBestIdentity());
+        } else {
+            poorAlignmentReads++;
+            poorAlignmentBp += readLength;
+        }
+    }
+    
+    /**
+    * Multi pass version of classifyFile, for formats where a query's hits may
+    * be spread through the file.
+    */
+    private int classifyParsedFile(String filename, String summaryFilename, String perReadFilename, int bc, ChunkReadLengths readLengths) {
+        readsWithHits = parseFile(filename);
+        for (String queryName : hitsByQuery.keySet()) {
+            bpWithHits += readLengths.getLength(queryName);
+        }
+        
+        ArrayList<String> queriesToRemove = removePoorAlignments();
+        poorAlignmentReads = queriesToRemove.size();
+        for (String queryName : queriesToRemove) {
+            poorAlignmentBp += readLengths.getLength(queryName);
+        }
+        
+        writeResults(summaryFilename, perReadFilename);
+        
+        for (String queryName : hitsByQuery.keySet()) {
+            LCAHitSet hs = hitsByQuery.get(queryName);
+            taxonomy.countRead(bc, hs.getAssignedTaxon(), readLengths.getLength(queryName));
+        }
+        registerTaxonomyData(bc);
+        
+        return readsWithHits;
+    }
+    
     /**
     * Write results to summary file. 
     *
@@ -213,8 +409,6 @@ public class LCAFileParser {
     * @param  perReadFilename   per read file
     */
     public void writeResults(String summaryFilename, String perReadFilename) {
-        int totalCount = 0;
-        int unknownTaxaCount = 0;
         Set<String> keys = hitsByQuery.keySet();
         
         try {
@@ -226,37 +420,8 @@ public class LCAFileParser {
                 
                 if (hs.getNumberOfAlignments() > 0) {
                     if (hs.hasGoodAlignment()) {
-                        if (hs.hasUnknownTaxa()) {
-                            unknownTaxaCount++;
-                        }
-                        
-                        if (options.sortHitsbyBitscore()) {
-                            hs.sortHits();                
-                        }
-                        
-                        long ancestor = taxonomy.findAncestor(hs, options.getMaxHitsToConsider(), options.limitToSpecies());
-                        int count = 0;
-                        if (countsPerTaxon.containsKey(ancestor)) {
-                            count = countsPerTaxon.get(ancestor);
-                        }
-                        count++;
-                        countsPerTaxon.put(ancestor, count);
-                        totalCount++;
-
-                        String ancestorRank = "";
-                        TaxonomyNode n = taxonomy.getNodeFromTaxonId(ancestor);
-                        if (n != null) {
-                            ancestorRank = n.getRankString();
-                        }
-
-                        pwPerRead.print(queryName + "\t");
-                        pwPerRead.print(ancestor + "\t");
-                        pwPerRead.print(taxonomy.getNameFromTaxonId(ancestor)+ "\t");
-                        pwPerRead.print(ancestorRank + "\t");
-                        pwPerRead.printf("%.1f\t", hs.getBestIdentity());
-                        pwPerRead.printf("%.1f", hs.getMeanIdentity());
-                        pwPerRead.println("");
-                        hs.setAssignedTaxon(ancestor);
+                        long ancestor = assignTaxon(hs);
+                        writePerReadLine(pwPerRead, hs, ancestor);
                     } else {
                         pwPerRead.println(queryName + "\t0\tUnassigned\tBadAlignment\t0\t0");
                     }                
@@ -272,6 +437,10 @@ public class LCAFileParser {
             System.exit(1);
         }        
         
+        writeSummary(summaryFilename);
+    }
+    
+    private void writeSummary(String summaryFilename) {
         // Sort
         List<Map.Entry<Long, Integer>> list = new ArrayList<Entry<Long, Integer>>(countsPerTaxon.entrySet());
 
@@ -412,6 +581,28 @@ public class LCAFileParser {
         return hitsByQuery;
     }
     
+    /**
+    * Number of reads with hits in the last classifyFile.
+    */
+    public int getReadsWithHits() {
+        return readsWithHits;
+    }
+    
+    public long getBpWithHits() {
+        return bpWithHits;
+    }
+    
+    /**
+    * Number of reads whose hits were all too poor to classify in the last classifyFile.
+    */
+    public int getPoorAlignmentReads() {
+        return poorAlignmentReads;
+    }
+    
+    public long getPoorAlignmentBp() {
+        return poorAlignmentBp;
+    }
+    
     public void setKeepRejectedAlignments() {
         keepRejectedAlignments = true;
     }    
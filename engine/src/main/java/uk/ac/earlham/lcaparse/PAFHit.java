@@ -77,8 +77,6 @@ public class PAFHit implements LCAHit {
         taxonId = accTaxConvert.getTaxonFromAccession(targetName);
         if (taxonId == -1) {
             taxonomy.warnTaxa(targetName);
-        } else {
-            cacheTaxonIdPath();
         }
     }
     
@@ -103,7 +101,7 @@ public class PAFHit implements LCAHit {
     }
 
     private void cacheTaxonIdPath() {
-        if (taxonId != -1) {
+        if ((taxonIdPath == null) && (taxonId != -1)) {
             taxonIdPath = taxonomy.getTaxonIdPathFromId(taxonId);
         }
     } 
@@ -117,6 +115,7 @@ public class PAFHit implements LCAHit {
     }
             
     public int getTaxonLevel() {
+        cacheTaxonIdPath();
         if (taxonIdPath != null) {
             return taxonIdPath.size(); // 1-offset
         }
@@ -125,6 +124,7 @@ public class PAFHit implements LCAHit {
         
     // Note level is 1-offset
     public long getTaxonNode(int level) {
+        cacheTaxonIdPath();
         if (taxonIdPath != null) {
             if (level <= taxonIdPath.size()) {
                 return taxonIdPath.get(taxonIdPath.size() - level);
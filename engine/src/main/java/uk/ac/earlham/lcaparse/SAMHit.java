@@ -51,8 +51,6 @@ public class SAMHit implements LCAHit {
         taxonId = accTaxConvert.getTaxonFromAccession(targetName);
         if (taxonId == -1) {
             taxonomy.warnTaxa(targetName);
-        } else {
-            cacheTaxonIdPath();
         }
     }
     
@@ -77,7 +75,7 @@ public class SAMHit implements LCAHit {
     }
 
     private void cacheTaxonIdPath() {
-        if (taxonId != -1) {
+        if ((taxonIdPath == null) && (taxonId != -1)) {
             taxonIdPath = taxonomy.getTaxonIdPathFromId(taxonId);
         }
     } 
@@ -91,6 +89,7 @@ public class SAMHit implements LCAHit {
     }
             
     public int getTaxonLevel() {
+        cacheTaxonIdPath();
         if (taxonIdPath != null) {
             return taxonIdPath.size(); // 1-offset
         }
@@ -99,6 +98,7 @@ public class SAMHit implements LCAHit {
         
     // Note level is 1-offset
     public long getTaxonNode(int level) {
+        cacheTaxonIdPath();
         if (taxonIdPath != null) {
             if (level <= taxonIdPath.size()) {
                 return taxonIdPath.get(taxonIdPath.size() - level);
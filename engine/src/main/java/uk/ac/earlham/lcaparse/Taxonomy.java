@@ -18,11 +18,13 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import uk.ac.earlham.marti.core.MARTiEngineOptions;
 
 /**
@@ -31,14 +33,17 @@ import uk.ac.earlham.marti.core.MARTiEngineOptions;
  * @author Richard M. Leggett
  */
 public class Taxonomy {
+    public final static double[] MIN_SUPPORT_LEVELS = {0, 0.1, 1, 2};
     private LCAParseOptions options;
     private MARTiEngineOptions martiOptions;
     private String nodesFilename;
-    private Hashtable<Long, TaxonomyNode> nodesById = new Hashtable<Long, TaxonomyNode>();
+    private TaxonomyTree tree = null;
+    private TaxonomyLCA lcaIndex = null;
+    // One count layer per barcode, created on first use without taking a lock on the Taxonomy
+    private AtomicReferenceArray<TaxonomyCounts> counts = new AtomicReferenceArray<TaxonomyCounts>(MARTiEngineOptions.MAX_BARCODES);
     private Hashtable<Long, String> nameById = new Hashtable<Long, String>();
     private Hashtable<String, Long> idByName = new Hashtable<String, Long>();
     private Hashtable<String, Long> accessionToTaxon = new Hashtable<String, Long>();
-    private TaxonomyNode unclassifiedNode = new TaxonomyNode(0L);
     private long humanId = 0;
     private long bacteriaId = 0;
     private long lambdaId = 0;
@@ -50,8 +55,6 @@ public class Taxonomy {
     private int plotHeight = 2000;
     private int nTrees = 0;
     private boolean warningId = false;
-    private int[] assignedCount = new int[MARTiEngineOptions.MAX_BARCODES];
-    private long[] assignedYield = new long[MARTiEngineOptions.MAX_BARCODES];
 //    private int totalAssignedReads = 0;
 //    private int assignedThreshold = 2;
 //    private int otherCount = 0;
@@ -62,10 +65,8 @@ public class Taxonomy {
     private Hashtable<String, Integer> warningRank = new Hashtable<String, Integer>();
     private Hashtable<Long, TaxonomyRank> taxonIdToRank = new Hashtable<Long, TaxonomyRank>();
     private Hashtable<String, TaxonomyRank> ranksTable = new Hashtable<String, TaxonomyRank>();
-    private Hashtable<Long, TaxonomyNode> leafNodes = new Hashtable<Long, TaxonomyNode>();
-    private Hashtable<Long, TaxonomyNodeData> nodeData = new Hashtable<Long, TaxonomyNodeData>();
-    //private ArrayList<TaxonomyNode> leafNodes = new ArrayList<TaxonomyNode>();
     private SimplifiedRank simplifiedRank = new SimplifiedRank();
+    private TaxonomySnapshot snapshot = null;
     
     public Taxonomy(MARTiEngineOptions m, LCAParseOptions o, String nf, String namesFilename) {
         long startTime = System.nanoTime();
@@ -74,37 +75,85 @@ public class Taxonomy {
         martiOptions = m;
         options = o;
         
-        for (int i=0; i<MARTiEngineOptions.MAX_BARCODES; i++) {
-            assignedCount[i] = 0;
-            assignedYield[i] = 0;
+        String snapshotFilename = TaxonomySnapshot.getSnapshotFilename(new File(nodesFilename).getParent());
+        if (TaxonomySnapshot.isCurrent(snapshotFilename, nodesFilename, namesFilename)) {
+            try {
+                System.out.println("Reading "+snapshotFilename);
+                snapshot = TaxonomySnapshot.open(snapshotFilename);
+                loadSnapshot();
+                long timeDiff = (System.nanoTime() - startTime) / 1000000;
+                System.out.println("Completed in "+timeDiff+" ms");
+            } catch (IOException e) {
+                System.out.println("Warning: couldn't read taxonomy snapshot, reading "+nodesFilename+" instead");
+                e.printStackTrace();
+                snapshot = null;
+            }
+        } else {
+            System.out.println("No current taxonomy snapshot - run with -compiletaxonomy to speed up startup");
+        }
+        
+        if (snapshot == null) {
+            readDmpFiles(namesFilename, startTime);
         }
         
+        nameById.put(0L, "unclassified");
+        
+        startTime = System.nanoTime();
+        lcaIndex = new TaxonomyLCA(tree);
+        long timeDiff = (System.nanoTime() - startTime) / 1000000;
+        System.out.println("Built LCA index in "+timeDiff+" ms");
+        
+        showMemory();
+    }
+    
+    private void loadSnapshot() {
+        tree = new TaxonomyTree(snapshot);
+        humanId = snapshot.getHumanId();
+        bacteriaId = snapshot.getBacteriaId();
+        lambdaId = snapshot.getLambdaId();
+        vectorsId = snapshot.getVectorsId();
+        ecoliId = snapshot.getEcoliId();
+        
+        System.out.println("Processed "+tree.getNodeCount()+" nodes");
+    }
+    
+    private void readDmpFiles(String namesFilename, long startTime) {
         try {
+            int[] fileIds = new int[1000000];
+            int[] fileParents = new int[1000000];
+            byte[] fileRanks = new byte[1000000];
+            byte[] fileSimplifiedRanks = new byte[1000000];
+            int fileCount = 0;
+
             System.out.println("Reading "+nodesFilename);
             BufferedReader br = new BufferedReader(new FileReader(nodesFilename));
             String line;                
             while ((line = br.readLine()) != null) {
                 String[] fields = line.split("\t");                
-                long id = Long.parseLong(fields[0]);
-                long parentId = Integer.parseInt(fields[2]);
                 String rank = fields[4];
+                short r = TaxonomyNode.getRankFromString(rank);
                 
-                TaxonomyNode n = nodesById.get(id);
-                
-                if (n == null) {               
-                    n = new TaxonomyNode(id);
-                    nodesById.put(id, n);
+                if (r == TaxonomyNode.RANK_UNKNOWN) {
+                    warnRank(rank);
                 }
                 
-                n.setRank(this, rank);
-                n.setSimplifiedRank(simplifiedRank.getRankFromString(rank));
-                
-                if (parentId != id) {
-                    n.setParent(parentId);   
-                    linkParent(n, parentId);                
+                if (fileCount == fileIds.length) {
+                    int newSize = fileIds.length * 2;
+                    fileIds = Arrays.copyOf(fileIds, newSize);
+                    fileParents = Arrays.copyOf(fileParents, newSize);
+                    fileRanks = Arrays.copyOf(fileRanks, newSize);
+                    fileSimplifiedRanks = Arrays.copyOf(fileSimplifiedRanks, newSize);
                 }
+                
+                fileIds[fileCount] = Integer.parseInt(fields[0]);
+                fileParents[fileCount] = Integer.parseInt(fields[2]);
+                fileRanks[fileCount] = (byte)r;
+                fileSimplifiedRanks[fileCount] = (byte)simplifiedRank.getRankFromString(rank);
+                fileCount++;
             }
             br.close();
+            
+            tree = new TaxonomyTree(fileIds, fileParents, fileRanks, fileSimplifiedRanks, fileCount);
 
             long timeDiff = (System.nanoTime() - startTime) / 1000000;
             System.out.println("Completed in "+timeDiff+" ms");
@@ -183,57 +232,6 @@ public class Taxonomy {
             e.printStackTrace();
             System.exit(1);
         }
-        
-        // Make list of leaf nodes
-        //System.out.println("Finding leaf nodes...");
-        //startTime = System.nanoTime();
-        //Set<Long> keys = nodesById.keySet();
-        //for(Long taxon: keys) {
-        //    TaxonomyNode n = nodesById.get(taxon);
-        //    if (n.isLeafNode()) {
-        //        //leafNodes.add(n);
-        //        leafNodes.put(taxon, n);
-        //    }
-        //}
-        //long timeDiff = (System.nanoTime() - startTime) / 1000000;
-        //System.out.println("Completed in "+timeDiff+" ms");
-        
-        nameById.put(0L, "unclassified");
-        
-        TaxonomyNode example = nodesById.get(1L);
-        
-        //long nodeSize = ObjectSizeFetcher.getObjectSize(example);
-        //long entries = nodesById.size();
-        //long totalSize = entries * nodeSize;
-        //System.out.println("Entries in nodesById = " + entries);
-        //System.out.println("Size of a node = " + nodeSize);
-        //System.out.println("Total size = " + (totalSize/1024) + "k");
-                
-        //System.out.println("Node 2 is "+getNameFromTaxonId(2L));
-        //outputTaxonIdsFromNode(2L, "/Users/leggettr/Documents/Databases/taxonomy/bacteria_taxonids.txt");
-        //System.out.println("Node 2157 is "+getNameFromTaxonId(2157L));
-        //outputTaxonIdsFromNode(2157L, "/Users/leggettr/Documents/Databases/taxonomy/archea_taxonids.txt");
-        //System.out.println("Node 10239 is "+getNameFromTaxonId(10239L));        
-        //outputTaxonIdsFromNode(10239L, "/Users/leggettr/Documents/Databases/taxonomy/viruses_taxonids.txt");        
-        //System.exit(1);
-        
-//        try {
-//            FileOutputStream fos = new FileOutputStream("~/Desktop/acc2tax.ser");
-//            ObjectOutputStream oos = new ObjectOutputStream(fos);
-//            oos.writeObject(accessionToTaxon);
-//            oos.close();
-//        } catch (Exception e) {
-//            System.out.println("Exception trying to write object:");
-//            e.printStackTrace();
-//        }
-        
-        //this.dumpTaxonomyFromName("Arabidopsis thaliana");
-        //System.out.println("");
-        //this.dumpTaxonomyFromName("Enterobacteriaceae bacterium strain FGI 57");
-        
-        //System.out.println("Enterobacter aerogenes = " + this.getTaxonIdFromName("Enterobacter aerogenes"));
-        //System.out.println("" + );
-        showMemory();
     }
     
     public void showMemory() {
@@ -377,18 +375,37 @@ public class Taxonomy {
         System.out.println(" Used memory: "+ ((Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / (1024*1024)) + " Mb");
     }
         
-    private void linkParent(TaxonomyNode n, long parentId) {
-        TaxonomyNode parentNode = nodesById.get(parentId);
-        if (parentNode == null) {
-            parentNode = new TaxonomyNode(parentId);
-            nodesById.put(parentId, parentNode);
+    TaxonomyTree getTree() {
+        return tree;
+    }
+    
+    TaxonomyCounts getCounts(int bc) {
+        return counts.get(bc);
+    }
+    
+    private TaxonomyCounts getOrCreateCounts(int bc) {
+        TaxonomyCounts c = counts.get(bc);
+        if (c == null) {
+            counts.compareAndSet(bc, null, new TaxonomyCounts(tree));
+            c = counts.get(bc);
         }
-        parentNode.addChild(n);        
+        return c;
     }
     
     public String getNameFromTaxonId(Long id) {
+        String name = null;
+        
         if (nameById.containsKey(id)) {
             return nameById.get(id);
+        } else if (snapshot != null) {
+            int index = tree.getIndex(id);
+            if (index >= 0) {
+                name = snapshot.getName(index);
+            }
+        }
+        
+        if (name != null) {
+            return name;
         } else if (id == -2) {
             return "Not assigned";
         } else {
@@ -398,11 +415,15 @@ public class Taxonomy {
     
     public Long getTaxonIdFromName(String name) {
         Long id = idByName.get(name);
+        if ((id == null) && (snapshot != null)) {
+            id = snapshot.getTaxonIdFromName(name);
+        }
         return id;
     }
     
     public TaxonomyNode getNodeFromTaxonId(Long id) {
-        return nodesById.get(id);
+        int index = id == null ? -1:tree.getIndex(id);
+        return index >= 0 ? new TaxonomyNode(this, index):null;
     }
     
     public TaxonomyNode getNodeFromName(String name) {
@@ -434,7 +455,7 @@ public class Taxonomy {
                     if ((parentId != null) && (parentId != n.getId())) {
                         TaxonomyNode newNode = getNodeFromTaxonId(parentId);
                         
-                        if (n == newNode) {
+                        if (n.getIndex() == newNode.getIndex()) {
                             System.out.println("Er... something went wrong!");
                             System.out.println(n.getRankString());
                             System.exit(1);
@@ -513,32 +534,10 @@ public class Taxonomy {
     }
     
     public void countRead(int bc, Long id, long readLength) {
-        TaxonomyNode n = getNodeFromTaxonId(id);
+        int index = id == null ? -1:tree.getIndex(id);
         
 //        totalCountCheck++;
-        assignedCount[bc]++;
-        assignedYield[bc] += readLength;
-        
-        if (n == null) {
-            unclassifiedNode.incrementAssignedAndAddYield(bc, readLength);
-        } else {
-            n.incrementAssignedAndAddYield(bc, readLength);
-
-            do {
-                Long parent = n.getParent();
-                n.incrementSummedAndAddYield(bc, readLength);
-
-                if (id != parent) {
-                    id = parent;
-                } else {
-                    id = null;                
-                }
-
-                if (id != null) {
-                    n = getNodeFromTaxonId(id);
-                }
-            } while (id != null);
-        }
+        getOrCreateCounts(bc).countRead(index, readLength);
     }
     
     public Long parseTaxonomyToId(String s) {
@@ -652,7 +651,76 @@ public class Taxonomy {
 //        //System.out.println("["+getTaxonomyStringFromName(species)+"]");
 //    }
 //    
+    /**
+    * Find lowest common ancestor of two taxa.
+    *
+    * @param  taxonA  taxon ID
+    * @param  taxonB  taxon ID
+    * @return taxon ID of LCA, or 0 if either isn't in the taxonomy or they don't share an ancestor
+    */
+    public long getLowestCommonAncestor(long taxonA, long taxonB) {
+        int a = tree.getIndex(taxonA);
+        int b = tree.getIndex(taxonB);
+        
+        if ((a < 0) || (b < 0)) {
+            return 0;
+        }
+        
+        int ancestor = lcaIndex.getLCA(a, b);
+        return ancestor >= 0 ? tree.getTaxonId(ancestor):0;
+    }
+    
     public long findAncestor(LCAHitSet bhs, int maxToParse, boolean limitToSpecies) {
+        if (bhs.getNumberOfAlignments() == 0) {
+            System.out.println("Er... no alignments in findAncestor...");
+            System.exit(1);
+        }
+        
+        int loopTo = bhs.getNumberOfAlignments() < maxToParse ? bhs.getNumberOfAlignments():maxToParse;
+        int ancestorIndex = -1;
+        boolean gotHit = false;
+        
+        // Hits with taxa that aren't in the taxonomy are ignored, as they have no path to compare.
+        // A hit to taxon 0 (unclassified) or hits in unconnected trees give an ancestor of 0.
+        for (int i=0; i<loopTo; i++) {
+            long taxonId = bhs.getAlignment(i).getTaxonId();
+            int index = taxonId == 0 ? -1:tree.getIndex(taxonId);
+            
+            if (taxonId == 0) {
+                return 0;
+            } else if (index >= 0) {
+                if (gotHit == false) {
+                    ancestorIndex = index;
+                    gotHit = true;
+                } else if (ancestorIndex >= 0) {
+                    ancestorIndex = lcaIndex.getLCA(ancestorIndex, index);
+                }
+            }
+        }
+        
+        if (gotHit == false) {
+            // Recode to MEGAN's "Not assigned";
+            return -2;
+        } else if (ancestorIndex < 0) {
+            return 0;
+        }
+        
+        // Limit to species looks at the path of the first hit only, as findAncestorByPath did
+        if (limitToSpecies && (tree.getIndex(bhs.getAlignment(0).getTaxonId()) >= 0)) {
+            int speciesIndex = lcaIndex.getSpeciesAncestor(ancestorIndex);
+            if (speciesIndex >= 0) {
+                ancestorIndex = speciesIndex;
+            }
+        }
+        
+        return tree.getTaxonId(ancestorIndex);
+    }
+    
+    /**
+    * Original level by level LCA, comparing the root paths of each hit. Kept
+    * for checking and benchmarking findAncestor.
+    */
+    long findAncestorByPath(LCAHitSet bhs, int maxToParse, boolean limitToSpecies) {
         long ancestor = 0;
         boolean debug = false;       
         
@@ -908,141 +976,88 @@ public class Taxonomy {
         return isSpeciesOrBelow;
     }
     
-    private void adjustNodeByCount(int bc, int minReads, TaxonomyNode currentNode, TaxonomyNode parentNode) {        
-        // Go down children
-        if (!currentNode.isLeafNode()) {
-            ArrayList<TaxonomyNode> children = currentNode.getChildren();
-            for (int i=0; i<children.size(); i++) {
-                TaxonomyNode childNode = children.get(i);
-                if (childNode.getLCASummed(bc) > 0) {
-                    adjustNodeByCount(bc, minReads, childNode, currentNode);
-                }
-            }
-        }
-        
-        // If this node has insufficient support, move up
-        if (currentNode.getLCAAssigned(bc) < minReads) {
-            if (parentNode != null) {
-                parentNode.addToLCAAssigned(bc, currentNode.getLCAAssigned(bc), currentNode.getLCAYield(bc));
-                
-                // If this node has the samme summed count as assigned, we can safely clear the summed too.
-                // However, if summmed is greater, then there must be a node further down that meets the min reads.
-                if (currentNode.getLCASummed(bc) == currentNode.getLCAAssigned(bc)) {
-                    currentNode.zeroLCASummmmarisedCount(bc);
-                }
-                
-                currentNode.zeroLCAAssignedCount(bc);
-            } else {
-                martiOptions.getLog().println("Null parentId for "+currentNode.getId()+" assigned is "+currentNode.getLCAAssigned(bc)+" summed is "+currentNode.getLCASummed(bc)+" minReads is "+minReads);
-            }
-        }
-    }
-    
-    private void adjustNodeByYield(int bc, long minYield, TaxonomyNode currentNode, TaxonomyNode parentNode) {        
-        // Go down children
-        if (!currentNode.isLeafNode()) {
-            ArrayList<TaxonomyNode> children = currentNode.getChildren();
-            for (int i=0; i<children.size(); i++) {
-                TaxonomyNode childNode = children.get(i);
-                if (childNode.getLCASummedYield(bc) > 0) {
-                    adjustNodeByYield(bc, minYield, childNode, currentNode);
-                }
-            }
-        }
-        
-        // If this node has insufficient support, move up
-        if (currentNode.getLCAYield(bc) < minYield) {
-            if (parentNode != null) {
-                parentNode.addToLCAAssigned(bc, currentNode.getLCAAssigned(bc), currentNode.getLCAYield(bc));
-                
-                // If this node has the samme summed count as assigned, we can safely clear the summed too.
-                // However, if summmed is greater, then there must be a node further down that meets the min reads.
-                if (currentNode.getLCASummedYield(bc) == currentNode.getLCAYield(bc)) {
-                    currentNode.zeroLCASummmmarisedCount(bc);
-                }
-                
-                currentNode.zeroLCAAssignedCount(bc);
-            } else {
-                martiOptions.getLog().println("Null parentId for "+currentNode.getId()+" yield is "+currentNode.getLCAYield(bc)+" summed is "+currentNode.getLCASummedYield(bc)+" minYield is "+minYield);
-            }
-        }
-    }
-    
-    private void copyLCAAssignments(int bc) {
+    /**
+    * Calculate LCA counts for every min support level in MIN_SUPPORT_LEVELS, by
+    * count and by yield. Does nothing if no reads have been counted since the
+    * last call.
+    *
+    * Only touches barcode bc's counts, so different barcodes can be adjusted at the same time.
+    *
+    * @param  bc  barcode
+    */
+    public void adjustForMinSupport(int bc) {
+        TaxonomyCounts c = getOrCreateCounts(bc);
+        int rootIndex = tree.getIndex(1L);
+        int[] minReads = new int[MIN_SUPPORT_LEVELS.length];
+        long[] minYield = new long[MIN_SUPPORT_LEVELS.length];
         long startTime = System.nanoTime();
         long timeDiff;
-        Set<Long> keys = nodesById.keySet();
-
-        for (Long taxon: keys) {
-            TaxonomyNode n = nodesById.get(taxon);
-            if (n.getSummed(bc) > 0) {
-                n.setLCACountsToMatch(bc);
-            } else {
-                n.zeroLCACounts(bc);
-            }
+        
+        if (c.isLCACurrent()) {
+            return;
         }
 
-        timeDiff = (System.nanoTime() - startTime) / 1000000;
-        martiOptions.getLog().println("Timing: LCA assignment copy in " + timeDiff + " ms");
-    }
-    
-    
-    public synchronized void adjustForMinSupport(int bc, double ms, boolean byCount) {
+        martiOptions.getLog().println("LCA adjustment assigned count "+c.getReadCount());
+        martiOptions.getLog().println("LCA adjustment assigned yield " + c.getReadYield());
+        
         // Basing percentage on total assigned reads.
         // But should it be on total reads?
-        if(byCount) {
-            double minReadsD = ((double)assignedCount[bc] * ms) / 100.0;
+        for (int i=0; i<MIN_SUPPORT_LEVELS.length; i++) {
+            double ms = MIN_SUPPORT_LEVELS[i];
+            double minReadsD = ((double)c.getReadCount() * ms) / 100.0;
             long minReadsL = Math.round(minReadsD);
-            int minReads = (int)minReadsL; 
-
-            if (minReads < 1) {
-                minReads = 1;
+            minReads[i] = (int)minReadsL; 
+            if (minReads[i] < 1) {
+                minReads[i] = 1;
             }
 
-            martiOptions.getLog().println("LCA adjustment assigned count "+assignedCount[bc]);
-            martiOptions.getLog().println("LCA adjustment min reads for "+ms+" percent is "+minReads);
-
-            // Make copy of tree assignments
-            copyLCAAssignments(bc);     
-
-            // Start at root and check recursively...
-            TaxonomyNode n = nodesById.get(1L);
-            adjustNodeByCount(bc, minReads, n, null);
-        } else { // by yield
-            double minYieldD = ((double)assignedYield[bc] * ms) / 100.;
-            long minYield = Math.round(minYieldD);
-            if(minYield < 1) {
-                minYield = 1;
+            double minYieldD = ((double)c.getReadYield() * ms) / 100.;
+            minYield[i] = Math.round(minYieldD);
+            if(minYield[i] < 1) {
+                minYield[i] = 1;
             }
-     
-            martiOptions.getLog().println("LCA adjustment assigned yield " + assignedYield[bc]);
-            martiOptions.getLog().println("LCA adjustment min yield for "+ms+" percent is " + minYield);
 
-            copyLCAAssignments(bc);
-            TaxonomyNode n = nodesById.get(1L);
-            adjustNodeByYield(bc, minYield, n, null);
+            martiOptions.getLog().println("LCA adjustment min reads for "+ms+" percent is "+minReads[i]);
+            martiOptions.getLog().println("LCA adjustment min yield for "+ms+" percent is " + minYield[i]);
         }
+
+        c.adjustForMinSupport(minReads, minYield, rootIndex, lcaIndex);
+
+        timeDiff = (System.nanoTime() - startTime) / 1000000;
+        martiOptions.getLog().println("Timing: LCA adjustment of "+c.size()+" nodes in " + timeDiff + " ms");
     }
     
-    public synchronized void registerNodeData(long taxon, double meanId, double maxId) {
-        TaxonomyNodeData nd;
-        if (nodeData.containsKey(taxon)) {
-            nd = nodeData.get(taxon);
-        } else {
-            nd = new TaxonomyNodeData();
-            nodeData.put(taxon, nd);
+    /**
+    * Choose which min support level, and whether by count or yield, the LCA
+    * counts of barcode bc are read from. adjustForMinSupport must have been
+    * called since the last read was counted.
+    *
+    * @param  bc       barcode
+    * @param  ms       min support level, one of MIN_SUPPORT_LEVELS
+    * @param  byCount  true for adjustment by count, false for by yield
+    */
+    public void selectMinSupport(int bc, double ms, boolean byCount) {
+        int level = -1;
+        for (int i=0; i<MIN_SUPPORT_LEVELS.length; i++) {
+            if (MIN_SUPPORT_LEVELS[i] == ms) {
+                level = i;
+            }
         }
         
-        nd.registerHit(meanId, maxId);
+        if (level == -1) {
+            System.out.println("Error: unsupported min support level "+ms);
+            System.exit(1);
+        }
+
+        getOrCreateCounts(bc).selectLCALayer((level * 2) + (byCount ? 0:1));
     }
     
-    public TaxonomyNodeData getNodeData(long taxon) {
-        TaxonomyNodeData tnd = null;
-                
-        if (nodeData.containsKey(taxon)) {
-            tnd = nodeData.get(taxon);
-        }
-        
-        return tnd;
+    public void registerNodeData(int bc, long taxon, double meanId, double maxId) {
+        getOrCreateCounts(bc).registerIdentity(tree.getIndex(taxon), meanId, maxId);
+    }
+    
+    public TaxonomyNodeData getNodeData(int bc, long taxon) {
+        TaxonomyCounts c = counts.get(bc);
+        return c == null ? null:c.getNodeData(tree.getIndex(taxon));
     }
 }
@@ -0,0 +1,425 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+
+package uk.ac.earlham.lcaparse;
+
+import java.util.Arrays;
+
+/**
+ * Read counts and yields for one barcode.
+ *
+ * Each barcode has its own TaxonomyCounts over the shared, immutable
+ * TaxonomyTree, so reads from different barcodes are counted, and trees
+ * written, without contending for a lock. Only nodes that have had a read counted against them (or one of their
+ * descendants) get a slot, so a barcode with a few thousand taxa doesn't
+ * pay for the millions of nodes in the taxonomy. Slots are found through an
+ * open-addressing table keyed on TaxonomyTree node index and the counters
+ * live in parallel primitive arrays.
+ *
+ * LCA counts (after min support adjustment) are kept in layers, two per min
+ * support level - one adjusted by read count, one by yield. All layers are
+ * calculated together in one pass over the counted nodes, and a layer is
+ * then selected for reading.
+ *
+ * @author Richard M. Leggett
+ */
+public class TaxonomyCounts {
+    private final static int INITIAL_CAPACITY = 1024;
+    private TaxonomyTree tree;
+    private int readCount = 0;
+    private long readYield = 0;
+    private int[] table;
+    private int tableMask;
+    private int size = 0;
+    private int[] nodeIndex;
+    private int[] assigned;
+    private int[] summed;
+    private int lcaLayerCount = 1;
+    private int lcaLayer = 0;
+    private boolean lcaCurrent = false;
+    private int[][] lcaAssigned;
+    private int[][] lcaSummed;
+    private long[] assignedYield;
+    private long[] summedYield;
+    private long[][] lcaYield;
+    private long[][] lcaSummedYield;
+    private int[] identityHits;
+    private double[] meanIdentityTotal;
+    private double[] bestIdentityTotal;
+
+    public TaxonomyCounts(TaxonomyTree t) {
+        tree = t;
+        table = new int[INITIAL_CAPACITY * 2];
+        tableMask = table.length - 1;
+        Arrays.fill(table, -1);
+        nodeIndex = new int[INITIAL_CAPACITY];
+        assigned = new int[INITIAL_CAPACITY];
+        summed = new int[INITIAL_CAPACITY];
+        lcaAssigned = new int[lcaLayerCount][INITIAL_CAPACITY];
+        lcaSummed = new int[lcaLayerCount][INITIAL_CAPACITY];
+        assignedYield = new long[INITIAL_CAPACITY];
+        summedYield = new long[INITIAL_CAPACITY];
+        lcaYield = new long[lcaLayerCount][INITIAL_CAPACITY];
+        lcaSummedYield = new long[lcaLayerCount][INITIAL_CAPACITY];
+        identityHits = new int[INITIAL_CAPACITY];
+        meanIdentityTotal = new double[INITIAL_CAPACITY];
+        bestIdentityTotal = new double[INITIAL_CAPACITY];
+    }
+
+    private static int hash(int index) {
+        int h = index * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int findSlot(int index) {
+        int position = hash(index) & tableMask;
+        int slot;
+
+        while ((slot = table[position]) != -1) {
+            if (nodeIndex[slot] == index) {
+                return slot;
+            }
+            position = (position + 1) & tableMask;
+        }
+
+        return -1;
+    }
+
+    private int findOrAddSlot(int index) {
+        int position = hash(index) & tableMask;
+        int slot;
+
+        while ((slot = table[position]) != -1) {
+            if (nodeIndex[slot] == index) {
+                return slot;
+            }
+            position = (position + 1) & tableMask;
+        }
+
+        if (size == nodeIndex.length) {
+            grow();
+            return findOrAddSlot(index);
+        }
+
+        slot = size++;
+        nodeIndex[slot] = index;
+        table[position] = slot;
+
+        return slot;
+    }
+
+    private void grow() {
+        int capacity = nodeIndex.length * 2;
+        nodeIndex = Arrays.copyOf(nodeIndex, capacity);
+        assigned = Arrays.copyOf(assigned, capacity);
+        summed = Arrays.copyOf(summed, capacity);
+        for (int l=0; l<lcaLayerCount; l++) {
+            lcaAssigned[l] = Arrays.copyOf(lcaAssigned[l], capacity);
+            lcaSummed[l] = Arrays.copyOf(lcaSummed[l], capacity);
+            lcaYield[l] = Arrays.copyOf(lcaYield[l], capacity);
+            lcaSummedYield[l] = Arrays.copyOf(lcaSummedYield[l], capacity);
+        }
+        assignedYield = Arrays.copyOf(assignedYield, capacity);
+        summedYield = Arrays.copyOf(summedYield, capacity);
+        identityHits = Arrays.copyOf(identityHits, capacity);
+        meanIdentityTotal = Arrays.copyOf(meanIdentityTotal, capacity);
+        bestIdentityTotal = Arrays.copyOf(bestIdentityTotal, capacity);
+
+        table = new int[capacity * 2];
+        tableMask = table.length - 1;
+        Arrays.fill(table, -1);
+        for (int slot=0; slot<size; slot++) {
+            int position = hash(nodeIndex[slot]) & tableMask;
+            while (table[position] != -1) {
+                position = (position + 1) & tableMask;
+            }
+            table[position] = slot;
+        }
+    }
+
+    /**
+    * Number of nodes with counts.
+    */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+    * Node index of the nth node with counts, in the order they were first counted.
+    */
+    public synchronized int getNodeIndex(int slot) {
+        return nodeIndex[slot];
+    }
+
+    /**
+    * Count a read against a node and all of its ancestors, under one lock.
+    *
+    * @param  index   node index, or -1 for an unclassified read
+    * @param  length  read length
+    */
+    public synchronized void countRead(int index, long length) {
+        lcaCurrent = false;
+        readCount++;
+        readYield += length;
+
+        if (index < 0) {
+            // Unclassified reads are kept in the slot after the last node
+            incrementAssignedAndAddYield(tree.getNodeCount(), length);
+        } else {
+            incrementAssignedAndAddYield(index, length);
+
+            while (index >= 0) {
+                incrementSummedAndAddYield(index, length);
+                index = tree.getParentIndex(index);
+            }
+        }
+    }
+
+    /**
+    * Total number of reads counted for this barcode.
+    */
+    public synchronized int getReadCount() {
+        return readCount;
+    }
+
+    /**
+    * Total bases counted for this barcode.
+    */
+    public synchronized long getReadYield() {
+        return readYield;
+    }
+
+    /**
+    * Record the identities of a read assigned to a node.
+    *
+    * @param  index     node index, or -1 for an unclassified read
+    * @param  meanId    mean identity of the read's hits
+    * @param  bestId    best identity of the read's hits
+    */
+    public synchronized void registerIdentity(int index, double meanId, double bestId) {
+        int slot = findOrAddSlot(index < 0 ? tree.getNodeCount():index);
+        identityHits[slot]++;
+        meanIdentityTotal[slot] += meanId;
+        bestIdentityTotal[slot] += bestId;
+    }
+
+    /**
+    * Get mean identities of the reads assigned to a node.
+    *
+    * @param  index  node index, or -1 for unclassified
+    * @return node data, or null if no identities have been registered
+    */
+    public synchronized TaxonomyNodeData getNodeData(int index) {
+        int slot = findSlot(index < 0 ? tree.getNodeCount():index);
+        if ((slot == -1) || (identityHits[slot] == 0)) {
+            return null;
+        }
+        return new TaxonomyNodeData(identityHits[slot], meanIdentityTotal[slot], bestIdentityTotal[slot]);
+    }
+
+    public synchronized void incrementAssignedAndAddYield(int index, long length) {
+        int slot = findOrAddSlot(index);
+        assigned[slot]++;
+        assignedYield[slot] += length;
+    }
+
+    public synchronized void incrementSummedAndAddYield(int index, long length) {
+        int slot = findOrAddSlot(index);
+        summed[slot]++;
+        summedYield[slot] += length;
+    }
+
+    public synchronized int getAssigned(int index) {
+        int slot = findSlot(index);
+        return slot == -1 ? 0:assigned[slot];
+    }
+
+    public synchronized int getSummed(int index) {
+        int slot = findSlot(index);
+        return slot == -1 ? 0:summed[slot];
+    }
+
+    public synchronized long getAssignedYield(int index) {
+        int slot = findSlot(index);
+        return slot == -1 ? 0:assignedYield[slot];
+    }
+
+    public synchronized long getSummedYield(int index) {
+        int slot = findSlot(index);
+        return slot == -1 ? 0:summedYield[slot];
+    }
+
+    public synchronized int getLCAAssigned(int index) {
+        int slot = findSlot(index);
+        return slot == -1 ? 0:lcaAssigned[lcaLayer][slot];
+    }
+
+    public synchronized int getLCASummed(int index) {
+        int slot = findSlot(index);
+        return slot == -1 ? 0:lcaSummed[lcaLayer][slot];
+    }
+
+    public synchronized long getLCAYield(int index) {
+        int slot = findSlot(index);
+        return slot == -1 ? 0:lcaYield[lcaLayer][slot];
+    }
+
+    public synchronized long getLCASummedYield(int index) {
+        int slot = findSlot(index);
+        return slot == -1 ? 0:lcaSummedYield[lcaLayer][slot];
+    }
+
+    /**
+    * Check if the LCA layers reflect every read counted so far.
+    */
+    public synchronized boolean isLCACurrent() {
+        return lcaCurrent;
+    }
+
+    /**
+    * Select which LCA layer the LCA getters read from.
+    *
+    * @param  layer  layer number, as passed to adjustForMinSupport
+    */
+    public synchronized void selectLCALayer(int layer) {
+        lcaLayer = layer;
+    }
+
+    private void ensureLCALayers(int layers) {
+        if (layers > lcaLayerCount) {
+            int capacity = nodeIndex.length;
+            lcaAssigned = Arrays.copyOf(lcaAssigned, layers);
+            lcaSummed = Arrays.copyOf(lcaSummed, layers);
+            lcaYield = Arrays.copyOf(lcaYield, layers);
+            lcaSummedYield = Arrays.copyOf(lcaSummedYield, layers);
+            for (int l=lcaLayerCount; l<layers; l++) {
+                lcaAssigned[l] = new int[capacity];
+                lcaSummed[l] = new int[capacity];
+                lcaYield[l] = new long[capacity];
+                lcaSummedYield[l] = new long[capacity];
+            }
+            lcaLayerCount = layers;
+        }
+    }
+
+    /**
+    * Get slots of counted nodes below a root, deepest first, so that each node
+    * comes after all of its descendants.
+    */
+    private int[] getSlotsDeepestFirst(int rootIndex, TaxonomyLCA lca) {
+        int nodeCount = tree.getNodeCount();
+        int[] depth = new int[size];
+        int maxDepth = 0;
+        int n = 0;
+
+        for (int slot=0; slot<size; slot++) {
+            int index = nodeIndex[slot];
+            // Skip the unclassified slot and anything not connected to the root
+            if ((index < nodeCount) && (lca.getLCA(index, rootIndex) == rootIndex)) {
+                depth[slot] = lca.getDepth(index);
+                maxDepth = Math.max(maxDepth, depth[slot]);
+                n++;
+            } else {
+                depth[slot] = -1;
+            }
+        }
+
+        // Counting sort on depth
+        int[] start = new int[maxDepth + 2];
+        for (int slot=0; slot<size; slot++) {
+            if (depth[slot] >= 0) {
+                start[maxDepth - depth[slot] + 1]++;
+            }
+        }
+        for (int d=1; d<start.length; d++) {
+            start[d] += start[d - 1];
+        }
+
+        int[] order = new int[n];
+        for (int slot=0; slot<size; slot++) {
+            if (depth[slot] >= 0) {
+                order[start[maxDepth - depth[slot]]++] = slot;
+            }
+        }
+
+        return order;
+    }
+
+    /**
+    * Calculate LCA layers for a set of min support levels. Layer 2i holds
+    * counts where nodes with fewer than minReads[i] reads have been pushed up
+    * to their parent, layer 2i+1 the same by minYield[i] bases.
+    *
+    * Only counted nodes are visited, deepest first, which gives the same result
+    * as a recursive walk from the root visiting children before parents.
+    *
+    * @param  minReads   minimum reads for each level
+    * @param  minYield   minimum yield for each level
+    * @param  rootIndex  node index of the root
+    * @param  lca        LCA index of the tree, for node depths
+    */
+    public synchronized void adjustForMinSupport(int[] minReads, long[] minYield, int rootIndex, TaxonomyLCA lca) {
+        int levels = minReads.length;
+        ensureLCALayers(levels * 2);
+
+        for (int l=0; l<levels * 2; l++) {
+            System.arraycopy(assigned, 0, lcaAssigned[l], 0, size);
+            System.arraycopy(summed, 0, lcaSummed[l], 0, size);
+            System.arraycopy(assignedYield, 0, lcaYield[l], 0, size);
+            System.arraycopy(summedYield, 0, lcaSummedYield[l], 0, size);
+        }
+
+        int[] order = getSlotsDeepestFirst(rootIndex, lca);
+        for (int i=0; i<order.length; i++) {
+            int slot = order[i];
+            int parentIndex = tree.getParentIndex(nodeIndex[slot]);
+            int parentSlot = parentIndex < 0 ? -1:findSlot(parentIndex);
+
+            for (int level=0; level<levels; level++) {
+                if (summed[slot] > 0) {
+                    adjustSlotByCount(level * 2, slot, parentSlot, minReads[level]);
+                }
+                if (summedYield[slot] > 0) {
+                    adjustSlotByYield((level * 2) + 1, slot, parentSlot, minYield[level]);
+                }
+            }
+        }
+
+        lcaCurrent = true;
+    }
+
+    private void adjustSlotByCount(int l, int slot, int parentSlot, int minReads) {
+        // If this node has insufficient support, move up
+        if ((lcaAssigned[l][slot] < minReads) && (parentSlot >= 0)) {
+            lcaAssigned[l][parentSlot] += lcaAssigned[l][slot];
+            lcaYield[l][parentSlot] += lcaYield[l][slot];
+
+            // If this node has the same summed count as assigned, we can safely clear the summed too.
+            // However, if summed is greater, then there must be a node further down that meets the min reads.
+            if (lcaSummed[l][slot] == lcaAssigned[l][slot]) {
+                lcaSummed[l][slot] = 0;
+                lcaSummedYield[l][slot] = 0;
+            }
+
+            lcaAssigned[l][slot] = 0;
+            lcaYield[l][slot] = 0;
+        }
+    }
+
+    private void adjustSlotByYield(int l, int slot, int parentSlot, long minYield) {
+        if ((lcaYield[l][slot] < minYield) && (parentSlot >= 0)) {
+            lcaAssigned[l][parentSlot] += lcaAssigned[l][slot];
+            lcaYield[l][parentSlot] += lcaYield[l][slot];
+
+            if (lcaSummedYield[l][slot] == lcaYield[l][slot]) {
+                lcaSummed[l][slot] = 0;
+                lcaSummedYield[l][slot] = 0;
+            }
+
+            lcaAssigned[l][slot] = 0;
+            lcaYield[l][slot] = 0;
+        }
+    }
+}
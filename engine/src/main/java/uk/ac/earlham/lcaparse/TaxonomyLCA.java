@@ -0,0 +1,208 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+
+package uk.ac.earlham.lcaparse;
+
+import java.util.Arrays;
+
+/**
+ * Constant time lowest common ancestor queries over a TaxonomyTree.
+ *
+ * Uses an Euler tour of the tree, so the LCA of two nodes is the shallowest
+ * node visited between their first visits. Range minimum is answered with a
+ * sparse table over blocks of the tour plus a scan within the two end blocks,
+ * which keeps memory to a few ints per node on the full NCBI taxonomy.
+ * Nodes that aren't connected to the root (missing parents in nodes.dmp) get
+ * their own tour, separated by an entry with depth -1, so they never share an
+ * ancestor with the rest of the tree.
+ *
+ * @author Richard M. Leggett
+ */
+public class TaxonomyLCA {
+    private final static int BLOCK_SHIFT = 5;
+    private final static int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private TaxonomyTree tree;
+    private int[] euler;
+    private int[] eulerDepth;
+    private int eulerLength = 0;
+    private int[] firstVisit;
+    private int[] speciesAncestor;
+    private int[][] blockMin;
+
+    public TaxonomyLCA(TaxonomyTree t) {
+        tree = t;
+        int nodeCount = tree.getNodeCount();
+        int rootCount = 0;
+
+        for (int i=0; i<nodeCount; i++) {
+            if (tree.getParentIndex(i) < 0) {
+                rootCount++;
+            }
+        }
+
+        euler = new int[(2 * nodeCount) + rootCount];
+        eulerDepth = new int[euler.length];
+        firstVisit = new int[nodeCount];
+        speciesAncestor = new int[nodeCount];
+
+        // Depth first walk with an explicit stack - child counter per stack entry
+        int[] stackNode = new int[64];
+        int[] stackChild = new int[64];
+
+        for (int root=0; root<nodeCount; root++) {
+            if (tree.getParentIndex(root) >= 0) {
+                continue;
+            }
+
+            if (eulerLength > 0) {
+                addToTour(-1, -1);
+            }
+
+            int top = 0;
+            stackNode[0] = root;
+            stackChild[0] = 0;
+            visit(root, -1, 0);
+
+            while (top >= 0) {
+                int node = stackNode[top];
+                if (stackChild[top] < tree.getChildCount(node)) {
+                    int child = tree.getChildIndex(node, stackChild[top]++);
+                    top++;
+                    if (top == stackNode.length) {
+                        stackNode = Arrays.copyOf(stackNode, stackNode.length * 2);
+                        stackChild = Arrays.copyOf(stackChild, stackChild.length * 2);
+                    }
+                    stackNode[top] = child;
+                    stackChild[top] = 0;
+                    visit(child, node, top);
+                } else {
+                    top--;
+                    if (top >= 0) {
+                        addToTour(stackNode[top], top);
+                    }
+                }
+            }
+        }
+
+        buildBlockTable();
+    }
+
+    private void visit(int node, int parent, int depth) {
+        firstVisit[node] = eulerLength;
+        addToTour(node, depth);
+
+        // Shallowest species at or above this node
+        if ((parent >= 0) && (speciesAncestor[parent] >= 0)) {
+            speciesAncestor[node] = speciesAncestor[parent];
+        } else if (tree.getRank(node) == TaxonomyNode.RANK_SPECIES) {
+            speciesAncestor[node] = node;
+        } else {
+            speciesAncestor[node] = -1;
+        }
+    }
+
+    private void addToTour(int node, int depth) {
+        euler[eulerLength] = node;
+        eulerDepth[eulerLength] = depth;
+        eulerLength++;
+    }
+
+    private void buildBlockTable() {
+        int blockCount = (eulerLength + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+        int levels = 1;
+        while ((1 << levels) <= blockCount) {
+            levels++;
+        }
+
+        blockMin = new int[levels][];
+        blockMin[0] = new int[blockCount];
+        for (int b=0; b<blockCount; b++) {
+            blockMin[0][b] = scanMin(b << BLOCK_SHIFT, Math.min(eulerLength - 1, ((b + 1) << BLOCK_SHIFT) - 1));
+        }
+
+        for (int k=1; k<levels; k++) {
+            int span = 1 << (k - 1);
+            int count = blockCount - (1 << k) + 1;
+            blockMin[k] = new int[count];
+            for (int b=0; b<count; b++) {
+                blockMin[k][b] = shallower(blockMin[k - 1][b], blockMin[k - 1][b + span]);
+            }
+        }
+    }
+
+    private int shallower(int p, int q) {
+        return eulerDepth[q] < eulerDepth[p] ? q:p;
+    }
+
+    private int scanMin(int from, int to) {
+        int best = from;
+        for (int i=from+1; i<=to; i++) {
+            if (eulerDepth[i] < eulerDepth[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private int rangeMin(int from, int to) {
+        int fromBlock = from >> BLOCK_SHIFT;
+        int toBlock = to >> BLOCK_SHIFT;
+
+        if (fromBlock == toBlock) {
+            return scanMin(from, to);
+        }
+
+        int best = shallower(scanMin(from, ((fromBlock + 1) << BLOCK_SHIFT) - 1), scanMin(toBlock << BLOCK_SHIFT, to));
+
+        if (toBlock - fromBlock > 1) {
+            int first = fromBlock + 1;
+            int k = 31 - Integer.numberOfLeadingZeros(toBlock - first);
+            best = shallower(best, blockMin[k][first]);
+            best = shallower(best, blockMin[k][toBlock - (1 << k)]);
+        }
+
+        return best;
+    }
+
+    /**
+    * Find lowest common ancestor of two nodes.
+    *
+    * @param  a  node index
+    * @param  b  node index
+    * @return node index of LCA, or -1 if the nodes aren't in the same tree
+    */
+    public int getLCA(int a, int b) {
+        if (a == b) {
+            return a;
+        }
+
+        int from = firstVisit[a];
+        int to = firstVisit[b];
+        if (from > to) {
+            int t = from;
+            from = to;
+            to = t;
+        }
+
+        return euler[rangeMin(from, to)];
+    }
+
+    /**
+    * Get depth of a node, with the root at depth 0.
+    */
+    public int getDepth(int index) {
+        return eulerDepth[firstVisit[index]];
+    }
+
+    /**
+    * Get the shallowest node of species rank at or above a node.
+    *
+    * @param  index  node index
+    * @return node index, or -1 if there's no species on the path to the root
+    */
+    public int getSpeciesAncestor(int index) {
+        return speciesAncestor[index];
+    }
+}
@@ -6,15 +6,17 @@
 package uk.ac.earlham.lcaparse;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.List;
 
 /**
  * Representation of a taxonomy node.
  * 
+ * Nodes are lightweight views onto the arrays held by TaxonomyTree and the
+ * per-barcode TaxonomyCounts held by Taxonomy - they are created on demand
+ * and hold no state of their own beyond the node index.
+ * 
  * @author Richard M. Leggett
  */
-public class TaxonomyNode<T> {
+public class TaxonomyNode {
     public static final short RANK_UNKNOWN = 0;
     public static final short RANK_CLASS = 1;
     public static final short RANK_COHORT = 2;
@@ -66,222 +68,115 @@ public class TaxonomyNode<T> {
     // This value needs to be something that it is impossible to get a barcode ID for
     public static final int LCA_BARCODE = 100000;
     
-    private T data;
-    private ArrayList<TaxonomyNode> children = new ArrayList<TaxonomyNode>();
-    private Long taxonId;
-    private Long parentId = null;
-    private short rank;
-    private short simplifiedRank;
-    private int assigned = 0;
-    private int summed = 0;
-    private int displayColumn = 0;
-    private int displayRow = 0;
-    private int maxAssigned = 0;
-    private Hashtable<Integer,Integer> assignedCount = new Hashtable<Integer,Integer>();
-    private Hashtable<Integer,Integer> summedCount = new Hashtable<Integer,Integer>();
-    private Hashtable<Integer,Long> assignedYield = new Hashtable<Integer,Long>();
-    private Hashtable<Integer,Long> summedYield = new Hashtable<Integer,Long>();
-//    private Hashtable<Integer,Integer> maxAssignedCount = new Hashtable<Integer,Integer>();
-    private Hashtable<Integer,Integer> lcaAssignedCount = new Hashtable<Integer,Integer>();
-    private Hashtable<Integer,Integer> lcaSummedCount = new Hashtable<Integer,Integer>();
-    private Hashtable<Integer,Long> lcaYield = new Hashtable<Integer,Long>();
-    private Hashtable<Integer,Long> lcaSummedYield = new Hashtable<Integer,Long>();
+    private Taxonomy taxonomy;
+    private TaxonomyTree tree;
+    private int index;
     
-    public TaxonomyNode(Long id) {
-        taxonId = id;
-        
-        //for (int i=0; i<16; i++) {
-        //    assignedCount.put(i, 0);
-        //    summedCount.put(i, 0);
-        //    maxAssignedCount.put(i, 0);
-        //}
+    public TaxonomyNode(Taxonomy t, int i) {
+        taxonomy = t;
+        tree = t.getTree();
+        index = i;
     }
     
-    public Long getId() {
-        return taxonId;
+    public int getIndex() {
+        return index;
     }
     
-    public void setParent(Long p) {
-        if (parentId != null) {
-            System.out.println("Warning: resetting parentId for taxon "+taxonId);
-        }
-        if (p != taxonId) {
-            parentId = p;
-        }
+    public Long getId() {
+        return tree.getTaxonId(index);
     }
     
     public Long getParent() {
-        return parentId;
+        int parentIndex = tree.getParentIndex(index);
+        return parentIndex >= 0 ? tree.getTaxonId(parentIndex):null;
     }
     
-    public void addChild(TaxonomyNode n) {
-        children.add(n);
+    public boolean isLeafNode() {
+        return tree.getChildCount(index) == 0 ? true:false;
     }
     
-    public boolean isLeafNode() {
-        return children.size() == 0 ? true:false;
+    public int getNumberOfChildren() {
+        return tree.getChildCount(index);
     }
     
-    public ArrayList<TaxonomyNode> getChildren() {
-        return children;
+    public TaxonomyNode getChild(int n) {
+        return new TaxonomyNode(taxonomy, tree.getChildIndex(index, n));
     }
-            
-    public void incrementAssignedAndAddYield(int bc, long length) {        
-        assigned++;
-        
-        if (assigned > maxAssigned) {
-            maxAssigned = assigned;
-        }
-        
-        
-        // New version
-        int c = 0;
-        int m = 0;
-
-        if (assignedCount.containsKey(bc)) {
-            c = assignedCount.get(bc);
-            //m = maxAssignedCount.get(bc);
-        }
-        
-        c++;        
-        assignedCount.put(bc, c);
-        
-        //if (c > m) {
-        //    maxAssignedCount.put(bc, c);
-        //}
-        
-        long yield = length;
-        if(assignedYield.containsKey(bc)) {
-            yield += assignedYield.get(bc);
+    
+    public ArrayList<TaxonomyNode> getChildren() {
+        int childCount = tree.getChildCount(index);
+        ArrayList<TaxonomyNode> children = new ArrayList<TaxonomyNode>(childCount);
+        for (int i=0; i<childCount; i++) {
+            children.add(new TaxonomyNode(taxonomy, tree.getChildIndex(index, i)));
         }
-        assignedYield.put(bc, yield);
+        return children;
     }
     
-//    public int getMaxAssigned(int bc) {
-//        int m = 0;
-//        
-//        if (maxAssignedCount.containsKey(bc)) {
-//            m = maxAssignedCount.get(bc);
-//        }
-//
-//        return m;
-//        //return maxAssigned;
-//    }
-    
-    public void incrementSummedAndAddYield(int bc, long length) {
-        summed++;
-        
-        int s = 0;
-        if (summedCount.containsKey(bc)) {
-            s = summedCount.get(bc);
-        }
-        s++;
-        summedCount.put(bc, s);
-        
-        long yield = length;
-        if(summedYield.containsKey(bc)) {
-            yield += summedYield.get(bc);
+    /**
+    * Get children that have reads counted for a barcode, skipping the (often
+    * many) children with none.
+    *
+    * @param  bc  barcode
+    * @return children with a summed count above zero
+    */
+    public ArrayList<TaxonomyNode> getCountedChildren(int bc) {
+        ArrayList<TaxonomyNode> children = new ArrayList<TaxonomyNode>();
+        TaxonomyCounts counts = taxonomy.getCounts(bc);
+        if (counts != null) {
+            int childCount = tree.getChildCount(index);
+            for (int i=0; i<childCount; i++) {
+                int childIndex = tree.getChildIndex(index, i);
+                if (counts.getSummed(childIndex) > 0) {
+                    children.add(new TaxonomyNode(taxonomy, childIndex));
+                }
+            }
         }
-        summedYield.put(bc, yield);
+        return children;
     }
     
     public int getAssigned(int bc) {
-        int c = 0;
-        
-        if (assignedCount.containsKey(bc)) {
-            c = assignedCount.get(bc);
-        }
-        
-        // CHECK
-        //if (c != assigned) {
-        //    System.out.println("ERROR: c not equal to assigned in getAssigned");
-        //}
-        
-        return c;
-        //return assigned;
+        TaxonomyCounts counts = taxonomy.getCounts(bc);
+        return counts == null ? 0:counts.getAssigned(index);
     }
 
     public int getLCAAssigned(int bc) {
-        int c = 0;
-        
-        if (lcaAssignedCount.containsKey(bc)) {
-            c = lcaAssignedCount.get(bc);
-        }
-        
-        return c;
+        TaxonomyCounts counts = taxonomy.getCounts(bc);
+        return counts == null ? 0:counts.getLCAAssigned(index);
     }
     
     public long getAssignedYield(int bc) {
-        long c = 0;    
-        if (assignedYield.containsKey(bc)) {
-            c = assignedYield.get(bc);
-        }    
-        return c;     
+        TaxonomyCounts counts = taxonomy.getCounts(bc);
+        return counts == null ? 0:counts.getAssignedYield(index);
     }
     
     public long getSummedYield(int bc) {
-        long c = 0;    
-        if (summedYield.containsKey(bc)) {
-            c = summedYield.get(bc);
-        }    
-        return c;     
+        TaxonomyCounts counts = taxonomy.getCounts(bc);
+        return counts == null ? 0:counts.getSummedYield(index);
     }  
     
     public long getLCAYield(int bc) {
-        long c = 0;    
-        if (lcaYield.containsKey(bc)) {
-            c = lcaYield.get(bc);
-        }    
-        return c;     
+        TaxonomyCounts counts = taxonomy.getCounts(bc);
+        return counts == null ? 0:counts.getLCAYield(index);
     }
     
     public long getLCASummedYield(int bc) {
-        long c = 0;    
-        if (lcaSummedYield.containsKey(bc)) {
-            c = lcaSummedYield.get(bc);
-        }    
-        return c;     
+        TaxonomyCounts counts = taxonomy.getCounts(bc);
+        return counts == null ? 0:counts.getLCASummedYield(index);
     }  
     
-    public void setDisplayPosition(int c, int r) {
-        displayColumn = c;
-        displayRow = r;
-    }
-    
-    public int getDisplayCol() {
-        return displayColumn;
-    }
-
-    public int getDisplayRow() {
-        return displayRow;
-    }
-    
     public int getSummed(int bc) {
-        int s = 0;
-        
-        if (summedCount.containsKey(bc)) {
-            s = summedCount.get(bc);
-        }
-        
-        // CHECK
-        //if (s != summed) {
-        //    System.out.println("ERROR: s not equal to summed in getSummed");
-        //}
-        
-        return s;
-        //return summed;
+        TaxonomyCounts counts = taxonomy.getCounts(bc);
+        return counts == null ? 0:counts.getSummed(index);
     }
 
     public int getLCASummed(int bc) {
-        int s = 0;
-        
-        if (lcaSummedCount.containsKey(bc)) {
-            s = lcaSummedCount.get(bc);
-        }
-        return s;
+        TaxonomyCounts counts = taxonomy.getCounts(bc);
+        return counts == null ? 0:counts.getLCASummed(index);
     }
     
-    public void setRank(Taxonomy taxonomy, String s) {
+    public static short getRankFromString(String s) {
+        short rank;
+        
         switch(s) {
             case "class": rank=RANK_CLASS; break;
             case "cohort": rank=RANK_COHORT; break;
@@ -331,27 +226,24 @@ public class TaxonomyNode<T> {
             case "pathogroup": rank = RANK_PATHOGROUP; break;
             
             default:
-                taxonomy.warnRank(s);
                 rank=RANK_UNKNOWN;
                 break;
         }
-    }
-    
-    public void setSimplifiedRank(short r) {
-        simplifiedRank = r;
+        
+        return rank;
     }
     
     public short getSimplifiedRank() {
-        return simplifiedRank;
+        return tree.getSimplifiedRank(index);
     }
     
     public short getRank() {
-        return rank;
+        return tree.getRank(index);
     }
     
     public String getRankString() {
         String r = "Unknown";
-        switch(rank) {
+        switch(getRank()) {
             case RANK_CLASS: r="class"; break;
             case RANK_COHORT: r="cohort"; break;
             case RANK_FAMILY: r="family"; break;
@@ -402,79 +294,4 @@ public class TaxonomyNode<T> {
         
         return r;
     }
-    
-    public void setLCACountsToMatch(int bc) {
-        int a = 0;
-        int s = 0;
-        
-        if (assignedCount.containsKey(bc)) {
-            a = assignedCount.get(bc);
-        }
-        
-        if (summedCount.containsKey(bc)) {
-            s = summedCount.get(bc);
-        }
-        
-        if (!assignedCount.containsKey(bc) && !summedCount.containsKey(bc)) {
-            System.out.println("Node "+taxonId+" doesn't have assigned or summed");
-        }
-        
-        lcaAssignedCount.put(bc, a);
-        lcaSummedCount.put(bc, s);
-        
-        long yield = 0;
-        long summed = 0;
-        
-        if(assignedYield.containsKey(bc)) {
-            yield = assignedYield.get(bc);
-        }
-        
-        if(summedYield.containsKey(bc)) {
-            summed = summedYield.get(bc);
-        }
-        
-        if (!assignedYield.containsKey(bc) && !summedYield.containsKey(bc)) {
-            System.out.println("Node "+taxonId+" doesn't have assigned or summed");
-        }
-        
-        lcaYield.put(bc, yield);
-        lcaSummedYield.put(bc, summed);
-    }
-         
-    public void zeroLCACounts(int bc) {
-        lcaAssignedCount.put(bc, 0);
-        lcaSummedCount.put(bc, 0);
-        lcaYield.put(bc, 0l);
-        lcaSummedYield.put(bc, 0l);  
-    }
-    
-    
-    public void zeroLCAAssignedCount(int bc) {
-        lcaAssignedCount.put(bc, 0);
-        lcaYield.put(bc, 0l);
-    }
-
-    public void zeroLCASummmmarisedCount(int bc) {
-        lcaSummedCount.put(bc, 0);
-        lcaSummedYield.put(bc, 0l);
-    }
-      
-    public void addToLCAAssigned(int bc, int addCount, long yield) {
-        int count = 0;
-        if (lcaAssignedCount.containsKey(bc)) {
-            count = lcaAssignedCount.get(bc);
-        }
-        count += addCount;
-        
-        lcaAssignedCount.put(bc, count);
-        
-        long yieldCount = 0;
-        if (lcaYield.containsKey(bc)) {
-            yieldCount = lcaYield.get(bc);
-        }
-        yieldCount += yield;
-        
-        lcaYield.put(bc, yieldCount);  
-    }
-     
-}
\ No newline at end of file
+}
@@ -4,33 +4,27 @@
  */
 package uk.ac.earlham.lcaparse;
 
-import java.util.ArrayList;
-
 /**
+ * Mean identities of the reads assigned to a node for one barcode, taken
+ * from the totals kept in TaxonomyCounts.
  *
  * @author leggettr
  */
 public class TaxonomyNodeData {
-    private ArrayList<Double> meanIds = new ArrayList<Double>();
-    private ArrayList<Double> maxIds = new ArrayList<Double>();
+    private int hits = 0;
     private double meanMean = 0.0;
     private double meanMax = 0.0;
     
-    public void registerHit(double mean, double max) {
-        meanIds.add(mean);
-        maxIds.add(max);
+    public TaxonomyNodeData(int n, double meanTotal, double maxTotal) {
+        hits = n;
+        if (n > 0) {
+            meanMean = meanTotal / n;
+            meanMax = maxTotal / n;
+        }
     }
     
-    public void calculateMeans() {
-        double meanTotal = 0.0;
-        double maxTotal = 0.;
-        for (int i=0; i<meanIds.size(); i++) {
-            meanTotal += meanIds.get(i);
-            maxTotal += maxIds.get(i);            
-        }
-        
-        meanMean = meanTotal / meanIds.size();
-        meanMax = maxTotal / maxIds.size();
+    public int getHits() {
+        return hits;
     }
     
     public double getMeanMean() {
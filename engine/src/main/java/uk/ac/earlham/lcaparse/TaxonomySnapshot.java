@@ -0,0 +1,591 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+
+package uk.ac.earlham.lcaparse;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary copy of the NCBI taxonomy (nodes.dmp and names.dmp).
+ *
+ * The snapshot is written once with -compiletaxonomy and memory-mapped at
+ * startup. Layout (all values big-endian, sections 4-byte aligned):
+ *
+ *   header          magic, version, size and mtime of both .dmp files, counts, special taxa
+ *   taxonIds        int[nodeCount], sorted ascending
+ *   parents         int[nodeCount], index of parent node or -1 for root
+ *   childStart      int[nodeCount+1], offsets into children
+ *   children        int[childCount], child node indices in nodes.dmp order
+ *   nameOffset      int[nodeCount], offset of scientific name in pool
+ *   nameLength      int[nodeCount], length of scientific name or -1 if none
+ *   lookupOffset    int[lookupCount], name lookup table sorted by name bytes
+ *   lookupLength    int[lookupCount]
+ *   lookupTaxon     int[lookupCount]
+ *   ranks           byte[nodeCount], TaxonomyNode.RANK_ values
+ *   simplifiedRanks byte[nodeCount], SimplifiedRank values
+ *   pool            UTF-8 bytes of all names
+ *
+ * @author Richard M. Leggett
+ */
+public class TaxonomySnapshot {
+    public final static String SNAPSHOT_FILENAME = "taxonomy.snapshot";
+    private final static long MAGIC = 0x4D41525469544158L; // "MARTiTAX"
+    private final static int FORMAT_VERSION = 1;
+    private final static int HEADER_SIZE = 96;
+    private MappedByteBuffer buffer;
+    private int nodeCount;
+    private int childCount;
+    private int lookupCount;
+    private int poolSize;
+    private long humanId;
+    private long bacteriaId;
+    private long lambdaId;
+    private long vectorsId;
+    private long ecoliId;
+    private IntBuffer taxonIds;
+    private IntBuffer parents;
+    private IntBuffer childStart;
+    private IntBuffer children;
+    private IntBuffer nameOffset;
+    private IntBuffer nameLength;
+    private IntBuffer lookupOffset;
+    private IntBuffer lookupLength;
+    private IntBuffer lookupTaxon;
+    private int ranksPosition;
+    private int simplifiedRanksPosition;
+    private int poolPosition;
+
+    private TaxonomySnapshot() {
+    }
+
+    /**
+    * Get the snapshot filename to use for a given taxonomy directory.
+    *
+    * @param  taxonomyDir  directory containing nodes.dmp and names.dmp
+    * @return snapshot pathname
+    */
+    public static String getSnapshotFilename(String taxonomyDir) {
+        return taxonomyDir + File.separator + SNAPSHOT_FILENAME;
+    }
+
+    /**
+    * Check if a snapshot exists and was built from the current .dmp files.
+    *
+    * @param  snapshotFilename  snapshot pathname
+    * @param  nodesFilename     nodes.dmp pathname
+    * @param  namesFilename     names.dmp pathname
+    * @return true if snapshot can be used
+    */
+    public static boolean isCurrent(String snapshotFilename, String nodesFilename, String namesFilename) {
+        File snapshotFile = new File(snapshotFilename);
+        File nodesFile = new File(nodesFilename);
+        File namesFile = new File(namesFilename);
+
+        if (!snapshotFile.exists()) {
+            return false;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r")) {
+            if (raf.length() < HEADER_SIZE) {
+                return false;
+            }
+
+            if ((raf.readLong() != MAGIC) || (raf.readInt() != FORMAT_VERSION)) {
+                return false;
+            }
+
+            long nodesSize = raf.readLong();
+            long nodesModified = raf.readLong();
+            long namesSize = raf.readLong();
+            long namesModified = raf.readLong();
+
+            if ((nodesSize != nodesFile.length()) || (nodesModified != nodesFile.lastModified()) ||
+                (namesSize != namesFile.length()) || (namesModified != namesFile.lastModified())) {
+                System.out.println("Taxonomy snapshot " + snapshotFilename + " is stale");
+                return false;
+            }
+        } catch (IOException e) {
+            System.out.println("Warning: couldn't read taxonomy snapshot " + snapshotFilename);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+    * Memory-map a snapshot file.
+    *
+    * @param  snapshotFilename  snapshot pathname
+    * @return snapshot object
+    * @throws IOException if the file can't be mapped
+    */
+    public static TaxonomySnapshot open(String snapshotFilename) throws IOException {
+        TaxonomySnapshot ts = new TaxonomySnapshot();
+
+        try (RandomAccessFile raf = new RandomAccessFile(snapshotFilename, "r");
+             FileChannel channel = raf.getChannel()) {
+            ts.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        ts.readHeader();
+
+        return ts;
+    }
+
+    private void readHeader() throws IOException {
+        buffer.position(0);
+        if ((buffer.getLong() != MAGIC) || (buffer.getInt() != FORMAT_VERSION)) {
+            throw new IOException("Not a taxonomy snapshot");
+        }
+
+        // .dmp sizes and modification times are only needed by isCurrent
+        buffer.position(44);
+        nodeCount = buffer.getInt();
+        childCount = buffer.getInt();
+        lookupCount = buffer.getInt();
+        poolSize = buffer.getInt();
+        humanId = buffer.getInt();
+        bacteriaId = buffer.getInt();
+        lambdaId = buffer.getInt();
+        vectorsId = buffer.getInt();
+        ecoliId = buffer.getInt();
+
+        int position = HEADER_SIZE;
+        taxonIds = intSection(position, nodeCount); position += 4 * nodeCount;
+        parents = intSection(position, nodeCount); position += 4 * nodeCount;
+        childStart = intSection(position, nodeCount + 1); position += 4 * (nodeCount + 1);
+        children = intSection(position, childCount); position += 4 * childCount;
+        nameOffset = intSection(position, nodeCount); position += 4 * nodeCount;
+        nameLength = intSection(position, nodeCount); position += 4 * nodeCount;
+        lookupOffset = intSection(position, lookupCount); position += 4 * lookupCount;
+        lookupLength = intSection(position, lookupCount); position += 4 * lookupCount;
+        lookupTaxon = intSection(position, lookupCount); position += 4 * lookupCount;
+        ranksPosition = position; position += align(nodeCount);
+        simplifiedRanksPosition = position; position += align(nodeCount);
+        poolPosition = position;
+
+        if (poolPosition + poolSize > buffer.capacity()) {
+            throw new IOException("Truncated taxonomy snapshot");
+        }
+    }
+
+    private IntBuffer intSection(int position, int length) {
+        ByteBuffer bb = buffer.duplicate();
+        bb.position(position);
+        bb.limit(position + (4 * length));
+        return bb.slice().asIntBuffer();
+    }
+
+    private static int align(int n) {
+        return (n + 3) & ~3;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int[] getTaxonIds() {
+        return intArray(taxonIds, nodeCount);
+    }
+
+    public int[] getParents() {
+        return intArray(parents, nodeCount);
+    }
+
+    public int[] getChildStarts() {
+        return intArray(childStart, nodeCount + 1);
+    }
+
+    public int[] getChildren() {
+        return intArray(children, childCount);
+    }
+
+    public byte[] getRanks() {
+        return byteArray(ranksPosition, nodeCount);
+    }
+
+    public byte[] getSimplifiedRanks() {
+        return byteArray(simplifiedRanksPosition, nodeCount);
+    }
+
+    private int[] intArray(IntBuffer ib, int length) {
+        int[] values = new int[length];
+        ib.duplicate().get(values);
+        return values;
+    }
+
+    private byte[] byteArray(int position, int length) {
+        byte[] values = new byte[length];
+        ByteBuffer bb = buffer.duplicate();
+        bb.position(position);
+        bb.get(values);
+        return values;
+    }
+
+    /**
+    * Get scientific name of a node.
+    *
+    * @param  index  node index
+    * @return name, or null if the node has no scientific name
+    */
+    public String getName(int index) {
+        int length = nameLength.get(index);
+        if (length < 0) {
+            return null;
+        }
+        return poolString(nameOffset.get(index), length);
+    }
+
+    private String poolString(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer bb = buffer.duplicate();
+        bb.position(poolPosition + offset);
+        bb.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int comparePoolString(int offset, int length, byte[] key) {
+        int n = Math.min(length, key.length);
+        int base = poolPosition + offset;
+        for (int i=0; i<n; i++) {
+            int a = buffer.get(base + i) & 0xFF;
+            int b = key[i] & 0xFF;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+    * Look up taxon ID from scientific name or synonym.
+    *
+    * @param  name  name to look up
+    * @return taxon ID, or null if not found
+    */
+    public Long getTaxonIdFromName(String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = lookupCount - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = comparePoolString(lookupOffset.get(mid), lookupLength.get(mid), key);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return (long)lookupTaxon.get(mid);
+            }
+        }
+
+        return null;
+    }
+
+    public long getHumanId() {
+        return humanId;
+    }
+
+    public long getBacteriaId() {
+        return bacteriaId;
+    }
+
+    public long getLambdaId() {
+        return lambdaId;
+    }
+
+    public long getVectorsId() {
+        return vectorsId;
+    }
+
+    public long getEcoliId() {
+        return ecoliId;
+    }
+
+    /**
+    * Parse nodes.dmp and names.dmp and write a binary snapshot.
+    *
+    * @param  taxonomyDir  directory containing nodes.dmp and names.dmp
+    */
+    public static void compile(String taxonomyDir) {
+        String nodesFilename = taxonomyDir + File.separator + "nodes.dmp";
+        String namesFilename = taxonomyDir + File.separator + "names.dmp";
+        String snapshotFilename = getSnapshotFilename(taxonomyDir);
+        compile(nodesFilename, namesFilename, snapshotFilename);
+    }
+
+    /**
+    * Parse nodes.dmp and names.dmp and write a binary snapshot.
+    *
+    * @param  nodesFilename     nodes.dmp pathname
+    * @param  namesFilename     names.dmp pathname
+    * @param  snapshotFilename  snapshot pathname to write
+    */
+    public static void compile(String nodesFilename, String namesFilename, String snapshotFilename) {
+        long startTime = System.nanoTime();
+        File nodesFile = new File(nodesFilename);
+        File namesFile = new File(namesFilename);
+        SimplifiedRank simplifiedRank = new SimplifiedRank();
+
+        // Sizes and times are taken before reading, so a file changed while compiling marks the snapshot stale
+        long nodesSize = nodesFile.length();
+        long nodesModified = nodesFile.lastModified();
+        long namesSize = namesFile.length();
+        long namesModified = namesFile.lastModified();
+
+        int[] fileIds = new int[1000000];
+        int[] fileParents = new int[1000000];
+        byte[] fileRanks = new byte[1000000];
+        byte[] fileSimplifiedRanks = new byte[1000000];
+        int fileCount = 0;
+
+        try {
+            System.out.println("Reading "+nodesFilename);
+            BufferedReader br = new BufferedReader(new FileReader(nodesFilename));
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fileCount == fileIds.length) {
+                    int newSize = fileIds.length * 2;
+                    fileIds = Arrays.copyOf(fileIds, newSize);
+                    fileParents = Arrays.copyOf(fileParents, newSize);
+                    fileRanks = Arrays.copyOf(fileRanks, newSize);
+                    fileSimplifiedRanks = Arrays.copyOf(fileSimplifiedRanks, newSize);
+                }
+                short rank = TaxonomyNode.getRankFromString(fields[4]);
+                if (rank == TaxonomyNode.RANK_UNKNOWN) {
+                    System.out.println("Warning: unknown rank "+fields[4]);
+                }
+                fileIds[fileCount] = Integer.parseInt(fields[0]);
+                fileParents[fileCount] = Integer.parseInt(fields[2]);
+                fileRanks[fileCount] = (byte)rank;
+                fileSimplifiedRanks[fileCount] = (byte)simplifiedRank.getRankFromString(fields[4]);
+                fileCount++;
+            }
+            br.close();
+        } catch (Exception e) {
+            System.out.println("Taxonomy snapshot exception");
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        TaxonomyTree tree = new TaxonomyTree(fileIds, fileParents, fileRanks, fileSimplifiedRanks, fileCount);
+        int nodeCount = tree.getNodeCount();
+        int[] taxonIds = tree.getTaxonIds();
+        int[] parents = tree.getParents();
+        int[] childStart = tree.getChildStarts();
+        int[] children = tree.getChildren();
+        int childCount = children.length;
+        byte[] ranks = tree.getRanks();
+        byte[] simplifiedRanks = tree.getSimplifiedRanks();
+
+        fileIds = null;
+        fileParents = null;
+        fileRanks = null;
+        fileSimplifiedRanks = null;
+
+        long timeDiff = (System.nanoTime() - startTime) / 1000000;
+        System.out.println("Read "+nodeCount+" nodes in "+timeDiff+" ms");
+
+        // Names - later entries replace earlier ones, as they do in a text parse
+        int[] nameOffset = new int[nodeCount];
+        int[] nameLength = new int[nodeCount];
+        LinkedHashMap<String, Integer> idByName = new LinkedHashMap<String, Integer>();
+        HashMap<String, Integer> poolOffsets = new HashMap<String, Integer>();
+        ByteArrayPool pool = new ByteArrayPool();
+        int humanId = 9606;
+        int bacteriaId = 2;
+        int lambdaId = 10710;
+        int vectorsId = 29278;
+        int ecoliId = 562;
+
+        Arrays.fill(nameLength, -1);
+
+        try {
+            System.out.println("Reading "+namesFilename);
+            BufferedReader br = new BufferedReader(new FileReader(namesFilename));
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields[6].equals("scientific name")) {
+                    int id = Integer.parseInt(fields[0]);
+                    String name = fields[2];
+                    int index = Arrays.binarySearch(taxonIds, id);
+                    if (index >= 0) {
+                        nameOffset[index] = pool.add(name, poolOffsets);
+                        nameLength[index] = pool.getLastLength();
+                    }
+                    idByName.put(name, id);
+
+                    switch (name) {
+                        case "Homo sapiens": humanId = id; break;
+                        case "Bacteria": bacteriaId = id; break;
+                        case "Escherichia coli": ecoliId = id; break;
+                        case "Escherichia virus Lambda": lambdaId = id; break;
+                        case "vectors": vectorsId = id; break;
+                    }
+                } else if (fields[6].equals("synonym")) {
+                    idByName.put(fields[2], Integer.parseInt(fields[0]));
+                }
+            }
+            br.close();
+        } catch (Exception e) {
+            System.out.println("Taxonomy snapshot exception");
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        // Name lookup table, sorted by UTF-8 bytes so it can be binary searched in the mapped file
+        ArrayList<byte[]> lookupNames = new ArrayList<byte[]>(idByName.size());
+        for (String name : idByName.keySet()) {
+            lookupNames.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        Collections.sort(lookupNames, Arrays::compareUnsigned);
+
+        int lookupCount = lookupNames.size();
+        int[] lookupOffset = new int[lookupCount];
+        int[] lookupLength = new int[lookupCount];
+        int[] lookupTaxon = new int[lookupCount];
+        for (int i=0; i<lookupCount; i++) {
+            String name = new String(lookupNames.get(i), StandardCharsets.UTF_8);
+            lookupOffset[i] = pool.add(name, poolOffsets);
+            lookupLength[i] = pool.getLastLength();
+            lookupTaxon[i] = idByName.get(name);
+        }
+
+        idByName = null;
+        poolOffsets = null;
+        lookupNames = null;
+
+        System.out.println("Writing "+snapshotFilename);
+        String tempFilename = snapshotFilename + ".tmp";
+        try {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFilename), 1 << 20));
+            dos.writeLong(MAGIC);
+            dos.writeInt(FORMAT_VERSION);
+            dos.writeLong(nodesSize);
+            dos.writeLong(nodesModified);
+            dos.writeLong(namesSize);
+            dos.writeLong(namesModified);
+            dos.writeInt(nodeCount);
+            dos.writeInt(childCount);
+            dos.writeInt(lookupCount);
+            dos.writeInt(pool.size());
+            dos.writeInt(humanId);
+            dos.writeInt(bacteriaId);
+            dos.writeInt(lambdaId);
+            dos.writeInt(vectorsId);
+            dos.writeInt(ecoliId);
+            while (dos.size() < HEADER_SIZE) {
+                dos.writeByte(0);
+            }
+
+            writeInts(dos, taxonIds);
+            writeInts(dos, parents);
+            writeInts(dos, childStart);
+            writeInts(dos, children);
+            writeInts(dos, nameOffset);
+            writeInts(dos, nameLength);
+            writeInts(dos, lookupOffset);
+            writeInts(dos, lookupLength);
+            writeInts(dos, lookupTaxon);
+            writeBytes(dos, ranks);
+            writeBytes(dos, simplifiedRanks);
+            pool.writeTo(dos);
+            dos.close();
+
+            File tempFile = new File(tempFilename);
+            File snapshotFile = new File(snapshotFilename);
+            if (snapshotFile.exists()) {
+                snapshotFile.delete();
+            }
+            if (!tempFile.renameTo(snapshotFile)) {
+                System.out.println("Error: couldn't rename "+tempFilename+" to "+snapshotFilename);
+                System.exit(1);
+            }
+        } catch (Exception e) {
+            System.out.println("Taxonomy snapshot exception");
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        timeDiff = (System.nanoTime() - startTime) / 1000000;
+        System.out.println("Written snapshot of "+nodeCount+" nodes and "+lookupCount+" names in "+timeDiff+" ms");
+    }
+
+    private static void writeInts(DataOutputStream dos, int[] values) throws IOException {
+        for (int i=0; i<values.length; i++) {
+            dos.writeInt(values[i]);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream dos, byte[] values) throws IOException {
+        dos.write(values);
+        for (int i=values.length; i<align(values.length); i++) {
+            dos.writeByte(0);
+        }
+    }
+
+    /**
+    * Growable byte array holding each distinct name once.
+    */
+    private static class ByteArrayPool {
+        private byte[] bytes = new byte[1 << 24];
+        private int size = 0;
+        private int lastLength = 0;
+
+        public int add(String s, Map<String, Integer> offsets) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            Integer existing = offsets.get(s);
+            lastLength = b.length;
+
+            if (existing != null) {
+                return existing;
+            }
+
+            if (size + b.length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + b.length));
+            }
+
+            int offset = size;
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+            offsets.put(s, offset);
+
+            return offset;
+        }
+
+        public int getLastLength() {
+            return lastLength;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void writeTo(DataOutputStream dos) throws IOException {
+            dos.write(bytes, 0, size);
+        }
+    }
+}
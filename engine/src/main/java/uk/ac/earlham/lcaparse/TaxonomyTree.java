@@ -0,0 +1,172 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+
+package uk.ac.earlham.lcaparse;
+
+import java.util.Arrays;
+
+/**
+ * Array-backed structure of the NCBI taxonomy tree.
+ *
+ * Nodes are identified by a dense index (taxon IDs sorted ascending). The
+ * structure is built once and not changed afterwards - read counts live in
+ * TaxonomyCounts.
+ *
+ * @author Richard M. Leggett
+ */
+public class TaxonomyTree {
+    private int nodeCount;
+    private int[] taxonIds;
+    private int[] parents;
+    private int[] childStart;
+    private int[] children;
+    private byte[] ranks;
+    private byte[] simplifiedRanks;
+    private int[] indexById;
+
+    /**
+    * Build tree from nodes in the order they appear in nodes.dmp.
+    *
+    * @param  fileIds              taxon IDs
+    * @param  fileParents          parent taxon IDs
+    * @param  fileRanks            TaxonomyNode.RANK_ values
+    * @param  fileSimplifiedRanks  SimplifiedRank values
+    * @param  count                number of valid entries in the arrays
+    */
+    public TaxonomyTree(int[] fileIds, int[] fileParents, byte[] fileRanks, byte[] fileSimplifiedRanks, int count) {
+        taxonIds = Arrays.copyOf(fileIds, count);
+        Arrays.sort(taxonIds);
+        nodeCount = taxonIds.length;
+        parents = new int[nodeCount];
+        ranks = new byte[nodeCount];
+        simplifiedRanks = new byte[nodeCount];
+        childStart = new int[nodeCount + 1];
+        int[] fileIndex = new int[count];
+
+        Arrays.fill(parents, -1);
+        for (int i=0; i<count; i++) {
+            int index = Arrays.binarySearch(taxonIds, fileIds[i]);
+            fileIndex[i] = index;
+            ranks[index] = fileRanks[i];
+            simplifiedRanks[index] = fileSimplifiedRanks[i];
+            if (fileParents[i] != fileIds[i]) {
+                int parentIndex = Arrays.binarySearch(taxonIds, fileParents[i]);
+                if (parentIndex >= 0) {
+                    parents[index] = parentIndex;
+                    childStart[parentIndex + 1]++;
+                } else {
+                    System.out.println("Warning: no node for parent "+fileParents[i]);
+                }
+            }
+        }
+
+        for (int i=0; i<nodeCount; i++) {
+            childStart[i + 1] += childStart[i];
+        }
+
+        // Fill children in nodes.dmp order, so tree output order doesn't change
+        children = new int[childStart[nodeCount]];
+        int[] childFill = Arrays.copyOf(childStart, nodeCount);
+        for (int i=0; i<count; i++) {
+            int index = fileIndex[i];
+            int parentIndex = parents[index];
+            if (parentIndex >= 0) {
+                children[childFill[parentIndex]++] = index;
+            }
+        }
+
+        buildIndexById();
+    }
+
+    /**
+    * Build tree from a memory-mapped snapshot.
+    *
+    * @param  snapshot  snapshot to copy from
+    */
+    public TaxonomyTree(TaxonomySnapshot snapshot) {
+        nodeCount = snapshot.getNodeCount();
+        taxonIds = snapshot.getTaxonIds();
+        parents = snapshot.getParents();
+        childStart = snapshot.getChildStarts();
+        children = snapshot.getChildren();
+        ranks = snapshot.getRanks();
+        simplifiedRanks = snapshot.getSimplifiedRanks();
+        buildIndexById();
+    }
+
+    private void buildIndexById() {
+        int maxId = nodeCount > 0 ? taxonIds[nodeCount - 1]:0;
+        indexById = new int[maxId + 1];
+        Arrays.fill(indexById, -1);
+        for (int i=0; i<nodeCount; i++) {
+            indexById[taxonIds[i]] = i;
+        }
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+    * Find the node index for a taxon ID.
+    *
+    * @param  taxonId  taxon ID
+    * @return node index, or -1 if not in the taxonomy
+    */
+    public int getIndex(long taxonId) {
+        if ((taxonId < 0) || (taxonId >= indexById.length)) {
+            return -1;
+        }
+        return indexById[(int)taxonId];
+    }
+
+    public long getTaxonId(int index) {
+        return taxonIds[index];
+    }
+
+    public int getParentIndex(int index) {
+        return parents[index];
+    }
+
+    public int getChildCount(int index) {
+        return childStart[index + 1] - childStart[index];
+    }
+
+    public int getChildIndex(int index, int n) {
+        return children[childStart[index] + n];
+    }
+
+    public short getRank(int index) {
+        return ranks[index];
+    }
+
+    public short getSimplifiedRank(int index) {
+        return simplifiedRanks[index];
+    }
+
+    int[] getTaxonIds() {
+        return taxonIds;
+    }
+
+    int[] getParents() {
+        return parents;
+    }
+
+    int[] getChildStarts() {
+        return childStart;
+    }
+
+    int[] getChildren() {
+        return children;
+    }
+
+    byte[] getRanks() {
+        return ranks;
+    }
+
+    byte[] getSimplifiedRanks() {
+        return simplifiedRanks;
+    }
+}
@@ -6,23 +6,18 @@ package uk.ac.earlham.marti.amr;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.io.Reader;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.zip.GZIPInputStream;
 import uk.ac.earlham.lcaparse.AccessionTaxonConvertor;
 import uk.ac.earlham.lcaparse.BlastHit;
 import uk.ac.earlham.lcaparse.LCAParseOptions;
 import uk.ac.earlham.lcaparse.Taxonomy;
 import uk.ac.earlham.marti.core.MARTiEngineOptions;
+import uk.ac.earlham.marti.core.CompressedFile;
 
 /**
  * Represent a (file) chunk of the AMR walkout.
@@ -55,21 +50,12 @@ public class WalkOutChunk {
         int otherCount = 0;
         
         try {
-            InputStream cardFileStream = null;
-            InputStream cardGzipStream = null;
-            Reader cardDecoder = null;
-            BufferedReader cardReader = null;
             File cardFile = new File(cardFilename);
-            if(cardFile.exists())
+            if(!cardFile.exists())
             {
-                cardReader = new BufferedReader(new FileReader(cardFilename));  
-            } else {           
                 cardFilename = cardFilename + ".gz";
-                cardFileStream = new FileInputStream(cardFilename);
-                cardGzipStream = new GZIPInputStream(cardFileStream);
-                cardDecoder = new InputStreamReader(cardGzipStream, "US-ASCII");
-                cardReader = new BufferedReader(cardDecoder);  
             }
+            BufferedReader cardReader = CompressedFile.openReader(cardFilename);
             String line;
             
             // Go through CARD file, storing reads with hits
@@ -87,29 +73,15 @@ public class WalkOutChunk {
                 }
             }            
             cardReader.close();
-            if(cardFileStream != null) {
-                cardDecoder.close();
-                cardGzipStream.close();
-                cardFileStream.close();
-            }
 
             // Now go through bacteria file
             if(bacteriaFilename.length() > 0) {
-                InputStream bacteriaFileStream = null;
-                InputStream bacteriaGzipStream = null;
-                Reader bacteriaDecoder = null;
-                BufferedReader bacteriaReader = null;
                 File bacteriaFile = new File(bacteriaFilename);
-                if(bacteriaFile.exists())
+                if(!bacteriaFile.exists())
                 {
-                    bacteriaReader = new BufferedReader(new FileReader(bacteriaFilename));
-                } else {           
                     bacteriaFilename = bacteriaFilename + ".gz";
-                    bacteriaFileStream = new FileInputStream(bacteriaFilename);
-                    bacteriaGzipStream = new GZIPInputStream(bacteriaFileStream);
-                    bacteriaDecoder = new InputStreamReader(bacteriaGzipStream, "US-ASCII");
-                    bacteriaReader = new BufferedReader(bacteriaDecoder); 
                 }
+                BufferedReader bacteriaReader = CompressedFile.openReader(bacteriaFilename);
 
                 while ((line = bacteriaReader.readLine()) != null) {
                     if (line.length() > 1) {
@@ -130,11 +102,6 @@ public class WalkOutChunk {
                     }
                 }
                 bacteriaReader.close();
-                if(bacteriaFileStream != null) {
-                    bacteriaDecoder.close();
-                    bacteriaGzipStream.close();
-                    bacteriaFileStream.close();
-                }
             }
 
             options.getLog().println("Debug: Plasmid count "+plasmidCount + " chromosome count " + chromosomeCount + " other count "+otherCount);
@@ -0,0 +1,265 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.blast;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import uk.ac.earlham.marti.core.MARTiEngineOptions;
+
+/**
+ * A batch of read chunks searched with one BLAST per BlastProcess, so the
+ * database is opened once for several chunks. The chunks are concatenated
+ * into one query file and the BLAST output is then split back into each
+ * chunk's own output file, by the query ID in its first column, so the rest
+ * of MARTi sees the same files as if each chunk had been searched alone.
+ *
+ * @author Richard M. Leggett
+ */
+public class BlastBatch {
+    private MARTiEngineOptions options;
+    private int batchNumber;
+    private String queryFilename;
+    private PrintWriter queryWriter = null;
+    private long startTime = System.nanoTime();
+    private ArrayList<String> chunks = new ArrayList<String>();
+    private Hashtable<String, Integer> chunkByReadId = new Hashtable<String, Integer>();
+    private ArrayList<Long> chunkBases = new ArrayList<Long>();
+    private long totalBases = 0;
+    private int[] jobIds;
+    private String[] blastFilenames;
+    private String[] logFilenames;
+    private String[][] chunkBlastFilenames;
+    private boolean[] demultiplexed;
+    private int demultiplexedCount = 0;
+
+    /**
+    * @param  o  options
+    * @param  n  batch number
+    * @param  q  filename for the combined query
+    */
+    public BlastBatch(MARTiEngineOptions o, int n, String q) {
+        options = o;
+        batchNumber = n;
+        queryFilename = q;
+
+        int blastProcessCount = options.getBlastProcesses().size();
+        jobIds = new int[blastProcessCount];
+        blastFilenames = new String[blastProcessCount];
+        logFilenames = new String[blastProcessCount];
+        chunkBlastFilenames = new String[blastProcessCount][];
+        demultiplexed = new boolean[blastProcessCount];
+    }
+
+    private ArrayList<String> readIds(String chunkPathname) throws IOException {
+        ArrayList<String> ids = new ArrayList<String>();
+        BufferedReader br = new BufferedReader(new FileReader(chunkPathname));
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.startsWith(">")) {
+                String id = line.substring(1).trim().split("\\s+")[0];
+                ids.add(id);
+            }
+        }
+        br.close();
+        return ids;
+    }
+
+    /**
+    * Add a chunk to the combined query.
+    *
+    * @param  chunkPathname  FASTA chunk
+    * @return false if a read ID in the chunk is already in the batch, as its hits couldn't be told apart
+    */
+    public synchronized boolean addChunk(String chunkPathname) {
+        try {
+            ArrayList<String> ids = readIds(chunkPathname);
+            for (int i=0; i<ids.size(); i++) {
+                if (chunkByReadId.containsKey(ids.get(i))) {
+                    options.getLog().println("Read "+ids.get(i)+" in "+chunkPathname+" is already in BLAST batch "+batchNumber);
+                    return false;
+                }
+            }
+
+            if (queryWriter == null) {
+                queryWriter = new PrintWriter(new FileWriter(queryFilename));
+            }
+
+            long bases = 0;
+            BufferedReader br = new BufferedReader(new FileReader(chunkPathname));
+            String line;
+            while ((line = br.readLine()) != null) {
+                queryWriter.println(line);
+                if (!line.startsWith(">")) {
+                    bases += line.length();
+                }
+            }
+            br.close();
+
+            int chunkIndex = chunks.size();
+            for (int i=0; i<ids.size(); i++) {
+                chunkByReadId.put(ids.get(i), chunkIndex);
+            }
+            chunks.add(chunkPathname);
+            chunkBases.add(bases);
+            totalBases += bases;
+        } catch (IOException e) {
+            System.out.println("Error adding "+chunkPathname+" to BLAST batch");
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        options.getLog().println("Added "+chunkPathname+" to BLAST batch "+batchNumber+" ("+chunks.size()+" chunks)");
+        return true;
+    }
+
+    public synchronized void closeQuery() {
+        if (queryWriter != null) {
+            queryWriter.close();
+            queryWriter = null;
+        }
+    }
+
+    /**
+    * Note the BLAST job for one BlastProcess.
+    *
+    * @param  bpIndex     index of BlastProcess
+    * @param  jobId       scheduler job ID
+    * @param  blastFile   output of the batch BLAST
+    * @param  logFile     log of the batch BLAST
+    * @param  chunkFiles  output file for each chunk, in the order they were added
+    */
+    public synchronized void setBlastJob(int bpIndex, int jobId, String blastFile, String logFile, String[] chunkFiles) {
+        jobIds[bpIndex] = jobId;
+        blastFilenames[bpIndex] = blastFile;
+        logFilenames[bpIndex] = logFile;
+        chunkBlastFilenames[bpIndex] = chunkFiles;
+    }
+
+    /**
+    * Split the batch BLAST output into each chunk's output file. Only done the
+    * first time it's called for a BlastProcess.
+    *
+    * @param  bpIndex  index of BlastProcess
+    * @return false if the output couldn't be split
+    */
+    public synchronized boolean demultiplex(int bpIndex) {
+        if (demultiplexed[bpIndex]) {
+            return true;
+        }
+
+        File blastFile = new File(blastFilenames[bpIndex]);
+        if (!blastFile.exists()) {
+            // e.g. not running BLAST for debugging, with chunk files already in place
+            options.getLog().println("No output from BLAST batch "+batchNumber+" "+blastFilenames[bpIndex]);
+        } else {
+            String[] chunkFiles = chunkBlastFilenames[bpIndex];
+            PrintWriter[] writers = new PrintWriter[chunkFiles.length];
+            int unknownCount = 0;
+
+            try {
+                for (int i=0; i<chunkFiles.length; i++) {
+                    writers[i] = new PrintWriter(new FileWriter(chunkFiles[i]));
+                }
+
+                BufferedReader br = new BufferedReader(new FileReader(blastFile));
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.length() == 0) {
+                        continue;
+                    }
+                    int tab = line.indexOf('\t');
+                    String id = tab > 0 ? line.substring(0, tab) : line;
+                    Integer chunkIndex = chunkByReadId.get(id);
+                    if (chunkIndex != null) {
+                        writers[chunkIndex].println(line);
+                    } else {
+                        unknownCount++;
+                    }
+                }
+                br.close();
+
+                for (int i=0; i<writers.length; i++) {
+                    writers[i].close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error splitting BLAST batch "+blastFilenames[bpIndex]);
+                e.printStackTrace();
+                return false;
+            }
+
+            if (unknownCount > 0) {
+                options.getLog().printlnLogAndScreen("Warning: "+unknownCount+" lines of "+blastFilenames[bpIndex]+" didn't match a read in the batch");
+            }
+            options.getLog().println("Split BLAST batch "+blastFilenames[bpIndex]+" into "+chunkFiles.length+" chunks");
+
+            // Each chunk now has its own copy
+            blastFile.delete();
+        }
+
+        demultiplexed[bpIndex] = true;
+        demultiplexedCount++;
+        if (demultiplexedCount == demultiplexed.length) {
+            new File(queryFilename).delete();
+        }
+
+        return true;
+    }
+
+    public int getBatchNumber() {
+        return batchNumber;
+    }
+
+    public synchronized int getChunkCount() {
+        return chunks.size();
+    }
+
+    public synchronized String getChunk(int i) {
+        return chunks.get(i);
+    }
+
+    public synchronized int getChunkIndex(String chunkPathname) {
+        return chunks.indexOf(chunkPathname);
+    }
+
+    public String getQueryFilename() {
+        return queryFilename;
+    }
+
+    public synchronized int getJobId(int bpIndex) {
+        return jobIds[bpIndex];
+    }
+
+    public synchronized String getLogFilename(int bpIndex) {
+        return logFilenames[bpIndex];
+    }
+
+    /**
+    * Share out the time the batch BLAST took between its chunks, by their
+    * bases, so the chunk size policy sees the same throughput as for the batch.
+    *
+    * @param  chunkIndex  index of chunk
+    * @param  runTime     run time of the batch BLAST in ms, or -1 if not known
+    * @return chunk's share of the run time in ms, or -1 if not known
+    */
+    public synchronized long getRunTimeShare(int chunkIndex, long runTime) {
+        if ((runTime < 0) || (totalBases == 0)) {
+            return -1;
+        }
+        return Math.round((double)runTime * (double)chunkBases.get(chunkIndex) / (double)totalBases);
+    }
+
+    /**
+    * @return ms since the batch was started
+    */
+    public long getAge() {
+        return (System.nanoTime() - startTime) / 1000000;
+    }
+}
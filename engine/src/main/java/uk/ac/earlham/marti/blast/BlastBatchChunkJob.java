@@ -0,0 +1,144 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.blast;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import uk.ac.earlham.marti.core.MARTiEngineOptions;
+import uk.ac.earlham.marti.schedule.SimpleJobSchedulerJob;
+
+/**
+ * Stands in for the BLAST job of one chunk in a BlastBatch. It waits on the
+ * batch BLAST, then splits out the chunk's hits and log without starting a
+ * process, and finishes with the batch's exit value, so the read classifier
+ * treats the chunk just as it would a BLAST of its own.
+ *
+ * The split can take a while for a big batch, so it's done on a thread of its
+ * own, as run() is called with the scheduler locked. The run time reported is
+ * the chunk's share of the batch BLAST, which keeps ChunkTargetBlastTime
+ * working.
+ *
+ * @author Richard M. Leggett
+ */
+public class BlastBatchChunkJob extends SimpleJobSchedulerJob {
+    private MARTiEngineOptions options;
+    private BlastBatch batch;
+    private int bpIndex;
+    private int chunkIndex;
+    private String identifier;
+    private String logFilename;
+    private volatile int exitValue = 0;
+    private volatile boolean finished = false;
+    private boolean completed = false;
+    private long runTime = -1;
+    private Runnable exitAction = null;
+
+    /**
+    * @param  o   options
+    * @param  id  identifier for progress report
+    * @param  b   batch the chunk is in
+    * @param  bp  index of BlastProcess
+    * @param  ci  index of chunk in batch
+    * @param  c   chunk's BLAST output file, for the scheduler log
+    * @param  l   chunk's BLAST log file
+    */
+    public BlastBatchChunkJob(MARTiEngineOptions o, String id, BlastBatch b, int bp, int ci, String c, String l) {
+        super(o, id, new String[] {"demultiplex", "batch_"+b.getBatchNumber(), c}, l, false);
+        options = o;
+        identifier = id;
+        batch = b;
+        bpIndex = bp;
+        chunkIndex = ci;
+        logFilename = l;
+        addDependency(batch.getJobId(bpIndex));
+    }
+
+    private void writeLog() throws IOException {
+        PrintWriter pw = new PrintWriter(new FileWriter(logFilename));
+        pw.println("Searched in BLAST batch "+batch.getBatchNumber()+" of "+batch.getChunkCount()+" chunks, job "+batch.getJobId(bpIndex));
+        pw.println("Batch query "+batch.getQueryFilename());
+        pw.println("");
+
+        // Copy batch log, so errors in it are still seen by the classifier
+        File batchLog = new File(batch.getLogFilename(bpIndex));
+        if (batchLog.exists()) {
+            BufferedReader br = new BufferedReader(new FileReader(batchLog));
+            String line;
+            while ((line = br.readLine()) != null) {
+                pw.println(line);
+            }
+            br.close();
+        }
+        pw.close();
+    }
+
+    private void split() {
+        try {
+            writeLog();
+        } catch (IOException e) {
+            System.out.println("Error writing "+logFilename);
+            e.printStackTrace();
+        }
+
+        if ((exitValue == 0) && (!batch.demultiplex(bpIndex))) {
+            exitValue = 1;
+        }
+
+        finished = true;
+        options.getMainLoopSignal().signal();
+        if (exitAction != null) {
+            exitAction.run();
+        }
+    }
+
+    @Override
+    public void setExitAction(Runnable r) {
+        super.setExitAction(r);
+        exitAction = r;
+    }
+
+    @Override
+    public void run() {
+        int batchJobId = batch.getJobId(bpIndex);
+        exitValue = options.getJobScheduler().getExitValue(batchJobId);
+        runTime = batch.getRunTimeShare(chunkIndex, options.getJobScheduler().getJobRunTime(batchJobId));
+
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                split();
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public boolean hasFinished() {
+        if (!finished) {
+            return false;
+        }
+
+        if ((exitValue == 0) && (completed == false)) {
+            completed = true;
+            options.getProgressReport().recordCompleted(identifier);
+        }
+
+        return true;
+    }
+
+    @Override
+    public int getExitValue() {
+        return exitValue;
+    }
+
+    @Override
+    public long getRunTime() {
+        return runTime;
+    }
+}
@@ -102,4 +102,23 @@ public class BlastDependencies {
         
         return completed;
     }
+    
+    /**
+    * Test if any dependency has failed without completing, so won't be met
+    *
+    * @return        true if a dependency has failed
+    */
+    public boolean dependencyFailed() {
+        JobScheduler js = options.getJobScheduler();
+        Set<String> ids = dependencies.keySet();
+
+        for (String dbId: ids) {
+            int jobId = dependencies.get(dbId);
+            if (js.checkJobFailed(jobId) && !js.checkJobCompleted(jobId)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
 }
@@ -25,17 +25,29 @@ public class BlastHandler {
     private int nSeqs = 0;
     private ArrayList<String> mergeList = new ArrayList<String>();
     //private String defaultFormatString = "6 qseqid sseqid pident length mismatch gapopen qstart qend sstart send evalue bitscore stitle staxids";
-    private String defaultFormatString = "6 qseqid sseqid pident length mismatch gapopen qstart qend sstart send evalue bitscore qcovs staxids";
+    private final String defaultFormatString = "6 qseqid sseqid pident length mismatch gapopen qstart qend sstart send evalue bitscore qcovs staxids";
     private ArrayList<String> inputFilenames = new ArrayList<String>();
     private ArrayList<String> blastFilenames = new ArrayList<String>();
     private ArrayList<Integer> blastJobsPending = new ArrayList<Integer>();
     private ArrayList<Integer> blastJobsCompleted = new ArrayList<Integer>();
     private int blastJobCount = 0;
+    private BlastBatch currentBatch = null;
+    private int batchCount = 0;
     
     public BlastHandler(MARTiEngineOptions o) {
         options = o;
     }
     
+    /**
+    * @return BLAST -outfmt string, with stitle added when running CARD
+    */
+    private String getFormatString() {
+        if (options.runningCARD()) {
+            return "6 qseqid sseqid pident length mismatch gapopen qstart qend sstart send evalue bitscore stitle qcovs staxids";
+        }
+        return defaultFormatString;
+    }
+    
     private synchronized boolean checkBlastFilesExist(String inputPathname) {
         boolean gotAll = true;
         ArrayList<BlastProcess> blastProcesses = options.getBlastProcesses();
@@ -55,11 +67,14 @@ public class BlastHandler {
         return gotAll;
     }
     
-    private synchronized void runBlasts(String inputPathname) {
+    /**
+    * Submit BLASTs for a chunk.
+    *
+    * @param  inputPathname  FASTA chunk
+    * @param  batch          batch already searched with the chunk in, or null to search it alone
+    */
+    private synchronized void runBlasts(String inputPathname, BlastBatch batch) {
         int barcode = options.getBarcodeFromPath(inputPathname);
-        if(options.runningCARD()) {
-            defaultFormatString = "6 qseqid sseqid pident length mismatch gapopen qstart qend sstart send evalue bitscore stitle qcovs staxids";
-        }           
         String formatString;
         ArrayList<BlastProcess> blastProcesses = options.getBlastProcesses();
         File iff = new File(inputPathname);
@@ -109,9 +124,9 @@ public class BlastHandler {
             blastFilenames.add(outputBlast);
 
             if (options.getSchedulerName().equals("local")) {
-                formatString = defaultFormatString;
+                formatString = getFormatString();
             } else {
-                formatString = "'" + defaultFormatString + "'";
+                formatString = "'" + getFormatString() + "'";
                 if(dustString.length() > 0) {
                     dustString = "'" + dustString + "'";
                 }
@@ -201,21 +216,21 @@ public class BlastHandler {
                     }
                     //jobid = jobScheduler.submitJob(commands, logFile, options.runBlastCommand());
                     String[] commandString = commands.toArray(new String[commands.size()]);
-                    jobid = jobScheduler.submitJob(identifier, commandString, logFile, runIt);
-                    if (jobScheduler instanceof SlurmScheduler) {
-                        ((SlurmScheduler) jobScheduler).setCPUs(jobid, bp.getNumThreads());
-                        if (options.rmlDebug()) {
-                            if (jobid == 4) {
-                                options.getLog().printlnLogAndScreen("RML DEBUG: If you see this and you're not Richard Leggett, something went wrong");
-                                ((SlurmScheduler) jobScheduler).setJobMemory(jobid, "2G");                            
-                            } else {
-                                ((SlurmScheduler) jobScheduler).setJobMemory(jobid, bp.getBlastMemory());
-                            }
-                        } else {
-                            ((SlurmScheduler) jobScheduler).setJobMemory(jobid, bp.getBlastMemory());
-                        }
-                        ((SlurmScheduler) jobScheduler).setQueue(jobid, bp.getJobQueue());
-                        ((SlurmScheduler) jobScheduler).setDependentFilename(jobid, outputBlast);
+                    if (batch != null) {
+                        // Results come from the batch BLAST, and the classifier waits on this instead
+                        BlastBatchChunkJob chunkJob = new BlastBatchChunkJob(options, identifier, batch, i, batch.getChunkIndex(inputPathname), outputBlast, logFile);
+                        chunkJob.setResources(1, 0, bp.useForClassifying() ? SimpleJobScheduler.PRIORITY_HIGH:SimpleJobScheduler.PRIORITY_NORMAL);
+                        jobid = ((SimpleJobScheduler) jobScheduler).submitJob(chunkJob);
+                    } else if (jobScheduler instanceof SimpleJobScheduler) {
+                        // Classifying BLAST goes ahead of CARD and VFDB
+                        int priority = bp.useForClassifying() ? SimpleJobScheduler.PRIORITY_HIGH:SimpleJobScheduler.PRIORITY_NORMAL;
+                        long memoryMb = Math.max(0, SimpleJobScheduler.parseMemory(memory));
+                        jobid = ((SimpleJobScheduler) jobScheduler).submitJob(identifier, commandString, logFile, runIt, bp.getNumThreads(), memoryMb, priority);
+                    } else if (jobScheduler instanceof SlurmScheduler) {
+                        // Resources go in with the job, as it can be passed to SLURM as soon as it's queued
+                        jobid = ((SlurmScheduler) jobScheduler).submitJob(identifier, commandString, logFile, runIt, bp.getNumThreads(), bp.getBlastMemory(), bp.getJobQueue(), outputBlast);
+                    } else {
+                        jobid = jobScheduler.submitJob(identifier, commandString, logFile, runIt);
                     }
 
                     if (bp.useForClassifying()) {
@@ -298,8 +313,128 @@ public class BlastHandler {
 //        return mergedPathname;
 //    }     
     
+    private boolean useBatches() {
+        return (options.getBlastBatchSize() > 1) &&
+               options.runBlastCommand() &&
+               (options.getJobScheduler() instanceof SimpleJobScheduler);
+    }
+    
+    private String getBatchDir(String parent) {
+        String dir = parent + File.separator + "batches";
+        File f = new File(dir);
+        if (!f.exists()) {
+            f.mkdirs();
+        }
+        return dir;
+    }
+    
+    /**
+    * Submit one BLAST per BlastProcess for the current batch, then a job for
+    * each chunk to pick its results out.
+    */
+    private void submitBatch() {
+        BlastBatch batch = currentBatch;
+        currentBatch = null;
+        batch.closeQuery();
+        
+        if (batch.getChunkCount() == 0) {
+            return;
+        }
+        
+        options.getLog().println("Submitting BLAST batch "+batch.getBatchNumber()+" of "+batch.getChunkCount()+" chunks");
+        JobScheduler jobScheduler = options.getJobScheduler();
+        ArrayList<BlastProcess> blastProcesses = options.getBlastProcesses();
+        for (int i=0; i<blastProcesses.size(); i++) {
+            BlastProcess bp = blastProcesses.get(i);
+            String blastDir = getBatchDir(options.getSampleDirectory() + File.separator + bp.getBlastTask() + "_" + bp.getBlastName());
+            String logsDir = getBatchDir(options.getLogsDir() + File.separator + bp.getBlastTask() + "_" + bp.getBlastName());
+            String outputBlast = blastDir + File.separator + "batch_" + batch.getBatchNumber() + ".txt";
+            String logFile = logsDir + File.separator + "batch_" + batch.getBatchNumber() + ".log";
+            String taxfilter = bp.getTaxaFilter();
+            String negativeTaxaFilter = bp.getNegativeTaxaFilter();
+            String dustString = bp.getDustString();
+
+            ArrayList<String> commands = new ArrayList<String>( Arrays.asList("blastn",
+                                         "-db", bp.getBlastDatabase(),
+                                         "-query", batch.getQueryFilename(),
+                                         "-evalue", bp.getMaxE(),
+                                         "-max_target_seqs", bp.getMaxTargetSeqs(),
+                                         "-show_gis",
+                                         "-num_threads", Integer.toString(bp.getNumThreads()),
+                                         "-task", bp.getBlastTask(),
+                                         "-out", outputBlast,
+                                         "-outfmt", getFormatString()));
+            if (taxfilter.length() > 1) {
+                commands.add("-taxidlist");
+                commands.add(taxfilter);                                    
+            }
+            if (negativeTaxaFilter.length() > 1) {
+                commands.add("-negative_taxidlist");
+                commands.add(negativeTaxaFilter);
+            }
+            if (dustString.length() > 0) {
+                commands.add("-dust");
+                commands.add(dustString);
+            }
+            
+            boolean runIt = true;
+            if (bp.getBlastName().equals("nt") && options.dontRunNt()) {
+                runIt = false;
+                System.out.println("Debug: Not running nt BLAST");
+            }
+            
+            String[] chunkFiles = new String[batch.getChunkCount()];
+            for (int c=0; c<chunkFiles.length; c++) {
+                chunkFiles[c] = this.getBlastFilePathFromFastaFilePath(batch.getChunk(c), bp);
+            }
+            
+            int priority = bp.useForClassifying() ? SimpleJobScheduler.PRIORITY_HIGH:SimpleJobScheduler.PRIORITY_NORMAL;
+            long memoryMb = Math.max(0, SimpleJobScheduler.parseMemory(bp.getBlastMemory()));
+            int jobid = ((SimpleJobScheduler) jobScheduler).submitJob(bp.getBlastName()+"_"+bp.getBlastTask()+"_"+outputBlast,
+                                                                       commands.toArray(new String[commands.size()]),
+                                                                       logFile, runIt, bp.getNumThreads(), memoryMb, priority);
+            batch.setBlastJob(i, jobid, outputBlast, logFile, chunkFiles);
+        }
+
+        for (int c=0; c<batch.getChunkCount(); c++) {
+            runBlasts(batch.getChunk(c), batch);
+        }
+    }
+    
+    private void addToBatch(String readFilename) {
+        if ((currentBatch != null) && (!currentBatch.addChunk(readFilename))) {
+            // Clashing read IDs, so start a new batch for this chunk
+            submitBatch();
+        }
+
+        if (currentBatch == null) {
+            batchCount++;
+            String queryDir = getBatchDir(options.getFastaDir() + "_chunks");
+            currentBatch = new BlastBatch(options, batchCount, queryDir + File.separator + "batch_" + batchCount + ".fasta");
+            currentBatch.addChunk(readFilename);
+        }
+        
+        if ((currentBatch.getChunkCount() >= options.getBlastBatchSize()) ||
+            (currentBatch.getAge() >= options.getBlastBatchMaxWait())) {
+            submitBatch();
+        }
+    }
+    
     public synchronized void addReadChunk(String readFilename) {
-        runBlasts(readFilename);
+        if (useBatches()) {
+            addToBatch(readFilename);
+        } else {
+            runBlasts(readFilename, null);
+        }
+    }
+    
+    /**
+    * Submit a part-filled batch once its first chunk has waited long enough.
+    */
+    public synchronized void submitBatchIfWaiting() {
+        if ((currentBatch != null) && (currentBatch.getAge() >= options.getBlastBatchMaxWait())) {
+            submitBatch();
+        }
     }
     
     private String getBarcodeSubdirFromPath(String pathname, String parent) {
@@ -17,8 +17,6 @@ import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import uk.ac.earlham.marti.core.FASTAQPair;
 import uk.ac.earlham.marti.core.FASTAQPairPendingList;
 import uk.ac.earlham.marti.core.MARTiEngineOptions;
@@ -30,6 +28,8 @@ import uk.ac.earlham.marti.core.ProcessLogger;
  * @author Richard M. Leggett
  */
 public class BlastProcessRunnable implements Runnable {
+    // How long to wait for a chunk before checking if the thread should exit, in ms
+    private final static int PENDING_WAIT = 500;
     private MARTiEngineOptions options;
     //private FileWatcher fileWatcher = null;
     private FASTAQPairPendingList pendingFileList = null;
@@ -150,13 +150,10 @@ public class BlastProcessRunnable implements Runnable {
             //while ((fwi == null) && (!fileWatcher.timedOut()) && (options.getStopFlag() == false)) {
             //while ((fa == null) && (!pendingFileList.timedOut()) && (options.getStopFlag() == false)) {
             while ((fa == null) && (keepRunning)) {
-                fa = pendingFileList.getBlastPendingPair();
+                fa = pendingFileList.getBlastPendingPair(PENDING_WAIT);
                 if (fa == null) {
-                    try {
-                        Thread.sleep(500);
-                    } catch (InterruptedException ex) {
-                        Logger.getLogger(BlastProcessRunnable.class.getName()).log(Level.SEVERE, null, ex);
-                    }
+                    // No more chunks for now, so don't hold on to a part-filled batch for long
+                    options.getBlastHandler().submitBatchIfWaiting();
                 }
             }
             
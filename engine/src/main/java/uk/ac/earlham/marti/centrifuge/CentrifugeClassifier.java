@@ -6,8 +6,8 @@ package uk.ac.earlham.marti.centrifuge;
 
 import java.io.File;
 import java.util.Hashtable;
-import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
 import uk.ac.earlham.lcaparse.LCAFileParser;
 import uk.ac.earlham.marti.amr.AMRAnalysisTask;
 import uk.ac.earlham.marti.blast.BlastDependencies;
@@ -15,17 +15,19 @@ import uk.ac.earlham.marti.classify.ReadClassifierItem;
 import uk.ac.earlham.marti.core.MARTiEngineOptions;
 import uk.ac.earlham.marti.core.MARTiLog;
 import uk.ac.earlham.marti.core.SampleMetaData;
+import uk.ac.earlham.marti.schedule.JobCompletionListener;
 import uk.ac.earlham.marti.schedule.JobScheduler;
 
 /**
  *
  * @author martins
  */
-public class CentrifugeClassifier {
+public class CentrifugeClassifier implements JobCompletionListener {
     private MARTiEngineOptions options;
     private Hashtable<Integer, CentrifugeClassifierItem> pendingFiles = new Hashtable<Integer, CentrifugeClassifierItem>();
     private Hashtable<String, Integer> barcodes = new Hashtable<String, Integer>();
-    private ConcurrentLinkedQueue<String> fileCompressionQueue = null;
+    private LinkedBlockingQueue<String> fileCompressionQueue = null;
+    private LinkedBlockingQueue<Integer> finishedJobs = new LinkedBlockingQueue<Integer>();
     private int filesProcessed = 0;
     private int fileCount = 0;
     
@@ -53,6 +55,11 @@ public class CentrifugeClassifier {
             pendingFiles.put(id, new CentrifugeClassifierItem(centrifugeProcessName, id, queryFilename, classificationFilename));
             fileCount++;
 
+            // Job may have finished before we were given it
+            if (options.getJobScheduler().checkJobCompleted(id)) {
+                finishedJobs.add(id);
+            }
+
             if (classificationFilename.contains("barcode")) {
                 String bcString = classificationFilename.substring(classificationFilename.indexOf("barcode"), classificationFilename.indexOf("barcode")+9);
                 if (!barcodes.containsKey(bcString)) {
@@ -62,7 +69,7 @@ public class CentrifugeClassifier {
         }
     }
     
-    public void setFileCompressionQueue(ConcurrentLinkedQueue<String> queue) {
+    public void setFileCompressionQueue(LinkedBlockingQueue<String> queue) {
         if(fileCompressionQueue == null) {
             fileCompressionQueue = queue;
         } else {
@@ -79,19 +86,22 @@ public class CentrifugeClassifier {
         return true;
     }
     
+    public void jobFinished(int jobId) {
+        finishedJobs.add(jobId);
+    }
+    
     public synchronized void checkForFilesToClassify() {
         JobScheduler js = options.getJobScheduler();
-        Set<Integer> asSet = pendingFiles.keySet();
-        Integer[] ids = asSet.toArray(new Integer[asSet.size()]);        
+        LinkedList<Integer> ids = new LinkedList<Integer>();
+        finishedJobs.drainTo(ids);
 
-        options.getLog().println(MARTiLog.LOGLEVEL_CHECKFORFILESTOCLASSIFY, "In checkForFilesToClassify Centrifuge - size "+ids.length);
+        options.getLog().println(MARTiLog.LOGLEVEL_CHECKFORFILESTOCLASSIFY, "In checkForFilesToClassify Centrifuge - "+ids.size()+" finished of "+pendingFiles.size());
         
-        for(int i=0; i<ids.length; i++) {
-            int thisId = ids[i];
+        for (int thisId : ids) {
             CentrifugeClassifierItem f = pendingFiles.get(thisId);
             
-            // Check if job completed
-            if (js.checkJobCompleted(thisId)) {
+            // Check if job completed, and is one of ours
+            if ((f != null) && js.checkJobCompleted(thisId)) {
                 // Check if Centrifuge completed ok
                 if (checkCentrifugeCompleted(f, js.getExitValue(thisId))) {                        
                     
@@ -128,7 +138,7 @@ public class CentrifugeClassifier {
                     filesProcessed++;
                     pendingFiles.remove(thisId);
                     options.getProgressReport().incrementCentrifugeChunksParsedCount();
-                    md.writeSampleJSON(false);
+                    md.requestSampleJSONWrite();
                                   
                 }
             }
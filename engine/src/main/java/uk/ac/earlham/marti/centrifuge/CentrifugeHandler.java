@@ -12,6 +12,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import uk.ac.earlham.marti.core.MARTiEngineOptions;
 import uk.ac.earlham.marti.schedule.JobScheduler;
+import uk.ac.earlham.marti.schedule.SimpleJobScheduler;
 import uk.ac.earlham.marti.schedule.SlurmScheduler;
 
 /**
@@ -113,11 +114,14 @@ public class CentrifugeHandler {
                     boolean runIt = options.runBlastCommand();
                     
                     String[] commandString = commands.toArray(new String[commands.size()]);
-                    jobid = jobScheduler.submitJob(identifier, commandString, logFilePath, runIt);
-                    if (jobScheduler instanceof SlurmScheduler) {
-                        ((SlurmScheduler) jobScheduler).setCPUs(jobid, cp.getNumThreads());
-                        ((SlurmScheduler) jobScheduler).setJobMemory(jobid, cp.getMemory());
-                        ((SlurmScheduler) jobScheduler).setQueue(jobid, cp.getJobQueue());
+                    if (jobScheduler instanceof SimpleJobScheduler) {
+                        int priority = cp.useForClassifying() ? SimpleJobScheduler.PRIORITY_HIGH:SimpleJobScheduler.PRIORITY_NORMAL;
+                        long memory = Math.max(0, SimpleJobScheduler.parseMemory(cp.getMemory()));
+                        jobid = ((SimpleJobScheduler) jobScheduler).submitJob(identifier, commandString, logFilePath, runIt, cp.getNumThreads(), memory, priority);
+                    } else if (jobScheduler instanceof SlurmScheduler) {
+                        jobid = ((SlurmScheduler) jobScheduler).submitJob(identifier, commandString, logFilePath, runIt, cp.getNumThreads(), cp.getMemory(), cp.getJobQueue(), null);
+                    } else {
+                        jobid = jobScheduler.submitJob(identifier, commandString, logFilePath, runIt);
                     }
                     
                     if (cp.useForClassifying()) {
@@ -5,8 +5,6 @@
 package uk.ac.earlham.marti.centrifuge;
 
 import java.io.File;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import uk.ac.earlham.marti.core.FASTAQPair;
 import uk.ac.earlham.marti.core.FASTAQPairPendingList;
 import uk.ac.earlham.marti.core.MARTiEngineOptions;
@@ -17,6 +15,7 @@ import uk.ac.earlham.marti.core.ProcessLogger;
  * @author martins
  */
 public class CentrifugeProcessRunnable implements Runnable {
+    private final static int PENDING_WAIT = 500;
     private MARTiEngineOptions options;
     private FASTAQPairPendingList pendingFileList = null;
     private boolean keepRunning = true;
@@ -63,14 +62,7 @@ public class CentrifugeProcessRunnable implements Runnable {
             FASTAQPair fa = null;
             // Get next file to process
             while ((fa == null) && (keepRunning)) {
-                fa = pendingFileList.getCentrifugePendingPair();
-                if (fa == null) {
-                    try {
-                        Thread.sleep(500);
-                    } catch (InterruptedException ex) {
-                        Logger.getLogger(CentrifugeProcessRunnable.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                }
+                fa = pendingFileList.getCentrifugePendingPair(PENDING_WAIT);
             }   
             if (fa != null) {            
                 String pendingFile = fa.getFastq();
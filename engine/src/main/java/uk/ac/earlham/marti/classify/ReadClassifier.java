@@ -15,17 +15,22 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.LinkedList;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Classify reads based on alignment results, using Lowest Common Ancestor algorithm.
  * 
  * @author Richard M. Leggett
  */
-public class ReadClassifier {
+public class ReadClassifier implements JobCompletionListener {
     private Taxonomy taxonomy;
+    private AccessionTaxonConvertor accTaxConvert = null;
     private LCAParseOptions lcaParseOptions = new LCAParseOptions();
     private MARTiEngineOptions options;
     private Hashtable<Integer, ReadClassifierItem> files = new Hashtable<Integer, ReadClassifierItem>();
@@ -34,9 +39,14 @@ public class ReadClassifier {
     //private Hashtable<Integer, Integer> ntVfdbPair = new Hashtable<Integer, Integer>();
     private Hashtable<Integer, BlastDependencies> blastDependencies = new Hashtable<Integer, BlastDependencies>();
     private MARTiPendingTaskList pendingAnalysisTasks = null;
-    private ConcurrentLinkedQueue<String> fileCompressionQueue = null;
+    private LinkedBlockingQueue<String> fileCompressionQueue = null;
     private int filesProcessed = 0;
     private int fileCount = 0;
+    private ThreadPoolExecutor classifierExecutor = null;
+    private Hashtable<Integer, LinkedList<ReadClassifierItem>> queuedChunks = new Hashtable<Integer, LinkedList<ReadClassifierItem>>();
+    private Hashtable<Integer, Boolean> activeBarcodes = new Hashtable<Integer, Boolean>();
+    private int chunksInProgress = 0;
+    private volatile boolean checkNeeded = true;
     
     public ReadClassifier(MARTiEngineOptions o) {
         options = o;
@@ -45,6 +55,12 @@ public class ReadClassifier {
     public synchronized void initialise() {                    
         lcaParseOptions = new LCAParseOptions(options.getTaxonomyDirectory(), options.getAccessionMap(), "nanook", options.limitToSpecies(), options.getLCAMaxHits(), options.getLCAScorePercent(), options.getLCAMinIdentity(), options.getLCAMinQueryCoverage(), options.getLCAMinCombinedScore(), options.getLCAMinLength());
         taxonomy = new Taxonomy(options, lcaParseOptions, options.getTaxonomyDirectory() + "/nodes.dmp", options.getTaxonomyDirectory() + "/names.dmp"); 
+        
+        // Only needed for BLAST output without taxon IDs
+        if ((options.getAccessionMap() != null) && (!options.getAccessionMap().equals("0"))) {
+            accTaxConvert = new AccessionTaxonConvertor();
+            accTaxConvert.readMapFile(options.getAccessionMap(), false);
+        }
     }
     
     public synchronized void addFile(String blastProcessName, int i, String queryFilename, String blastFilename, String logFilename, String classifyPrefix) {
@@ -71,6 +87,7 @@ public class ReadClassifier {
                     barcodes.put(bcString, 1);
                 }
             }
+            checkNeeded = true;
         }
     }
     
@@ -160,16 +177,188 @@ public class ReadClassifier {
         return chunkNumber;
     }
     
+    /**
+    * Add a chunk to its barcode's queue and start a classifier thread for the
+    * barcode if there isn't one running. Only one thread works on a barcode at
+    * a time, so its chunks are parsed and counted in the order they were queued.
+    *
+    * @param  barcode  barcode of chunk
+    * @param  f        chunk to classify
+    */
+    private synchronized void queueChunk(int barcode, ReadClassifierItem f) {
+        LinkedList<ReadClassifierItem> queue = queuedChunks.get(barcode);
+        
+        if (queue == null) {
+            queue = new LinkedList<ReadClassifierItem>();
+            queuedChunks.put(barcode, queue);
+        }
+        
+        queue.add(f);
+        chunksInProgress++;
+        options.getLog().println("Queued " + f.getBlastFile() + " for classification, barcode " + barcode + " has " + queue.size() + " queued");
+        
+        if (!activeBarcodes.containsKey(barcode)) {
+            if (classifierExecutor == null) {
+                int n = options.getClassifierThreads();
+                classifierExecutor = new ThreadPoolExecutor(n, n, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            }
+            
+            activeBarcodes.put(barcode, true);
+            classifierExecutor.execute(new ReadClassifierRunnable(options, this, barcode));
+        }
+    }
+    
+    /**
+    * Get next queued chunk for a barcode. Called by ReadClassifierRunnable.
+    *
+    * @param  barcode  barcode
+    * @return next chunk, or null if there are none left, in which case the barcode is no longer active
+    */
+    synchronized ReadClassifierItem getNextQueuedChunk(int barcode) {
+        LinkedList<ReadClassifierItem> queue = queuedChunks.get(barcode);
+        
+        if ((queue == null) || (queue.size() == 0)) {
+            activeBarcodes.remove(barcode);
+            return null;
+        }
+        
+        return queue.removeFirst();
+    }
+    
+    BlastDependencies getBlastDependencies(int jobId) {
+        return blastDependencies.get(jobId);
+    }
+    
+    private synchronized void chunkClassified(String summaryFilename) {
+        summaryFiles.add(summaryFilename);
+        chunksInProgress--;
+        filesProcessed++;
+        options.getProgressReport().incrementChunksParsedCount();
+    }
+    
+    /**
+    * Parse, classify and write results for a chunk whose BLAST dependencies have completed.
+    *
+    * @param  f   chunk to classify
+    * @param  bd  BLAST dependencies of chunk
+    */
+    void classifyChunk(ReadClassifierItem f, BlastDependencies bd) {
+        options.getLog().println("Running parse on " + f.getBlastFile());
+        options.getLog().println("              to " + f.getClassifierPrefix());
+
+        long startTime = System.nanoTime();
+        long timeDiff;
+        int barcode = options.getBarcodeFromPath(f.getBlastFile());
+        SampleMetaData md = options.getSampleMetaData(barcode);
+
+        options.getLog().println("Got sample metadata");
+        LCAFileParser pfp = new LCAFileParser(taxonomy, lcaParseOptions, accTaxConvert, options.runningCARD(), options.getLog());
+        
+        String summaryFilename = f.getClassifierPrefix() + "_summary.txt";
+        String perReadFilename = f.getClassifierPrefix() + "_perread.txt";
+        options.getLog().println("Got LCAFileParse instance, now parsing");
+        
+        // Single pass - reads are classified, written and counted as they're parsed
+        ChunkReadLengths readLengths = options.getReadStatistics().getChunkReadLengths(f.getQueryFile());
+        int readsWithHits = pfp.classifyFile(f.getBlastFile(), summaryFilename, perReadFilename, barcode, readLengths);
+        options.getReadStatistics().releaseChunk(f.getQueryFile());
+        options.getChunkSizePolicy().addBlastRunTime(readLengths.getTotalBases(), options.getJobScheduler().getJobRunTime(f.getJobId()));
+        
+        options.getLog().println("Adding to reads classified");
+        md.addToReadsClassified(readsWithHits, pfp.getBpWithHits());
+        options.getLog().println("Marking poor alignments");
+        md.markPoorAlignments(pfp.getPoorAlignmentReads(), pfp.getPoorAlignmentBp());
+        options.getLog().println("Registering chunks");
+        md.registerChunkAnalysed(f.getQueryFile());
+
+        timeDiff = (System.nanoTime() - startTime) / 1000000;
+        options.getLog().println("Written " + summaryFilename);
+        options.getLog().println("Written " + perReadFilename);
+        options.getLog().println("Timing: LCA parse on " + f.getBlastFile() + " completed in " + timeDiff + " ms");
+        
+        int fastaChunkNumber = getChunkNumber(f.getBlastFile());
+        int chunkNumberByOrderCompleted = options.getResults().addChunk(barcode, pfp);
+        
+        // Write files for min support 0, 0.1, 1 and 2
+        startTime = System.nanoTime();
+        options.getResults().writeTree(barcode, 0);
+        options.getResults().storeAccumulationData(barcode, fastaChunkNumber, chunkNumberByOrderCompleted, md.getReadsAnalysed(), md.getLastChunkAnalysedTime(), 0);
+        options.getResults().writeAccumulationJson(barcode, 0);                                
+
+        options.getResults().writeTree(barcode, 0.1);
+        options.getResults().storeAccumulationData(barcode, fastaChunkNumber, chunkNumberByOrderCompleted, md.getReadsAnalysed(), md.getLastChunkAnalysedTime(), 0.1);
+        options.getResults().writeAccumulationJson(barcode, 0.1);                                
+
+        options.getResults().writeTree(barcode, 1);
+        options.getResults().storeAccumulationData(barcode, fastaChunkNumber, chunkNumberByOrderCompleted, md.getReadsAnalysed(), md.getLastChunkAnalysedTime(), 1);
+        options.getResults().writeAccumulationJson(barcode, 1);                                
+
+        options.getResults().writeTree(barcode, 2);
+        options.getResults().storeAccumulationData(barcode, fastaChunkNumber, chunkNumberByOrderCompleted, md.getReadsAnalysed(), md.getLastChunkAnalysedTime(), 2);
+        options.getResults().writeAccumulationJson(barcode, 2);                                
+
+        timeDiff = (System.nanoTime() - startTime) / 1000000;
+        options.getLog().println("Timing: LCA tree and accumulation " + f.getBlastFile() + " completed in " + timeDiff + " ms");
+        
+        // Handle AMR?
+        if (options.runningCARD()) {
+            options.getLog().println("Time to run parse CARD and do walkout");
+            String cardFilename = bd.getDependencyFile("card");
+            if (cardFilename != null) {
+                options.getLog().println("CARD filename: " + cardFilename);
+                options.getLog().println("  nt filename: " + f.getBlastFile());
+
+                AMRAnalysisTask mat = new AMRAnalysisTask(barcode, fastaChunkNumber, chunkNumberByOrderCompleted, bd.getDependencyFile("card"), f.getBlastFile(), f.getQueryFile());
+                options.getProgressReport().incrementAnalysisSubmitted();
+                pendingAnalysisTasks.addPendingTask(mat);
+            } else {
+                System.out.println("Error: couldn't get CARD filename\n");
+                System.exit(1);
+            }
+        } else {
+            // add blast file to list of files to be compressed.
+            if(options.getCompressBlastFiles()) {
+                fileCompressionQueue.add(f.getBlastFile());
+            }
+        }
+        
+        md.requestSampleJSONWrite();
+        
+        // Only count as parsed once any AMR task has been submitted, so the main loop doesn't see everything as finished too early
+        chunkClassified(summaryFilename);
+    }
+    
+    public void jobFinished(int jobId) {
+        checkNeeded = true;
+    }
+    
+    /**
+    * Go through the outstanding BLAST jobs, handling any that have finished.
+    * Chunks wait on their BLAST dependencies and on earlier chunks of the same
+    * barcode, so all outstanding jobs are looked at, but only after a job has
+    * finished or new work has been added since the last look.
+    */
     public synchronized void checkForFilesToClassify() {
+        if (!checkNeeded) {
+            return;
+        }
+        checkNeeded = false;
+        
         JobScheduler js = options.getJobScheduler();
         Set<Integer> asSet = files.keySet();
         Integer[] ids = asSet.toArray(new Integer[asSet.size()]);        
 
+        // Job IDs are allocated in submission order, so sorting puts each barcode's chunks in order
+        Hashtable<Integer, Boolean> waitingBarcodes = new Hashtable<Integer, Boolean>();
+        Arrays.sort(ids);
+
         options.getLog().println(MARTiLog.LOGLEVEL_CHECKFORFILESTOCLASSIFY, "In checkForFilesToClassify BLAST - size "+ids.length);
         
         for (int i=0; i<ids.length; i++) {
             int thisId = ids[i];
             ReadClassifierItem f = files.get(thisId);
+            boolean isClassifyingChunk = f.getBlastProcessName().equalsIgnoreCase(options.getClassifyingBlastName());
+            int barcode = options.getBarcodeFromPath(f.getBlastFile());
             
             // Check if job completed
             if (js.checkJobCompleted(thisId)) {
@@ -193,7 +382,6 @@ public class ReadClassifier {
                             String cardFilename = f.getBlastFile();
                             if (cardFilename != null) {
                                 options.getLog().println("CARD filename: " + cardFilename);
-                                int barcode = options.getBarcodeFromPath(f.getBlastFile());
                                 int fastaChunkNumber = getChunkNumber(f.getBlastFile());
                                 AMRAnalysisTask mat = new AMRAnalysisTask(barcode, fastaChunkNumber, fastaChunkNumber, f.getBlastFile(), "", f.getQueryFile());
                                 options.getProgressReport().incrementAnalysisSubmitted();
@@ -212,114 +400,13 @@ public class ReadClassifier {
                         if (blastDependencies.containsKey(thisId)) {
                             BlastDependencies bd = blastDependencies.get(thisId);
                             
-                            if (bd.dependenciesMet()) {
-                                options.getLog().println("Running parse on " + f.getBlastFile());
-                                options.getLog().println("              to " + f.getClassifierPrefix());
-
-                                long startTime = System.nanoTime();
-                                long timeDiff;
-                                int barcode = options.getBarcodeFromPath(f.getBlastFile());
-                                SampleMetaData md = options.getSampleMetaData(barcode);
-
-                                options.getLog().println("Got sample metadata");
-                                LCAFileParser pfp = new LCAFileParser(taxonomy, lcaParseOptions, null, options.runningCARD(), options.getLog());
-                                
-                                String summaryFilename = f.getClassifierPrefix() + "_summary.txt";
-                                String perReadFilename = f.getClassifierPrefix() + "_perread.txt";
-                                options.getLog().println("Got LCAFileParse instance, now parsing");
-                                int readsWithHits = pfp.parseFile(f.getBlastFile());
-                                long totalBpWithHits = 0l;
-                                Set<String> hits = pfp.getHitsByQuery().keySet();
-                                for(String query : hits) {
-                                    totalBpWithHits += options.getReadStatistics().getReadLength(barcode, query, true);
-                                }
-                                
-                                options.getLog().println("Parsed... now removing poor alignments");
-                                ArrayList<String> queriesToRemove = pfp.removePoorAlignments();
-                                int readsRemoved = queriesToRemove.size();
-                                                                                               
-                                long bpRemoved = 0l;
-                                for(String query : queriesToRemove) {
-                                    bpRemoved += options.getReadStatistics().getReadLength(barcode, query, true);
-                                }
-
-                                options.getLog().println("Adding to reads classified");
-                                md.addToReadsClassified(readsWithHits, totalBpWithHits);
-                                options.getLog().println("Marking poor alignments");
-                                md.markPoorAlignments(readsRemoved, bpRemoved);
-                                options.getLog().println("Registering chunks");
-                                md.registerChunkAnalysed(f.getQueryFile());
-
-                                timeDiff = (System.nanoTime() - startTime) / 1000000;
-                                options.getLog().println("Timing: LCA parse on " + f.getBlastFile() + " completed in " + timeDiff + " ms");
-                                
-                                // Taxon doesn't get assigned until writeResults
-                                startTime = System.nanoTime();
-                                pfp.writeResults(summaryFilename, perReadFilename);
-                                timeDiff = (System.nanoTime() - startTime) / 1000000;
-                                options.getLog().println("Written " + summaryFilename);
-                                options.getLog().println("Written " + perReadFilename);
-                                options.getLog().println("Timing: Results file for " + f.getBlastFile() + " written in " + timeDiff + " ms");
-                                
-                                summaryFiles.add(summaryFilename);
-
-                                int fastaChunkNumber = getChunkNumber(f.getBlastFile());
-                                int chunkNumberByOrderCompleted = options.getResults().addChunk(barcode, pfp);
-
-                                // Register mean identity etc.
-                                pfp.registerTaxonomyData();
-                                
-                                // Write files for min support 0, 0.1, 1 and 2
-                                startTime = System.nanoTime();
-                                options.getResults().writeTree(barcode, 0);
-                                options.getResults().storeAccumulationData(barcode, fastaChunkNumber, chunkNumberByOrderCompleted, md.getReadsAnalysed(), md.getLastChunkAnalysedTime(), 0);
-                                options.getResults().writeAccumulationJson(barcode, 0);                                
-
-                                options.getResults().writeTree(barcode, 0.1);
-                                options.getResults().storeAccumulationData(barcode, fastaChunkNumber, chunkNumberByOrderCompleted, md.getReadsAnalysed(), md.getLastChunkAnalysedTime(), 0.1);
-                                options.getResults().writeAccumulationJson(barcode, 0.1);                                
-
-                                options.getResults().writeTree(barcode, 1);
-                                options.getResults().storeAccumulationData(barcode, fastaChunkNumber, chunkNumberByOrderCompleted, md.getReadsAnalysed(), md.getLastChunkAnalysedTime(), 1);
-                                options.getResults().writeAccumulationJson(barcode, 1);                                
-
-                                options.getResults().writeTree(barcode, 2);
-                                options.getResults().storeAccumulationData(barcode, fastaChunkNumber, chunkNumberByOrderCompleted, md.getReadsAnalysed(), md.getLastChunkAnalysedTime(), 2);
-                                options.getResults().writeAccumulationJson(barcode, 2);                                
-
-                                timeDiff = (System.nanoTime() - startTime) / 1000000;
-                                options.getLog().println("Timing: LCA tree and accumulation " + f.getBlastFile() + " completed in " + timeDiff + " ms");
-                                
-                                // Remove from list only if we were able to process it
-                                filesProcessed++;
+                            if (waitingBarcodes.containsKey(barcode)) {
+                                // Chunks for a barcode are classified in order, so chunkNumberByOrderCompleted doesn't depend on which BLAST finished first
+                                options.getLog().println("Waiting for earlier chunks before classifying " + f.getBlastFile());
+                            } else if (bd.dependenciesMet()) {
+                                // Parsing happens on the classifier threads
                                 files.remove(thisId);
-                                options.getProgressReport().incrementChunksParsedCount();
-                                
-                                // Handle AMR?
-                                if (options.runningCARD()) {
-                                    options.getLog().println("Time to run parse CARD and do walkout");
-                                    String cardFilename = bd.getDependencyFile("card");
-                                    if (cardFilename != null) {
-                                        options.getLog().println("CARD filename: " + cardFilename);
-                                        options.getLog().println("  nt filename: " + f.getBlastFile());
-
-                                        AMRAnalysisTask mat = new AMRAnalysisTask(barcode, fastaChunkNumber, chunkNumberByOrderCompleted, bd.getDependencyFile("card"), f.getBlastFile(), f.getQueryFile());
-                                        options.getProgressReport().incrementAnalysisSubmitted();
-                                        pendingAnalysisTasks.addPendingTask(mat);
-                                    } else {
-                                        System.out.println("Error: couldn't get CARD filename\n");
-                                        System.exit(1);
-                                    }
-                                } else {
-                                    // add blast file to list of files to be compressed.
-                                    if(options.getCompressBlastFiles()) {
-                                        fileCompressionQueue.add(f.getBlastFile());
-                                    }
-                                }
-                                
-                                md.writeSampleJSON(false);
-                                
-                                // Handle accumulation
+                                queueChunk(barcode, f);
                             } else {
                                 options.getLog().println("Not got dependency results yet for " + f.getBlastFile());
                             }
@@ -335,7 +422,12 @@ public class ReadClassifier {
                     System.out.println("Error: Failed BLAST "+f.getBlastFile() + " exit value "+ js.getExitValue(thisId));
                     options.getLog().println("Error: Failed BLAST "+f.getBlastFile());
                     js.markJobAsFailed(thisId);
-                    js.resubmitJobIfPossible(thisId);
+                    if (!js.resubmitJobIfPossible(thisId)) {
+                        // Continue without these BLAST results, as for a terminally failed job
+                        filesProcessed++;
+                        files.remove(thisId);
+                        options.getProgressReport().incrementChunksParsedCount();
+                    }
                 }
             } else {    
                 options.getLog().println(MARTiLog.LOGLEVEL_NOTCOMPLETED, "Not completed " + f.blastProcessName + " - " + f.blastFile + " - " + f.getJobId());
@@ -349,12 +441,26 @@ public class ReadClassifier {
                     options.getProgressReport().incrementChunksParsedCount();                    
                 }
             }
+            
+            // Later chunks only wait on one that can still be classified
+            if (isClassifyingChunk && files.containsKey(thisId) && !dependencyFailed(thisId)) {
+                waitingBarcodes.put(barcode, true);
+            }
         }        
     }
     
-    public int getPendingClassificationCount() {
-        options.getLog().println("Pending classification: "+files.size());
-        return files.size();
+    /**
+    * @param  id  job ID of classifying BLAST
+    * @return true if a BLAST the chunk depends on has terminally failed
+    */
+    private boolean dependencyFailed(int id) {
+        BlastDependencies bd = blastDependencies.get(id);
+        return (bd != null) && bd.dependencyFailed();
+    }
+    
+    public synchronized int getPendingClassificationCount() {
+        options.getLog().println("Pending classification: "+files.size()+" queued or classifying: "+chunksInProgress);
+        return files.size() + chunksInProgress;
     }
 
     public int getChunksProcessed() {
@@ -474,6 +580,7 @@ public class ReadClassifier {
         } else {
             BlastDependencies bd = new BlastDependencies(options, primaryDb, dbFilename, jobId);
             blastDependencies.put(jobId, bd);
+            checkNeeded = true;
         }
     }
     
@@ -485,6 +592,7 @@ public class ReadClassifier {
         if (blastDependencies.containsKey(nt)) {
             bd = blastDependencies.get(nt);
             bd.addDependency(dependencyDb, dbFilename, dependencyId);
+            checkNeeded = true;
         } else {
             options.getLog().println("Error: no dependency set up for id "+nt);
             System.out.println("Error: no dependency set up for id "+nt);
@@ -505,7 +613,7 @@ public class ReadClassifier {
         pendingAnalysisTasks = ptl;
     }
     
-    public void setFileCompressionQueue(ConcurrentLinkedQueue<String> queue) {
+    public void setFileCompressionQueue(LinkedBlockingQueue<String> queue) {
         if(fileCompressionQueue == null) {
             fileCompressionQueue = queue;
         } else {
@@ -514,6 +622,15 @@ public class ReadClassifier {
         }
     }
 
+    /**
+    * Stop classifier threads once everything queued has been classified.
+    */
+    public void exitThreads() {
+        if (classifierExecutor != null) {
+            classifierExecutor.shutdown();
+        }
+    }
+
     public LCAParseOptions getLCAParseOptions() {
         return lcaParseOptions;
     }
@@ -0,0 +1,41 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.classify;
+
+import uk.ac.earlham.marti.blast.BlastDependencies;
+import uk.ac.earlham.marti.core.MARTiEngineOptions;
+
+/**
+ * Classifier thread for one barcode - works through the barcode's queued chunks
+ * in order until there are none left.
+ * 
+ * @author Richard M. Leggett
+ */
+public class ReadClassifierRunnable implements Runnable {
+    private MARTiEngineOptions options;
+    private ReadClassifier readClassifier;
+    private int barcode;
+    
+    public ReadClassifierRunnable(MARTiEngineOptions o, ReadClassifier rc, int bc) {
+        options = o;
+        readClassifier = rc;
+        barcode = bc;
+    }
+    
+    public void run() {
+        ReadClassifierItem f;
+        
+        try {
+            while ((f = readClassifier.getNextQueuedChunk(barcode)) != null) {
+                BlastDependencies bd = readClassifier.getBlastDependencies(f.getJobId());
+                readClassifier.classifyChunk(f, bd);
+            }
+        } catch (Exception e) {
+            System.out.println("ReadClassifierRunnable exception:");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
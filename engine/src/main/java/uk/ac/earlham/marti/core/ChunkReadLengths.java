@@ -0,0 +1,192 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Lengths of the reads in one filtered chunk, carried from the read filter to
+ * the classifier of the chunk.
+ *
+ * Read IDs aren't stored - each is reduced to a 64-bit hash and held in an
+ * open addressing table of primitive arrays, so a read costs 12 bytes rather
+ * than a String and two boxed objects.
+ *
+ * @author Richard M. Leggett
+ */
+public class ChunkReadLengths {
+    private final static int INITIAL_CAPACITY = 1 << 12;
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    private int size = 0;
+    private long totalBases = 0;
+
+    private static long finishHash(long h) {
+        // MurmurHash3 finaliser, so that similar IDs are spread across the table
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        // 0 marks an empty slot
+        return h == 0 ? 1:h;
+    }
+
+    /**
+    * Hash a read ID held as bytes.
+    *
+    * @param  b       buffer holding ID
+    * @param  offset  offset of ID
+    * @param  length  length of ID
+    * @return hash, same as hash(String) for the same ASCII ID
+    */
+    public static long hash(byte[] b, int offset, int length) {
+        long h = 0xcbf29ce484222325L;
+
+        for (int i=offset; i<offset+length; i++) {
+            h ^= b[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+
+        return finishHash(h);
+    }
+
+    /**
+    * Hash a read ID, as found in alignment output.
+    *
+    * @param  id  read ID
+    * @return hash
+    */
+    public static long hash(String id) {
+        long h = 0xcbf29ce484222325L;
+
+        for (int i=0; i<id.length(); i++) {
+            h ^= id.charAt(i) & 0xFF;
+            h *= 0x100000001b3L;
+        }
+
+        return finishHash(h);
+    }
+
+    private int findSlot(long key) {
+        int slot = (int)key & mask;
+
+        while ((keys[slot] != 0) && (keys[slot] != key)) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldLengths = lengths;
+
+        keys = new long[oldKeys.length * 2];
+        lengths = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+
+        for (int i=0; i<oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = findSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                lengths[slot] = oldLengths[i];
+            }
+        }
+    }
+
+    /**
+    * Store the length of a read.
+    *
+    * @param  key     hash of read ID
+    * @param  length  read length
+    * @return false if the ID was already in the chunk
+    */
+    public boolean put(long key, int length) {
+        int slot = findSlot(key);
+
+        totalBases += length;
+        if (keys[slot] == key) {
+            totalBases -= lengths[slot];
+            lengths[slot] = length;
+            return false;
+        }
+
+        lengths[slot] = length;
+
+        keys[slot] = key;
+        size++;
+        if (size * 4 > keys.length * 3) {
+            grow();
+        }
+
+        return true;
+    }
+
+    /**
+    * Get the length of a read.
+    *
+    * @param  id  read ID
+    * @return length, or 0 if the read isn't in the chunk
+    */
+    public int getLength(String id) {
+        int slot = findSlot(hash(id));
+        return keys[slot] == 0 ? 0:lengths[slot];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTotalBases() {
+        return totalBases;
+    }
+
+    /**
+    * Build the lengths for a chunk from its FASTA file - for chunks written
+    * before a restart, or found on disk rather than written by the filter.
+    *
+    * @param  pathname  FASTA chunk, which may have been gzipped
+    * @return read lengths
+    */
+    public static ChunkReadLengths fromFasta(String pathname) throws IOException {
+        ChunkReadLengths crl = new ChunkReadLengths();
+        String filename = new File(pathname).exists() ? pathname:pathname + ".gz";
+        BufferedReader br = CompressedFile.openReader(filename);
+        String line;
+        long key = 0;
+        int length = 0;
+
+        try {
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith(">")) {
+                    if (key != 0) {
+                        crl.put(key, length);
+                    }
+                    int end = 1;
+                    while ((end < line.length()) && (line.charAt(end) != ' ')) {
+                        end++;
+                    }
+                    key = hash(line.substring(1, end));
+                    length = 0;
+                } else {
+                    length += line.length();
+                }
+            }
+
+            if (key != 0) {
+                crl.put(key, length);
+            }
+        } finally {
+            br.close();
+        }
+
+        return crl;
+    }
+}
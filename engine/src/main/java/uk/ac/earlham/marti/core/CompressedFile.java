@@ -0,0 +1,77 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.core;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opening of plain and gzipped files, shared by everything that reads reads,
+ * BLAST output or classifier output and by the BLAST file compressor.
+ *
+ * Gzipped files are decompressed on a separate thread, ahead of the reader.
+ *
+ * @author Richard M. Leggett
+ */
+public class CompressedFile {
+    private final static int BUFFER_SIZE = 1 << 16;
+
+    /**
+    * Open a file, decompressing it if the name ends .gz.
+    *
+    * @param  pathname  file to open
+    * @return input stream
+    */
+    public static InputStream openInputStream(String pathname) throws IOException {
+        if (pathname.toLowerCase().endsWith(".gz")) {
+            return new ReadAheadInputStream(new GZIPInputStream(new FileInputStream(pathname), BUFFER_SIZE));
+        }
+
+        return new FileInputStream(pathname);
+    }
+
+    /**
+    * Open a text file for reading, decompressing it if the name ends .gz.
+    *
+    * @param  pathname  file to open
+    * @return reader
+    */
+    public static BufferedReader openReader(String pathname) throws IOException {
+        return new BufferedReader(new InputStreamReader(openInputStream(pathname), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+    * Gzip a file, compressing blocks in parallel.
+    *
+    * @param  source       file to compress
+    * @param  destination  gzip file to write
+    * @param  executor     executor to compress blocks on
+    * @param  threads      number of threads in the executor
+    */
+    public static void compress(String source, String destination, ExecutorService executor, int threads) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        FileInputStream fis = new FileInputStream(source);
+        OutputStream os = new ParallelGzipOutputStream(new BufferedOutputStream(new FileOutputStream(destination), BUFFER_SIZE), executor, threads);
+        int bytesRead;
+
+        try {
+            while ((bytesRead = fis.read(buffer)) > 0) {
+                os.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            fis.close();
+            os.close();
+        }
+    }
+}
@@ -4,10 +4,14 @@
  */
 package uk.ac.earlham.marti.core;
 
-import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Maintains a pending list of FASTA/Q files to be processed.
+ *
+ * Each consumer (BLAST, Centrifuge, Kraken2) has its own queue and blocks on
+ * it, so it is woken as soon as the read filter adds a chunk.
  * 
  * @author Richard M. Leggett
  */
@@ -16,9 +20,9 @@ public class FASTAQPairPendingList {
     private int filesToProcess = 0;
     private int filesProcessed = 0;
     private long lastFileTime = System.nanoTime();
-    private LinkedList<FASTAQPair> pendingBlastFiles = new LinkedList<FASTAQPair>();
-    private LinkedList<FASTAQPair> pendingCentrifugeFiles = new LinkedList<FASTAQPair>();
-    private LinkedList<FASTAQPair> pendingKraken2Files = new LinkedList<FASTAQPair>();
+    private LinkedBlockingQueue<FASTAQPair> pendingBlastFiles = new LinkedBlockingQueue<FASTAQPair>();
+    private LinkedBlockingQueue<FASTAQPair> pendingCentrifugeFiles = new LinkedBlockingQueue<FASTAQPair>();
+    private LinkedBlockingQueue<FASTAQPair> pendingKraken2Files = new LinkedBlockingQueue<FASTAQPair>();
 
     public FASTAQPairPendingList(MARTiEngineOptions o) {
         options = o;
@@ -40,34 +44,45 @@ public class FASTAQPairPendingList {
         options.getLog().println("PendingPair list +1, files to process = "+filesToProcess);        
     }    
 
-    public synchronized FASTAQPair getBlastPendingPair() {
-        if (pendingBlastFiles.size() > 0) {
-            filesProcessed++;
-            options.getLog().println("PendingPair list -1, files processed = "+filesProcessed);        
-            return pendingBlastFiles.removeFirst();
-        } else {
+    /**
+    * Wait for the next pair on a queue. Not synchronized, so that pairs can be
+    * added while a consumer waits.
+    *
+    * @param  queue   queue to take from
+    * @param  waitMs  maximum time to wait, in ms
+    * @return next pair, or null if none arrived in time
+    */
+    private FASTAQPair takePendingPair(LinkedBlockingQueue<FASTAQPair> queue, long waitMs) {
+        FASTAQPair pair = null;
+
+        try {
+            pair = queue.poll(waitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
             return null;
         }
+
+        if (pair != null) {
+            pairTaken();
+        }
+
+        return pair;
     }
     
-    public synchronized FASTAQPair getCentrifugePendingPair() {
-        if (pendingCentrifugeFiles.size() > 0) {
-            filesProcessed++;
-            options.getLog().println("PendingPair list -1, files processed = "+filesProcessed);        
-            return pendingCentrifugeFiles.removeFirst();
-        } else {
-            return null;
-        }
+    private synchronized void pairTaken() {
+        filesProcessed++;
+        options.getLog().println("PendingPair list -1, files processed = "+filesProcessed);
     }
     
-     public synchronized FASTAQPair getKraken2PendingPair() {
-        if (pendingKraken2Files.size() > 0) {
-            filesProcessed++;
-            options.getLog().println("PendingPair list -1, files processed = "+filesProcessed);        
-            return pendingKraken2Files.removeFirst();
-        } else {
-            return null;
-        }
+    public FASTAQPair getBlastPendingPair(long waitMs) {
+        return takePendingPair(pendingBlastFiles, waitMs);
+    }
+
+    public FASTAQPair getCentrifugePendingPair(long waitMs) {
+        return takePendingPair(pendingCentrifugeFiles, waitMs);
+    }
+
+    public FASTAQPair getKraken2PendingPair(long waitMs) {
+        return takePendingPair(pendingKraken2Files, waitMs);
     }
 
     public synchronized int getPendingFileCount() {
@@ -5,27 +5,31 @@
 package uk.ac.earlham.marti.core;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Thread for compressing files
  * @author martins
  */
 public class FileCompressorRunnable implements Runnable {
+    private final static int PENDING_WAIT = 500;
     private MARTiEngineOptions options;
-    private ConcurrentLinkedQueue<String> m_queue;
+    private LinkedBlockingQueue<String> m_queue;
     private boolean keepRunning = true;
+    private ThreadPoolExecutor compressionExecutor;
 
-    public FileCompressorRunnable(MARTiEngineOptions o, ConcurrentLinkedQueue<String> queue) {
+    public FileCompressorRunnable(MARTiEngineOptions o, LinkedBlockingQueue<String> queue) {
         options = o;
         m_queue = queue;
+        int n = options.getCompressionThreads();
+        compressionExecutor = new ThreadPoolExecutor(n, n, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        compressionExecutor.allowCoreThreadTimeOut(true);
     }
     
     private boolean compressFile(String filename) {
@@ -37,20 +41,8 @@ public class FileCompressorRunnable implements Runnable {
             return false;
         }
         
-        byte[] buffer = new byte[1024];
         try {            
-            FileInputStream fis = new FileInputStream(filename);
-            FileOutputStream fos = new FileOutputStream(filename + ".gz");
-            GZIPOutputStream gzos = new GZIPOutputStream(fos);
- 
-            int bytes_read;
-             
-            while ((bytes_read = fis.read(buffer)) > 0) {
-                gzos.write(buffer, 0, bytes_read);
-            } 
-            fis.close();
-            gzos.finish();
-            gzos.close();
+            CompressedFile.compress(filename, filename + ".gz", compressionExecutor, options.getCompressionThreads());
             options.getProgressReport().recordCompleted(identifier);
         } catch (IOException ex) {
             ex.printStackTrace();
@@ -70,17 +62,16 @@ public class FileCompressorRunnable implements Runnable {
         
     public void run() {
         while(keepRunning) {
-            String filename = m_queue.poll();
+            String filename = null;
+            try {
+                filename = m_queue.poll(PENDING_WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(FileCompressorRunnable.class.getName()).log(Level.SEVERE, null, ex);
+            }
             if(filename != null) {
                 if(compressFile(filename)) {
                     removeFile(filename);
                 }          
-            } else{
-                try {
-                    Thread.sleep(5);
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(FileCompressorRunnable.class.getName()).log(Level.SEVERE, null, ex);
-                }
             }
         }            
     }
@@ -98,5 +89,6 @@ public class FileCompressorRunnable implements Runnable {
                     removeFile(filename);
             }    
         }
+        compressionExecutor.shutdown();
     }
 }
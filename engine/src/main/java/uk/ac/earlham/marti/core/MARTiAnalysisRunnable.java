@@ -4,11 +4,8 @@
  */
 package uk.ac.earlham.marti.core;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
-import uk.ac.earlham.marti.blast.BlastProcessRunnable;
+import java.util.concurrent.LinkedBlockingQueue;
 import uk.ac.earlham.marti.amr.AMRAnalysisTask;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Thread for processing local (MARTi) analysis tasks
@@ -16,12 +13,13 @@ import java.util.logging.Logger;
  * @author Richard M. Leggett
  */
 public class MARTiAnalysisRunnable  implements Runnable {
+    private final static int PENDING_WAIT = 500;
     private MARTiEngineOptions options = null;
     private MARTiPendingTaskList pendingTasksList = null;
     private boolean keepRunning = true;
-    private ConcurrentLinkedQueue<String> fileCompressionQueue;
+    private LinkedBlockingQueue<String> fileCompressionQueue;
     
-    public MARTiAnalysisRunnable(MARTiEngineOptions o, MARTiPendingTaskList ptl, ConcurrentLinkedQueue<String> fcq) {
+    public MARTiAnalysisRunnable(MARTiEngineOptions o, MARTiPendingTaskList ptl, LinkedBlockingQueue<String> fcq) {
         options = o;
         pendingTasksList = ptl;
         fileCompressionQueue = fcq;
@@ -39,7 +37,7 @@ public class MARTiAnalysisRunnable  implements Runnable {
             
             // Get next file to process
             while ((mat == null) && (options.getStopFlag() == false)) {
-                mat = pendingTasksList.getPendingTask();
+                mat = pendingTasksList.getPendingTask(PENDING_WAIT);
                 if (mat != null) {
                     switch(mat.getTaskDescriptor()) {
                         case "AMRAnalysis":
@@ -58,12 +56,6 @@ public class MARTiAnalysisRunnable  implements Runnable {
                             System.exit(1);
                             break;
                     }                    
-                } else  {
-                    try {
-                        Thread.sleep(500);
-                    } catch (InterruptedException ex) {
-                        Logger.getLogger(BlastProcessRunnable.class.getName()).log(Level.SEVERE, null, ex);
-                    }
                 }
             }
             
@@ -8,7 +8,12 @@ import java.io.*;
 import java.util.*;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.zip.*;
+import uk.ac.earlham.lcaparse.AccessionTaxonIndex;
+import uk.ac.earlham.lcaparse.LCABenchmark;
+import uk.ac.earlham.lcaparse.TaxonomySnapshot;
 import uk.ac.earlham.marti.amr.WalkOutRead;
+import uk.ac.earlham.marti.filter.HostIndex;
+import uk.ac.earlham.marti.filter.QualityBenchmark;
 import uk.ac.earlham.marti.schedule.*;
 
 /**
@@ -44,10 +49,7 @@ public class MARTiEngine {
         String filename="/Users/leggettr/Desktop/testdata/RL_KewAirCollections_25082022/20220825_1141_X2_FAT13928_6d06bfee/fastq_pass/barcode32/FAT13928_pass_barcode32_cae06ba5_0.fastq.gz";
         
         try {
-            InputStream fileStream = new FileInputStream(filename);
-            InputStream gzipStream = new GZIPInputStream(fileStream);
-            Reader decoder = new InputStreamReader(gzipStream, "US-ASCII");
-            BufferedReader br = new BufferedReader(decoder);  
+            BufferedReader br = CompressedFile.openReader(filename);
             String line = null;
             int linesRead = 0;
             do {
@@ -128,6 +130,24 @@ public class MARTiEngine {
             jf.outputVersions(true);
             jf.closeFile();
             System.out.println("Written " + initFilename);
+        } else if (options.isCompileTaxonomyMode()) {
+            System.out.println("Compile taxonomy mode");
+            TaxonomySnapshot.compile(options.getTaxonomyDirectory());
+        } else if (options.isCompileAccessionMapMode()) {
+            System.out.println("Compile accession map mode");
+            AccessionTaxonIndex.compile(options.getAccessionMap(), options.getAccessionIndexFile());
+        } else if (options.isCompileHostIndexMode()) {
+            System.out.println("Compile host index mode");
+            HostIndex.compile(options.getHostFasta(), options.getHostIndex());
+        } else if (options.isBenchmarkLCAMode()) {
+            System.out.println("Benchmark LCA mode");
+            LCABenchmark.run(options, options.getTaxonomyDirectory(), options.getBenchmarkFilename());
+        } else if (options.isBenchmarkQualityMode()) {
+            System.out.println("Benchmark quality mode");
+            QualityBenchmark.run(options.getBenchmarkFilename());
+        } else if (options.isBenchmarkSchedulerMode()) {
+            System.out.println("Benchmark scheduler mode");
+            SchedulerBenchmark.run(options, options.getBenchmarkJobCount());
         } else if (!options.isWriteConfigMode()) {        
             File logsDir = new File(options.getLogsDir());
             if (!logsDir.exists()) {
@@ -10,6 +10,9 @@ import uk.ac.earlham.marti.blast.*;
 import uk.ac.earlham.marti.centrifuge.*;
 import uk.ac.earlham.marti.kraken2.*;
 import uk.ac.earlham.marti.schedule.*;
+import uk.ac.earlham.marti.filter.ChunkSizePolicy;
+import uk.ac.earlham.marti.filter.DuplicateReadFilter;
+import uk.ac.earlham.marti.filter.ReadDepleter;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -50,6 +53,8 @@ public class MARTiEngineOptions implements Serializable {
     public final static int READTYPE_FAIL = 2;
     public final static int MIN_ALIGNMENTS = 10;
     public final static int PROGRESS_WIDTH = 50;
+    public final static int FILEWATCHER_SCAN = 0;
+    public final static int FILEWATCHER_EVENTS = 1;
     private MARTiProgress progressReport = new MARTiProgress(this);
     private String sampleDirectory = null;
     private String sampleName = null;
@@ -70,18 +75,41 @@ public class MARTiEngineOptions implements Serializable {
     private boolean mergeFastaFiles = false;
     private boolean force = false;
     private boolean testMode = false;
+    private boolean benchmarkLCAMode = false;
+    private String benchmarkFilename = null;
+    private boolean benchmarkQualityMode = false;
+    private boolean benchmarkSchedulerMode = false;
+    private int benchmarkJobCount = 0;
+    private boolean compileAccessionMapMode = false;
+    private boolean compileHostIndexMode = false;
+    private String accessionIndexFile = null;
     private double minQForPass = -1;
     private int maxSchedulerJobs = 4;
     private int runMode = 0;
     private int readFormat = FASTA;
     private int numThreads = 8; // For ThreadPoolExecutor
     private int fileWatcherTimeout = 10;
+    private int fileWatcherMode = FILEWATCHER_SCAN;
+    private int fileWatcherReconcileInterval = 60;
+    private int fileWatcherSettleTime = 500; // ms a file must stop changing for in events mode
     private int readsPerMultiFastq = 1;
     private String jobQueue = null;
     private MARTiLog logFile = new MARTiLog();
     private String readsDir = "fast5";
     private int returnValue = 0;
     private int readsPerBlast = 4000;
+    private long chunkMaxBases = 0;
+    private int chunkMaxAge = 0;
+    private int chunkTargetBlastTime = 0;
+    private boolean deduplicateReads = false;
+    private long deduplicateReadsCapacity = 10000000;
+    private DuplicateReadFilter duplicateReadFilter = null;
+    private String hostIndexFile = null;
+    private String hostFastaFile = null;
+    private double hostMinFraction = 0.15;
+    private boolean lowComplexityFilter = false;
+    private double lowComplexityMaxFraction = 0.5;
+    private ReadDepleter readDepleter = null;
     private boolean clearLogsOnStart = true;
     private JobScheduler jobScheduler = null;
     private transient WatcherLog watcherReadLog = new WatcherLog(this);
@@ -106,6 +134,11 @@ public class MARTiEngineOptions implements Serializable {
     //private String meganLicense="/tgac/software/testing/MEGAN/5.11.3/x86_64/megan/MEGAN5-academic-license.txt";
     private BarcodesList barcodesList = null;
     private int maxJobs = 0;
+    private int localSchedulerMaxCPUs = 0;
+    private long localSchedulerMaxMemory = 0; // Mb
+    private int classifierThreads = 4;
+    private int readFilterThreads = 4;
+    private int compressionThreads = 4;
     private boolean doingMeganMinSupport = false;
     private boolean doingMeganMinSupportPercent = true;
     private int meganMinSupport = 1;
@@ -131,6 +164,7 @@ public class MARTiEngineOptions implements Serializable {
     private String resultsFile = null;
     private boolean initMode = false;
     private boolean writeConfigMode = false;
+    private boolean compileTaxonomyMode = false;
     private String initDir = null;
     private boolean haveReachedReadOrTimeLimit = false;
     private long startTime = System.nanoTime();
@@ -142,6 +176,7 @@ public class MARTiEngineOptions implements Serializable {
     private boolean autodeleteFastaChunks = false;
     private boolean autodeleteFastqChunks = false;
     private boolean autodeleteMetaMapsFiles = false;
+    private boolean prettyPrintJSON = true;
     private String blastProcessNames = null;
     private String cardDBPath = null;
     private Hashtable<Integer, String> barcodeIDs = new Hashtable<Integer, String>();
@@ -155,9 +190,17 @@ public class MARTiEngineOptions implements Serializable {
     private boolean compressBlastFiles = true;
     private boolean limitToSpecies = false;
     private ReadStatistics readStatistics = new ReadStatistics(this);
+    private ChunkSizePolicy chunkSizePolicy = new ChunkSizePolicy(this);
+    private WakeUpSignal mainLoopSignal = new WakeUpSignal();
     private int schedulerFileWriteDelay = 30 * 1000; // Allow 30s for file writing to finish before marking job as complete
     private int schedulerFileTimeout = 10 * 60 * 1000; // Allow 10 minutes between job completing and file appearing
     private int schedulerResubmissionAttempts = 2;
+    private int schedulerPollMinInterval = 15 * 1000; // Gap between SLURM state queries while jobs are changing
+    private int schedulerPollMaxInterval = 2 * 60 * 1000; // Longest gap when nothing has changed
+    private boolean schedulerJobArrays = false;
+    private int schedulerMaxArraySize = 100;
+    private int blastBatchSize = 1; // Chunks searched by one BLAST
+    private int blastBatchMaxWait = 10 * 1000; // Longest a chunk waits for its batch to fill
     private boolean rmlDebug = false;
     private ArrayList<MetaData> metaDataList = new ArrayList<MetaData>();
     
@@ -217,6 +260,30 @@ public class MARTiEngineOptions implements Serializable {
             System.out.println("");
             System.out.println("    marti -writeconfig <file> [options]");
             System.out.println("");
+            System.out.println("Or to write a binary snapshot of the NCBI taxonomy for faster startup");
+            System.out.println("");
+            System.out.println("    marti -compiletaxonomy <taxonomy directory>");
+            System.out.println("");
+            System.out.println("Or to sort an NCBI accession2taxid map into an index for AccessionMap");
+            System.out.println("");
+            System.out.println("    marti -compileaccessionmap <map file> <index file>");
+            System.out.println("");
+            System.out.println("Or to build a host index from a host genome FASTA, for HostIndex");
+            System.out.println("");
+            System.out.println("    marti -compilehostindex <host FASTA> <index file>");
+            System.out.println("");
+            System.out.println("Or to compare LCA timings on a BLAST chunk");
+            System.out.println("");
+            System.out.println("    marti -benchmarklca <taxonomy directory> <BLAST file>");
+            System.out.println("");
+            System.out.println("Or to compare mean read quality timings on a FASTQ file");
+            System.out.println("");
+            System.out.println("    marti -benchmarkquality <FASTQ file>");
+            System.out.println("");
+            System.out.println("Or to time the local scheduler on a large number of dependent jobs");
+            System.out.println("");
+            System.out.println("    marti -benchmarkscheduler <number of jobs>");
+            System.out.println("");
             System.exit(0);
         }
                                                 
@@ -231,6 +298,33 @@ public class MARTiEngineOptions implements Serializable {
                 configFile = args[i+1];
                 writeConfigMode = true;
                 i+=2;
+            } else if (args[i].equalsIgnoreCase("-compiletaxonomy")) {
+                taxonomyDir = args[i+1];
+                compileTaxonomyMode = true;
+                i+=2;
+            } else if (args[i].equalsIgnoreCase("-compileaccessionmap")) {
+                accessionMapFile = args[i+1];
+                accessionIndexFile = args[i+2];
+                compileAccessionMapMode = true;
+                i+=3;
+            } else if (args[i].equalsIgnoreCase("-compilehostindex")) {
+                hostFastaFile = args[i+1];
+                hostIndexFile = args[i+2];
+                compileHostIndexMode = true;
+                i+=3;
+            } else if (args[i].equalsIgnoreCase("-benchmarklca")) {
+                taxonomyDir = args[i+1];
+                benchmarkFilename = args[i+2];
+                benchmarkLCAMode = true;
+                i+=3;
+            } else if (args[i].equalsIgnoreCase("-benchmarkquality")) {
+                benchmarkFilename = args[i+1];
+                benchmarkQualityMode = true;
+                i+=2;
+            } else if (args[i].equalsIgnoreCase("-benchmarkscheduler")) {
+                benchmarkJobCount = Integer.parseInt(args[i+1]);
+                benchmarkSchedulerMode = true;
+                i+=2;
             } else if (args[i].equalsIgnoreCase("-test")) {
                 testMode = true;
                 i++;
@@ -322,6 +416,36 @@ public class MARTiEngineOptions implements Serializable {
             MARTiConfigFile mcf = new MARTiConfigFile(this);
             mcf.writeConfigFile(configFile);
             return;
+        } else if (compileTaxonomyMode == true) {
+            if (taxonomyDir == null) {
+                System.out.println("Error: you must specify a taxonomy directory");
+                System.exit(1);
+            }
+        } else if (compileAccessionMapMode == true) {
+            if ((accessionMapFile == null) || (accessionIndexFile == null)) {
+                System.out.println("Error: you must specify a map file and index file");
+                System.exit(1);
+            }
+        } else if (compileHostIndexMode == true) {
+            if ((hostFastaFile == null) || (hostIndexFile == null)) {
+                System.out.println("Error: you must specify a host FASTA file and index file");
+                System.exit(1);
+            }
+        } else if (benchmarkLCAMode == true) {
+            if ((taxonomyDir == null) || (benchmarkFilename == null)) {
+                System.out.println("Error: you must specify a taxonomy directory and BLAST file");
+                System.exit(1);
+            }
+        } else if (benchmarkQualityMode == true) {
+            if (benchmarkFilename == null) {
+                System.out.println("Error: you must specify a FASTQ file");
+                System.exit(1);
+            }
+        } else if (benchmarkSchedulerMode == true) {
+            if (benchmarkJobCount < 1) {
+                System.out.println("Error: number of jobs must be at least 1");
+                System.exit(1);
+            }
         } else if (initMode == true) {
             if (initDir == null) {
                 System.out.println("Error: you must specify an init directory in the config file");
@@ -383,6 +507,16 @@ public class MARTiEngineOptions implements Serializable {
                 jobScheduler = new SlurmScheduler(this);
                 jobScheduler.setMaxJobs(maxJobs);
                 System.out.println("Using SLURM scheduler");
+                if (blastBatchSize > 1) {
+                    System.out.println("Note: BlastBatchSize is only used with the local scheduler");
+                }
+            }
+
+            // Classifiers pick up results as the scheduler tells them jobs have finished
+            if (jobScheduler != null) {
+                jobScheduler.addJobCompletionListener(readClassifier);
+                jobScheduler.addJobCompletionListener(centrifugeClassifier);
+                jobScheduler.addJobCompletionListener(kraken2Classifier);
             }
             
             if(resultsFile != null) {
@@ -553,6 +687,10 @@ public class MARTiEngineOptions implements Serializable {
         return sampleDirectory + File.separator + "lcaparse";
     }
 
+    public String getReadIdDirectory() {
+        return sampleDirectory + File.separator + "read_ids";
+    }
+
     public String getMARTiDirectory() {
         return sampleDirectory + File.separator + "marti";
     }
@@ -628,6 +766,70 @@ public class MARTiEngineOptions implements Serializable {
     public int getReadsPerBlast() {
         return readsPerBlast;
     }
+
+    public long getChunkMaxBases() {
+        return chunkMaxBases;
+    }
+
+    public int getChunkMaxAge() {
+        return chunkMaxAge;
+    }
+
+    public int getChunkTargetBlastTime() {
+        return chunkTargetBlastTime;
+    }
+
+    public boolean isDeduplicatingReads() {
+        return deduplicateReads;
+    }
+
+    /**
+    * Get the read ID filter shared by all barcodes, loading IDs from earlier
+    * runs the first time it's asked for.
+    *
+    * @return filter, or null if DeduplicateReads isn't set
+    */
+    public synchronized DuplicateReadFilter getDuplicateReadFilter() {
+        if (deduplicateReads && (duplicateReadFilter == null)) {
+            duplicateReadFilter = new DuplicateReadFilter(this, getReadIdDirectory(), deduplicateReadsCapacity);
+        }
+
+        return duplicateReadFilter;
+    }
+
+    public String getHostIndex() {
+        return hostIndexFile;
+    }
+
+    public String getHostFasta() {
+        return hostFastaFile;
+    }
+
+    public double getHostMinFraction() {
+        return hostMinFraction;
+    }
+
+    public boolean isFilteringLowComplexity() {
+        return lowComplexityFilter;
+    }
+
+    public double getLowComplexityMaxFraction() {
+        return lowComplexityMaxFraction;
+    }
+
+    /**
+    * Get the host and low complexity read depleter, opening the host index the
+    * first time it's asked for.
+    *
+    * @return depleter, or null if neither HostIndex nor LowComplexityFilter is set
+    */
+    public synchronized ReadDepleter getReadDepleter() {
+        if (((hostIndexFile != null) || lowComplexityFilter) && (readDepleter == null)) {
+            readDepleter = new ReadDepleter(this);
+        }
+
+        return readDepleter;
+    }
     
     public ThreadPoolExecutor getThreadExecutor() {
         return executor;
@@ -668,6 +870,18 @@ public class MARTiEngineOptions implements Serializable {
     public int getFileWatcherTimeout() {
         return fileWatcherTimeout;
     }
+    
+    public int getFileWatcherMode() {
+        return fileWatcherMode;
+    }
+    
+    public int getFileWatcherReconcileInterval() {
+        return fileWatcherReconcileInterval;
+    }
+
+    public int getFileWatcherSettleTime() {
+        return fileWatcherSettleTime;
+    }
 
     public void checkAndMakeDirectory(String dir) {
         File f = new File(dir);
@@ -738,6 +952,10 @@ public class MARTiEngineOptions implements Serializable {
         if (this.classifyingReads) {
             checkAndMakeDirectory(getLCAParseDirectory());
         }
+
+        if (deduplicateReads) {
+            checkAndMakeDirectory(getReadIdDirectory());
+        }
         
         if (runningCARD) {
             checkAndMakeDirectory(getAMRDirectory());
@@ -889,9 +1107,48 @@ public class MARTiEngineOptions implements Serializable {
                                 }
                             } else if (tokens[0].compareToIgnoreCase("InactivityTimeout") == 0) {
                                 fileWatcherTimeout = Integer.parseInt(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("FileWatcherMode") == 0) {
+                                if (tokens[1].equalsIgnoreCase("scan")) {
+                                    fileWatcherMode = FILEWATCHER_SCAN;
+                                } else if (tokens[1].equalsIgnoreCase("events")) {
+                                    fileWatcherMode = FILEWATCHER_EVENTS;
+                                } else {
+                                    System.out.println("Error: FileWatcherMode must be scan or events");
+                                    System.exit(1);
+                                }
+                            } else if (tokens[0].compareToIgnoreCase("FileWatcherReconcileInterval") == 0) {
+                                fileWatcherReconcileInterval = Integer.parseInt(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("FileWatcherSettleTime") == 0) {
+                                fileWatcherSettleTime = Integer.parseInt(tokens[1]);
                             } else if ((tokens[0].compareToIgnoreCase("LocalSchedulerMaxJobs") == 0) ||
                                        (tokens[0].compareToIgnoreCase("MaxJobs") == 0)) {
                                 maxJobs = Integer.parseInt(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("LocalSchedulerMaxCPUs") == 0) {
+                                localSchedulerMaxCPUs = Integer.parseInt(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("LocalSchedulerMaxMemory") == 0) {
+                                localSchedulerMaxMemory = SimpleJobScheduler.parseMemory(tokens[1]);
+                                if (localSchedulerMaxMemory < 0) {
+                                    System.out.println("Error: LocalSchedulerMaxMemory must be a size such as 64G");
+                                    System.exit(1);
+                                }
+                            } else if (tokens[0].compareToIgnoreCase("ClassifierThreads") == 0) {
+                                classifierThreads = Integer.parseInt(tokens[1]);
+                                if (classifierThreads < 1) {
+                                    System.out.println("Error: ClassifierThreads must be at least 1");
+                                    System.exit(1);
+                                }
+                            } else if (tokens[0].compareToIgnoreCase("ReadFilterThreads") == 0) {
+                                readFilterThreads = Integer.parseInt(tokens[1]);
+                                if (readFilterThreads < 1) {
+                                    System.out.println("Error: ReadFilterThreads must be at least 1");
+                                    System.exit(1);
+                                }
+                            } else if (tokens[0].compareToIgnoreCase("CompressionThreads") == 0) {
+                                compressionThreads = Integer.parseInt(tokens[1]);
+                                if (compressionThreads < 1) {
+                                    System.out.println("Error: CompressionThreads must be at least 1");
+                                    System.exit(1);
+                                }
                             } else if (tokens[0].compareToIgnoreCase("SampleDir") == 0) {
                                 sampleDirectory = tokens[1];
                                 createSampleDirectory();
@@ -965,6 +1222,24 @@ public class MARTiEngineOptions implements Serializable {
                                 readNextLine = false;
                             } else if (tokens[0].compareToIgnoreCase("ReadsPerBlast") == 0) {
                                 readsPerBlast = Integer.parseInt(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("ChunkMaxBases") == 0) {
+                                chunkMaxBases = Long.parseLong(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("ChunkMaxAge") == 0) {
+                                chunkMaxAge = Integer.parseInt(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("ChunkTargetBlastTime") == 0) {
+                                chunkTargetBlastTime = Integer.parseInt(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("DeduplicateReads") == 0) {
+                                deduplicateReads = true;
+                            } else if (tokens[0].compareToIgnoreCase("DeduplicateReadsCapacity") == 0) {
+                                deduplicateReadsCapacity = Long.parseLong(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("HostIndex") == 0) {
+                                hostIndexFile = tokens[1];
+                            } else if (tokens[0].compareToIgnoreCase("HostMinFraction") == 0) {
+                                hostMinFraction = Double.parseDouble(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("LowComplexityFilter") == 0) {
+                                lowComplexityFilter = true;
+                            } else if (tokens[0].compareToIgnoreCase("LowComplexityMaxFraction") == 0) {
+                                lowComplexityMaxFraction = Double.parseDouble(tokens[1]);
                             } else if (tokens[0].compareToIgnoreCase("ReadsPerMultiFastQ") == 0) {
                                 readsPerMultiFastq = Integer.parseInt(tokens[1]);
                                 System.out.println("  ReadsPerMultiFastQ "+readsPerMultiFastq);
@@ -1029,12 +1304,34 @@ public class MARTiEngineOptions implements Serializable {
                                 autodeleteFastqChunks = true;
                             } else if (tokens[0].compareToIgnoreCase("AutodeleteMetaMapsFiles") == 0) {
                                 autodeleteMetaMapsFiles = true;
+                            } else if (tokens[0].compareToIgnoreCase("CompactJSON") == 0) {
+                                prettyPrintJSON = false;
                             } else if (tokens[0].compareToIgnoreCase("SchedulerFileWriteDelay") == 0) {
                                 schedulerFileWriteDelay = Integer.parseInt(tokens[1]);
                             } else if (tokens[0].compareToIgnoreCase("SchedulerFileTimeout") == 0) {
                                 schedulerFileTimeout = Integer.parseInt(tokens[1]);
                             } else if (tokens[0].compareToIgnoreCase("SchedulerResubmissionAttemplts") == 0) {
                                 schedulerResubmissionAttempts = Integer.parseInt(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("BlastBatchSize") == 0) {
+                                blastBatchSize = Integer.parseInt(tokens[1]);
+                                if (blastBatchSize < 1) {
+                                    System.out.println("Error: BlastBatchSize must be at least 1");
+                                    System.exit(1);
+                                }
+                            } else if (tokens[0].compareToIgnoreCase("BlastBatchMaxWait") == 0) {
+                                blastBatchMaxWait = Integer.parseInt(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("SchedulerPollMinInterval") == 0) {
+                                schedulerPollMinInterval = Integer.parseInt(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("SchedulerPollMaxInterval") == 0) {
+                                schedulerPollMaxInterval = Integer.parseInt(tokens[1]);
+                            } else if (tokens[0].compareToIgnoreCase("SchedulerJobArrays") == 0) {
+                                schedulerJobArrays = true;
+                            } else if (tokens[0].compareToIgnoreCase("SchedulerMaxArraySize") == 0) {
+                                schedulerMaxArraySize = Integer.parseInt(tokens[1]);
+                                if (schedulerMaxArraySize < 1) {
+                                    System.out.println("Error: SchedulerMaxArraySize must be at least 1");
+                                    System.exit(1);
+                                }
                             } else if (!tokens[0].startsWith("#")) {                                
                                 System.out.println("ERROR: Unknown token "+tokens[0]);
                                 System.exit(1);
@@ -1222,6 +1519,10 @@ public class MARTiEngineOptions implements Serializable {
         return initMode;
     }
     
+    public boolean isCompileTaxonomyMode() {
+        return compileTaxonomyMode;
+    }
+    
     public boolean isClassifyingReads() {
         return classifyingReads;
     }
@@ -1323,7 +1624,7 @@ public class MARTiEngineOptions implements Serializable {
         return cardDBPath;
     }
 
-    public SampleMetaData getSampleMetaData(int bc) {
+    public synchronized SampleMetaData getSampleMetaData(int bc) {
         SampleMetaData m = null;
         
         if (sampleMetaData.containsKey(bc)) {
@@ -1373,6 +1674,10 @@ public class MARTiEngineOptions implements Serializable {
         return autodeleteMetaMapsFiles;
     }
     
+    public boolean prettyPrintJSON() {
+        return prettyPrintJSON;
+    }
+    
     public int getBarcodeFromPath(String pathname) {
        int barcode = 0;
        File f = new File(pathname);
@@ -1395,8 +1700,28 @@ public class MARTiEngineOptions implements Serializable {
     
     public int getMaxJobs() {
         return maxJobs;
+    }
+    
+    public int getLocalSchedulerMaxCPUs() {
+        return localSchedulerMaxCPUs;
+    }
+    
+    public long getLocalSchedulerMaxMemory() {
+        return localSchedulerMaxMemory;
+    }
+    
+    public int getClassifierThreads() {
+        return classifierThreads;
     }    
     
+    public int getReadFilterThreads() {
+        return readFilterThreads;
+    }
+    
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+    
     public String getBlastProcessNames() {
         return blastProcessNames;
     }
@@ -1428,6 +1753,21 @@ public class MARTiEngineOptions implements Serializable {
         }
     }
     
+    /**
+    * Write the sample.json of any sample that has changed since it was last written.
+    */
+    public void writeChangedSampleJSON() {
+        ArrayList<SampleMetaData> samples;
+        
+        synchronized(this) {
+            samples = new ArrayList<SampleMetaData>(sampleMetaData.values());
+        }
+        
+        for (int i=0; i<samples.size(); i++) {
+            samples.get(i).writeSampleJSONIfChanged();
+        }
+    }
+    
     public void writeAllSampleJSON(boolean martiComplete) {
         Set<Integer> keys = sampleMetaData.keySet();
         
@@ -1441,6 +1781,38 @@ public class MARTiEngineOptions implements Serializable {
         return classifyingProcessName;
     }
     
+    public boolean isCompileAccessionMapMode() {
+        return compileAccessionMapMode;
+    }
+    
+    public boolean isCompileHostIndexMode() {
+        return compileHostIndexMode;
+    }
+    
+    public String getAccessionIndexFile() {
+        return accessionIndexFile;
+    }
+    
+    public boolean isBenchmarkLCAMode() {
+        return benchmarkLCAMode;
+    }
+    
+    public boolean isBenchmarkQualityMode() {
+        return benchmarkQualityMode;
+    }
+    
+    public boolean isBenchmarkSchedulerMode() {
+        return benchmarkSchedulerMode;
+    }
+    
+    public int getBenchmarkJobCount() {
+        return benchmarkJobCount;
+    }
+    
+    public String getBenchmarkFilename() {
+        return benchmarkFilename;
+    }
+    
     public boolean inTestMode() {
         return testMode;
     }
@@ -1510,6 +1882,17 @@ public class MARTiEngineOptions implements Serializable {
         return readStatistics;
     }
     
+    public ChunkSizePolicy getChunkSizePolicy() {
+        return chunkSizePolicy;
+    }
+    
+    /**
+    * @return signal to wake the main loop early, e.g. when a job is submitted
+    */
+    public WakeUpSignal getMainLoopSignal() {
+        return mainLoopSignal;
+    }
+    
     public int getSchedulerFileWriteDelay() {
         return schedulerFileWriteDelay;
     }
@@ -1518,6 +1901,30 @@ public class MARTiEngineOptions implements Serializable {
         return schedulerFileTimeout;
     }
     
+    public int getSchedulerPollMinInterval() {
+        return schedulerPollMinInterval;
+    }
+    
+    public int getSchedulerPollMaxInterval() {
+        return Math.max(schedulerPollMaxInterval, schedulerPollMinInterval);
+    }
+    
+    public boolean useSchedulerJobArrays() {
+        return schedulerJobArrays;
+    }
+    
+    public int getSchedulerMaxArraySize() {
+        return schedulerMaxArraySize;
+    }
+    
+    public int getBlastBatchSize() {
+        return blastBatchSize;
+    }
+    
+    public int getBlastBatchMaxWait() {
+        return blastBatchMaxWait;
+    }
+    
     public int getSchedulerResubmissionAttempts() {
         return schedulerResubmissionAttempts;
     }
@@ -0,0 +1,101 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.core;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+
+/**
+ * Stream a JSON file into the MARTi GUI directory.
+ *
+ * JSON is written through a JsonGenerator to a temporary file next to the
+ * final one, which is then renamed into place, so the GUI never sees a part
+ * written file. An optional archive copy (e.g. the per-chunk file in the
+ * lcaparse directory) is hard linked to the same data rather than written or
+ * copied a second time.
+ *
+ * @author Richard M. Leggett
+ */
+public class MARTiJSONWriter {
+    private final static int BUFFER_SIZE = 1 << 16;
+    private static JsonGeneratorFactory prettyFactory = null;
+    private static JsonGeneratorFactory compactFactory = null;
+    private Path finalPath;
+    private Path tempPath;
+    private Path archivePath = null;
+    private JsonGenerator generator;
+
+    /**
+    * Open a JSON file for writing.
+    *
+    * @param  o            global MARTiEngineOptions object
+    * @param  pathname     final pathname, usually in the MARTi GUI directory
+    * @param  archiveName  pathname of a copy to keep as well, or null
+    */
+    public MARTiJSONWriter(MARTiEngineOptions o, String pathname, String archiveName) throws IOException {
+        finalPath = Paths.get(pathname);
+        tempPath = Paths.get(pathname + ".tmp");
+        if (archiveName != null) {
+            archivePath = Paths.get(archiveName);
+        }
+
+        BufferedOutputStream os = new BufferedOutputStream(Files.newOutputStream(tempPath), BUFFER_SIZE);
+        generator = getFactory(o.prettyPrintJSON()).createGenerator(os, StandardCharsets.UTF_8);
+    }
+
+    private static synchronized JsonGeneratorFactory getFactory(boolean pretty) {
+        if (pretty) {
+            if (prettyFactory == null) {
+                Map<String, Boolean> config = new HashMap<>();
+                config.put(JsonGenerator.PRETTY_PRINTING, true);
+                prettyFactory = Json.createGeneratorFactory(config);
+            }
+            return prettyFactory;
+        } else {
+            if (compactFactory == null) {
+                compactFactory = Json.createGeneratorFactory(new HashMap<String, Boolean>());
+            }
+            return compactFactory;
+        }
+    }
+
+    public JsonGenerator getGenerator() {
+        return generator;
+    }
+
+    /**
+    * Finish writing, keep the archive copy and move the file into place.
+    */
+    public void close() throws IOException {
+        generator.close();
+
+        if (archivePath != null) {
+            Files.deleteIfExists(archivePath);
+            try {
+                Files.createLink(archivePath, tempPath);
+            } catch (IOException | UnsupportedOperationException e) {
+                // e.g. archive on a different filesystem
+                Files.copy(tempPath, archivePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        try {
+            Files.move(tempPath, finalPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, finalPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
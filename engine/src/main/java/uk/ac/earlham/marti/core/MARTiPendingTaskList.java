@@ -4,7 +4,8 @@
  */
 package uk.ac.earlham.marti.core;
 
-import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Maintains list of pending analysis tasks
@@ -16,7 +17,7 @@ public class MARTiPendingTaskList {
     private int tasksToProcess = 0;
     private int tasksProcessed = 0;
     private long lastFileTime = System.nanoTime();
-    private LinkedList<MARTiAnalysisTask> pendingTasks = new LinkedList<MARTiAnalysisTask>();
+    private LinkedBlockingQueue<MARTiAnalysisTask> pendingTasks = new LinkedBlockingQueue<MARTiAnalysisTask>();
 
     public MARTiPendingTaskList(MARTiEngineOptions o) {
         options = o;
@@ -30,14 +31,31 @@ public class MARTiPendingTaskList {
         options.getLog().println("MARTiPendingTaskList list +1, tasks to process = "+tasksToProcess);        
     }    
 
-    public synchronized MARTiAnalysisTask getPendingTask() {
-        if (pendingTasks.size() > 0) {
-            tasksProcessed++;
-            options.getLog().println("MARTiPendingTaskList list -1, files processed = "+tasksProcessed);        
-            return pendingTasks.removeFirst();
-        } else {
+    /**
+    * Wait for the next task. Not synchronized, so that tasks can be added while waiting.
+    *
+    * @param  waitMs  maximum time to wait, in ms
+    * @return next task, or null if none arrived in time
+    */
+    public MARTiAnalysisTask getPendingTask(long waitMs) {
+        MARTiAnalysisTask task = null;
+
+        try {
+            task = pendingTasks.poll(waitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
             return null;
         }
+
+        if (task != null) {
+            taskTaken();
+        }
+
+        return task;
+    }
+
+    private synchronized void taskTaken() {
+        tasksProcessed++;
+        options.getLog().println("MARTiPendingTaskList list -1, files processed = "+tasksProcessed);
     }
 
     public synchronized int getPendingTaskCount() {
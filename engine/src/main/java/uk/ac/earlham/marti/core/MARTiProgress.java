@@ -23,6 +23,8 @@ import java.util.Set;
  * @author Richard M. Leggett
  */
 public class MARTiProgress {
+    // Minimum time between writes of progress.info, in ms
+    private final static long WRITE_INTERVAL = 1000;
     private MARTiEngineOptions options;
     private int rawFileCount = 0;
     private int chunkCount = 0;
@@ -38,6 +40,8 @@ public class MARTiProgress {
     private Hashtable<String, Boolean> rawSequenceFiles = new Hashtable<String, Boolean>();    
     private Hashtable<String, GregorianCalendar> completedIdentifiers = new Hashtable<String, GregorianCalendar>();
     private Hashtable<String, GregorianCalendar> startedIdentifiers = new Hashtable<String, GregorianCalendar>();
+    private boolean progressChanged = false;
+    private long lastWriteTime = 0;
         
     public MARTiProgress(MARTiEngineOptions o) {
         options = o;
@@ -58,7 +62,7 @@ public class MARTiProgress {
             options.getLog().printlnLogAndScreen("Warning: not seen file  being marked as completed - "+filename);            
         }
         rawSequenceFiles.put(filename, true);        
-        writeProgressFile();
+        progressChanged();
     }
     
     public synchronized void incrementChunkCount() {
@@ -159,6 +163,9 @@ public class MARTiProgress {
     }
     
     public synchronized void writeProgressFile() {
+        progressChanged = false;
+        lastWriteTime = System.nanoTime();
+        
         try {
             options.getLog().println("Writing progress file");
             PrintWriter pw = new PrintWriter(options.getSampleDirectory() + File.separator + "progress.info");
@@ -239,7 +246,29 @@ public class MARTiProgress {
             completedIdentifiers.put(identifier, new GregorianCalendar());
         }            
         
-        writeProgressFile();
+        progressChanged();
+    }
+    
+    /**
+    * Write progress.info, unless it was written less than WRITE_INTERVAL ago,
+    * in which case the change is left for writeProgressFileIfChanged.
+    */
+    private void progressChanged() {
+        progressChanged = true;
+        
+        if ((System.nanoTime() - lastWriteTime) / 1000000 >= WRITE_INTERVAL) {
+            writeProgressFile();
+        }
+    }
+    
+    /**
+    * Write progress.info if anything has been recorded since it was last written.
+    * Called by the main loop and at the end of the run.
+    */
+    public synchronized void writeProgressFileIfChanged() {
+        if (progressChanged) {
+            writeProgressFile();
+        }
     }
     
     public synchronized boolean checkCompleted(String identifier) {
@@ -8,26 +8,14 @@ import java.io.BufferedReader;
 import uk.ac.earlham.lcaparse.SimplifiedRank;
 import uk.ac.earlham.marti.amr.AMRResults;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.io.Reader;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.Map;
-import java.util.Set;
-import java.util.zip.GZIPInputStream;
 import uk.ac.earlham.lcaparse.LCAFileParser;
-import uk.ac.earlham.lcaparse.LCAHitSet;
 import uk.ac.earlham.lcaparse.Taxonomy;
 import uk.ac.earlham.lcaparse.TaxonomyNode;
 import javax.json.*;
@@ -50,6 +38,7 @@ public class MARTiResults {
     private Hashtable<Integer, ArrayList<String>> fileOrder = new Hashtable<Integer, ArrayList<String>>();
     private Hashtable<Integer, TaxaAccumulation> taxaAccumulation = new Hashtable<Integer, TaxaAccumulation>();
     private SimplifiedRank mr = new SimplifiedRank();
+    private Object[] barcodeLocks = new Object[MARTiEngineOptions.MAX_BARCODES];
     
     /**
     * Class constructor.
@@ -58,10 +47,14 @@ public class MARTiResults {
     */
     public MARTiResults(MARTiEngineOptions o) {
         options = o;
+        for (int i=0; i<barcodeLocks.length; i++) {
+            barcodeLocks[i] = new Object();
+        }
     }
 
     /**
-    * Add a parsed BLAST chunk to the results list. 
+    * Add a parsed BLAST chunk to the results list. Reads have already been
+    * counted against the taxonomy by LCAFileParser.classifyFile.
     *
     * @param  bc   barcode index (or 0 if not barcoded)
     * @param  pfp  LCAFileParser object of the parsed file
@@ -83,15 +76,6 @@ public class MARTiResults {
         
         //sample.addFile(pfp);    
         
-        Hashtable<String, LCAHitSet> hitsByQuery = pfp.getHitsByQuery();
-        Set<String> keys = hitsByQuery.keySet();        
-        for (String queryName : keys) {
-            LCAHitSet hs = hitsByQuery.get(queryName);      
-            long taxon = hs.getAssignedTaxon();
-            long readLength = options.getReadStatistics().getReadLength(bc, queryName, true);
-            taxonomy.countRead(bc, taxon, readLength);            
-        }
-        
         if (chunkCount.containsKey(bc)) {
             fileCount = chunkCount.get(bc);
         }        
@@ -115,12 +99,13 @@ public class MARTiResults {
     *
     * @param  bc    barcode index (or 0 if not barcoded)
     * @param  n     the node to output
-    * @param  jf    the JSON file we're writing to
-    * @param  comma true if there should be a comma after this element
+    * @param  g     JSON generator, with the node's object already started
+    * @param  pwAssignments  assignments file, or null
+    * @param  useLCA  true to output min support adjusted counts
     */
-    private void outputNode(int bc, TaxonomyNode n, JsonObjectBuilder treeBuilder, PrintWriter pwAssignments, boolean useLCA) {                
+    private void outputNode(int bc, TaxonomyNode n, JsonGenerator g, PrintWriter pwAssignments, boolean useLCA) {                
         if (n != null) {
-            ArrayList<TaxonomyNode> children = n.getChildren();
+            ArrayList<TaxonomyNode> children = n.getCountedChildren(bc);
             String ncbiRankString = n.getRankString();
             int summedCount;
             int assignedCount;
@@ -148,22 +133,21 @@ public class MARTiResults {
                      
             rank = mr.getRankFromString(ncbiRankString);
                         
-            treeBuilder.add("name", taxonomy.getNameFromTaxonId(n.getId()));
-            treeBuilder.add("rank", rank);
-            treeBuilder.add("ncbiRank", ncbiRankString);
-            treeBuilder.add("ncbiID", n.getId());
-            treeBuilder.add("value", assignedCount);
-            treeBuilder.add("summedValue", summedCount);
-            treeBuilder.add("yield", yield);
-            treeBuilder.add("summedYield", summedYield);
+            g.write("name", taxonomy.getNameFromTaxonId(n.getId()));
+            g.write("rank", rank);
+            g.write("ncbiRank", ncbiRankString);
+            g.write("ncbiID", n.getId());
+            g.write("value", assignedCount);
+            g.write("summedValue", summedCount);
+            g.write("yield", yield);
+            g.write("summedYield", summedYield);
             
-            TaxonomyNodeData tnd = taxonomy.getNodeData(n.getId());
+            TaxonomyNodeData tnd = taxonomy.getNodeData(bc, n.getId());
             if (tnd != null) {
                 String meanStr = String.format("%.1f", tnd.getMeanMean());
                 String maxStr = String.format("%.1f", tnd.getMeanMax());
-                tnd.calculateMeans();
-                treeBuilder.add("meanIdentity", meanStr);
-                treeBuilder.add("meanMaxIdentity", maxStr);               
+                g.write("meanIdentity", meanStr);
+                g.write("meanMaxIdentity", maxStr);               
             }
             
             if(pwAssignments != null) {
@@ -172,7 +156,7 @@ public class MARTiResults {
             }
             
             // Now output children as array
-            JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+            g.writeStartArray("children");
             for (int i=0; i<children.size(); i++) {
                 TaxonomyNode c = children.get(i);
                 int childSummarisedCount;
@@ -184,32 +168,32 @@ public class MARTiResults {
                 }
                 
                 if (childSummarisedCount > 0) {
-                    JsonObjectBuilder childBuilder = Json.createObjectBuilder();
-                    outputNode(bc, c, childBuilder, pwAssignments, useLCA);
-                    arrayBuilder.add(childBuilder);                  
+                    g.writeStartObject();
+                    outputNode(bc, c, g, pwAssignments, useLCA);
+                    g.writeEnd();
                 }                
                 
             }        
 
             // Add unclassified to root node
             if (n.getId() == 1) {
-                JsonObjectBuilder unclassifiedBuilder = Json.createObjectBuilder();
-                JsonArrayBuilder unclassifiedArrayBuilder = Json.createArrayBuilder();
                 int unclassifiedCount = options.getSampleMetaData(bc).getReadsUnclassified();
                 long unclassifiedYield = options.getSampleMetaData(bc).getYieldUnclassified();
-                unclassifiedBuilder.add("name", "unclassified");
-                unclassifiedBuilder.add("rank", 0);
-                unclassifiedBuilder.add("ncbiRank", "no rank");
-                unclassifiedBuilder.add("ncbiID", 0);
-                unclassifiedBuilder.add("value", unclassifiedCount);
-                unclassifiedBuilder.add("summedValue", unclassifiedCount);
-                unclassifiedBuilder.add("yield", unclassifiedYield);
-                unclassifiedBuilder.add("summedYield", unclassifiedYield);
-                unclassifiedBuilder.add("children", unclassifiedArrayBuilder);
-                arrayBuilder.add(unclassifiedBuilder);                  
+                g.writeStartObject();
+                g.write("name", "unclassified");
+                g.write("rank", 0);
+                g.write("ncbiRank", "no rank");
+                g.write("ncbiID", 0);
+                g.write("value", unclassifiedCount);
+                g.write("summedValue", unclassifiedCount);
+                g.write("yield", unclassifiedYield);
+                g.write("summedYield", unclassifiedYield);
+                g.writeStartArray("children");
+                g.writeEnd();
+                g.writeEnd();
             }                                    
 
-            treeBuilder.add("children", arrayBuilder);
+            g.writeEnd();
         } else {
             System.out.println("Error: null node passed to outputNode!");
         }
@@ -220,7 +204,14 @@ public class MARTiResults {
     *
     * @param  bc    barcode index (or 0 if not barcoded)
     */
-    public synchronized void writeTree(int bc, double minSupport) {
+    public void writeTree(int bc, double minSupport) {
+        // Trees for different barcodes can be written by different classifier threads at once
+        synchronized (barcodeLocks[bc]) {
+            writeTreeForBarcode(bc, minSupport);
+        }
+    }
+    
+    private void writeTreeForBarcode(int bc, double minSupport) {
         int fileCount = 0;
         String jsonFilename;
         String jsonFilenameFinal;
@@ -267,80 +258,54 @@ public class MARTiResults {
             System.out.println("Error: couldn't find file order for barcode "+bc);
         }
 
-        // Create tree object
-        JsonObjectBuilder treeBuilder = Json.createObjectBuilder();
-        
         // Adjust for min support
         long startTime = System.nanoTime();
         // minSuppport of 100 is special case to output the non-LCA counts
+        // All min support levels are calculated together, the first time one is needed after new reads
         if (minSupport < 100) {
-            taxonomy.adjustForMinSupport(bc, minSupport, true);
+            taxonomy.adjustForMinSupport(bc);
+            taxonomy.selectMinSupport(bc, minSupport, true);
         }
         long timeDiff = (System.nanoTime() - startTime) / 1000000;
         options.getLog().println("Timing: Min support refactoring for barcode "+bc+" minSupport "+minSupport+" completed in "+timeDiff+" ms");
 
-        
         TaxonomyNode n = taxonomy.getNodeFromTaxonId(1L);
+        
+        // Stream the JSON straight to file - to the GUI directory, with the per-chunk copy linked into lcaparse
+        try {
+            MARTiJSONWriter jw = new MARTiJSONWriter(options, jsonFilenameFinal, jsonFilename);
+            JsonGenerator g = jw.getGenerator();
+            g.writeStartObject();
 
-        // minSuppport of 100 is special case to output the non-LCA counts
-        if (minSupport == 100) {
-            outputNode(bc, n, treeBuilder, pwAssignments, false);
-        } else {
-            outputNode(bc, n, treeBuilder, pwAssignments, true);
-        }
-                     
-        JsonObjectBuilder treeYieldBuilder = Json.createObjectBuilder();
-        // Adjust for min support
-        startTime = System.nanoTime();
-        // minSuppport of 100 is special case to output the non-LCA counts
-        if (minSupport < 100) {
-            taxonomy.adjustForMinSupport(bc, minSupport, false);
-        }
-        timeDiff = (System.nanoTime() - startTime) / 1000000;
-        options.getLog().println("Timing: Min support refactoring for barcode "+bc+" minSupport "+minSupport+" completed in "+timeDiff+" ms");
+            // Meta data
+            g.writeStartObject("meta");
+            g.write("martiVersion", MARTiEngine.VERSION_STRING);
+            LocalDateTime date = LocalDateTime.now();
+            String dateTimeString = date.truncatedTo(ChronoUnit.SECONDS).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME).toString();
+            g.write("fileWritten", dateTimeString);
+            g.writeStartObject("blastFiles");
+            ArrayList<String> files = fileOrder.get(bc);
+            for (int i=0; i<files.size(); i++) {
+                g.write(Integer.toString(i), files.get(i));
+            }
+            g.writeEnd();
+            g.writeEnd();
 
-        // minSuppport of 100 is special case to output the non-LCA counts
-        if (minSupport == 100) {
-            outputNode(bc, n, treeYieldBuilder, null, false);
-        } else {
-            outputNode(bc, n, treeYieldBuilder, null, true);
-        }
-        
-        
-        // Build meta data
-        JsonObjectBuilder metaBuilder = Json.createObjectBuilder();
-        metaBuilder.add("martiVersion", MARTiEngine.VERSION_STRING);
-        LocalDateTime date = LocalDateTime.now();
-        String dateTimeString = date.truncatedTo(ChronoUnit.SECONDS).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME).toString();
-        metaBuilder.add("fileWritten", dateTimeString);
-                        
-        JsonObjectBuilder fileBuilder = Json.createObjectBuilder();
-        ArrayList<String> files = fileOrder.get(bc);
-        for (int i=0; i<files.size(); i++) {
-            fileBuilder.add(Integer.toString(i), files.get(i));
-        }
-        metaBuilder.add("blastFiles", fileBuilder);
-        
-        // Build top-level object
-        JsonObjectBuilder objectBuilder = Json.createObjectBuilder();
-        objectBuilder.add("meta", metaBuilder);
-        objectBuilder.add("tree", treeBuilder);
-        objectBuilder.add("treeYield", treeYieldBuilder);
-        JsonObject jsonObject = objectBuilder.build();        
+            // minSuppport of 100 is special case to output the non-LCA counts
+            g.writeStartObject("tree");
+            outputNode(bc, n, g, pwAssignments, minSupport != 100);
+            g.writeEnd();
 
-        // Print it with pretty printing (pacing etc.)
-        Map<String, Boolean> config = new HashMap<>();
-        config.put(JsonGenerator.PRETTY_PRINTING, true);
-        JsonWriterFactory writerFactory = Json.createWriterFactory(config);
-        
-        try {
-            Writer writer = new StringWriter();
-            writerFactory.createWriter(writer).write(jsonObject);
-            String jsonString = writer.toString();
-            
-            PrintWriter pw = new PrintWriter(new FileWriter(jsonFilename));
-            pw.write(jsonString);
-            pw.close();  
+            if (minSupport < 100) {
+                taxonomy.selectMinSupport(bc, minSupport, false);
+            }
+
+            g.writeStartObject("treeYield");
+            outputNode(bc, n, g, null, minSupport != 100);
+            g.writeEnd();
+
+            g.writeEnd();
+            jw.close();
             pwAssignments.close();
         } catch (Exception e) {
             e.printStackTrace();
@@ -348,7 +313,6 @@ public class MARTiResults {
         }        
 
         options.getLog().println("Finished MARTi tree JSON");
-        options.copyFile(jsonFilename, jsonFilenameFinal);
         //options.copyFile(assignmentsFilename,  assignmentsFilenameFinal); // No longer needed by GUI      
     }    
     
@@ -406,21 +370,13 @@ public class MARTiResults {
         // Read the Centrifuge file - no need for some intermediate class to 
         // hold all of this data when all we do it write it back out.
         BufferedReader br;
-        InputStream fileStream = null;
-        InputStream gzipStream = null;
-        Reader decoder = null;
         String filename = cci.getClassificationFile();
         try {
             File f = new File(filename);
-            if(f.exists()){
-                br = new BufferedReader(new FileReader(filename));
-            } else {
+            if(!f.exists()){
                 filename = filename + ".gz";
-                fileStream = new FileInputStream(filename);
-                gzipStream = new GZIPInputStream(fileStream);
-                decoder = new InputStreamReader(gzipStream, "US-ASCII");
-                br = new BufferedReader(decoder);    
             }
+            br = CompressedFile.openReader(filename);
             
             //ignore header line
             int readsClassified = 0;
@@ -437,11 +393,6 @@ public class MARTiResults {
             }
             
             br.close();
-            if(fileStream != null) {
-                decoder.close();
-                gzipStream.close();
-                fileStream.close();
-            }
             
             md.addToReadsClassified(readsClassified, totalBpClassified);
             
@@ -481,21 +432,13 @@ public class MARTiResults {
         // Read the Kraken2 file - no need for some intermediate class to 
         // hold all of this data when all we do is write it back out.
         BufferedReader br;
-        InputStream fileStream = null;
-        InputStream gzipStream = null;
-        Reader decoder = null;
         String filename = k2ci.getClassificationFile();
         try {
             File f = new File(filename);
-            if(f.exists()){
-                br = new BufferedReader(new FileReader(filename));
-            } else {
+            if(!f.exists()){
                 filename = filename + ".gz";
-                fileStream = new FileInputStream(filename);
-                gzipStream = new GZIPInputStream(fileStream);
-                decoder = new InputStreamReader(gzipStream, "US-ASCII");
-                br = new BufferedReader(decoder);    
             }
+            br = CompressedFile.openReader(filename);
             
             //ignore header line
             int readsClassified = 0;
@@ -513,11 +456,6 @@ public class MARTiResults {
             }
             
             br.close();
-            if(fileStream != null) {
-                decoder.close();
-                gzipStream.close();
-                fileStream.close();
-            }
             
             md.addToReadsClassified(readsClassified, totalBpClassified);
             
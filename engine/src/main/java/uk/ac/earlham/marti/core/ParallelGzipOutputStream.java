@@ -0,0 +1,141 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip output stream that compresses blocks in parallel, as pigz does.
+ *
+ * Each block is compressed as a complete gzip member and the members are
+ * written in order, giving a multi-member gzip file that gzip, zcat and
+ * GZIPInputStream all read as one stream.
+ *
+ * @author Richard M. Leggett
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    private final static int BLOCK_SIZE = 1 << 20;
+    private OutputStream outputStream;
+    private ExecutorService executor;
+    private int maxPending;
+    private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    private ConcurrentLinkedQueue<byte[]> freeBlocks = new ConcurrentLinkedQueue<byte[]>();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+    private int membersWritten = 0;
+    private boolean finished = false;
+
+    /**
+    * @param  os       stream to write compressed data to
+    * @param  ex       executor to compress blocks on
+    * @param  threads  number of threads in the executor
+    */
+    public ParallelGzipOutputStream(OutputStream os, ExecutorService ex, int threads) {
+        outputStream = os;
+        executor = ex;
+        maxPending = threads * 2;
+    }
+
+    private byte[] compressBlock(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(length / 2 + 64);
+        GZIPOutputStream gzos = new GZIPOutputStream(bos, 1 << 16);
+        gzos.write(data, 0, length);
+        gzos.close();
+        freeBlocks.add(data);
+        return bos.toByteArray();
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] data = block;
+        final int length = blockLength;
+
+        pending.add(executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return compressBlock(data, length);
+            }
+        }));
+
+        block = freeBlocks.poll();
+        if (block == null) {
+            block = new byte[BLOCK_SIZE];
+        }
+        blockLength = 0;
+
+        while (pending.size() >= maxPending) {
+            writeNextMember();
+        }
+    }
+
+    private void writeNextMember() throws IOException {
+        try {
+            outputStream.write(pending.removeFirst().get());
+            membersWritten++;
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted compressing block", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error compressing block", e.getCause());
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockLength++] = (byte)b;
+        if (blockLength == BLOCK_SIZE) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, offset, block, blockLength, n);
+            blockLength += n;
+            offset += n;
+            length -= n;
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+    * Compress and write anything remaining. An empty stream is still written
+    * as one (empty) gzip member, so the file is valid gzip.
+    */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+
+        if ((blockLength > 0) || ((membersWritten == 0) && (pending.size() == 0))) {
+            submitBlock();
+        }
+
+        while (pending.size() > 0) {
+            writeNextMember();
+        }
+
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            outputStream.close();
+        }
+    }
+}
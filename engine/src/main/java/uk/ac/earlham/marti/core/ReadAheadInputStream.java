@@ -0,0 +1,169 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Input stream that reads (and so, for a GZIPInputStream, decompresses) the
+ * stream it wraps on a separate thread, a few large blocks ahead of the reader.
+ *
+ * @author Richard M. Leggett
+ */
+public class ReadAheadInputStream extends InputStream {
+    private final static int BLOCK_SIZE = 1 << 18;
+    private final static int BLOCKS = 4;
+    private InputStream inputStream;
+    private ArrayBlockingQueue<Block> freeBlocks = new ArrayBlockingQueue<Block>(BLOCKS);
+    private ArrayBlockingQueue<Block> filledBlocks = new ArrayBlockingQueue<Block>(BLOCKS);
+    private Thread readThread;
+    private Block currentBlock = null;
+    private int blockPosition = 0;
+    private boolean endOfStream = false;
+    private volatile boolean closed = false;
+
+    private static class Block {
+        private byte[] data = new byte[BLOCK_SIZE];
+        private int length = 0;
+        private IOException error = null;
+    }
+
+    public ReadAheadInputStream(InputStream is) {
+        inputStream = is;
+
+        for (int i=0; i<BLOCKS; i++) {
+            freeBlocks.add(new Block());
+        }
+
+        readThread = new Thread(new Runnable() {
+            public void run() {
+                readBlocks();
+            }
+        }, "ReadAhead");
+        readThread.setDaemon(true);
+        readThread.start();
+    }
+
+    private void readBlocks() {
+        try {
+            boolean gotEnd = false;
+
+            while (!gotEnd && !closed) {
+                Block b = freeBlocks.take();
+                b.length = 0;
+
+                try {
+                    while (b.length < BLOCK_SIZE) {
+                        int n = inputStream.read(b.data, b.length, BLOCK_SIZE - b.length);
+                        if (n < 0) {
+                            gotEnd = true;
+                            break;
+                        }
+                        b.length += n;
+                    }
+                } catch (IOException e) {
+                    b.error = e;
+                    gotEnd = true;
+                }
+
+                filledBlocks.put(b);
+
+                // An empty block marks the end of the stream
+                if (gotEnd && (b.length > 0) && (b.error == null)) {
+                    Block end = freeBlocks.take();
+                    end.length = 0;
+                    filledBlocks.put(end);
+                }
+            }
+        } catch (InterruptedException e) {
+            // close() called while waiting
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                System.out.println("Error closing stream");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (endOfStream) {
+            return false;
+        }
+
+        if (currentBlock != null) {
+            freeBlocks.add(currentBlock);
+            currentBlock = null;
+        }
+
+        try {
+            currentBlock = filledBlocks.take();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for data", e);
+        }
+        blockPosition = 0;
+
+        if (currentBlock.error != null) {
+            endOfStream = true;
+            throw currentBlock.error;
+        }
+
+        if (currentBlock.length == 0) {
+            endOfStream = true;
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ((currentBlock == null) || (blockPosition >= currentBlock.length)) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+
+        return currentBlock.data[blockPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        if ((currentBlock == null) || (blockPosition >= currentBlock.length)) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+
+        int n = Math.min(length, currentBlock.length - blockPosition);
+        System.arraycopy(currentBlock.data, blockPosition, b, offset, n);
+        blockPosition += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        if ((currentBlock == null) || endOfStream) {
+            return 0;
+        }
+        return currentBlock.length - blockPosition;
+    }
+
+    /**
+    * Stop the read thread, which closes the underlying stream.
+    */
+    @Override
+    public void close() {
+        closed = true;
+        readThread.interrupt();
+    }
+}
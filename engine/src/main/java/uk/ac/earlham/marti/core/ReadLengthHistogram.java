@@ -0,0 +1,81 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.core;
+
+/**
+ * Streaming read length histogram, from which N50 is found without keeping or
+ * sorting the lengths.
+ *
+ * Lengths below 1024 each have their own bin. Above that, bins are 1/256th of
+ * a power of two wide, so a length is placed to within 0.4%. Each bin keeps
+ * the number of reads and total bases in it, and N50 is given as the mean
+ * length of the bin it falls in.
+ *
+ * @author Richard M. Leggett
+ */
+public class ReadLengthHistogram {
+    private final static int EXACT_BINS = 1024;
+    private final static int EXACT_BITS = 10;
+    private final static int SUB_BITS = 8;
+    private final static int BINS = EXACT_BINS + ((31 - EXACT_BITS) << SUB_BITS);
+    private long[] counts = new long[BINS];
+    private long[] bases = new long[BINS];
+    private long totalCount = 0;
+    private long totalBases = 0;
+    private int maxLength = 0;
+
+    private static int getBin(int length) {
+        if (length < EXACT_BINS) {
+            return length;
+        }
+
+        int topBit = 31 - Integer.numberOfLeadingZeros(length);
+        int subBin = (length >>> (topBit - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+
+        return EXACT_BINS + ((topBit - EXACT_BITS) << SUB_BITS) + subBin;
+    }
+
+    public void addLength(int length) {
+        int bin = getBin(Math.max(length, 0));
+
+        counts[bin]++;
+        bases[bin] += length;
+        totalCount++;
+        totalBases += length;
+        if (length > maxLength) {
+            maxLength = length;
+        }
+    }
+
+    /**
+    * @return N50, exact below 1024 bases and to bin precision above, or -1 if empty
+    */
+    public int getN50() {
+        long cumulative = 0;
+
+        for (int i=BINS-1; i>=0; i--) {
+            if (counts[i] > 0) {
+                cumulative += bases[i];
+                if (cumulative >= totalBases / 2) {
+                    return (int)(bases[i] / counts[i]);
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public long getReadCount() {
+        return totalCount;
+    }
+
+    public long getTotalBases() {
+        return totalBases;
+    }
+}
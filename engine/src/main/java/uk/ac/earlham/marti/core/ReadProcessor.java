@@ -28,6 +28,8 @@ import java.util.regex.Pattern;
  * @author Richard M. Leggett
  */
 public class ReadProcessor {
+    // Longest the main loop waits between passes if nothing wakes it, in ms
+    private final static int MAIN_LOOP_INTERVAL = 1000;
     private MARTiEngineOptions options;
     private ThreadPoolExecutor executor;
     private long lastCompleted = -1;
@@ -35,7 +37,7 @@ public class ReadProcessor {
     private FASTAQPairPendingList pfl = null;
     private MARTiPendingTaskList ptl = null;
     private MARTiProgress progressReport;
-    private ConcurrentLinkedQueue<String> fileCompressionQueue = null;
+    private LinkedBlockingQueue<String> fileCompressionQueue = null;
 
     /**
      * Constructor
@@ -47,7 +49,7 @@ public class ReadProcessor {
         fw = new FileWatcher(options, pr);
         pfl = new FASTAQPairPendingList(options);
         ptl = new MARTiPendingTaskList(options);
-        fileCompressionQueue = new ConcurrentLinkedQueue<String>();
+        fileCompressionQueue = new LinkedBlockingQueue<String>();
 
         progressReport = pr;
 
@@ -335,7 +337,11 @@ public class ReadProcessor {
                 kraken2Classifier.checkForFilesToClassify();
             }
 
-            Thread.sleep(1000);            
+            // Coalesced writes of anything that changed during this pass
+            progressReport.writeProgressFileIfChanged();
+            options.writeChangedSampleJSON();
+
+            options.getMainLoopSignal().await(MAIN_LOOP_INTERVAL);
         }           
         
         System.out.println("Stopping read filter thread...");
@@ -344,6 +350,7 @@ public class ReadProcessor {
             System.out.println("Stopping BLAST threads...");
             blastProcess.exitThread();
             analysisProcess.exitThread();
+            rc.exitThreads();
         }
         if(options.isCentrifugingReads()) {
             System.out.println("Stopping centrifuge thread...");
@@ -371,6 +378,8 @@ public class ReadProcessor {
             System.out.println("Stopping compression thread...");
             fileCompressor.exitThread();       
         }
+        
+        progressReport.writeProgressFileIfChanged();
                                 
         // That's all - wait for all threads to finish
         System.out.println("Waiting for threads to finish...");
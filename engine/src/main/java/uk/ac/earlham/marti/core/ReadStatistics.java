@@ -5,101 +5,90 @@
 package uk.ac.earlham.marti.core;
 
 import java.util.Hashtable;
-import java.util.Arrays;
 
 /**
+ * Read length statistics for each barcode, and the read lengths of each
+ * filtered chunk until it has been classified.
  *
  * @author martins
  */
 public class ReadStatistics {
-    
+
     private MARTiEngineOptions options;
-    private Hashtable<Integer,Hashtable<String,Integer>> failLengthsByBarcode = new Hashtable<Integer, Hashtable<String,Integer>>();
-    private Hashtable<Integer,Hashtable<String,Integer>> passLengthsByBarcode = new Hashtable<Integer, Hashtable<String,Integer>>();
-    
-    private Hashtable<Integer,Integer> maxPassLengthByBarcode = new Hashtable<Integer,Integer>();
-    private Hashtable<Integer,Integer> maxFailLengthByBarcode = new Hashtable<Integer,Integer>();
-    
+    private Hashtable<Integer,ReadLengthHistogram> failLengthsByBarcode = new Hashtable<Integer,ReadLengthHistogram>();
+    private Hashtable<Integer,ReadLengthHistogram> passLengthsByBarcode = new Hashtable<Integer,ReadLengthHistogram>();
+    private Hashtable<String,ChunkReadLengths> lengthsByChunk = new Hashtable<String,ChunkReadLengths>();
+
     public ReadStatistics(MARTiEngineOptions o) {
         options = o;
     }
-    
-    public void addReadLength(int bc, String readId, int length, boolean pass) {
-        if(pass) {
-            if(!passLengthsByBarcode.containsKey(bc)) {
-                passLengthsByBarcode.put(bc, new Hashtable<String,Integer>());
-                maxPassLengthByBarcode.put(bc, 0);
-            }
-            Hashtable<String,Integer> hashtable = passLengthsByBarcode.get(bc);
-            if(hashtable.containsKey(readId)) {
-                options.getLog().printlnLogAndScreen("Warning: Duplicate pass read/sequence ID: " + readId);
-                options.getLog().printlnLogAndScreen("Results based on read length may not be accurate.");
-            }
-            hashtable.put(readId, length);
-            int max = maxPassLengthByBarcode.get(bc);
-            if(length > max) {
-                maxPassLengthByBarcode.put(bc, length);
-            }
-        } else {
-            if(!failLengthsByBarcode.containsKey(bc)) {
-                failLengthsByBarcode.put(bc, new Hashtable<String,Integer>());
-                maxFailLengthByBarcode.put(bc, 0);
-            }
-            Hashtable<String,Integer> hashtable = failLengthsByBarcode.get(bc);
-            if(hashtable.containsKey(readId)) {
-                options.getLog().printlnLogAndScreen("Warning: Duplicate fail read/sequence ID: " + readId);
-                options.getLog().printlnLogAndScreen("Results based on read length may not be accurate.");
-            }
-            hashtable.put(readId, length);
-            int max = maxFailLengthByBarcode.get(bc);
-            if(length > max) {
-                maxFailLengthByBarcode.put(bc, length);
-            }
+
+    private ReadLengthHistogram getHistogram(int bc, boolean pass) {
+        Hashtable<Integer,ReadLengthHistogram> histograms = pass ? passLengthsByBarcode:failLengthsByBarcode;
+
+        if(!histograms.containsKey(bc)) {
+            histograms.put(bc, new ReadLengthHistogram());
         }
-        
+
+        return histograms.get(bc);
     }
-       
-    public int getReadLength(int bc, String queryid, boolean pass) {
-        if(pass) {
-            return passLengthsByBarcode.get(bc).get(queryid);
-        } else {
-            return failLengthsByBarcode.get(bc).get(queryid);
-        }
+
+    public synchronized void addReadLength(int bc, int length, boolean pass) {
+        getHistogram(bc, pass).addLength(length);
     }
-    
-    public int getN50(int bc, boolean pass) {
-        if(pass) {
-            return getN50(passLengthsByBarcode.get(bc));
-        } else {
-            return getN50(failLengthsByBarcode.get(bc));
-        }
+
+    /**
+    * Store the read lengths of a filtered chunk, for when it's classified.
+    *
+    * @param  fastaPathname  FASTA chunk
+    * @param  lengths        lengths of reads in chunk
+    */
+    public synchronized void registerChunk(String fastaPathname, ChunkReadLengths lengths) {
+        lengthsByChunk.put(fastaPathname, lengths);
     }
-    
-    public int getMaxLength(int bc, boolean pass) {
-        if(pass) {
-            return maxPassLengthByBarcode.get(bc);       
-        } else {
-            return maxFailLengthByBarcode.get(bc);
+
+    /**
+    * Get the read lengths of a chunk. If the filter didn't register them,
+    * they're read from the chunk itself.
+    *
+    * @param  fastaPathname  FASTA chunk
+    * @return read lengths
+    */
+    public ChunkReadLengths getChunkReadLengths(String fastaPathname) {
+        ChunkReadLengths lengths;
+
+        synchronized(this) {
+            lengths = lengthsByChunk.get(fastaPathname);
         }
-       
-    }
-    
-    private int getN50(Hashtable<String,Integer> lengthTable) {
-        int[] lengths = new int[lengthTable.size()];
-        int i = 0;
-        int totalLength = 0;
-        for(int length : lengthTable.values()) {
-            lengths[i++] = length;
-            totalLength += length;
-        }     
-        Arrays.sort(lengths);
-        int count = 0;
-        for(int j = lengths.length - 1; j >= 0; j--) {
-            count += lengths[j];
-            if(count >= totalLength/2) {
-                return lengths[j];
+
+        if (lengths == null) {
+            options.getLog().println("Reading read lengths from " + fastaPathname);
+            try {
+                lengths = ChunkReadLengths.fromFasta(fastaPathname);
+            } catch (Exception e) {
+                System.out.println("Error reading read lengths from " + fastaPathname);
+                e.printStackTrace();
+                System.exit(1);
             }
-        }     
-        return -1;
+        }
+
+        return lengths;
+    }
+
+    /**
+    * Forget the read lengths of a chunk once it has been classified.
+    *
+    * @param  fastaPathname  FASTA chunk
+    */
+    public synchronized void releaseChunk(String fastaPathname) {
+        lengthsByChunk.remove(fastaPathname);
+    }
+
+    public synchronized int getN50(int bc, boolean pass) {
+        return getHistogram(bc, pass).getN50();
+    }
+
+    public synchronized int getMaxLength(int bc, boolean pass) {
+        return getHistogram(bc, pass).getMaxLength();
     }
 }
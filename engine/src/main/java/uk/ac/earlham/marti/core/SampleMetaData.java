@@ -4,23 +4,12 @@
  */
 package uk.ac.earlham.marti.core;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.Reader;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.math.BigDecimal;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.FileTime;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
@@ -28,16 +17,14 @@ import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
 import javax.json.*;
 import javax.json.stream.JsonGenerator;
 import uk.ac.earlham.marti.blast.BlastProcess;
 import uk.ac.earlham.marti.centrifuge.CentrifugeProcess;
+import uk.ac.earlham.marti.filter.FastqReader;
 import uk.ac.earlham.marti.kraken2.Kraken2Process;
 
 /**
@@ -51,6 +38,8 @@ public class SampleMetaData {
     private int readsPassedFilter = 0;
     private int readsPassedFilterByChunk = 0; // Using this to check for bug in counting
     private int readsFailedFilter = 0;
+    private int readsHostDepleted = 0;
+    private int readsLowComplexity = 0;
     private int readsClassified = 0;
     private int readsWithPoorAlignments = 0;
     private int readsAnalysed = 0;
@@ -66,6 +55,7 @@ public class SampleMetaData {
     private ArrayList<Integer> chunkAnalysedTimings = new ArrayList<Integer>();
     private String sequencingTimeString = "";
     private String analysingTimeString = "";
+    private boolean sampleJSONChanged = false;
     
     public SampleMetaData(MARTiEngineOptions o, int bc) {
         options = o;
@@ -90,7 +80,7 @@ public class SampleMetaData {
         return lastChunkAnalysedTime;
     }
             
-    public synchronized void registerNewInputRead(int bp, double meanQ, boolean passed) { 
+    private void countInputRead(int bp, double meanQ) {
         inputReadCount++;
         totalInputBp += bp;
         totalQuality += meanQ;
@@ -100,6 +90,10 @@ public class SampleMetaData {
             System.out.println("Warning: unlikely MeanQ of "+meanQ+" ("+qualityInt+") rounded fown to 50");
         }
         countByQuality[qualityInt]++;
+    }
+            
+    public synchronized void registerNewInputRead(int bp, double meanQ, boolean passed) { 
+        countInputRead(bp, meanQ);
         
         if (passed) {
             readsPassedFilter++;
@@ -108,6 +102,24 @@ public class SampleMetaData {
         }
     }  
     
+    /**
+    * Count a read that passed the quality filter, but was removed by the
+    * ReadDepleter rather than written to a chunk.
+    *
+    * @param  bp     read length
+    * @param  meanQ  mean read quality
+    * @param  host   true if a host read, false if low complexity
+    */
+    public synchronized void registerDepletedRead(int bp, double meanQ, boolean host) {
+        countInputRead(bp, meanQ);
+        
+        if (host) {
+            readsHostDepleted++;
+        } else {
+            readsLowComplexity++;
+        }
+    }
+    
     public synchronized void registerFilteredFastaChunk(String fastaFilename, int count, long yield) {
         options.getLog().println("Registering filtered chunk "+fastaFilename + " with "+count+" reads");
         readsPassedFilterByChunk += count;
@@ -163,7 +175,22 @@ public class SampleMetaData {
         return bpAnalysed - totalClassifiedBp;
     }
     
+    /**
+    * Note that sample.json is out of date. It is rewritten by the main loop, so
+    * several chunks finishing close together only cause one write.
+    */
+    public synchronized void requestSampleJSONWrite() {
+        sampleJSONChanged = true;
+    }
+    
+    public synchronized void writeSampleJSONIfChanged() {
+        if (sampleJSONChanged) {
+            writeSampleJSON(false);
+        }
+    }
+    
     public synchronized void writeSampleJSON(boolean martiComplete) {
+        sampleJSONChanged = false;
         options.getLog().printlnLogAndScreen("Writing sample.json for barcode "+barcode);
         
         String filename = options.getSampleDirectory() + File.separator + "sample_bc"+barcode+".json";
@@ -250,6 +277,8 @@ public class SampleMetaData {
         sampleObjectBuilder.add("readsPassBasecall", inputReadCount);
         sampleObjectBuilder.add("readsFailedFilter", readsFailedFilter);
         sampleObjectBuilder.add("readsPassedFilter", readsPassedFilter);
+        sampleObjectBuilder.add("readsHostDepleted", readsHostDepleted);
+        sampleObjectBuilder.add("readsLowComplexity", readsLowComplexity);
         sampleObjectBuilder.add("readsWithClassification", readsClassified);
         sampleObjectBuilder.add("readsUnclassified", getReadsUnclassified());
         sampleObjectBuilder.add("classifiedYield", totalClassifiedBp);
@@ -262,90 +291,43 @@ public class SampleMetaData {
 
         //options.getLog().println("readsPassedFilter1 = "+readsPassedFilter+" ReadsPassedFilter2 = "+readsPassedFilterByChunk);
         
-        // Build top-level object
-        JsonObjectBuilder objectBuilder = Json.createObjectBuilder();
-        objectBuilder.add("meta", metaBuilder);
-        objectBuilder.add("sample", sampleObjectBuilder);
-        JsonObject jsonObject = objectBuilder.build();        
-
-        // Print it with pretty printing (pacing etc.)
-        Map<String, Boolean> config = new HashMap<>();
-        config.put(JsonGenerator.PRETTY_PRINTING, true);
-        JsonWriterFactory writerFactory = Json.createWriterFactory(config);
-        
+        // Write top-level object - it's small, so only the tree and accumulation files are generated node by node
         try {
-            Writer writer = new StringWriter();
-            writerFactory.createWriter(writer).write(jsonObject);
-            String jsonString = writer.toString();
-            
-            PrintWriter pw = new PrintWriter(new FileWriter(filename+".tmp"));
-            pw.write(jsonString);
-            pw.close();            
-
-            Path source = Paths.get(filename + ".tmp");
-            Path dest = Paths.get(filename);
-            Files.move(source, dest, StandardCopyOption.REPLACE_EXISTING);
+            MARTiJSONWriter jw = new MARTiJSONWriter(options, filenameFinal, filename);
+            JsonGenerator g = jw.getGenerator();
+            g.writeStartObject();
+            g.write("meta", metaBuilder.build());
+            g.write("sample", sampleObjectBuilder.build());
+            g.writeEnd();
+            jw.close();
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
-        
-        options.copyFile(filename, filenameFinal);
     }
     
-    public void setDateFromSequenceFile(String fastqPathname) {    
+    public void setDateFromSequenceFile(String fastqPathname) {
+        setDateFromSequenceFile(fastqPathname, new FastqReader());
+    }
+    
+    /**
+    * Set sequencing time from the first FASTQ header, or the file's creation time.
+    *
+    * @param  fastqPathname  FASTQ file, which may be gzipped
+    * @param  reader         reader to use, so a filter thread can reuse its buffers
+    */
+    public void setDateFromSequenceFile(String fastqPathname, FastqReader reader) {    
         // look for date in fastq header line
         try {
-            String header;
-            BufferedReader br = null;
-            InputStream fileStream = null;
-            InputStream gzipStream = null;
-            Reader decoder = null;
-
-            if (fastqPathname.toLowerCase().endsWith(".fastq") ||
-                fastqPathname.toLowerCase().endsWith(".fq")) {                
-                br = new BufferedReader(new FileReader(fastqPathname));
-                if (br == null) {
-                    options.getLog().printlnLogAndScreen("Couldn't open file "+fastqPathname);
-                    System.exit(1);
-                }
-            } else if ( fastqPathname.toLowerCase().endsWith(".fastq.gz") ||
-                        fastqPathname.toLowerCase().endsWith(".fq.gz")) {
-                fileStream = new FileInputStream(fastqPathname);
-                if (fileStream != null) {
-                    gzipStream = new GZIPInputStream(fileStream);
-                    if (gzipStream != null) {
-                        decoder = new InputStreamReader(gzipStream, "US-ASCII");
-                        if (decoder != null) {
-                            br = new BufferedReader(decoder);                      
-
-                            if (br == null) {
-                                options.getLog().printlnLogAndScreen("Couldn't open file "+fastqPathname);
-                                System.exit(1);
-                            }
-                        } else {
-                            options.getLog().printlnLogAndScreen("Couldn't open decoder for "+fastqPathname);
-                            System.exit(1);
-                        }
-                    } else {
-                        options.getLog().printlnLogAndScreen("Couldn't open GZIP stream for "+fastqPathname);
-                        System.exit(1);
-                    }
-                } else {
-                    options.getLog().printlnLogAndScreen("Couldn't open filestream for "+fastqPathname);
-                    System.exit(1);
-                }
-            } else {
+            InputStream is = FastqReader.openInputStream(fastqPathname);
+            if (is == null) {
                 options.getLog().printlnLogAndScreen("Unknown suffix for "+fastqPathname);
                 System.exit(1);
             }
-
-            if (br == null) {
-                options.getLog().printlnLogAndScreen("Ooops shouldn't have got to here without a .fastq or a .fq or a .fastq.gz or a .fq.gz");
-                System.exit(1);
-            }
             
-            String firstLine = br.readLine();
+            reader.open(is);
+            String firstLine = reader.nextRecord() ? reader.getHeaderString():"";
+            reader.close();
             Pattern pattern = Pattern.compile("[0-9]{4}-[0-9]{2}-[0-9]{2}T[0-9]{2}:[0-9]{2}:[0-9]{2}Z");
             Matcher matcher = pattern.matcher(firstLine);
             if(matcher.find()) {
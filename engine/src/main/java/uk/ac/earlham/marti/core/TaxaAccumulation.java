@@ -5,22 +5,12 @@
 package uk.ac.earlham.marti.core;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map;
-import javax.json.Json;
-import javax.json.JsonArrayBuilder;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
-import javax.json.JsonWriterFactory;
 import javax.json.stream.JsonGenerator;
 import uk.ac.earlham.lcaparse.SimplifiedRank;
 import uk.ac.earlham.lcaparse.Taxonomy;
@@ -51,7 +41,7 @@ public class TaxaAccumulation {
         int markedChildren = 0;
 
         // See if children are at target rank (or less than)...
-        ArrayList<TaxonomyNode> children = n.getChildren();
+        ArrayList<TaxonomyNode> children = n.getCountedChildren(bc);
         int childCount = 0;
         for (int i=0; i<children.size(); i++) {
             TaxonomyNode c = children.get(i);
@@ -120,43 +110,6 @@ public class TaxaAccumulation {
         if (taxaCountsPerMinSupport.containsKey(minSupport)) {
             ArrayList<TaxaAccumulationCounts> taxaCounts = taxaCountsPerMinSupport.get(minSupport);
         
-            // Build meta data
-            JsonObjectBuilder metaBuilder = Json.createObjectBuilder();
-            metaBuilder.add("martiVersion", MARTiEngine.VERSION_STRING);
-            LocalDateTime date = LocalDateTime.now();
-            String dateTimeString = date.truncatedTo(ChronoUnit.SECONDS).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME).toString();
-            metaBuilder.add("fileWritten", dateTimeString);
-
-            JsonObjectBuilder accumulationBuilder = Json.createObjectBuilder();     
-            for (int rank=1; rank<=10; rank++) {
-                JsonObjectBuilder rankBuilder = Json.createObjectBuilder();
-                JsonArrayBuilder readsArrayBuilder = Json.createArrayBuilder();
-                JsonArrayBuilder timeArrayBuilder = Json.createArrayBuilder();
-
-                for (int chunk=0; chunk<taxaCounts.size(); chunk++) {
-                    TaxaAccumulationCounts tac = taxaCounts.get(chunk);
-                    JsonArrayBuilder pairArrayBuilder = Json.createArrayBuilder();
-                    pairArrayBuilder.add(tac.getReadsAnalysedCount());
-                    pairArrayBuilder.add(tac.getCount(rank));
-                    readsArrayBuilder.add(pairArrayBuilder);
-
-                    pairArrayBuilder = Json.createArrayBuilder();
-                    pairArrayBuilder.add(tac.getMinsSinceStart());
-                    pairArrayBuilder.add(tac.getCount(rank));
-                    timeArrayBuilder.add(pairArrayBuilder);
-                }
-
-                rankBuilder.add("reads", readsArrayBuilder);
-                rankBuilder.add("time", timeArrayBuilder);
-                accumulationBuilder.add(simplifiedRank.getSimplifiedRankString(rank), rankBuilder);
-            }        
-
-            JsonObjectBuilder topLevelBuilder = Json.createObjectBuilder();
-            topLevelBuilder.add("meta", metaBuilder);
-            topLevelBuilder.add("accumulation", accumulationBuilder);
-
-            JsonObject jsonObject = topLevelBuilder.build();        
-
             String jsonFilename;
             int fileCount = taxaCounts.size();
             if (bc > 0) {
@@ -166,19 +119,47 @@ public class TaxaAccumulation {
             }       
             String jsonFilenameFinal = options.getMARTiJSONDirectory(bc) + File.separator + "accumulation_ms" + minSupport + ".json";
 
-            // Print it with pretty printing (pacing etc.)
-            Map<String, Boolean> config = new HashMap<>();
-            config.put(JsonGenerator.PRETTY_PRINTING, true);
-            JsonWriterFactory writerFactory = Json.createWriterFactory(config);
-
             try {
-                Writer writer = new StringWriter();
-                writerFactory.createWriter(writer).write(jsonObject);
-                String jsonString = writer.toString();
+                MARTiJSONWriter jw = new MARTiJSONWriter(options, jsonFilenameFinal, jsonFilename);
+                JsonGenerator g = jw.getGenerator();
+                g.writeStartObject();
+
+                // Meta data
+                g.writeStartObject("meta");
+                g.write("martiVersion", MARTiEngine.VERSION_STRING);
+                LocalDateTime date = LocalDateTime.now();
+                String dateTimeString = date.truncatedTo(ChronoUnit.SECONDS).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME).toString();
+                g.write("fileWritten", dateTimeString);
+                g.writeEnd();
+
+                g.writeStartObject("accumulation");
+                for (int rank=1; rank<=10; rank++) {
+                    g.writeStartObject(simplifiedRank.getSimplifiedRankString(rank));
+                    g.writeStartArray("reads");
+                    for (int chunk=0; chunk<taxaCounts.size(); chunk++) {
+                        TaxaAccumulationCounts tac = taxaCounts.get(chunk);
+                        g.writeStartArray();
+                        g.write(tac.getReadsAnalysedCount());
+                        g.write(tac.getCount(rank));
+                        g.writeEnd();
+                    }
+                    g.writeEnd();
+
+                    g.writeStartArray("time");
+                    for (int chunk=0; chunk<taxaCounts.size(); chunk++) {
+                        TaxaAccumulationCounts tac = taxaCounts.get(chunk);
+                        g.writeStartArray();
+                        g.write(tac.getMinsSinceStart());
+                        g.write(tac.getCount(rank));
+                        g.writeEnd();
+                    }
+                    g.writeEnd();
+                    g.writeEnd();
+                }
+                g.writeEnd();
 
-                PrintWriter pw = new PrintWriter(new FileWriter(jsonFilename));
-                pw.write(jsonString);
-                pw.close();            
+                g.writeEnd();
+                jw.close();
             } catch (Exception e) {
                 e.printStackTrace();
                 System.exit(1);
@@ -186,7 +167,6 @@ public class TaxaAccumulation {
 
             timeDiff = (System.nanoTime() - startTime) / 1000000;
             options.getLog().println("Timing: Accumulation data written in " + timeDiff + " ms");
-            options.copyFile(jsonFilename, jsonFilenameFinal);
         } else {        
             options.getLog().printlnLogAndScreen("Error: rarefaction data doesn't exist for min support "+minSupport);
         }
@@ -0,0 +1,40 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.core;
+
+/**
+ * Lets the main loop wait for something to do rather than sleeping for a fixed
+ * time. A signal given while the loop is busy isn't lost - the next wait
+ * returns straight away.
+ *
+ * @author Richard M. Leggett
+ */
+public class WakeUpSignal {
+    private boolean signalled = false;
+
+    public synchronized void signal() {
+        signalled = true;
+        notifyAll();
+    }
+
+    /**
+    * Wait until signalled or until the time is up, whichever comes first.
+    *
+    * @param  waitMs  maximum time to wait, in ms
+    */
+    public synchronized void await(long waitMs) throws InterruptedException {
+        long endTime = System.nanoTime() + (waitMs * 1000000);
+
+        while (!signalled) {
+            long remaining = (endTime - System.nanoTime()) / 1000000;
+            if (remaining <= 0) {
+                break;
+            }
+            wait(remaining);
+        }
+
+        signalled = false;
+    }
+}
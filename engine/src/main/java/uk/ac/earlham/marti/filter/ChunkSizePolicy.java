@@ -0,0 +1,78 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.filter;
+
+import uk.ac.earlham.marti.core.MARTiEngineOptions;
+
+/**
+ * Decides when a filtered chunk is full.
+ *
+ * A chunk is closed at ReadsPerBlast reads, at ChunkMaxBases bases, or once its
+ * first read is ChunkMaxAge seconds old, whichever comes first. If
+ * ChunkTargetBlastTime is set, the base limit also follows the throughput of
+ * the classifying BLAST, so that each BLAST job runs for about that long.
+ *
+ * @author Richard M. Leggett
+ */
+public class ChunkSizePolicy {
+    // Weight given to each new BLAST job in the running throughput estimate
+    private final static double SMOOTHING = 0.3;
+    // Jobs quicker than this are mostly start up time, so tell us little
+    private final static long MIN_RUN_TIME = 1000;
+    private MARTiEngineOptions options;
+    private double basesPerSecond = 0;
+    private int jobsObserved = 0;
+
+    public ChunkSizePolicy(MARTiEngineOptions o) {
+        options = o;
+    }
+
+    /**
+    * Record how long the classifying BLAST took over a chunk.
+    *
+    * @param  bases    bases in chunk
+    * @param  runTime  BLAST run time in ms, or -1 if not known
+    */
+    public synchronized void addBlastRunTime(long bases, long runTime) {
+        if ((options.getChunkTargetBlastTime() <= 0) || (runTime < MIN_RUN_TIME) || (bases <= 0)) {
+            return;
+        }
+
+        double rate = (double)bases * 1000.0 / (double)runTime;
+
+        if (jobsObserved == 0) {
+            basesPerSecond = rate;
+        } else {
+            basesPerSecond = (SMOOTHING * rate) + ((1.0 - SMOOTHING) * basesPerSecond);
+        }
+        jobsObserved++;
+
+        options.getLog().println("BLAST throughput " + Math.round(rate) + " bp/s, chunk base limit now " + getMaxBases());
+    }
+
+    /**
+    * @return maximum bases in a chunk, or 0 for no limit
+    */
+    public synchronized long getMaxBases() {
+        long maxBases = options.getChunkMaxBases();
+
+        if ((options.getChunkTargetBlastTime() > 0) && (jobsObserved > 0)) {
+            long adaptiveBases = Math.max(1, Math.round(basesPerSecond * options.getChunkTargetBlastTime()));
+            if ((maxBases == 0) || (adaptiveBases < maxBases)) {
+                maxBases = adaptiveBases;
+            }
+        }
+
+        return maxBases;
+    }
+
+    /**
+    * @param  age  time since first read was written to chunk, in ms
+    * @return true if the chunk has been open too long
+    */
+    public boolean isTooOld(long age) {
+        return (options.getChunkMaxAge() > 0) && (age >= options.getChunkMaxAge() * 1000L);
+    }
+}
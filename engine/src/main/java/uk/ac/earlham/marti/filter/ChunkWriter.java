@@ -0,0 +1,101 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.filter;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes filtered reads to a FASTA or FASTQ chunk straight from a FastqReader's bytes.
+ *
+ * A chunk stays open across input files, but its output buffer belongs to the
+ * filter thread currently working on the barcode - it is handed over with
+ * useBuffer when a file starts and given back with releaseBuffer when it ends.
+ *
+ * @author Richard M. Leggett
+ */
+public class ChunkWriter {
+    private FileOutputStream outputStream;
+    private byte[] buffer = null;
+    private int bufferPosition = 0;
+
+    public ChunkWriter(String pathname) throws IOException {
+        outputStream = new FileOutputStream(pathname);
+    }
+
+    /**
+    * Write into the given buffer until releaseBuffer is called.
+    *
+    * @param  b  buffer owned by the calling filter thread
+    */
+    public void useBuffer(byte[] b) throws IOException {
+        flush();
+        buffer = b;
+    }
+
+    /**
+    * Write out anything buffered and stop using the buffer.
+    */
+    public void releaseBuffer() throws IOException {
+        try {
+            flush();
+        } finally {
+            buffer = null;
+            bufferPosition = 0;
+        }
+    }
+
+    private void flush() throws IOException {
+        if (bufferPosition > 0) {
+            outputStream.write(buffer, 0, bufferPosition);
+            bufferPosition = 0;
+        }
+    }
+
+    private void write(byte[] b, int offset, int length) throws IOException {
+        if (bufferPosition + length > buffer.length) {
+            flush();
+            if (length > buffer.length) {
+                outputStream.write(b, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(b, offset, buffer, bufferPosition, length);
+        bufferPosition += length;
+    }
+
+    private void write(byte b) throws IOException {
+        if (bufferPosition == buffer.length) {
+            flush();
+        }
+        buffer[bufferPosition++] = b;
+    }
+
+    public void writeFastq(FastqReader r) throws IOException {
+        write(r.getHeader(), 0, r.getHeaderLength());
+        write((byte)'\n');
+        write(r.getSequence(), 0, r.getSequenceLength());
+        write((byte)'\n');
+        write((byte)'+');
+        write((byte)'\n');
+        write(r.getQuality(), 0, r.getQualityLength());
+        write((byte)'\n');
+    }
+
+    public void writeFasta(FastqReader r) throws IOException {
+        write((byte)'>');
+        write(r.getHeader(), 1, r.getHeaderLength() - 1);
+        write((byte)'\n');
+        write(r.getSequence(), 0, r.getSequenceLength());
+        write((byte)'\n');
+    }
+
+    public void close() throws IOException {
+        if (buffer != null) {
+            flush();
+        }
+        outputStream.close();
+    }
+}
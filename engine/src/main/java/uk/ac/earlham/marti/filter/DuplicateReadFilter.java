@@ -0,0 +1,299 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.filter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import uk.ac.earlham.marti.core.MARTiEngineOptions;
+
+/**
+ * Remembers the read IDs the filter has seen, so that a read in a file that
+ * MinKNOW writes again, or that is dropped into the reads directory twice,
+ * isn't filtered and classified a second time.
+ *
+ * IDs are held as the 64-bit hashes used for chunk read lengths. A Bloom
+ * filter of fixed size answers most lookups in memory. Every hash is also
+ * appended to one of 256 bucket files in the read_ids directory, and a Bloom
+ * hit is only taken as a duplicate once the hash is found there, so a false
+ * positive never costs a read. The bucket files are read back into the Bloom
+ * filter at start up, so IDs are remembered between runs into the same
+ * sample directory.
+ *
+ * A barcode's IDs are only written once the chunk they went towards has been
+ * closed. If MARTi stops part way through a chunk, the reads in it are
+ * filtered again on restart, rather than being lost as duplicates.
+ *
+ * @author Richard M. Leggett
+ */
+public class DuplicateReadFilter {
+    private final static int BUCKET_BITS = 8;
+    private final static int BUCKETS = 1 << BUCKET_BITS;
+    // Bloom hash functions - best for the 10 to 20 bits per ID we allocate
+    private final static int HASHES = 7;
+    private final static int BITS_PER_ID = 10;
+    private final static int MIN_BITS = 1 << 16;
+    // Sorted buckets kept in memory for confirming Bloom hits
+    private final static int CACHED_BUCKETS = 16;
+    private MARTiEngineOptions options;
+    private String directory;
+    private long[] bloom;
+    private long bloomMask;
+    private long capacity;
+    private long idCount = 0;
+    // Unwritten IDs by bucket, for lookups, and by barcode, for writing
+    private long[][] pending = new long[BUCKETS][];
+    private int[] pendingCount = new int[BUCKETS];
+    private Hashtable<Integer, long[]> openIds = new Hashtable<Integer, long[]>();
+    private Hashtable<Integer, Integer> openIdCount = new Hashtable<Integer, Integer>();
+    private Hashtable<Integer, long[]> cachedBuckets = new Hashtable<Integer, long[]>();
+    private LinkedList<Integer> cacheOrder = new LinkedList<Integer>();
+    private long bloomHits = 0;
+    private long duplicates = 0;
+
+    /**
+    * @param  o    options
+    * @param  dir  directory for bucket files
+    * @param  c    number of IDs expected, which sets the size of the Bloom filter
+    */
+    public DuplicateReadFilter(MARTiEngineOptions o, String dir, long c) {
+        options = o;
+        directory = dir;
+        capacity = c;
+
+        long bits = MIN_BITS;
+        while (bits < capacity * BITS_PER_ID) {
+            bits <<= 1;
+        }
+        bloom = new long[(int)(bits >>> 6)];
+        bloomMask = bits - 1;
+
+        for (int i=0; i<BUCKETS; i++) {
+            pending[i] = new long[16];
+        }
+
+        loadBuckets();
+    }
+
+    private String getBucketFilename(int bucket) {
+        return directory + File.separator + String.format("ids_%03d.bin", bucket);
+    }
+
+    private static int getBucket(long key) {
+        return (int)(key >>> (64 - BUCKET_BITS));
+    }
+
+    private void loadBuckets() {
+        for (int i=0; i<BUCKETS; i++) {
+            long[] keys = readBucket(i);
+            for (int j=0; j<keys.length; j++) {
+                addToBloom(keys[j]);
+            }
+            idCount += keys.length;
+        }
+
+        if (idCount > 0) {
+            options.getLog().println("Loaded " + idCount + " read IDs from " + directory);
+        }
+
+        if (idCount > capacity) {
+            options.getLog().printlnLogAndScreen("Warning: " + idCount + " read IDs seen is more than DeduplicateReadsCapacity - duplicate checks will be slower");
+        }
+    }
+
+    private long[] readBucket(int bucket) {
+        File f = new File(getBucketFilename(bucket));
+        long[] keys = new long[(int)(f.length() / 8)];
+
+        if (keys.length > 0) {
+            try {
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+                try {
+                    for (int i=0; i<keys.length; i++) {
+                        keys[i] = dis.readLong();
+                    }
+                } finally {
+                    dis.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Error reading " + f.getPath());
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+
+        return keys;
+    }
+
+    private void addToBloom(long key) {
+        long h1 = key;
+        long h2 = (key >>> 32) | 1;
+
+        for (int i=0; i<HASHES; i++) {
+            long bit = (h1 + i * h2) & bloomMask;
+            bloom[(int)(bit >>> 6)] |= 1L << (bit & 63);
+        }
+    }
+
+    private boolean mightContain(long key) {
+        long h1 = key;
+        long h2 = (key >>> 32) | 1;
+
+        for (int i=0; i<HASHES; i++) {
+            long bit = (h1 + i * h2) & bloomMask;
+            if ((bloom[(int)(bit >>> 6)] & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private long[] getSortedBucket(int bucket) {
+        long[] keys = cachedBuckets.get(bucket);
+
+        if (keys == null) {
+            keys = readBucket(bucket);
+            Arrays.sort(keys);
+            if (cacheOrder.size() >= CACHED_BUCKETS) {
+                cachedBuckets.remove(cacheOrder.removeFirst());
+            }
+            cachedBuckets.put(bucket, keys);
+        } else {
+            cacheOrder.remove(Integer.valueOf(bucket));
+        }
+        cacheOrder.addLast(bucket);
+
+        return keys;
+    }
+
+    private boolean isStored(long key) {
+        int bucket = getBucket(key);
+
+        for (int i=0; i<pendingCount[bucket]; i++) {
+            if (pending[bucket][i] == key) {
+                return true;
+            }
+        }
+
+        return Arrays.binarySearch(getSortedBucket(bucket), key) >= 0;
+    }
+
+    /**
+    * Record a read ID.
+    *
+    * @param  barcode  barcode the read is in
+    * @param  key      hash of read ID, from ChunkReadLengths.hash
+    * @return false if the ID has been seen before
+    */
+    public synchronized boolean addReadId(int barcode, long key) {
+        if (mightContain(key)) {
+            bloomHits++;
+            if (isStored(key)) {
+                duplicates++;
+                return false;
+            }
+        }
+
+        int bucket = getBucket(key);
+        if (pendingCount[bucket] == pending[bucket].length) {
+            pending[bucket] = Arrays.copyOf(pending[bucket], pending[bucket].length * 2);
+        }
+        pending[bucket][pendingCount[bucket]++] = key;
+
+        long[] ids = openIds.get(barcode);
+        int count = openIdCount.containsKey(barcode) ? openIdCount.get(barcode) : 0;
+        if (ids == null) {
+            ids = new long[1024];
+        } else if (count == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[count++] = key;
+        openIds.put(barcode, ids);
+        openIdCount.put(barcode, count);
+
+        idCount++;
+        addToBloom(key);
+
+        return true;
+    }
+
+    private void writeBucket(int bucket, long[] keys, int from, int to) {
+        String filename = getBucketFilename(bucket);
+        try {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename, true)));
+            try {
+                for (int i=from; i<to; i++) {
+                    dos.writeLong(keys[i]);
+                }
+            } finally {
+                dos.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing " + filename);
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        // Remove from unwritten IDs
+        int kept = 0;
+        for (int i=0; i<pendingCount[bucket]; i++) {
+            if (Arrays.binarySearch(keys, from, to, pending[bucket][i]) < 0) {
+                pending[bucket][kept++] = pending[bucket][i];
+            }
+        }
+        pendingCount[bucket] = kept;
+        if ((kept == 0) && (pending[bucket].length > 16)) {
+            pending[bucket] = new long[16];
+        }
+
+        // Keep a cached copy up to date, rather than reading the file again
+        long[] cached = cachedBuckets.get(bucket);
+        if (cached != null) {
+            long[] merged = Arrays.copyOf(cached, cached.length + (to - from));
+            System.arraycopy(keys, from, merged, cached.length, to - from);
+            Arrays.sort(merged);
+            cachedBuckets.put(bucket, merged);
+        }
+    }
+
+    /**
+    * Write the IDs of a barcode's reads to the bucket files. Called as each
+    * chunk is closed, so IDs of reads in closed chunks are always on disk,
+    * and IDs of reads in a chunk still being written never are.
+    *
+    * @param  barcode  barcode that closed a chunk
+    */
+    public synchronized void chunkClosed(int barcode) {
+        long[] ids = openIds.remove(barcode);
+        Integer count = openIdCount.remove(barcode);
+        if ((ids == null) || (count == 0)) {
+            return;
+        }
+
+        // Sorting puts each bucket's IDs together
+        Arrays.sort(ids, 0, count);
+        int from = 0;
+        while (from < count) {
+            int bucket = getBucket(ids[from]);
+            int to = from + 1;
+            while ((to < count) && (getBucket(ids[to]) == bucket)) {
+                to++;
+            }
+            writeBucket(bucket, ids, from, to);
+            from = to;
+        }
+
+        options.getLog().println("Read ID filter: " + idCount + " IDs, " + bloomHits + " Bloom hits, " + duplicates + " duplicates");
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.filter;
+
+/**
+ * DUST style low complexity masking.
+ *
+ * A window of 64 bases is slid along the read, keeping the count of each of
+ * the 64 triplets in it. The window scores the sum of c(c-1)/2 over triplet
+ * counts c, divided by one less than the number of triplets, and every base of
+ * a window scoring over 2 is masked - the default level of 20 in DUST's units
+ * of tenths. A random window scores about 0.5, a homopolymer 30 and a
+ * dinucleotide repeat 15. The score is kept up to date as the window moves,
+ * rather than searching each window for its best scoring interval.
+ *
+ * @author Richard M. Leggett
+ */
+public class DustMasker {
+    private final static int WINDOW = 64;
+    private final static int TRIPLETS = WINDOW - 2;
+    // In tenths
+    private final static int LEVEL = 20;
+    private final static int[] CODE = new int[256];
+    static {
+        for (int i=0; i<256; i++) {
+            CODE[i] = -1;
+        }
+        CODE['A'] = 0; CODE['a'] = 0;
+        CODE['C'] = 1; CODE['c'] = 1;
+        CODE['G'] = 2; CODE['g'] = 2;
+        CODE['T'] = 3; CODE['t'] = 3;
+    }
+    private int[] counts = new int[64];
+    private int[] window = new int[TRIPLETS];
+
+    /**
+    * Mask low complexity regions of a sequence.
+    *
+    * @param  seq     sequence as ASCII
+    * @param  length  sequence length
+    * @param  mask    set to 1 for each masked base and 0 otherwise, at least length long
+    * @return number of bases masked
+    */
+    public int mask(byte[] seq, int length, byte[] mask) {
+        int score = 0;
+        int triplet = 0;
+        int validBases = 0;
+        int maskedEnd = 0;
+        int masked = 0;
+
+        for (int i=0; i<64; i++) {
+            counts[i] = 0;
+        }
+
+        for (int i=0; i<length; i++) {
+            int c = CODE[seq[i] & 0xFF];
+            int t = -1;
+
+            mask[i] = 0;
+            if (c < 0) {
+                validBases = 0;
+            } else {
+                triplet = ((triplet << 2) | c) & 63;
+                if (++validBases >= 3) {
+                    t = triplet;
+                }
+            }
+
+            // Triplet leaving the window
+            int slot = i % TRIPLETS;
+            if ((i >= TRIPLETS) && (window[slot] >= 0)) {
+                counts[window[slot]]--;
+                score -= counts[window[slot]];
+            }
+            window[slot] = t;
+            if (t >= 0) {
+                score += counts[t];
+                counts[t]++;
+            }
+
+            // Score full windows, or the whole read if it's shorter than a window
+            int tripletsInWindow = Math.min(i + 1, WINDOW) - 2;
+            if (((i >= WINDOW - 1) || (i == length - 1)) && (tripletsInWindow > 1) &&
+                (score * 10 > LEVEL * (tripletsInWindow - 1)))
+            {
+                int from = Math.max(i + 1 - WINDOW, maskedEnd);
+                for (int j=from; j<=i; j++) {
+                    mask[j] = 1;
+                }
+                masked += i + 1 - from;
+                maskedEnd = i + 1;
+            }
+        }
+
+        return masked;
+    }
+}
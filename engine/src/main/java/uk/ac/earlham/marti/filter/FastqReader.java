@@ -0,0 +1,211 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.filter;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import uk.ac.earlham.marti.core.CompressedFile;
+
+/**
+ * FASTQ record reader working on bytes.
+ *
+ * Each record's four lines are read into reusable byte arrays, so reading a
+ * read doesn't create any Strings - the read ID is only decoded when asked for.
+ * A reader can be reused for one file after another, so a filter thread keeps
+ * the same buffers for its whole life.
+ *
+ * @author Richard M. Leggett
+ */
+public class FastqReader {
+    private final static int BUFFER_SIZE = 1 << 16;
+    private final static int HEADER = 0;
+    private final static int SEQUENCE = 1;
+    private final static int SEPARATOR = 2;
+    private final static int QUALITY = 3;
+    private InputStream inputStream = null;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPosition = 0;
+    private int bufferLimit = 0;
+    private byte[][] lines = new byte[4][];
+    private int[] lineLength = new int[4];
+
+    public FastqReader() {
+        lines[HEADER] = new byte[256];
+        lines[SEQUENCE] = new byte[16384];
+        lines[SEPARATOR] = new byte[16];
+        lines[QUALITY] = new byte[16384];
+    }
+
+    /**
+    * Open a FASTQ file, which may be gzipped.
+    *
+    * @param  pathname  .fastq, .fq, .fastq.gz or .fq.gz file
+    * @return input stream, or null if the suffix isn't recognised
+    */
+    public static InputStream openInputStream(String pathname) throws IOException {
+        String lower = pathname.toLowerCase();
+
+        if (lower.endsWith(".fastq") || lower.endsWith(".fq")) {
+            return new FileInputStream(pathname);
+        } else if (lower.endsWith(".fastq.gz") || lower.endsWith(".fq.gz")) {
+            return CompressedFile.openInputStream(pathname);
+        }
+
+        return null;
+    }
+
+    /**
+    * Start reading from a new stream.
+    *
+    * @param  is  input stream
+    */
+    public void open(InputStream is) {
+        inputStream = is;
+        bufferPosition = 0;
+        bufferLimit = 0;
+    }
+
+    public void close() throws IOException {
+        if (inputStream != null) {
+            inputStream.close();
+            inputStream = null;
+        }
+    }
+
+    private boolean fillBuffer() throws IOException {
+        int n = inputStream.read(buffer, 0, buffer.length);
+        bufferPosition = 0;
+        bufferLimit = n > 0 ? n:0;
+        return n > 0;
+    }
+
+    private boolean readLine(int l) throws IOException {
+        boolean gotData = false;
+        lineLength[l] = 0;
+
+        while (true) {
+            if (bufferPosition >= bufferLimit) {
+                if (!fillBuffer()) {
+                    return gotData;
+                }
+            }
+
+            gotData = true;
+            int start = bufferPosition;
+            int end = start;
+            while ((end < bufferLimit) && (buffer[end] != '\n')) {
+                end++;
+            }
+
+            appendToLine(l, start, end);
+            bufferPosition = end;
+
+            if (end < bufferLimit) {
+                bufferPosition++;
+                if ((lineLength[l] > 0) && (lines[l][lineLength[l] - 1] == '\r')) {
+                    lineLength[l]--;
+                }
+                return true;
+            }
+        }
+    }
+
+    private void appendToLine(int l, int start, int end) {
+        int n = end - start;
+        if (lineLength[l] + n > lines[l].length) {
+            lines[l] = Arrays.copyOf(lines[l], Math.max(lines[l].length * 2, lineLength[l] + n));
+        }
+        System.arraycopy(buffer, start, lines[l], lineLength[l], n);
+        lineLength[l] += n;
+    }
+
+    /**
+    * Read the next record. If the first line doesn't start with '@', only that
+    * line is consumed, so the caller can report it and carry on.
+    *
+    * @return false at end of file
+    */
+    public boolean nextRecord() throws IOException {
+        if (!readLine(HEADER)) {
+            return false;
+        }
+
+        if (hasHeader()) {
+            for (int l=SEQUENCE; l<=QUALITY; l++) {
+                if (!readLine(l)) {
+                    lineLength[l] = 0;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+    * @return true if the record's first line is a FASTQ header
+    */
+    public boolean hasHeader() {
+        return (lineLength[HEADER] > 0) && (lines[HEADER][0] == '@');
+    }
+
+    /**
+    * @return true if the record's third line is the '+' separator
+    */
+    public boolean hasSeparator() {
+        return (lineLength[SEPARATOR] == 1) && (lines[SEPARATOR][0] == '+');
+    }
+
+    /**
+    * @return read ID - the header up to the first space, without the '@'
+    */
+    public String getReadId() {
+        return new String(lines[HEADER], 1, getReadIdLength(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+    * @return length of read ID, which starts at offset 1 of the header
+    */
+    public int getReadIdLength() {
+        int end = 1;
+        while ((end < lineLength[HEADER]) && (lines[HEADER][end] != ' ')) {
+            end++;
+        }
+        return end - 1;
+    }
+
+    /**
+    * @return header line as a String, for the odd occasion it's needed whole
+    */
+    public String getHeaderString() {
+        return new String(lines[HEADER], 0, lineLength[HEADER], StandardCharsets.US_ASCII);
+    }
+
+    public byte[] getHeader() {
+        return lines[HEADER];
+    }
+
+    public int getHeaderLength() {
+        return lineLength[HEADER];
+    }
+
+    public byte[] getSequence() {
+        return lines[SEQUENCE];
+    }
+
+    public int getSequenceLength() {
+        return lineLength[SEQUENCE];
+    }
+
+    public byte[] getQuality() {
+        return lines[QUALITY];
+    }
+
+    public int getQualityLength() {
+        return lineLength[QUALITY];
+    }
+}
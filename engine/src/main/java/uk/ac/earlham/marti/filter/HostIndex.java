@@ -0,0 +1,212 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import uk.ac.earlham.marti.core.CompressedFile;
+
+/**
+ * Minimizer sketch of a host genome, used to recognise host reads before they
+ * are sent for classification.
+ *
+ * Built once from a host FASTA with -compilehostindex. Every (w,k)-minimizer
+ * of the host is hashed into a bit set sized at 16 bits per minimizer, so
+ * about 1 in 16 lookups of a minimizer not in the host finds a set bit. The
+ * file is memory-mapped, as an index of a human genome is around 1Gb.
+ * Layout (big-endian):
+ *
+ *   header  magic, version, k, w, log2 of bits, minimizer and base counts
+ *   bits    long[], bit b is bit (b & 63) of long (b >>> 6)
+ *
+ * @author Richard M. Leggett
+ */
+public class HostIndex {
+    private final static long MAGIC = 0x4D41525469485354L; // "MARTiHST"
+    private final static int FORMAT_VERSION = 1;
+    private final static int HEADER_SIZE = 64;
+    private final static int DEFAULT_K = 17;
+    private final static int DEFAULT_W = 10;
+    private final static int BITS_PER_MINIMIZER = 16;
+    private final static int MIN_BITS_LOG2 = 16;
+    private final static int MAX_BITS_LOG2 = 33;
+    private final static int SEGMENT_SHIFT = 30;
+    private final static long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+    private MappedByteBuffer[] segments;
+    private int k;
+    private int w;
+    private long bitMask;
+    private long minimizerCount;
+
+    private HostIndex() {
+    }
+
+    /**
+    * Memory-map an index file.
+    *
+    * @param  indexFilename  index pathname
+    * @return index object
+    * @throws IOException if the file can't be mapped
+    */
+    public static HostIndex open(String indexFilename) throws IOException {
+        HostIndex hi = new HostIndex();
+
+        try (RandomAccessFile raf = new RandomAccessFile(indexFilename, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            int segmentCount = (int)((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            hi.segments = new MappedByteBuffer[segmentCount];
+            for (int i=0; i<segmentCount; i++) {
+                long start = (long)i << SEGMENT_SHIFT;
+                hi.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_MASK + 1, size - start));
+            }
+
+            if ((segmentCount == 0) || (hi.segments[0].capacity() < HEADER_SIZE)) {
+                throw new IOException("Not a host index");
+            }
+
+            MappedByteBuffer header = hi.segments[0];
+            if ((header.getLong(0) != MAGIC) || (header.getInt(8) != FORMAT_VERSION)) {
+                throw new IOException("Not a host index");
+            }
+
+            hi.k = header.getInt(12);
+            hi.w = header.getInt(16);
+            int bitsLog2 = header.getInt(20);
+            hi.minimizerCount = header.getLong(24);
+            hi.bitMask = (1L << bitsLog2) - 1;
+
+            if (size < HEADER_SIZE + ((1L << bitsLog2) >>> 3)) {
+                throw new IOException("Truncated host index");
+            }
+        }
+
+        return hi;
+    }
+
+    // Spread minimizer hashes, which are the smallest of their windows, evenly over the bits
+    private static long getBit(long minimizer, long mask) {
+        long h = minimizer;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h & mask;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getW() {
+        return w;
+    }
+
+    public long getMinimizerCount() {
+        return minimizerCount;
+    }
+
+    /**
+    * @param  minimizer  minimizer hash from a MinimizerScanner with this index's k and w
+    * @return true if the minimizer is (probably) in the host
+    */
+    public boolean contains(long minimizer) {
+        long bit = getBit(minimizer, bitMask);
+        // Header and segments are multiples of 8 bytes, so a long never spans two segments
+        long position = HEADER_SIZE + ((bit >>> 6) << 3);
+        long word = segments[(int)(position >>> SEGMENT_SHIFT)].getLong((int)(position & SEGMENT_MASK));
+
+        return (word & (1L << (bit & 63))) != 0;
+    }
+
+    /**
+    * Build an index from a host FASTA. The FASTA is read twice - once to size
+    * the bit set and once to fill it.
+    *
+    * @param  fastaFilename  host FASTA, which may be gzipped
+    * @param  indexFilename  index to write
+    */
+    public static void compile(String fastaFilename, String indexFilename) {
+        long startTime = System.nanoTime();
+        long timeDiff;
+        long bases = 0;
+        long minimizers = 0;
+        int sequences = 0;
+        String line;
+
+        try {
+            System.out.println("Sizing "+fastaFilename);
+            BufferedReader br = CompressedFile.openReader(fastaFilename);
+            while ((line = br.readLine()) != null) {
+                if (!line.startsWith(">")) {
+                    bases += line.length();
+                }
+            }
+            br.close();
+
+            long expectedMinimizers = Math.max(1, (2 * bases) / (DEFAULT_W + 1));
+            int bitsLog2 = MIN_BITS_LOG2;
+            while ((bitsLog2 < MAX_BITS_LOG2) && ((1L << bitsLog2) < expectedMinimizers * BITS_PER_MINIMIZER)) {
+                bitsLog2++;
+            }
+            long bitMask = (1L << bitsLog2) - 1;
+            long[] bits = new long[(int)((1L << bitsLog2) >>> 6)];
+            System.out.println("    "+bases+" bases, using "+(1L << bitsLog2)+" bits");
+
+            System.out.println("Indexing "+fastaFilename);
+            MinimizerScanner scanner = new MinimizerScanner(DEFAULT_K, DEFAULT_W);
+            br = CompressedFile.openReader(fastaFilename);
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith(">")) {
+                    scanner.reset();
+                    sequences++;
+                    if (sequences % 100 == 0) {
+                        System.out.println("    Read "+sequences+" sequences");
+                    }
+                } else {
+                    for (int i=0; i<line.length(); i++) {
+                        if (scanner.addBase((byte)line.charAt(i))) {
+                            long bit = getBit(scanner.getMinimizer(), bitMask);
+                            bits[(int)(bit >>> 6)] |= 1L << (bit & 63);
+                            minimizers++;
+                        }
+                    }
+                }
+            }
+            br.close();
+
+            System.out.println("Writing "+indexFilename);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFilename), 1 << 20));
+            dos.writeLong(MAGIC);
+            dos.writeInt(FORMAT_VERSION);
+            dos.writeInt(DEFAULT_K);
+            dos.writeInt(DEFAULT_W);
+            dos.writeInt(bitsLog2);
+            dos.writeLong(minimizers);
+            dos.writeLong(bases);
+            for (int i=40; i<HEADER_SIZE; i++) {
+                dos.writeByte(0);
+            }
+            for (int i=0; i<bits.length; i++) {
+                dos.writeLong(bits[i]);
+            }
+            dos.close();
+        } catch (Exception e) {
+            System.out.println("Error compiling host index");
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        timeDiff = (System.nanoTime() - startTime) / 1000000;
+        System.out.println("Indexed "+minimizers+" minimizers from "+sequences+" sequences in "+timeDiff+"ms");
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.filter;
+
+/**
+ * Finds the (w,k)-minimizers of a sequence as its bases are added one at a
+ * time, so a host genome can be indexed without holding a chromosome in
+ * memory, and a read checked without copying it.
+ *
+ * Each k-mer is reduced to the hash of its canonical (lower of forward and
+ * reverse complement) 2-bit encoding, and the minimizer of each window of w
+ * consecutive k-mers is the one with the lowest hash. A base other than
+ * A, C, G or T ends the current run of k-mers.
+ *
+ * @author Richard M. Leggett
+ */
+public class MinimizerScanner {
+    private final static int[] CODE = new int[256];
+    static {
+        for (int i=0; i<256; i++) {
+            CODE[i] = -1;
+        }
+        CODE['A'] = 0; CODE['a'] = 0;
+        CODE['C'] = 1; CODE['c'] = 1;
+        CODE['G'] = 2; CODE['g'] = 2;
+        CODE['T'] = 3; CODE['t'] = 3;
+    }
+    private int k;
+    private int w;
+    private long kmerMask;
+    private int reverseShift;
+    private long forward = 0;
+    private long reverse = 0;
+    private int validBases = 0;
+    private long[] windowHashes;
+    private long[] windowIndexes;
+    private long kmerIndex = 0;
+    private long minHash = 0;
+    private long minIndex = -1;
+    private long lastMinIndex = -1;
+
+    /**
+    * @param  k  k-mer size, odd and at most 31 so no k-mer is its own reverse complement
+    * @param  w  number of k-mers in each window
+    */
+    public MinimizerScanner(int k, int w) {
+        this.k = k;
+        this.w = w;
+        kmerMask = (1L << (2 * k)) - 1;
+        reverseShift = 2 * (k - 1);
+        windowHashes = new long[w];
+        windowIndexes = new long[w];
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getW() {
+        return w;
+    }
+
+    /**
+    * Start a new sequence.
+    */
+    public void reset() {
+        validBases = 0;
+        forward = 0;
+        reverse = 0;
+        kmerIndex = 0;
+        minIndex = -1;
+        lastMinIndex = -1;
+    }
+
+    // Invertible integer hash over 2k bits, so minimizers aren't biased towards poly-A
+    private long hash(long key) {
+        key = (~key + (key << 21)) & kmerMask;
+        key = key ^ (key >>> 24);
+        key = ((key + (key << 3)) + (key << 8)) & kmerMask;
+        key = key ^ (key >>> 14);
+        key = ((key + (key << 2)) + (key << 4)) & kmerMask;
+        key = key ^ (key >>> 28);
+        key = (key + (key << 31)) & kmerMask;
+        return key;
+    }
+
+    /**
+    * Add the next base.
+    *
+    * @param  base  base as ASCII
+    * @return true if a new minimizer is ready from getMinimizer
+    */
+    public boolean addBase(byte base) {
+        int c = CODE[base & 0xFF];
+
+        if (c < 0) {
+            validBases = 0;
+            kmerIndex = 0;
+            minIndex = -1;
+            lastMinIndex = -1;
+            return false;
+        }
+
+        forward = ((forward << 2) | c) & kmerMask;
+        reverse = (reverse >>> 2) | ((long)(3 - c) << reverseShift);
+        if (++validBases < k) {
+            return false;
+        }
+
+        long h = hash(Math.min(forward, reverse));
+        int slot = (int)(kmerIndex % w);
+        windowHashes[slot] = h;
+        windowIndexes[slot] = kmerIndex;
+
+        if ((minIndex < 0) || (h <= minHash)) {
+            minHash = h;
+            minIndex = kmerIndex;
+        } else if (minIndex <= kmerIndex - w) {
+            // The minimum has just left the window, so look again
+            int filled = (int)Math.min(kmerIndex + 1, w);
+            minHash = Long.MAX_VALUE;
+            for (int i=0; i<filled; i++) {
+                if (windowHashes[i] < minHash) {
+                    minHash = windowHashes[i];
+                    minIndex = windowIndexes[i];
+                }
+            }
+        }
+        kmerIndex++;
+
+        if ((kmerIndex >= w) && (minIndex != lastMinIndex)) {
+            lastMinIndex = minIndex;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+    * @return hash of the minimizer found by the last call to addBase
+    */
+    public long getMinimizer() {
+        return minHash;
+    }
+}
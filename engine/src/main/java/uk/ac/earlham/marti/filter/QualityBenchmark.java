@@ -0,0 +1,115 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.filter;
+
+import java.io.BufferedReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import uk.ac.earlham.marti.core.CompressedFile;
+
+/**
+ * Compare the lookup table mean quality calculation with the original pow per base
+ * on the quality strings of a FASTQ file.
+ *
+ * @author Richard M. Leggett
+ */
+public class QualityBenchmark {
+    private final static int REPEATS = 5;
+
+    // The original calculation, kept here as the reference
+    private static double calculateMeanQualityByPow(String qual) {
+        long totalQ = 0;
+        double totalProb = 0;              
+        
+        for (int i=0; i<qual.length(); i++) {
+            int qScore = (int)qual.charAt(i) - 33;
+            double prob = Math.pow(10.0, -((double)qScore / 10.0));
+            
+            totalQ += qScore;
+            totalProb += prob;
+        }
+
+        double meanProb = totalProb / qual.length();        
+        double meanQFromP = -10 * Math.log10(meanProb);        
+        double meanQ = (double)totalQ / (double)qual.length();
+                        
+        return meanQFromP;
+    }
+
+    public static void run(String fastqFilename) {
+        ArrayList<String> quals = new ArrayList<String>();
+        long bases = 0;
+
+        System.out.println("Reading "+fastqFilename);
+        try {
+            BufferedReader br = CompressedFile.openReader(fastqFilename);
+            String header;
+            while ((header = br.readLine()) != null) {
+                br.readLine();
+                br.readLine();
+                String qual = br.readLine();
+                if (header.startsWith("@") && (qual != null) && (qual.length() > 0)) {
+                    quals.add(qual);
+                    bases += qual.length();
+                }
+            }
+            br.close();
+        } catch (Exception e) {
+            System.out.println("Error reading "+fastqFilename);
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.out.println("Got "+quals.size()+" reads and "+bases+" bases");
+
+        int n = quals.size();
+        String[] qualStrings = quals.toArray(new String[0]);
+        byte[][] qualBytes = new byte[n][];
+        for (int i=0; i<n; i++) {
+            qualBytes[i] = qualStrings[i].getBytes(StandardCharsets.US_ASCII);
+        }
+
+        double[] byPow = new double[n];
+        double[] byTable = new double[n];
+        double[] byBytes = new double[n];
+        long powTime = Long.MAX_VALUE;
+        long tableTime = Long.MAX_VALUE;
+        long bytesTime = Long.MAX_VALUE;
+
+        for (int r=0; r<REPEATS; r++) {
+            long startTime = System.nanoTime();
+            for (int i=0; i<n; i++) {
+                byPow[i] = calculateMeanQualityByPow(qualStrings[i]);
+            }
+            powTime = Math.min(powTime, System.nanoTime() - startTime);
+
+            startTime = System.nanoTime();
+            for (int i=0; i<n; i++) {
+                byTable[i] = ReadFilterSample.calculateMeanQuality(qualStrings[i]);
+            }
+            tableTime = Math.min(tableTime, System.nanoTime() - startTime);
+
+            startTime = System.nanoTime();
+            for (int i=0; i<n; i++) {
+                byBytes[i] = ReadFilterSample.calculateMeanQuality(qualBytes[i], 0, qualBytes[i].length);
+            }
+            bytesTime = Math.min(bytesTime, System.nanoTime() - startTime);
+        }
+
+        int differences = 0;
+        for (int i=0; i<n; i++) {
+            if ((byPow[i] != byTable[i]) || (byPow[i] != byBytes[i])) {
+                if (differences < 10) {
+                    System.out.println("Difference for read "+i+": pow "+byPow[i]+" table "+byTable[i]+" bytes "+byBytes[i]);
+                }
+                differences++;
+            }
+        }
+
+        System.out.printf("    Pow per base: %.3f ms, %.2f ns/base (best of %d)\n", powTime / 1000000.0, (double)powTime / bases, REPEATS);
+        System.out.printf("  Lookup string: %.3f ms, %.2f ns/base (best of %d)\n", tableTime / 1000000.0, (double)tableTime / bases, REPEATS);
+        System.out.printf("   Lookup bytes: %.3f ms, %.2f ns/base (best of %d)\n", bytesTime / 1000000.0, (double)bytesTime / bases, REPEATS);
+        System.out.println("    Differences: "+differences);
+    }
+}
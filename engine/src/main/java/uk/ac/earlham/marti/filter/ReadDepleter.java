@@ -0,0 +1,87 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.filter;
+
+import java.io.IOException;
+import uk.ac.earlham.marti.core.MARTiEngineOptions;
+
+/**
+ * Removes reads that aren't worth classifying from the filtered chunks -
+ * reads that are mostly low complexity, and reads from the host.
+ *
+ * A read is low complexity if at least LowComplexityMaxFraction of it is
+ * masked by DustMasker. It is a host read if at least HostMinFraction of its
+ * minimizers are in the HostIndex. Masked bases are left out when finding
+ * minimizers, so repeats the host shares with everything else don't make a
+ * read look like host.
+ *
+ * @author Richard M. Leggett
+ */
+public class ReadDepleter {
+    public final static int KEEP = 0;
+    public final static int HOST = 1;
+    public final static int LOW_COMPLEXITY = 2;
+    // Too few minimizers to say where a read is from
+    private final static int MIN_MINIMIZERS = 10;
+    private MARTiEngineOptions options;
+    private HostIndex hostIndex = null;
+
+    public ReadDepleter(MARTiEngineOptions o) {
+        options = o;
+
+        if (options.getHostIndex() != null) {
+            try {
+                hostIndex = HostIndex.open(options.getHostIndex());
+                options.getLog().println("Host index " + options.getHostIndex() + " has " + hostIndex.getMinimizerCount() + " minimizers");
+            } catch (IOException e) {
+                System.out.println("Error opening host index " + options.getHostIndex());
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+    * Decide if a read should be classified.
+    *
+    * @param  seq     sequence as ASCII
+    * @param  length  sequence length
+    * @param  b       buffers of the filter thread calling
+    * @return KEEP, HOST or LOW_COMPLEXITY
+    */
+    public int check(byte[] seq, int length, ReadFilterBuffers b) {
+        byte[] mask = null;
+
+        if (options.isFilteringLowComplexity()) {
+            mask = b.getMaskBuffer(length);
+            int masked = b.getDustMasker().mask(seq, length, mask);
+            if (masked >= options.getLowComplexityMaxFraction() * length) {
+                return LOW_COMPLEXITY;
+            }
+        }
+
+        if (hostIndex != null) {
+            MinimizerScanner scanner = b.getMinimizerScanner(hostIndex.getK(), hostIndex.getW());
+            int minimizers = 0;
+            int hits = 0;
+
+            scanner.reset();
+            for (int i=0; i<length; i++) {
+                if (scanner.addBase(((mask != null) && (mask[i] != 0)) ? (byte)'N':seq[i])) {
+                    minimizers++;
+                    if (hostIndex.contains(scanner.getMinimizer())) {
+                        hits++;
+                    }
+                }
+            }
+
+            if ((minimizers >= MIN_MINIMIZERS) && (hits >= options.getHostMinFraction() * minimizers)) {
+                return HOST;
+            }
+        }
+
+        return KEEP;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.filter;
+
+/**
+ * Input and output buffers, and scratch space for read depletion, used by a
+ * filter thread. ReadFilterRunnable keeps a pool of these, one per busy
+ * thread, so they're reused from file to file.
+ *
+ * @author Richard M. Leggett
+ */
+public class ReadFilterBuffers {
+    private final static int OUTPUT_BUFFER_SIZE = 1 << 18;
+    private FastqReader reader = new FastqReader();
+    private byte[] fastqBuffer = new byte[OUTPUT_BUFFER_SIZE];
+    private byte[] fastaBuffer = new byte[OUTPUT_BUFFER_SIZE];
+    private byte[] maskBuffer = new byte[0];
+    private DustMasker dustMasker = new DustMasker();
+    private MinimizerScanner minimizerScanner = null;
+
+    public FastqReader getReader() {
+        return reader;
+    }
+
+    public byte[] getFastqBuffer() {
+        return fastqBuffer;
+    }
+
+    public byte[] getFastaBuffer() {
+        return fastaBuffer;
+    }
+
+    /**
+    * @param  length  bases needed
+    * @return buffer for a low complexity mask, at least length long
+    */
+    public byte[] getMaskBuffer(int length) {
+        if (maskBuffer.length < length) {
+            maskBuffer = new byte[Math.max(length, maskBuffer.length * 2)];
+        }
+        return maskBuffer;
+    }
+
+    public DustMasker getDustMasker() {
+        return dustMasker;
+    }
+
+    public MinimizerScanner getMinimizerScanner(int k, int w) {
+        if ((minimizerScanner == null) || (minimizerScanner.getK() != k) || (minimizerScanner.getW() != w)) {
+            minimizerScanner = new MinimizerScanner(k, w);
+        }
+        return minimizerScanner;
+    }
+}
@@ -18,13 +18,21 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import uk.ac.earlham.marti.core.FASTAQPairPendingList;
 import uk.ac.earlham.marti.core.MARTiEngineOptions;
 
 /**
- * The read filter thread class.
+ * The read filter thread class. Takes new files from the FileWatcher and queues
+ * them by barcode for a pool of ReadFilterWorker threads. Each barcode's
+ * ReadFilterSample is only ever worked on by one thread at a time, so its files
+ * are filtered, and its chunks numbered and closed, in the order they arrived.
  * 
  * @author Richard M. Leggett
  */
@@ -32,6 +40,10 @@ public class ReadFilterRunnable implements Runnable {
     private final static int MAX_BARCODES = MARTiEngineOptions.MAX_BARCODES;
     private final static int TYPE_FASTQ = 1;
     private final static int TYPE_FASTA = 2;
+    // How long to wait for a new file before checking for old chunks and time outs, in ms
+    private final static int PENDING_WAIT = 500;
+    // Most ms between checks for chunks past ChunkMaxAge, however busy the file queue is
+    private final static int AGE_CHECK_INTERVAL = 1000;
     private MARTiEngineOptions options;
     private FileWatcher fileWatcher;
     private boolean isNewStyleDir;
@@ -52,6 +64,12 @@ public class ReadFilterRunnable implements Runnable {
     private FASTAQPairPendingList pendingPairList = null;
     private ReadFilterSample[] samples = new ReadFilterSample[MAX_BARCODES+1];
     private boolean keepRunning = true;
+    private ThreadPoolExecutor filterExecutor = null;
+    private Hashtable<Integer, LinkedList<String>> queuedFiles = new Hashtable<Integer, LinkedList<String>>();
+    private Hashtable<Integer, Boolean> activeBarcodes = new Hashtable<Integer, Boolean>();
+    private int filesInProgress = 0;
+    private LinkedList<ReadFilterBuffers> bufferPool = new LinkedList<ReadFilterBuffers>();
+    private long lastAgeCheck = System.nanoTime();
     
     public ReadFilterRunnable(MARTiEngineOptions o, FileWatcher f, FASTAQPairPendingList pfl) {
         options = o;
@@ -211,7 +229,7 @@ public class ReadFilterRunnable implements Runnable {
             samples[barcode] = new ReadFilterSample(options, fileWatcher, pendingPairList, barcode);
         }
         
-        samples[barcode].processFile(fastqPathname);
+        queueFile(barcode, fastqPathname);
         
 //        try {
 //            String header;
@@ -274,6 +292,150 @@ public class ReadFilterRunnable implements Runnable {
 //        }
     }                
     
+    /**
+    * Queue a file for filtering, starting a worker for the barcode if it doesn't have one.
+    *
+    * @param  barcode       barcode
+    * @param  fastqPathname file to filter
+    */
+    private synchronized void queueFile(int barcode, String fastqPathname) {
+        LinkedList<String> queue = queuedFiles.get(barcode);
+        
+        if (queue == null) {
+            queue = new LinkedList<String>();
+            queuedFiles.put(barcode, queue);
+        }
+        
+        queue.add(fastqPathname);
+        filesInProgress++;
+        
+        if (!activeBarcodes.containsKey(barcode)) {
+            if (filterExecutor == null) {
+                int n = options.getReadFilterThreads();
+                filterExecutor = new ThreadPoolExecutor(n, n, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            }
+            
+            activeBarcodes.put(barcode, true);
+            filterExecutor.execute(new ReadFilterWorker(this, barcode));
+        }
+    }
+    
+    /**
+    * Get next queued file for a barcode. Called by ReadFilterWorker.
+    *
+    * @param  barcode  barcode
+    * @return next file, or null if there are none left, in which case the barcode is no longer active
+    */
+    synchronized String getNextQueuedFile(int barcode) {
+        LinkedList<String> queue = queuedFiles.get(barcode);
+        
+        if ((queue == null) || (queue.size() == 0)) {
+            activeBarcodes.remove(barcode);
+            return null;
+        }
+        
+        return queue.removeFirst();
+    }
+    
+    /**
+    * Filter a file. Called by ReadFilterWorker, which owns the barcode's sample while it runs.
+    *
+    * @param  barcode       barcode
+    * @param  fastqPathname file to filter
+    * @param  buffers       the worker's buffers
+    */
+    void filterFile(int barcode, String fastqPathname, ReadFilterBuffers buffers) {
+        samples[barcode].processFile(fastqPathname, buffers);
+        fileFiltered();
+    }
+    
+    /**
+    * Take a set of buffers from the pool. Called by ReadFilterWorker.
+    *
+    * @return buffers, new if none are free
+    */
+    synchronized ReadFilterBuffers getBuffers() {
+        if (bufferPool.size() > 0) {
+            return bufferPool.removeFirst();
+        }
+        
+        return new ReadFilterBuffers();
+    }
+    
+    /**
+    * Return buffers to the pool. Called by ReadFilterWorker.
+    *
+    * @param  buffers  buffers from getBuffers
+    */
+    synchronized void returnBuffers(ReadFilterBuffers buffers) {
+        bufferPool.add(buffers);
+    }
+    
+    /**
+    * Take ownership of a barcode's sample, if no worker is filtering it.
+    *
+    * @param  barcode  barcode
+    * @return true if claimed, in which case releaseBarcode must be called
+    */
+    private synchronized boolean claimIdleBarcode(int barcode) {
+        if (activeBarcodes.containsKey(barcode)) {
+            return false;
+        }
+        
+        activeBarcodes.put(barcode, true);
+        return true;
+    }
+    
+    /**
+    * Give up a barcode claimed with claimIdleBarcode, starting a worker if files were queued in the meantime.
+    *
+    * @param  barcode  barcode
+    */
+    private synchronized void releaseBarcode(int barcode) {
+        LinkedList<String> queue = queuedFiles.get(barcode);
+        
+        if ((queue != null) && (queue.size() > 0)) {
+            filterExecutor.execute(new ReadFilterWorker(this, barcode));
+        } else {
+            activeBarcodes.remove(barcode);
+        }
+    }
+    
+    /**
+    * Close any chunks that have passed ChunkMaxAge on barcodes no worker is filtering.
+    */
+    private void closeOldChunks() {
+        if (options.getChunkMaxAge() <= 0) {
+            return;
+        }
+        
+        lastAgeCheck = System.nanoTime();
+        for (int i=0; i<=MAX_BARCODES; i++) {
+            if ((samples[i] != null) && claimIdleBarcode(i)) {
+                samples[i].closeChunkIfTooOld();
+                releaseBarcode(i);
+            }
+        }
+    }
+    
+    private synchronized void fileFiltered() {
+        filesInProgress--;
+    }
+    
+    private synchronized int getFilesInProgress() {
+        return filesInProgress;
+    }
+    
+    private void waitForWorkers() {
+        while (getFilesInProgress() > 0) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(ReadFilterRunnable.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
     private boolean checkValidExtension(String filename) {
         boolean valid = false;
         if ((filename.toLowerCase().endsWith(".fastq")) || (filename.toLowerCase().endsWith(".fq"))) {
@@ -316,13 +478,9 @@ public class ReadFilterRunnable implements Runnable {
             
             // Get next file to process
             while ((fwi == null) && (!fileWatcher.timedOut()) && (options.getStopFlag() == false)) {
-                fwi = fileWatcher.getPendingFile();
-                if (fwi == null) {
-                    try {
-                        Thread.sleep(500);
-                    } catch (InterruptedException ex) {
-                        Logger.getLogger(ReadFilterRunnable.class.getName()).log(Level.SEVERE, null, ex);
-                    }
+                fwi = fileWatcher.getPendingFile(PENDING_WAIT);
+                if ((fwi == null) || ((System.nanoTime() - lastAgeCheck) / 1000000 >= AGE_CHECK_INTERVAL)) {
+                    closeOldChunks();
                 }
             }
             
@@ -335,6 +493,9 @@ public class ReadFilterRunnable implements Runnable {
             }
         }
         
+        options.getLog().println("ReadFilterRunnable waiting for filter threads");
+        waitForWorkers();
+        
         options.getLog().println("ReadFilterRunnable finalising");
         for (int i=0; i<MAX_BARCODES; i++) {
             if (samples[i] != null) {
@@ -343,6 +504,10 @@ public class ReadFilterRunnable implements Runnable {
         }
         // The above finalisation (closing of chunks) might have created more pending files
         processPendingFiles();
+        waitForWorkers();
+        if (filterExecutor != null) {
+            filterExecutor.shutdown();
+        }
         
 //        if (readCountInChunk > 0) {
 //            endChunks();
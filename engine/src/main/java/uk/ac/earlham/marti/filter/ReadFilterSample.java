@@ -26,16 +26,21 @@ public class ReadFilterSample {
     private int numberOfReadsProcessed = 0;
     private boolean writeFastq = true;
     private boolean writeFasta = true;
-    PrintWriter pwFastq = null;
-    PrintWriter pwFasta = null;
+    private ChunkWriter fastqWriter = null;
+    private ChunkWriter fastaWriter = null;
+    private ReadFilterBuffers buffers = null;
     private int chunkNumber = -1;
     private int readCountInChunk = 0;
     private long bpInChunk = 0;
+    private long maxBpInChunk = 0;
+    private long chunkStartTime = 0;
     private String currentFastqChunkFilename = null;
     private String currentFastaChunkFilename = null;
-    private ArrayList<Integer> allReadLengths = new ArrayList<Integer>();
-    private ArrayList<Integer> writtenReadLengths = new ArrayList<Integer>();
-    private ArrayList<Integer> chunkReadLengths = new ArrayList<Integer>();
+    private long allReadCount = 0;
+    private long allReadBp = 0;
+    private long writtenReadCount = 0;
+    private long writtenReadBp = 0;
+    private ChunkReadLengths chunkReadLengths = null;
     private int readsFilteredFromChunk = 0;
     private int readsFilteredTotal = 0;
     private FASTAQPairPendingList pendingPairList = null;
@@ -43,6 +48,20 @@ public class ReadFilterSample {
     private int barcode = 0;
     private SampleMetaData metaData = null;
     private ReadStatistics readStatistics = null;
+    private ChunkSizePolicy chunkSizePolicy = null;
+    private DuplicateReadFilter duplicateReadFilter = null;
+    private long duplicateReadsSkipped = 0;
+    private ReadDepleter readDepleter = null;
+    private long hostReadsDepleted = 0;
+    private long lowComplexityReadsDepleted = 0;
+    
+    // Error probability for each FASTQ quality character (Phred+33), so we don't need a pow per base
+    private final static double[] PHRED_ERROR = new double[256];
+    static {
+        for (int i=0; i<256; i++) {
+            PHRED_ERROR[i] = Math.pow(10.0, -((double)(i - 33) / (double)10.0));
+        }
+    }
     
     public ReadFilterSample(MARTiEngineOptions o, FileWatcher f, FASTAQPairPendingList pfl, int bc) {
         options = o;
@@ -54,6 +73,9 @@ public class ReadFilterSample {
             writeFasta = true;
         }
         readStatistics = options.getReadStatistics();
+        chunkSizePolicy = options.getChunkSizePolicy();
+        duplicateReadFilter = options.getDuplicateReadFilter();
+        readDepleter = options.getReadDepleter();
     }
 
     private String generateFastaFastqChunkPath(String fastqPathname, int type) {
@@ -117,14 +139,17 @@ public class ReadFilterSample {
     private void checkForNewChunk(String fastqFilename) {
         if (readCountInChunk == 0) {
             chunkNumber++;
-            chunkReadLengths = new ArrayList<Integer>();
+            chunkReadLengths = new ChunkReadLengths();
+            chunkStartTime = System.nanoTime();
+            maxBpInChunk = chunkSizePolicy.getMaxBases();
             readsFilteredFromChunk = 0;
                         
             if (writeFastq) {                
                 currentFastqChunkFilename = generateFastaFastqChunkPath(fastqFilename, TYPE_FASTQ);
                 options.getLog().println("Creating FASTQ chunk " + currentFastqChunkFilename + ".tmp");
                 try {
-                    pwFastq = new PrintWriter(new FileWriter(currentFastqChunkFilename + ".tmp"));
+                    fastqWriter = new ChunkWriter(currentFastqChunkFilename + ".tmp");
+                    fastqWriter.useBuffer(buffers.getFastqBuffer());
                 } catch (Exception e) {
                     System.out.println("Error opening "+currentFastqChunkFilename);
                     e.printStackTrace();
@@ -135,7 +160,8 @@ public class ReadFilterSample {
                 currentFastaChunkFilename = generateFastaFastqChunkPath(fastqFilename, TYPE_FASTA);
                 options.getLog().println("Creating FASTA chunk " + currentFastaChunkFilename + ".tmp");
                 try {
-                    pwFasta = new PrintWriter(new FileWriter(currentFastaChunkFilename + ".tmp"));
+                    fastaWriter = new ChunkWriter(currentFastaChunkFilename + ".tmp");
+                    fastaWriter.useBuffer(buffers.getFastaBuffer());
                 } catch (Exception e) {
                     System.out.println("Error opening "+currentFastaChunkFilename);
                     e.printStackTrace();
@@ -147,26 +173,68 @@ public class ReadFilterSample {
     }
     
     
-    private void writeFastq(String header, String seq, String plus, String qual) {
-        if (pwFastq != null) {
-            pwFastq.println(header);
-            pwFastq.println(seq);
-            pwFastq.println(plus);
-            pwFastq.println(qual);
+    private void writeFastq(FastqReader r) throws IOException {
+        if (fastqWriter != null) {
+            fastqWriter.writeFastq(r);
+        }
+    }
+    
+    private void writeFasta(FastqReader r) throws IOException {
+        if (fastaWriter != null) {
+            fastaWriter.writeFasta(r);
+        }
+    }
+    
+    private void useBuffers(ReadFilterBuffers b) throws IOException {
+        buffers = b;
+        if (fastqWriter != null) {
+            fastqWriter.useBuffer(b.getFastqBuffer());
+        }
+        if (fastaWriter != null) {
+            fastaWriter.useBuffer(b.getFastaBuffer());
+        }
+    }
+    
+    private void releaseBuffers() throws IOException {
+        buffers = null;
+        try {
+            if (fastqWriter != null) {
+                fastqWriter.releaseBuffer();
+            }
+        } finally {
+            if (fastaWriter != null) {
+                fastaWriter.releaseBuffer();
+            }
         }
     }
     
-    private void writeFasta(String header, String seq) {
-        if (pwFasta != null) {
-            pwFasta.println(">"+header.substring(1));
-            pwFasta.println(seq);
+    private long getChunkAge() {
+        return (System.nanoTime() - chunkStartTime) / 1000000;
+    }
+    
+    private boolean isChunkFull() {
+        return (readCountInChunk >= options.getReadsPerBlast()) ||
+               ((maxBpInChunk > 0) && (bpInChunk >= maxBpInChunk)) ||
+               chunkSizePolicy.isTooOld(getChunkAge());
+    }
+    
+    /**
+    * Close the current chunk if it has been open for longer than ChunkMaxAge,
+    * so a barcode that has stopped receiving reads still gets its results.
+    * Only called while no filter thread is working on the sample.
+    */
+    public void closeChunkIfTooOld() {
+        if ((readCountInChunk > 0) && (stopProcessingChunks == false) && chunkSizePolicy.isTooOld(getChunkAge())) {
+            options.getLog().println("Closing chunk " + currentFastaChunkFilename + " after " + getChunkAge() + " ms");
+            endChunks();
         }
     }
     
     private synchronized void endChunks() {
         try {
-            if (pwFastq != null) {
-                pwFastq.close();
+            if (fastqWriter != null) {
+                fastqWriter.close();
+                fastqWriter = null;
                 options.getLog().println("Removing .tmp from " + currentFastqChunkFilename + ".tmp");
                 Path source = Paths.get(currentFastqChunkFilename + ".tmp");
                 Path dest = Paths.get(currentFastqChunkFilename);
@@ -182,8 +250,9 @@ public class ReadFilterSample {
                 options.getLog().println("No FASTQ to move");
             }
 
-            if (pwFasta != null) {
-                pwFasta.close();
+            if (fastaWriter != null) {
+                fastaWriter.close();
+                fastaWriter = null;
                 options.getLog().println("Removing .tmp from " + currentFastaChunkFilename + ".tmp");
                 Path source = Paths.get(currentFastaChunkFilename + ".tmp");
                 Path dest = Paths.get(currentFastaChunkFilename);
@@ -201,13 +270,24 @@ public class ReadFilterSample {
             
             options.getLog().println("Moves complete.");
 
+            // Once a read is in a closed chunk, its ID must survive a restart
+            if (duplicateReadFilter != null) {
+                duplicateReadFilter.chunkClosed(barcode);
+            }
+
+            // Lengths must be there before the chunk can be picked up for classifying
+            if (options.isClassifyingReads()) {
+                readStatistics.registerChunk(currentFastaChunkFilename, chunkReadLengths);
+            }
+            chunkReadLengths = null;
+
             metaData.registerFilteredFastaChunk(currentFastaChunkFilename, readCountInChunk, bpInChunk);
-            metaData.writeSampleJSON(false);
+            metaData.requestSampleJSONWrite();
 
             options.getLog().println("Now to add to pending pair list");
             pendingPairList.addPendingPair(currentFastaChunkFilename, currentFastqChunkFilename);
             
-            double meanLength = getMeanReadLength(chunkReadLengths);
+            double meanLength = getMeanReadLength(bpInChunk, readCountInChunk);
             options.getLog().println("Chunk mean read length = "+meanLength+" for "+currentFastaChunkFilename);
             options.getLog().println("Reads filtered from chunk = "+readsFilteredFromChunk);
 
@@ -215,7 +295,7 @@ public class ReadFilterSample {
             bpInChunk = 0l;
             
             if (options.getStopProcessingAfter() > 0) {
-                if (writtenReadLengths.size() >= options.getStopProcessingAfter()) {
+                if (writtenReadCount >= options.getStopProcessingAfter()) {
                     options.getLog().println("Got enough reads, so stopping ");
 
                     stopProcessingChunks = true;
@@ -236,28 +316,48 @@ public class ReadFilterSample {
         }
     }
     
-    private double calculateMeanQuality(String qual) {
-        long totalQ = 0;
-        double totalProb = 0;              
+    /**
+    * Mean quality of a read, calculated from the mean error probability of its bases.
+    *
+    * @param  qual  FASTQ quality string
+    * @return mean quality
+    */
+    static double calculateMeanQuality(CharSequence qual) {
+        int length = qual.length();
+        double totalProb = 0;
         
-        for (int i=0; i<qual.length(); i++) {
-            int qScore = (int)qual.charAt(i) - 33;
-            double prob = Math.pow(10.0, -((double)qScore / (double)10.0));
-            
-            totalQ += qScore;
-            totalProb += prob;
+        for (int i=0; i<length; i++) {
+            totalProb += PHRED_ERROR[qual.charAt(i) & 0xFF];
         }
 
-        double meanProb = totalProb / qual.length();        
-        double meanQFromP = -10 * Math.log10(meanProb);        
-        double meanQ = (double)totalQ / (double)qual.length();
+        return -10 * Math.log10(totalProb / length);
+    }
+    
+    /**
+    * Mean quality of a read, calculated from the quality bytes as read from the FASTQ.
+    *
+    * @param  qual    buffer holding quality line
+    * @param  offset  offset of first quality byte
+    * @param  length  number of quality bytes
+    * @return mean quality
+    */
+    static double calculateMeanQuality(byte[] qual, int offset, int length) {
+        double totalProb = 0;
         
-        //System.out.println("meanQFromP "+meanQFromP + " meanQ "+meanQ);
-                        
-        return meanQFromP;
+        for (int i=offset; i<offset+length; i++) {
+            totalProb += PHRED_ERROR[qual[i] & 0xFF];
+        }
+
+        return -10 * Math.log10(totalProb / length);
     }
 
-    public void processFile(String fastqPathname) {
+    /**
+    * Filter a file, writing passed reads to the current chunks.
+    *
+    * @param  fastqPathname  FASTQ file, which may be gzipped
+    * @param  b              buffers of the filter thread calling
+    */
+    public void processFile(String fastqPathname, ReadFilterBuffers b) {
         boolean processThis = true;
         
         //if (options.runBlastCommand() == false) {
@@ -266,7 +366,7 @@ public class ReadFilterSample {
         //}        
         
         if(metaData.getSequencingTimeString() == "") {
-            metaData.setDateFromSequenceFile(fastqPathname);
+            metaData.setDateFromSequenceFile(fastqPathname, b.getReader());
         }
         
         if (stopProcessingChunks) {
@@ -278,104 +378,84 @@ public class ReadFilterSample {
             options.getLog().printlnLogAndScreen("Processing file (RFS) "+fastqPathname);
 
             try {
-                String header;
-                BufferedReader br = null;
-                InputStream fileStream = null;
-                InputStream gzipStream = null;
-                Reader decoder = null;
+                FastqReader reader = b.getReader();
+                long duplicatesBefore = duplicateReadsSkipped;
+                InputStream is = FastqReader.openInputStream(fastqPathname);
                 
-                if (fastqPathname.toLowerCase().endsWith(".fastq") ||
-                    fastqPathname.toLowerCase().endsWith(".fq")) {                
-                    br = new BufferedReader(new FileReader(fastqPathname));
-                    if (br == null) {
-                        options.getLog().printlnLogAndScreen("Couldn't open file "+fastqPathname);
-                        System.exit(1);
-                    }
-                } else if ( fastqPathname.toLowerCase().endsWith(".fastq.gz") ||
-                            fastqPathname.toLowerCase().endsWith(".fq.gz")) {
-                    fileStream = new FileInputStream(fastqPathname);
-                    if (fileStream != null) {
-                        gzipStream = new GZIPInputStream(fileStream);
-                        if (gzipStream != null) {
-                            decoder = new InputStreamReader(gzipStream, "US-ASCII");
-                            if (decoder != null) {
-                                br = new BufferedReader(decoder);                      
-
-                                if (br == null) {
-                                    options.getLog().printlnLogAndScreen("Couldn't open file "+fastqPathname);
-                                    System.exit(1);
-                                }
-                            } else {
-                                options.getLog().printlnLogAndScreen("Couldn't open decoder for "+fastqPathname);
-                                System.exit(1);
-                            }
-                        } else {
-                            options.getLog().printlnLogAndScreen("Couldn't open GZIP stream for "+fastqPathname);
-                            System.exit(1);
-                        }
-                    } else {
-                        options.getLog().printlnLogAndScreen("Couldn't open filestream for "+fastqPathname);
-                        System.exit(1);
-                    }
-                } else {
+                if (is == null) {
                     options.getLog().printlnLogAndScreen("Unknown suffix for "+fastqPathname);
                     System.exit(1);
                 }
                 
-                if (br == null) {
-                    options.getLog().printlnLogAndScreen("Ooops shouldn't have got to here without a .fastq or a .fq or a .fastq.gz or a .fq.gz");
-                    System.exit(1);
-                }
+                reader.open(is);
+                useBuffers(b);
                                 
-                while (((header = br.readLine()) != null) && (stopProcessingChunks == false)) {
-                    if (header.startsWith("@")) {
-                        String seq = br.readLine();
-                        String plus = br.readLine();
-                        String qual = br.readLine();
+                while ((stopProcessingChunks == false) && reader.nextRecord()) {
+                    if (reader.hasHeader()) {
                         boolean readPassedFilter = true;
-                        String readID = header.split(" ")[0].substring(1);
+                        int depletion = ReadDepleter.KEEP;
                         
-                        if (plus.equals("+")) {                        
-                            double meanQ = calculateMeanQuality(qual);
-                            allReadLengths.add(seq.length());
+                        if (reader.hasSeparator()) {
+                            long readIdHash = ChunkReadLengths.hash(reader.getHeader(), 1, reader.getReadIdLength());
+                            if ((duplicateReadFilter != null) && !duplicateReadFilter.addReadId(barcode, readIdHash)) {
+                                duplicateReadsSkipped++;
+                                continue;
+                            }
+
+                            int seqLength = reader.getSequenceLength();
+                            double meanQ = calculateMeanQuality(reader.getQuality(), 0, reader.getQualityLength());
+                            allReadCount++;
+                            allReadBp += seqLength;
+                            boolean passedQuality = (meanQ >= options.getReadFilterMinQ()) &&
+                                                    (seqLength >= options.getReadFilterMinLength());
+
+                            if (passedQuality && (readDepleter != null)) {
+                                depletion = readDepleter.check(reader.getSequence(), seqLength, buffers);
+                            }
 
-                            if ((meanQ >= options.getReadFilterMinQ()) &&
-                                (seq.length() >= options.getReadFilterMinLength()))
-                            {                        
+                            if (passedQuality && (depletion == ReadDepleter.KEEP)) {                        
                                 checkForNewChunk(fastqPathname);
 
                                 if (writeFastq) {
-                                    writeFastq(header, seq, plus, qual);
+                                    writeFastq(reader);
                                 }
 
                                 if (writeFasta) {
-                                    writeFasta(header, seq);
+                                    writeFasta(reader);
                                 }
 
                                 readCountInChunk++;
-                                bpInChunk += seq.length();
-                                writtenReadLengths.add(seq.length());
-                                chunkReadLengths.add(seq.length());
-                                readStatistics.addReadLength(barcode, readID,seq.length(), true);
+                                bpInChunk += seqLength;
+                                writtenReadCount++;
+                                writtenReadBp += seqLength;
+                                readStatistics.addReadLength(barcode, seqLength, true);
+                                if (!chunkReadLengths.put(readIdHash, seqLength)) {
+                                    options.getLog().printlnLogAndScreen("Warning: Duplicate pass read/sequence ID: " + reader.getReadId());
+                                    options.getLog().printlnLogAndScreen("Results based on read length may not be accurate.");
+                                }
 
-                                if (readCountInChunk == options.getReadsPerBlast()) {
+                                if (isChunkFull()) {
                                     endChunks();
                                 }                            
+                            } else if (passedQuality) {
+                                if (depletion == ReadDepleter.HOST) {
+                                    hostReadsDepleted++;
+                                } else {
+                                    lowComplexityReadsDepleted++;
+                                }
+                                // Not in the pass read lengths, as it won't be classified
                             } else {
-                                //if ((meanQ < options.getReadFilterMinQ()) && (seq.length() < options.getReadFilterMinLength())) {
-                                //    options.getLog().println("Failed filter on Q and length");
-                                //} else if (meanQ < options.getReadFilterMinQ()) {
-                                //    options.getLog().println("Failed filter on just Q");
-                                //} else if (seq.length() < options.getReadFilterMinLength()) {
-                                //    options.getLog().println("Failed filter on just length");                            
-                                //}
                                 readsFilteredFromChunk++;
                                 readsFilteredTotal++;
                                 readPassedFilter = false;
-                                readStatistics.addReadLength(barcode, readID,seq.length(), false);
+                                readStatistics.addReadLength(barcode, seqLength, false);
                             }
 
-                            metaData.registerNewInputRead(seq.length(), meanQ, readPassedFilter);
+                            if (depletion == ReadDepleter.KEEP) {
+                                metaData.registerNewInputRead(seqLength, meanQ, readPassedFilter);
+                            } else {
+                                metaData.registerDepletedRead(seqLength, meanQ, depletion == ReadDepleter.HOST);
+                            }
                             
                             numberOfReadsProcessed++;
                         } else {
@@ -385,17 +465,27 @@ public class ReadFilterSample {
                         System.out.println("ERROR: Badly formatted FASTQ file: "+fastqPathname);
                     }
                 }
-                br.close();
+                reader.close();
+                releaseBuffers();
                 
-                if (fastqPathname.toLowerCase().endsWith(".gz")) {
-                    decoder.close();
-                    gzipStream.close();
-                    fileStream.close();
+                if (duplicateReadsSkipped > duplicatesBefore) {
+                    options.getLog().printlnLogAndScreen("Skipped " + (duplicateReadsSkipped - duplicatesBefore) + " duplicate reads in " + fastqPathname);
                 }
+                
                 options.getProgressReport().markRawFileProcessed(fastqPathname);
             } catch (IOException e) {
                 System.out.println("runConvertFastQ exception");
                 e.printStackTrace();
+            } finally {
+                // The buffers go back to the pool, so make sure the chunks aren't left holding them
+                if (buffers != null) {
+                    try {
+                        releaseBuffers();
+                    } catch (IOException e) {
+                        System.out.println("Error writing chunk for "+fastqPathname);
+                        e.printStackTrace();
+                    }
+                }
             }
                         
             options.getProgressReport().recordCompleted("filter_"+fastqPathname);
@@ -440,17 +530,8 @@ public class ReadFilterSample {
 //        options.getLog().println("Mean read length (written) = "+meanLength);
 //    }
     
-    private double getMeanReadLength(ArrayList<Integer> lengths) {
-        double mean = 0;
-        long total = 0;
-        
-        for (int i=0; i<lengths.size(); i++) {
-            total += lengths.get(i);
-        }
-        
-        mean = (double)total / (double)lengths.size();
-        
-        return mean;
+    private double getMeanReadLength(long bp, long count) {
+        return (double)bp / (double)count;
     }
     
     public int getPendingCount() {
@@ -461,13 +542,23 @@ public class ReadFilterSample {
         if (readCountInChunk > 0) {
             endChunks();
         }
+        
+        // Reads since the last chunk were all filtered out
+        if (duplicateReadFilter != null) {
+            duplicateReadFilter.chunkClosed(barcode);
+        }
     }
     
     public void outputStats() {         
         options.getLog().println("Barcode " + barcode + " Total reads filtered "+readsFilteredTotal);        
-        double meanLength = getMeanReadLength(allReadLengths);
+        options.getLog().println("Barcode " + barcode + " Duplicate reads skipped "+duplicateReadsSkipped);
+        if (readDepleter != null) {
+            options.getLog().println("Barcode " + barcode + " Host reads removed "+hostReadsDepleted);
+            options.getLog().println("Barcode " + barcode + " Low complexity reads removed "+lowComplexityReadsDepleted);
+        }
+        double meanLength = getMeanReadLength(allReadBp, allReadCount);
         options.getLog().println("Barcode " + barcode + " Mean read length (all) = "+meanLength);
-        meanLength = getMeanReadLength(writtenReadLengths);
+        meanLength = getMeanReadLength(writtenReadBp, writtenReadCount);
         options.getLog().println("Barcode " + barcode + " Mean read length (written) = "+meanLength);
     }
     
@@ -0,0 +1,37 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.filter;
+
+/**
+ * Read filter thread for one barcode - works through the barcode's queued files
+ * in order until there are none left.
+ * 
+ * @author Richard M. Leggett
+ */
+public class ReadFilterWorker implements Runnable {
+    private ReadFilterRunnable readFilter;
+    private int barcode;
+    
+    public ReadFilterWorker(ReadFilterRunnable rf, int bc) {
+        readFilter = rf;
+        barcode = bc;
+    }
+    
+    public void run() {
+        ReadFilterBuffers buffers = readFilter.getBuffers();
+        String pathname;
+        
+        try {
+            while ((pathname = readFilter.getNextQueuedFile(barcode)) != null) {
+                readFilter.filterFile(barcode, pathname, buffers);
+            }
+            readFilter.returnBuffers(buffers);
+        } catch (Exception e) {
+            System.out.println("ReadFilterWorker exception:");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
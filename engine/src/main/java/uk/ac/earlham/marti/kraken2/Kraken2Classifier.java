@@ -6,22 +6,24 @@ package uk.ac.earlham.marti.kraken2;
 
 import java.io.File;
 import java.util.Hashtable;
-import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
 import uk.ac.earlham.marti.core.MARTiEngineOptions;
 import uk.ac.earlham.marti.core.MARTiLog;
 import uk.ac.earlham.marti.core.SampleMetaData;
+import uk.ac.earlham.marti.schedule.JobCompletionListener;
 import uk.ac.earlham.marti.schedule.JobScheduler;
 
 /**
  *
  * @author martins
  */
-public class Kraken2Classifier {
+public class Kraken2Classifier implements JobCompletionListener {
     private MARTiEngineOptions options;
     private Hashtable<Integer, Kraken2ClassifierItem> pendingFiles = new Hashtable<Integer, Kraken2ClassifierItem>();
     private Hashtable<String, Integer> barcodes = new Hashtable<String, Integer>();
-    private ConcurrentLinkedQueue<String> fileCompressionQueue = null;
+    private LinkedBlockingQueue<String> fileCompressionQueue = null;
+    private LinkedBlockingQueue<Integer> finishedJobs = new LinkedBlockingQueue<Integer>();
     private int filesProcessed = 0;
     private int fileCount = 0;
     
@@ -49,6 +51,11 @@ public class Kraken2Classifier {
             pendingFiles.put(id, new Kraken2ClassifierItem(kraken2ProcessName, id, queryFilename, classificationFilename));
             fileCount++;
 
+            // Job may have finished before we were given it
+            if (options.getJobScheduler().checkJobCompleted(id)) {
+                finishedJobs.add(id);
+            }
+
             if (classificationFilename.contains("barcode")) {
                 String bcString = classificationFilename.substring(classificationFilename.indexOf("barcode"), classificationFilename.indexOf("barcode")+9);
                 if (!barcodes.containsKey(bcString)) {
@@ -58,7 +65,7 @@ public class Kraken2Classifier {
         }
     }
     
-    public void setFileCompressionQueue(ConcurrentLinkedQueue<String> queue) {
+    public void setFileCompressionQueue(LinkedBlockingQueue<String> queue) {
         if(fileCompressionQueue == null) {
             fileCompressionQueue = queue;
         } else {
@@ -75,19 +82,22 @@ public class Kraken2Classifier {
         return true;
     }
     
+    public void jobFinished(int jobId) {
+        finishedJobs.add(jobId);
+    }
+    
     public synchronized void checkForFilesToClassify() {
         JobScheduler js = options.getJobScheduler();
-        Set<Integer> asSet = pendingFiles.keySet();
-        Integer[] ids = asSet.toArray(new Integer[asSet.size()]);        
+        LinkedList<Integer> ids = new LinkedList<Integer>();
+        finishedJobs.drainTo(ids);
 
-        options.getLog().println(MARTiLog.LOGLEVEL_CHECKFORFILESTOCLASSIFY, "In checkForFilesToClassify Kraken2 - size "+ids.length);
+        options.getLog().println(MARTiLog.LOGLEVEL_CHECKFORFILESTOCLASSIFY, "In checkForFilesToClassify Kraken2 - "+ids.size()+" finished of "+pendingFiles.size());
         
-        for(int i=0; i<ids.length; i++) {
-            int thisId = ids[i];
+        for (int thisId : ids) {
             Kraken2ClassifierItem f = pendingFiles.get(thisId);
             
-            // Check if job completed
-            if (js.checkJobCompleted(thisId)) {
+            // Check if job completed, and is one of ours
+            if ((f != null) && js.checkJobCompleted(thisId)) {
                 // Check if Centrifuge completed ok
                 if (checkKraken2Completed(f, js.getExitValue(thisId))) {                        
                     
@@ -124,7 +134,7 @@ public class Kraken2Classifier {
                     filesProcessed++;
                     pendingFiles.remove(thisId);
                     options.getProgressReport().incrementKraken2ChunksParsedCount();
-                    md.writeSampleJSON(false);
+                    md.requestSampleJSONWrite();
                                   
                 }
             }
@@ -12,6 +12,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import uk.ac.earlham.marti.core.MARTiEngineOptions;
 import uk.ac.earlham.marti.schedule.JobScheduler;
+import uk.ac.earlham.marti.schedule.SimpleJobScheduler;
 import uk.ac.earlham.marti.schedule.SlurmScheduler;
 
 /**
@@ -104,11 +105,14 @@ public class Kraken2Handler {
                     boolean runIt = options.runBlastCommand();
                     
                     String[] commandString = commands.toArray(new String[commands.size()]);
-                    jobid = jobScheduler.submitJob(identifier, commandString, logFilePath, runIt);
-                    if (jobScheduler instanceof SlurmScheduler) {
-                        ((SlurmScheduler) jobScheduler).setCPUs(jobid, k2p.getNumThreads());
-                        ((SlurmScheduler) jobScheduler).setJobMemory(jobid, k2p.getMemory());
-                        ((SlurmScheduler) jobScheduler).setQueue(jobid, k2p.getJobQueue());
+                    if (jobScheduler instanceof SimpleJobScheduler) {
+                        int priority = k2p.useForClassifying() ? SimpleJobScheduler.PRIORITY_HIGH:SimpleJobScheduler.PRIORITY_NORMAL;
+                        long memory = Math.max(0, SimpleJobScheduler.parseMemory(k2p.getMemory()));
+                        jobid = ((SimpleJobScheduler) jobScheduler).submitJob(identifier, commandString, logFilePath, runIt, k2p.getNumThreads(), memory, priority);
+                    } else if (jobScheduler instanceof SlurmScheduler) {
+                        jobid = ((SlurmScheduler) jobScheduler).submitJob(identifier, commandString, logFilePath, runIt, k2p.getNumThreads(), k2p.getMemory(), k2p.getJobQueue(), null);
+                    } else {
+                        jobid = jobScheduler.submitJob(identifier, commandString, logFilePath, runIt);
                     }
                     
                     if (k2p.useForClassifying()) {
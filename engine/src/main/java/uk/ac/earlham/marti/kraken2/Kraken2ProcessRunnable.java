@@ -4,8 +4,6 @@
  */
 package uk.ac.earlham.marti.kraken2;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import uk.ac.earlham.marti.core.FASTAQPair;
 import uk.ac.earlham.marti.core.FASTAQPairPendingList;
 import uk.ac.earlham.marti.core.MARTiEngineOptions;
@@ -16,6 +14,7 @@ import uk.ac.earlham.marti.core.ProcessLogger;
  * @author martins
  */
 public class Kraken2ProcessRunnable implements Runnable {
+    private final static int PENDING_WAIT = 500;
     private MARTiEngineOptions options;
     private FASTAQPairPendingList pendingFileList = null;
     private boolean keepRunning = true;
@@ -59,14 +58,7 @@ public class Kraken2ProcessRunnable implements Runnable {
             FASTAQPair fa = null;
             // Get next file to process
            while ((fa == null) && (keepRunning)) {
-                fa = pendingFileList.getKraken2PendingPair();
-                if (fa == null) {
-                    try {
-                        Thread.sleep(500);
-                    } catch (InterruptedException ex) {
-                        Logger.getLogger(Kraken2ProcessRunnable.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                }
+                fa = pendingFileList.getKraken2PendingPair(PENDING_WAIT);
             }   
             if (fa != null) {            
                 String pendingFile = fa.getFastq();
@@ -0,0 +1,22 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.schedule;
+
+/**
+ * Told by a JobScheduler when one of its jobs finishes, so results can be
+ * picked up without polling every outstanding job.
+ *
+ * @author Richard M. Leggett
+ */
+public interface JobCompletionListener {
+    /**
+    * Called when a job has completed or failed. It may be called from a
+    * process exit thread, with the scheduler locked, so it should only note
+    * the ID and return - the scheduler can already report the job's state.
+    *
+    * @param  jobId  ID of job
+    */
+    public void jobFinished(int jobId);
+}
@@ -21,7 +21,9 @@ public interface JobScheduler {
     public boolean checkJobCompleted(int i);
     public boolean checkJobFailed(int i);
     public int getExitValue(int i);
+    public long getJobRunTime(int i);
     public void markJobAsFailed(int i);
-    public void resubmitJobIfPossible(int i);
+    public boolean resubmitJobIfPossible(int i);
     public MARTiLog getSchedulerLog();
+    public void addJobCompletionListener(JobCompletionListener l);
 }
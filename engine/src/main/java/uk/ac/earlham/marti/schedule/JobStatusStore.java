@@ -0,0 +1,94 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.schedule;
+
+import java.util.Arrays;
+
+/**
+ * Completion, failure, exit value and run time of finished jobs, indexed by
+ * job ID. Held in primitive arrays that double in size as IDs outgrow them,
+ * so there's no limit on the number of jobs in a run and no object per job.
+ *
+ * @author Richard M. Leggett
+ */
+public class JobStatusStore {
+    private final static int INITIAL_CAPACITY = 1 << 12;
+    private final static byte COMPLETED = 1;
+    private final static byte FAILED = 2;
+    private byte[] flags = new byte[INITIAL_CAPACITY];
+    private int[] exitValues = new int[INITIAL_CAPACITY];
+    private long[] runTimes = new long[INITIAL_CAPACITY];
+
+    public JobStatusStore() {
+        Arrays.fill(runTimes, -1);
+    }
+
+    private void ensureCapacity(int id) {
+        if (id >= flags.length) {
+            int oldLength = flags.length;
+            int newLength = Math.max(oldLength * 2, id + 1);
+
+            flags = Arrays.copyOf(flags, newLength);
+            exitValues = Arrays.copyOf(exitValues, newLength);
+            runTimes = Arrays.copyOf(runTimes, newLength);
+            Arrays.fill(runTimes, oldLength, newLength, -1);
+        }
+    }
+
+    private boolean hasFlag(int id, byte flag) {
+        return (id >= 0) && (id < flags.length) && ((flags[id] & flag) != 0);
+    }
+
+    /**
+    * Record a job finishing.
+    *
+    * @param  id         job ID
+    * @param  exitValue  exit value of job
+    * @param  runTime    run time in ms, or -1 if not known
+    */
+    public void markCompleted(int id, int exitValue, long runTime) {
+        ensureCapacity(id);
+        flags[id] |= COMPLETED;
+        exitValues[id] = exitValue;
+        runTimes[id] = runTime;
+    }
+
+    /**
+    * @param  id  job ID
+    * @return true if the job wasn't already marked as failed
+    */
+    public boolean markFailed(int id) {
+        ensureCapacity(id);
+        if ((flags[id] & FAILED) != 0) {
+            return false;
+        }
+        flags[id] |= FAILED;
+        return true;
+    }
+
+    public boolean isCompleted(int id) {
+        return hasFlag(id, COMPLETED);
+    }
+
+    public boolean isFailed(int id) {
+        return hasFlag(id, FAILED);
+    }
+
+    /**
+    * @param  id  job ID
+    * @return exit value, or 0 if the job hasn't finished
+    */
+    public int getExitValue(int id) {
+        return isCompleted(id) ? exitValues[id]:0;
+    }
+
+    /**
+    * @param  id  job ID
+    * @return run time in ms, or -1 if the job hasn't finished
+    */
+    public long getRunTime(int id) {
+        return isCompleted(id) ? runTimes[id]:-1;
+    }
+}
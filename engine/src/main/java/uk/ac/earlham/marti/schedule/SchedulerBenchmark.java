@@ -0,0 +1,96 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.schedule;
+
+import java.io.File;
+import uk.ac.earlham.marti.core.MARTiEngineOptions;
+
+/**
+ * Stress the local scheduler with a large number of jobs that finish as soon
+ * as they are started, submitted as chains in which each job depends on the
+ * one before, and time how long it takes to submit and then drain them.
+ *
+ * @author Richard M. Leggett
+ */
+public class SchedulerBenchmark {
+    private final static int CHAIN_LENGTH = 10;
+    private final static int MAX_JOBS = 8;
+    private static int jobsStartedEarly = 0;
+
+    // Finishes immediately, and checks its dependencies really did finish first
+    private static class BenchmarkJob extends SimpleJobSchedulerJob {
+        private SimpleJobScheduler scheduler;
+
+        public BenchmarkJob(MARTiEngineOptions o, SimpleJobScheduler s) {
+            super(o, "benchmark", new String[] {"true"}, null, true);
+            scheduler = s;
+        }
+
+        @Override
+        public void run() {
+            for (int i=0; i<getNumberOfDependencies(); i++) {
+                if (!scheduler.checkJobCompleted(getDependency(i))) {
+                    jobsStartedEarly++;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasFinished() {
+            return true;
+        }
+    }
+
+    public static void run(MARTiEngineOptions options, int jobCount) {
+        SimpleJobScheduler scheduler = null;
+
+        try {
+            File logFile = File.createTempFile("marti_scheduler", ".txt");
+            logFile.deleteOnExit();
+            scheduler = new SimpleJobScheduler(MAX_JOBS, options, logFile.getPath());
+            scheduler.getSchedulerLog().setLogLevel(0);
+            scheduler.setResourceBudget(MAX_JOBS, 0);
+        } catch (Exception e) {
+            System.out.println("Error creating scheduler log");
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.out.println("Submitting "+jobCount+" jobs in chains of "+CHAIN_LENGTH);
+        long startTime = System.nanoTime();
+        int previousId = -1;
+        for (int i=0; i<jobCount; i++) {
+            BenchmarkJob j = new BenchmarkJob(options, scheduler);
+            if (i % CHAIN_LENGTH != 0) {
+                j.addDependency(previousId);
+            }
+            previousId = scheduler.submitJob(j);
+        }
+        long submitTime = (System.nanoTime() - startTime) / 1000000;
+        System.out.println("    Submitted in "+submitTime+"ms");
+
+        System.out.println("Running with "+MAX_JOBS+" slots");
+        startTime = System.nanoTime();
+        long passes = 0;
+        while ((scheduler.getPendingJobCount() > 0) || (scheduler.getRunningJobCount() > 0)) {
+            scheduler.manageQueue();
+            passes++;
+        }
+        long runTime = (System.nanoTime() - startTime) / 1000000;
+        System.out.println("    Ran in "+runTime+"ms over "+passes+" passes of the queue");
+
+        int completed = 0;
+        for (int i=1; i<=jobCount; i++) {
+            if (scheduler.checkJobCompleted(i)) {
+                completed++;
+            }
+        }
+
+        System.out.println("Completed "+completed+" of "+jobCount+" jobs, "+jobsStartedEarly+" started before a dependency finished");
+        if (runTime > 0) {
+            System.out.println("Throughput "+((long)jobCount * 1000 / runTime)+" jobs/s");
+        }
+    }
+}
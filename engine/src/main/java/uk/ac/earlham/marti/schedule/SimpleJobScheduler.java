@@ -7,41 +7,138 @@ package uk.ac.earlham.marti.schedule;
 import com.sun.management.OperatingSystemMXBean;
 import java.lang.management.ManagementFactory;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.concurrent.ConcurrentHashMap;
 import uk.ac.earlham.marti.core.MARTiEngineOptions;
 import uk.ac.earlham.marti.core.MARTiLog;
 
 /**
  * Local job scheduler.
  * 
+ * Jobs whose dependencies have all completed wait in a first in, first out
+ * ready queue. A job with outstanding dependencies is instead listed against
+ * each job it's waiting for, and moves to the ready queue when the last of
+ * them finishes, so dependencies are only looked at when something changes.
+ * 
+ * Running jobs tell the scheduler when their process exits, so the slot is
+ * refilled straight away rather than at the next pass of the main loop.
+ * 
+ * Each job declares the threads and memory it needs, and only starts when
+ * they fit in what's left of the CPU and memory budget. Ready jobs are taken
+ * in priority order. Within a priority, the job that makes most use of the
+ * free threads is chosen from the first few waiting. A job that keeps being
+ * passed over eventually holds back everything behind it until it can start,
+ * so large jobs aren't starved by a stream of small ones.
+ * 
  * @author Richard M. Leggett
  */
 public class SimpleJobScheduler implements JobScheduler {
-    private static final int MAX_QUICK_JOB_ID = 100000;
-    private ConcurrentHashMap<Integer, SimpleJobSchedulerJob> allJobs = new ConcurrentHashMap<Integer, SimpleJobSchedulerJob>();
-    private ConcurrentHashMap<Integer, SimpleJobSchedulerJob> failedJobs = new ConcurrentHashMap<Integer, SimpleJobSchedulerJob>();
-    private LinkedList<SimpleJobSchedulerJob> pendingJobs = new LinkedList<SimpleJobSchedulerJob>();
+    public final static int PRIORITY_HIGH = 0;
+    public final static int PRIORITY_NORMAL = 1;
+    private final static int PRIORITY_LEVELS = 2;
+    // Number of ready jobs looked at for the best fit
+    private final static int BEST_FIT_WINDOW = 16;
+    private final static int MAX_TIMES_PASSED_OVER = 8;
+    private ArrayList<LinkedList<SimpleJobSchedulerJob>> readyJobs = new ArrayList<LinkedList<SimpleJobSchedulerJob>>();
+    private int readyJobCount = 0;
+    private Hashtable<Integer, LinkedList<SimpleJobSchedulerJob>> dependentJobs = new Hashtable<Integer, LinkedList<SimpleJobSchedulerJob>>();
+    private int waitingJobCount = 0;
     private LinkedList<SimpleJobSchedulerJob> runningJobs = new LinkedList<SimpleJobSchedulerJob>();
+    private JobStatusStore jobStatus = new JobStatusStore();
+    private int failedJobCount = 0;
+    private LinkedList<JobCompletionListener> completionListeners = new LinkedList<JobCompletionListener>();
     //private LinkedList<SimpleJobSchedulerJob> failedJobs = new LinkedList<SimpleJobSchedulerJob>();
     //private LinkedList<SimpleJobSchedulerJob> finishedJobs = new LinkedList<SimpleJobSchedulerJob>();
     private MARTiLog schedulerLog = new MARTiLog();
     private MARTiEngineOptions options;
     private int maxJobs = 4;
+    private int maxCPUs;
+    private long maxMemory; // Mb
+    private int cpusInUse = 0;
+    private long memoryInUse = 0;
     private int jobId = 1;
     private boolean dontRunCommand = false;
-    private boolean[] quickCompletedList = new boolean[MAX_QUICK_JOB_ID];
-    public int[] exitValues = new int[MAX_QUICK_JOB_ID];
     long lastLoadReport = System.nanoTime() / 1000000; // ms
+    private Runnable processExited = new Runnable() {
+        public void run() {
+            manageQueue();
+        }
+    };
     
     public SimpleJobScheduler(int m, MARTiEngineOptions o) {
+        this(m, o, o.getLogsDir()+File.separator+"scheduler.txt");
+    }
+    
+    public SimpleJobScheduler(int m, MARTiEngineOptions o, String logFilename) {
         maxJobs = m;
         options = o;
-        schedulerLog.open(o.getLogsDir()+File.separator+"scheduler.txt");
-        for (int i=0; i<MAX_QUICK_JOB_ID; i++) {
-            quickCompletedList[i] = false;
-            exitValues[i] = 0;
+        schedulerLog.open(logFilename);
+        
+        for (int i=0; i<PRIORITY_LEVELS; i++) {
+            readyJobs.add(new LinkedList<SimpleJobSchedulerJob>());
+        }
+        
+        // Budget from config, or the whole machine less what MARTi itself may use
+        maxCPUs = o.getLocalSchedulerMaxCPUs();
+        if (maxCPUs <= 0) {
+            maxCPUs = Runtime.getRuntime().availableProcessors();
         }
+        maxMemory = o.getLocalSchedulerMaxMemory();
+        if (maxMemory <= 0) {
+            long totalPhysicalMemory = getTotalPhysicalMemory();
+            long martiMemory = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+            maxMemory = Math.max(totalPhysicalMemory - martiMemory, totalPhysicalMemory / 2);
+        }
+        schedulerLog.println("Resource budget "+maxCPUs+" CPUs "+maxMemory+" Mb");
+    }
+    
+    /**
+    * Convert a memory size as given for SLURM (e.g. 16G, 500M, or a number of
+    * Mb) to Mb.
+    *
+    * @param  s  memory size, may be null
+    * @return size in Mb, 0 if s is null, or -1 if it can't be understood
+    */
+    public static long parseMemory(String s) {
+        long kbMultiplier = 1024;
+        
+        if (s == null) {
+            return 0;
+        }
+        
+        s = s.trim().toUpperCase();
+        if (s.endsWith("B")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        if (s.endsWith("K")) {
+            kbMultiplier = 1;
+        } else if (s.endsWith("G")) {
+            kbMultiplier = 1024 * 1024;
+        } else if (s.endsWith("T")) {
+            kbMultiplier = 1024 * 1024 * 1024;
+        }
+        if (s.endsWith("K") || s.endsWith("M") || s.endsWith("G") || s.endsWith("T")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        
+        try {
+            long kb = Long.parseLong(s) * kbMultiplier;
+            return (kb + 1023) / 1024;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+    * @return physical memory of the machine in Mb
+    */
+    // getTotalMemorySize replaces this from Java 14, but we still build for Java 11
+    @SuppressWarnings("deprecation")
+    private static long getTotalPhysicalMemory() {
+        com.sun.management.OperatingSystemMXBean osBean = ManagementFactory.getPlatformMXBean(com.sun.management.OperatingSystemMXBean.class);
+        return osBean.getTotalPhysicalMemorySize() / (1024 * 1024);
     }
     
     private void printLoad() {
@@ -50,7 +147,7 @@ public class SimpleJobScheduler implements JobScheduler {
         double processCPULoad = osBean.getProcessCpuLoad();
         long processCPUTime = osBean.getProcessCpuTime() / (1000000000); // s
         long freePhysicalMemory = osBean.getFreePhysicalMemorySize() / (1024*1024); //Mb
-        long totalPhysicalMemory = osBean.getTotalPhysicalMemorySize() / (1024* 1024); // Mb
+        long totalPhysicalMemory = getTotalPhysicalMemory(); // Mb
         long freeSwapSpace = osBean.getFreeSwapSpaceSize() / (1024 *1024); // Mb
         long totalSwapSpace = osBean.getTotalSwapSpaceSize() / (1024 * 1024); // Mb
         long committedVirtualMemory = osBean.getCommittedVirtualMemorySize() / (1024 * 1024); // Mb
@@ -72,6 +169,12 @@ public class SimpleJobScheduler implements JobScheduler {
         dontRunCommand = true;
     }
     
+    public synchronized void setResourceBudget(int cpus, long memory) {
+        maxCPUs = cpus;
+        maxMemory = memory;
+        schedulerLog.println("Resource budget "+maxCPUs+" CPUs "+maxMemory+" Mb");
+    }
+    
     public void setMaxJobs(int m) {
         maxJobs = m;
     }
@@ -87,9 +190,42 @@ public class SimpleJobScheduler implements JobScheduler {
         }
                 
         SimpleJobSchedulerJob j = new SimpleJobSchedulerJob(options, identifier, jobId, commands, logFilename, dontRunIt);
-        pendingJobs.add(j);
-        allJobs.put(jobId, j);
+        addPendingJob(j);
         schedulerLog.println("Submitted job\t"+jobId+"\t"+j.getCommand());
+        options.getMainLoopSignal().signal();
+        return jobId++;
+    }
+    
+    /**
+    * Submit a job that needs more than one thread, or a known amount of memory.
+    *
+    * @param  identifier   identifier for progress report
+    * @param  commands     command and arguments
+    * @param  logFilename  file for job output
+    * @param  submitJob    false to not really run the command
+    * @param  threads      number of threads the job uses
+    * @param  memory       memory the job uses in Mb, or 0 if not known
+    * @param  priority     PRIORITY_HIGH or PRIORITY_NORMAL
+    * @return job ID
+    */
+    public synchronized int submitJob(String identifier, String[] commands, String logFilename, boolean submitJob, int threads, long memory, int priority) {
+        boolean dontRunIt = false;
+        if ((dontRunCommand == true) || (submitJob == false)) {
+            dontRunIt = true;
+        }
+        
+        // A job bigger than the whole budget gets all of it, rather than never starting
+        if ((threads > maxCPUs) || (memory > maxMemory)) {
+            schedulerLog.println("Job "+jobId+" wants "+threads+" CPUs "+memory+" Mb, more than the budget");
+        }
+        threads = Math.max(1, Math.min(threads, maxCPUs));
+        memory = Math.max(0, Math.min(memory, maxMemory));
+        
+        SimpleJobSchedulerJob j = new SimpleJobSchedulerJob(options, identifier, jobId, commands, logFilename, dontRunIt);
+        j.setResources(threads, memory, priority);
+        addPendingJob(j);
+        schedulerLog.println("Submitted job\t"+jobId+"\t"+threads+" CPUs\t"+memory+" Mb\tpriority "+priority+"\t"+j.getCommand());
+        options.getMainLoopSignal().signal();
         return jobId++;
     }
 
@@ -100,86 +236,160 @@ public class SimpleJobScheduler implements JobScheduler {
         }
         
         SimpleJobSchedulerJob j = new SimpleJobSchedulerJob(options, identifier, jobId, commands, logFilename, errorFilename, dontRunIt);
-        pendingJobs.add(j);
+        addPendingJob(j);
         schedulerLog.println("Submitted job\t"+jobId+"\t"+j.getCommand());
+        options.getMainLoopSignal().signal();
         return jobId++;
     }
     
     public synchronized int submitJob(SimpleJobSchedulerJob j) {
         j.setJobId(jobId);
-        pendingJobs.add(j);
+        addPendingJob(j);
         schedulerLog.println("Submitted job\t"+jobId+"\t"+j.getCommand());
+        options.getMainLoopSignal().signal();
         return jobId++;
     }
     
-    public synchronized void manageQueue() {
-        // Check for any finished jobs
-        for (int i=0; i<runningJobs.size(); i++) {
-            SimpleJobSchedulerJob j = runningJobs.get(i);
-            if (j.hasFinished()) {
-                schedulerLog.println("Finished job\t" +j.getId() + "\t" + j.getCommand());
-                schedulerLog.println("Exit value was "+j.getExitValue());
+    /**
+    * Queue a newly submitted job, as ready if it has no outstanding
+    * dependencies, otherwise against each job it's waiting for.
+    */
+    private void addPendingJob(SimpleJobSchedulerJob j) {
+        int unmet = 0;
                                 
-                runningJobs.remove(i);
-                if (i < MAX_QUICK_JOB_ID) {
-                    quickCompletedList[j.getId()] = true;
-                    exitValues[j.getId()] = j.getExitValue();
-                    //finishedJobs.add(j);
+        for (int i=0; i<j.getNumberOfDependencies(); i++) {
+            int dependency = j.getDependency(i);
+            if (!jobStatus.isCompleted(dependency)) {
+                LinkedList<SimpleJobSchedulerJob> waiting = dependentJobs.get(dependency);
+                if (waiting == null) {
+                    waiting = new LinkedList<SimpleJobSchedulerJob>();
+                    dependentJobs.put(dependency, waiting);
                 }
+                waiting.add(j);
+                unmet++;
             }
         }
         
-        // Now can we move jobs from pending to running?
-        boolean foundJobToRun = true;
-        while ((runningJobs.size() < maxJobs) &&
-               (pendingJobs.size() > 0) &&
-               (foundJobToRun))
-        {                        
-            // Find next job to run
-            int index = -1;
-            for (int i=0; i<pendingJobs.size(); i++) {
-                SimpleJobSchedulerJob job = pendingJobs.get(i);
-                if (job.getNumberOfDependencies() == 0) {
-                    // No dependencies, so can use this
-                    index = i;
-                } else {
-                    // Check if job has met all dependencies
-                    boolean metDependencies = true;
-                    for (int j=0; j<job.getNumberOfDependencies(); j++) {
-                        if (checkJobCompleted(job.getDependency(j)) == false) {
-                            metDependencies = false;
-                            schedulerLog.println("Job "+job.getId() + " dependency not yet met.");
-                            break;
-                        } else {
-                            schedulerLog.println("Job "+job.getId() + " dependency has been met.");
-                        }
+        j.setUnmetDependencies(unmet);
+        if (unmet == 0) {
+            addReadyJob(j);
+        } else {
+            waitingJobCount++;
+        }
+    }
+    
+    private void addReadyJob(SimpleJobSchedulerJob j) {
+        readyJobs.get(j.getPriority()).add(j);
+        readyJobCount++;
+    }
+    
+    private boolean fits(SimpleJobSchedulerJob j) {
+        return (j.getThreads() <= maxCPUs - cpusInUse) && (j.getMemory() <= maxMemory - memoryInUse);
+    }
+    
+    /**
+    * Take the next job to run from the ready queues.
+    *
+    * @return job, or null if nothing can start with the resources free
+    */
+    private SimpleJobSchedulerJob takeNextJob() {
+        LinkedList<SimpleJobSchedulerJob> passedOver = new LinkedList<SimpleJobSchedulerJob>();
+        SimpleJobSchedulerJob chosen = null;
+        
+        for (int p=0; (p<PRIORITY_LEVELS) && (chosen == null); p++) {
+            LinkedList<SimpleJobSchedulerJob> queue = readyJobs.get(p);
+            if (queue.size() == 0) {
+                continue;
+            }
+            
+            SimpleJobSchedulerJob head = queue.getFirst();
+            if (head.getTimesPassedOver() >= MAX_TIMES_PASSED_OVER) {
+                if (!fits(head)) {
+                    // Let running jobs finish until there's room for it
+                    return null;
+                }
+                chosen = queue.removeFirst();
+            } else {
+                // Best fit is the job using most of the free threads, earliest first
+                int best = -1;
+                int bestThreads = 0;
+                int i = 0;
+                for (SimpleJobSchedulerJob j : queue) {
+                    if (i >= BEST_FIT_WINDOW) {
+                        break;
                     }
-                    
-                    if (metDependencies) {
-                        index = i;
+                    if (fits(j) && (j.getThreads() > bestThreads)) {
+                        best = i;
+                        bestThreads = j.getThreads();
                     }
+                    i++;
                 }
                 
-                if (index != -1) {
-                    break;
+                if (best != 0) {
+                    passedOver.add(head);
+                }
+                if (best >= 0) {
+                    chosen = queue.remove(best);
                 }
             }
-            
-            if (index != -1) {
-                SimpleJobSchedulerJob j = pendingJobs.remove(index);
-                schedulerLog.println("Running job\t" + j.getId() + "\t" +j.getCommand());
-                //schedulerLog.println("Logging "+j.getLog());
-                runningJobs.add(j);
-                j.run();
-            } else {
-                foundJobToRun = false;
+        }
+        
+        if (chosen != null) {
+            for (SimpleJobSchedulerJob j : passedOver) {
+                j.passedOver();
             }
-            
-            //SimpleJobSchedulerJob j = pendingJobs.remove();
-            //schedulerLog.println("Running job\t" + j.getId() + "\t" +j.getCommand());
-            //schedulerLog.println("Logging "+j.getLog());
-            //runningJobs.add(j);
-            //j.run();
+            readyJobCount--;
+        }
+        
+        return chosen;
+    }
+    
+    private void jobFinished(SimpleJobSchedulerJob j) {
+        schedulerLog.println("Finished job\t" +j.getId() + "\t" + j.getCommand());
+        schedulerLog.println("Exit value was "+j.getExitValue());
+        jobStatus.markCompleted(j.getId(), j.getExitValue(), j.getRunTime());
+        cpusInUse -= j.getThreads();
+        memoryInUse -= j.getMemory();
+        for (JobCompletionListener l : completionListeners) {
+            l.jobFinished(j.getId());
+        }
+        options.getMainLoopSignal().signal();
+        
+        LinkedList<SimpleJobSchedulerJob> waiting = dependentJobs.remove(j.getId());
+        if (waiting != null) {
+            for (SimpleJobSchedulerJob dependent : waiting) {
+                if (dependent.dependencyMet()) {
+                    schedulerLog.println("Job "+dependent.getId() + " dependencies have been met.");
+                    waitingJobCount--;
+                    addReadyJob(dependent);
+                }
+            }
+        }
+    }
+        
+    public synchronized void manageQueue() {
+        // Check for any finished jobs
+        Iterator<SimpleJobSchedulerJob> it = runningJobs.iterator();
+        while (it.hasNext()) {
+            SimpleJobSchedulerJob j = it.next();
+            if (j.hasFinished()) {
+                it.remove();
+                jobFinished(j);
+            }
+        }
+                    
+        // Now start ready jobs while there are free slots and resources
+        while ((runningJobs.size() < maxJobs) && (readyJobCount > 0)) {
+            SimpleJobSchedulerJob j = takeNextJob();
+            if (j == null) {
+                break;
+            }
+            cpusInUse += j.getThreads();
+            memoryInUse += j.getMemory();
+            schedulerLog.println("Running job\t" + j.getId() + "\t" +j.getCommand());
+            runningJobs.add(j);
+            j.setExitAction(processExited);
+            j.run();
         }
         
         long timeDiff = (System.nanoTime() - lastLoadReport) / 1000000;
@@ -190,27 +400,19 @@ public class SimpleJobScheduler implements JobScheduler {
     }    
     
     public synchronized boolean checkJobCompleted(int i) {
-        if (i < MAX_QUICK_JOB_ID) {
-            return quickCompletedList[i];
-        } else {
-            return false;
-        }
+        return jobStatus.isCompleted(i);
     }
 
     public synchronized boolean checkJobFailed(int i) {
-        boolean failed = false;
-        if (failedJobs.containsKey(i)) {
-            failed = true;
-        }
-        return failed;
+        return jobStatus.isFailed(i);
     }
     
     public synchronized int getExitValue(int i) {
-        if (i < MAX_QUICK_JOB_ID) {
-            return exitValues[i];
-        } else {
-            return 0;
-        }
+        return jobStatus.getExitValue(i);
+    }
+    
+    public synchronized long getJobRunTime(int i) {
+        return jobStatus.getRunTime(i);
     }
     
     public synchronized int getRunningJobCount() {
@@ -218,24 +420,30 @@ public class SimpleJobScheduler implements JobScheduler {
     }
 
     public synchronized int getPendingJobCount() {
-        return pendingJobs.size();
+        return readyJobCount + waitingJobCount;
     }
     
     public synchronized int getFailedJobCount() {
-        return failedJobs.size();
+        return failedJobCount;
     }
 
     public synchronized void markJobAsFailed(int i) {
-        SimpleJobSchedulerJob ssj = allJobs.get(i);
-        failedJobs.put(i, ssj);
+        if (jobStatus.markFailed(i)) {
+            failedJobCount++;
+        }
     }
 
-    public synchronized void resubmitJobIfPossible(int i) {
+    public synchronized boolean resubmitJobIfPossible(int i) {
         // Resubmission not possible with local job scheduler.
         // Probably pointless, unlike with SLURM where it may make a differencece.
+        return false;
     }
 
     public MARTiLog getSchedulerLog() {
         return schedulerLog;
     }
+    
+    public synchronized void addJobCompletionListener(JobCompletionListener l) {
+        completionListeners.add(l);
+    }
 }
@@ -22,9 +22,17 @@ public class SimpleJobSchedulerJob {
     private String errorFilename = null;
     private int jobId;
     private ArrayList<Integer> dependencies = new ArrayList<Integer>();
+    private int unmetDependencies = 0;
     private boolean dontRunCommand = false;
     private boolean completed = false;
     private String identifier = "UNKNOWN";
+    private long startTime = 0;
+    private long finishTime = 0;
+    private Runnable exitAction = null;
+    private int threads = 1;
+    private long memory = 0;
+    private int priority = SimpleJobScheduler.PRIORITY_NORMAL;
+    private int timesPassedOver = 0;
 
     public SimpleJobSchedulerJob(MARTiEngineOptions o, String id, String[] c, String l, boolean d) {
         options = o;
@@ -59,7 +67,51 @@ public class SimpleJobSchedulerJob {
         jobId = i;
     }
 
+    /**
+    * Set the resources the job needs from the local scheduler's budget.
+    *
+    * @param  t  number of threads
+    * @param  m  memory in Mb, or 0 if not known
+    * @param  p  priority, e.g. SimpleJobScheduler.PRIORITY_HIGH
+    */
+    public void setResources(int t, long m, int p) {
+        threads = t;
+        memory = m;
+        priority = p;
+    }
+    
+    public int getThreads() {
+        return threads;
+    }
+    
+    public long getMemory() {
+        return memory;
+    }
+    
+    public int getPriority() {
+        return priority;
+    }
+    
+    public void passedOver() {
+        timesPassedOver++;
+    }
+    
+    public int getTimesPassedOver() {
+        return timesPassedOver;
+    }
+
+    /**
+    * Set something to run as soon as the job's process exits.
+    *
+    * @param  r  action to run, on a process exit thread
+    */
+    public void setExitAction(Runnable r) {
+        exitAction = r;
+    }
+
     public void run() {
+        startTime = System.nanoTime();
+        
         if (dontRunCommand) {
             String newCommands[] = {"sleep", "2"};
             String logText = "[ Running ";
@@ -82,6 +134,9 @@ public class SimpleJobSchedulerJob {
             }
             pb.redirectOutput(Redirect.appendTo(new File(logFilename)));
             process = pb.start();
+            if (exitAction != null) {
+                process.onExit().thenRun(exitAction);
+            }
             //process = Runtime.getRuntime().exec(this.getCommand());
         } catch (Exception e) {
             e.printStackTrace();
@@ -99,6 +154,10 @@ public class SimpleJobSchedulerJob {
             rc = process.isAlive() ? false:true;   
         }
 
+        if ((rc == true) && (finishTime == 0)) {
+            finishTime = System.nanoTime();
+        }
+
         // Only first time we notice this has finished do we record the completion.
         if ((rc == true) && (completed == false)) {
             if (getExitValue() == 0) {
@@ -143,6 +202,17 @@ public class SimpleJobSchedulerJob {
         return jobId;
     }
     
+    /**
+    * @return ms from starting the job to noticing it had finished, or -1 if not run
+    */
+    public long getRunTime() {
+        if (dontRunCommand || (finishTime == 0)) {
+            return -1;
+        }
+        
+        return (finishTime - startTime) / 1000000;
+    }
+    
     public String getLog() {
         return logFilename;
     }
@@ -162,4 +232,18 @@ public class SimpleJobSchedulerJob {
         
         return 0;
     }
+    
+    public void setUnmetDependencies(int n) {
+        unmetDependencies = n;
+    }
+    
+    /**
+    * Note that one of the jobs this job is waiting for has finished.
+    *
+    * @return true if that was the last
+    */
+    public boolean dependencyMet() {
+        unmetDependencies--;
+        return unmetDependencies == 0;
+    }
 }
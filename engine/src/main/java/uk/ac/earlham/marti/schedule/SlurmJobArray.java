@@ -0,0 +1,105 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.schedule;
+
+import java.io.BufferedReader;
+import java.io.FileWriter;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import uk.ac.earlham.marti.core.MARTiLog;
+
+/**
+ * Submits a group of jobs needing the same CPUs, memory and partition as one
+ * sbatch --array, so N chunk BLASTs cost one submission. The array script
+ * picks each task's command with SLURM_ARRAY_TASK_ID and sends its output to
+ * that job's own log, as if it had been submitted on its own.
+ *
+ * @author Richard M. Leggett
+ */
+public class SlurmJobArray {
+    private ArrayList<SlurmSchedulerJob> jobs;
+    private String scriptFilename;
+    private MARTiLog schedulerLog;
+    private MARTiLog slurmLog;
+    private long arrayJobId = 0;
+
+    /**
+    * @param  j   jobs, which must have the same CPUs, memory and partition
+    * @param  s   filename for the array script
+    * @param  sl  scheduler log
+    * @param  ll  SLURM log
+    */
+    public SlurmJobArray(ArrayList<SlurmSchedulerJob> j, String s, MARTiLog sl, MARTiLog ll) {
+        jobs = j;
+        scriptFilename = s;
+        schedulerLog = sl;
+        slurmLog = ll;
+    }
+
+    private void writeScript() throws Exception {
+        PrintWriter pw = new PrintWriter(new FileWriter(scriptFilename));
+        pw.println("#!/bin/bash");
+        pw.println("case \"${SLURM_ARRAY_TASK_ID}\" in");
+        for (int i=0; i<jobs.size(); i++) {
+            SlurmSchedulerJob ssj = jobs.get(i);
+            pw.println(i + ") ( " + ssj.getWrappedCommand() + " ) > '" + ssj.getLog() + "' 2>&1 ;;");
+        }
+        pw.println("esac");
+        pw.close();
+    }
+
+    /**
+    * Write the array script and submit it.
+    *
+    * @return SLURM ID of the array, or 0 if it couldn't be submitted
+    */
+    public long submit() {
+        SlurmSchedulerJob first = jobs.get(0);
+        ArrayList<String> pbCommands = new ArrayList<String>();
+
+        pbCommands.add("sbatch");
+        pbCommands.add("--array=0-" + (jobs.size() - 1));
+        pbCommands.add("--job-name=" + first.getJobName() + "_array");
+        pbCommands.add("--cpus-per-task=" + first.getCPUs());
+        pbCommands.add("--mem=" + first.getMemory());
+        pbCommands.add("--partition=" + first.getQueue());
+        pbCommands.add("--output=/dev/null");
+        pbCommands.add(scriptFilename);
+
+        try {
+            writeScript();
+
+            ProcessBuilder pb = new ProcessBuilder(pbCommands);
+            Process process = pb.start();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("Submitted batch job")) {
+                    arrayJobId = Long.parseLong(line.substring(20).trim());
+                }
+            }
+
+            reader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+            while ((line = reader.readLine()) != null) {
+                System.out.println("Error line: "+line);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        schedulerLog.println("Array "+scriptFilename+" of "+jobs.size()+" jobs has SLURM id "+arrayJobId);
+        slurmLog.println("Array "+String.join(" ", pbCommands)+" SLURM id "+arrayJobId);
+        if (arrayJobId > 0) {
+            for (int i=0; i<jobs.size(); i++) {
+                jobs.get(i).setArrayTask(arrayJobId, i);
+            }
+        }
+
+        return arrayJobId;
+    }
+}
@@ -17,12 +17,17 @@ import uk.ac.earlham.marti.core.MARTiEngineOptions;
 import uk.ac.earlham.marti.core.MARTiLog;
 
 /**
- * Local job scheduler.
+ * SLURM job scheduler.
+ *
+ * The state of all running jobs is got with one batched sacct query per
+ * poll. Polls start SchedulerPollMinInterval apart, and the gap doubles each
+ * time nothing has changed, up to SchedulerPollMaxInterval. With
+ * SchedulerJobArrays, pending jobs needing the same resources are submitted
+ * together as job arrays.
  * 
  * @author Richard M. Leggett
  */
 public class SlurmScheduler implements JobScheduler {
-    private static final int MAX_QUICK_JOB_ID = 100000;
     private ConcurrentHashMap<Integer, SlurmSchedulerJob> allJobs = new ConcurrentHashMap<Integer, SlurmSchedulerJob>();
     private LinkedBlockingDeque<SlurmSchedulerJob> pendingJobs = new LinkedBlockingDeque<SlurmSchedulerJob>();
     private ConcurrentHashMap<Integer, SlurmSchedulerJob> runningJobs = new ConcurrentHashMap<Integer, SlurmSchedulerJob>();
@@ -35,12 +40,20 @@ public class SlurmScheduler implements JobScheduler {
     private int maxJobs = 1000;
     private boolean dontRunCommand = false;
     private long lastSlurmQuery = System.nanoTime();
+    private long lastSubmission = System.nanoTime();
+    private long pollInterval; // ms
+    private boolean submittedSinceLastPoll = false;
+    private int arrayCount = 0;
+    private SlurmStatePoller statePoller;
+    private LinkedList<JobCompletionListener> completionListeners = new LinkedList<JobCompletionListener>();
     
     public SlurmScheduler(MARTiEngineOptions o) {
         options = o;
         schedulerLog.open(o.getLogsDir()+File.separator+"scheduler.txt");
         schedulerLog.println("maxJobs = "+maxJobs);
         slurmLog.open(o.getLogsDir()+File.separator+"slurm.txt");
+        statePoller = new SlurmStatePoller(slurmLog);
+        pollInterval = o.getSchedulerPollMinInterval();
     }    
     
     public synchronized void setDontRunCommand() {
@@ -53,6 +66,24 @@ public class SlurmScheduler implements JobScheduler {
     }    
     
     public synchronized int submitJob(String identifier, String[] commands, String logFilename, boolean submitJob) {
+        return submitJob(identifier, commands, logFilename, submitJob, 0, null, null, null);
+    }
+    
+    /**
+    * Submit a job with its resources. These are set before the job is
+    * queued, as manageQueue may pass it to SLURM as soon as it is.
+    *
+    * @param  identifier         identifier for progress report
+    * @param  commands           command and arguments
+    * @param  logFilename        log file
+    * @param  submitJob          false to not really run the command
+    * @param  cpus               CPUs to request, or 0 for the default
+    * @param  memory             memory to request, or null for the default
+    * @param  queue              partition, or null for the default
+    * @param  dependentFilename  file written by the job, or null
+    * @return job ID
+    */
+    public synchronized int submitJob(String identifier, String[] commands, String logFilename, boolean submitJob, int cpus, String memory, String queue, String dependentFilename) {
         if (MARTiEngineOptions.DEBUG_DONT_SUBMIT_JOB) {
             commands = new String[]{"echo","Hello"};
         }
@@ -66,6 +97,18 @@ public class SlurmScheduler implements JobScheduler {
         j.setSchedulerFileTimeout(options.getSchedulerFileTimeout());
         j.setSchedulerFileWriteDelay(options.getSchedulerFileWriteDelay());
         j.setResubmissionAttempts(options.getSchedulerResubmissionAttempts());
+        if (cpus > 0) {
+            j.setCPUs(cpus);
+        }
+        if (memory != null) {
+            j.setMemory(memory);
+        }
+        if (queue != null) {
+            j.setQueue(queue);
+        }
+        if (dependentFilename != null) {
+            j.setDependentFilename(dependentFilename);
+        }
         pendingJobs.add(j);
         allJobs.put(internalJobId, j);
         jobStatus.put(internalJobId, SlurmSchedulerJob.STATE_PENDING);
@@ -141,6 +184,15 @@ public class SlurmScheduler implements JobScheduler {
         return SlurmSchedulerJob.STATE_UNKNOWN;
     }
     
+    public synchronized long getJobRunTime(int i) {
+        SlurmSchedulerJob ssj = allJobs.get(i);
+        if (ssj != null) {
+            return ssj.getRunTime();
+        }
+
+        return -1;
+    }
+    
     public synchronized void setDependentFilename(int i, String s) {
         SlurmSchedulerJob ssj = allJobs.get(i);
         if (ssj != null) {
@@ -156,21 +208,33 @@ public class SlurmScheduler implements JobScheduler {
         return pendingJobs.size();
     }
     
-    public synchronized void manageQueue() {
-        // Check state of jobs, but only every minute or two
-        long timeNow = System.nanoTime();
-        long timeDiff = (timeNow - lastSlurmQuery) / 1000000; // ms
-        if (timeDiff < (60*1000)) {
-            return;
+    private void pollRunningJobs() {
+        boolean changed = false;
+        
+        // One query for all running jobs, with an array counted once for all its tasks
+        Hashtable<String, Boolean> querying = new Hashtable<String, Boolean>();
+        ArrayList<String> slurmIds = new ArrayList<String>();
+        for (SlurmSchedulerJob ssj : runningJobs.values()) {
+            String id = ssj.getSlurmJobId();
+            if (id != null) {
+                if (ssj.isArrayTask()) {
+                    id = Long.toString(ssj.getSubmittedJobId());
+                }
+                if (!querying.containsKey(id)) {
+                    querying.put(id, true);
+                    slurmIds.add(id);
+                }
+            }
         }
-
-        lastSlurmQuery = timeNow;
+        Hashtable<String, String> slurmStates = statePoller.queryStates(slurmIds);
 
         // Check for any finished jobs
         Set<Integer> runningJobInternalIds = runningJobs.keySet();
         for (int id : runningJobInternalIds) {
             SlurmSchedulerJob ssj = runningJobs.get(id);
-            ssj.queryJobState();
+            if (ssj.updateJobState(slurmStates)) {
+                changed = true;
+            }
             int jState = ssj.getJobState();
             //schedulerLog.println("SLURM job "+id+" state "+jState);
             if (jState == SlurmSchedulerJob.STATE_COMPLETED) {
@@ -178,6 +242,7 @@ public class SlurmScheduler implements JobScheduler {
                 schedulerLog.println("Exit value was "+ssj.getExitValue());
                 runningJobs.remove(id);
                 jobStatus.put(id, jState);                
+                notifyJobFinished(id);
             } else if ((jState == SlurmSchedulerJob.STATE_FAILED) ||
                        (jState == SlurmSchedulerJob.STATE_BOOT_FAIL) ||
                        (jState == SlurmSchedulerJob.STATE_CANCELLED) ||
@@ -190,22 +255,102 @@ public class SlurmScheduler implements JobScheduler {
                 failedJobs.put(id, ssj);
                 options.getLog().printlnLogAndScreen("Failed SLURM job "+ssj.getId()+" - see scheduler log");
                 options.getLog().printlnLogAndScreen("Log is at "+ssj.getLog());
+                notifyJobFinished(id);
             } else if ((jState != SlurmSchedulerJob.STATE_RUNNING) &&
                        (jState != SlurmSchedulerJob.STATE_PENDING)) {
                 schedulerLog.println("Unknown state for job "+ssj.getId()+" "+jState);
             }
         }
         
-        // Now can we move jobs from pending to running?
-        boolean foundJobToRun = true;
+        // Poll again soon if anything is happening, otherwise back off
+        if (changed || submittedSinceLastPoll) {
+            pollInterval = options.getSchedulerPollMinInterval();
+        } else {
+            pollInterval = Math.min(pollInterval * 2, options.getSchedulerPollMaxInterval());
+        }
+        submittedSinceLastPoll = false;
+        schedulerLog.println("Polled "+slurmIds.size()+" SLURM ids with "+statePoller.getQueryCount()+" queries so far, next poll in "+pollInterval+" ms");
+    }
+    
+    private void submitJobArrays() {
+        // Group jobs by the resources they ask for, keeping them in order
+        Hashtable<String, ArrayList<SlurmSchedulerJob>> openGroups = new Hashtable<String, ArrayList<SlurmSchedulerJob>>();
+        ArrayList<ArrayList<SlurmSchedulerJob>> groups = new ArrayList<ArrayList<SlurmSchedulerJob>>();
         while ((runningJobs.size() < maxJobs) &&
                (pendingJobs.size() > 0))
         {      
             SlurmSchedulerJob ssj = pendingJobs.removeFirst();
             schedulerLog.println("Running job\t" + ssj.getId() + "\t" +ssj.getCommand());            
-            ssj.run();
             runningJobs.put(ssj.getId(), ssj);
-            schedulerLog.println("SLURM id for job "+ssj.getId()+" is "+ssj.getSubmittedJobId());
+            if (ssj.prepareToRun()) {
+                String key = ssj.getCPUs() + "\t" + ssj.getMemory() + "\t" + ssj.getQueue();
+                ArrayList<SlurmSchedulerJob> group = openGroups.get(key);
+                if ((group == null) || (group.size() >= options.getSchedulerMaxArraySize())) {
+                    group = new ArrayList<SlurmSchedulerJob>();
+                    openGroups.put(key, group);
+                    groups.add(group);
+                }
+                group.add(ssj);
+            }
+        }
+        
+        for (int i=0; i<groups.size(); i++) {
+            ArrayList<SlurmSchedulerJob> group = groups.get(i);
+            long arrayId = 0;
+            if (group.size() > 1) {
+                arrayCount++;
+                SlurmJobArray array = new SlurmJobArray(group, options.getLogsDir()+File.separator+"slurm_array_"+arrayCount+".sh", schedulerLog, slurmLog);
+                arrayId = array.submit();
+            }
+            
+            // Single jobs, or any an array couldn't take, go on their own
+            if (arrayId == 0) {
+                for (int j=0; j<group.size(); j++) {
+                    group.get(j).run();
+                }
+            }
+            
+            for (int j=0; j<group.size(); j++) {
+                schedulerLog.println("SLURM id for job "+group.get(j).getId()+" is "+group.get(j).getSlurmJobId());
+            }
+        }
+    }
+    
+    public synchronized void manageQueue() {
+        long timeNow = System.nanoTime();
+        
+        // Check state of jobs, but only as often as the current poll interval
+        long timeDiff = (timeNow - lastSlurmQuery) / 1000000; // ms
+        if ((runningJobs.size() > 0) && (timeDiff >= pollInterval)) {
+            lastSlurmQuery = timeNow;
+            pollRunningJobs();
+        }
+        
+        // Now can we move jobs from pending to running?
+        if ((pendingJobs.size() == 0) || (runningJobs.size() >= maxJobs)) {
+            return;
+        }
+        
+        if (options.useSchedulerJobArrays()) {
+            // Gather jobs for a while, so arrays aren't too small
+            timeDiff = (timeNow - lastSubmission) / 1000000;
+            if ((pendingJobs.size() >= options.getSchedulerMaxArraySize()) || (timeDiff >= options.getSchedulerPollMinInterval())) {
+                submitJobArrays();
+                lastSubmission = timeNow;
+                submittedSinceLastPoll = true;
+            }
+        } else {
+            while ((runningJobs.size() < maxJobs) &&
+                   (pendingJobs.size() > 0))
+            {      
+                SlurmSchedulerJob ssj = pendingJobs.removeFirst();
+                schedulerLog.println("Running job\t" + ssj.getId() + "\t" +ssj.getCommand());            
+                ssj.run();
+                runningJobs.put(ssj.getId(), ssj);
+                schedulerLog.println("SLURM id for job "+ssj.getId()+" is "+ssj.getSubmittedJobId());
+            }
+            lastSubmission = timeNow;
+            submittedSinceLastPoll = true;
         }
     }
     
@@ -223,17 +368,29 @@ public class SlurmScheduler implements JobScheduler {
         }
     }
     
-    public synchronized void resubmitJobIfPossible(int i) {
+    public synchronized boolean resubmitJobIfPossible(int i) {
         SlurmSchedulerJob ssj = allJobs.get(i);
         if (ssj != null) {
-            ssj.tryResubmission();
+            return ssj.tryResubmission();
         }
+        return false;
     }
     
     public MARTiLog getSchedulerLog() {
         return schedulerLog;
     }
     
+    public synchronized void addJobCompletionListener(JobCompletionListener l) {
+        completionListeners.add(l);
+    }
+    
+    private void notifyJobFinished(int id) {
+        for (JobCompletionListener l : completionListeners) {
+            l.jobFinished(id);
+        }
+        options.getMainLoopSignal().signal();
+    }
+    
     public MARTiLog getSlurmLog() {
         return slurmLog;
     }
@@ -9,6 +9,7 @@ import java.io.File;
 import java.io.InputStreamReader;
 import java.lang.ProcessBuilder.Redirect;
 import java.util.ArrayList;
+import java.util.Hashtable;
 import uk.ac.earlham.marti.core.MARTiEngineOptions;
 import uk.ac.earlham.marti.core.MARTiLog;
 
@@ -57,7 +58,10 @@ public class SlurmSchedulerJob {
     private String flagFilename = null;
     private boolean flagStatus = false;
     private long submittedJobId = 0;
+    private String slurmJobId = null;
+    private int arrayTask = -1;
     private int jobState = STATE_UNKNOWN;
+    private long runningTime = 0;
     private long completedTime = 0;
     private long dependentTime = 0;
     private long schedulerFileWriteDelay = 30 * 1000; // Allow 30s for file writing to finish before marking job as complete
@@ -109,7 +113,7 @@ public class SlurmSchedulerJob {
         internalJobId = i;
     }
 
-    public void run() {
+    private void removeFlagFile() {
         if (flagFilename != null) {
             File f = new File(flagFilename);
             if (f.exists()) {
@@ -117,13 +121,9 @@ public class SlurmSchedulerJob {
                  f.delete();
             }
         }
+    }
         
-        if (dontRunCommand) {
-            System.out.println("Not running command for job "+internalJobId);            
-            submittedJobId = internalJobId;
-            return;
-        }         
-        
+    private String getCommandString() {
         String commandString = "";
         for (int i=0; i<commands.length; i++) {
             if (commands[i].length() > 0) {
@@ -138,6 +138,14 @@ public class SlurmSchedulerJob {
             commandString += " ; touch "+flagFilename;
         }
         
+        return commandString;
+    }
+    
+    /**
+    * @return command wrapped with the job information written to the top and bottom of the log
+    */
+    public String getWrappedCommand() {
+        String commandString = getCommandString();
         String wrapString = "echo 'SLURM job output' ; ";
         wrapString += "echo '' ; ";
         wrapString += "echo 'Command: "+commandString+"' ; ";
@@ -152,6 +160,47 @@ public class SlurmSchedulerJob {
         wrapString += "echo '' ; echo 'SLURM ended'; ";
         wrapString += "echo -n 'End time: ' ; date";
                 
+        return wrapString;
+    }
+    
+    /**
+    * Note that this job is being submitted as a task of a job array.
+    *
+    * @param  arrayJobId  SLURM ID of the array
+    * @param  task        index of this job in the array
+    */
+    public void setArrayTask(long arrayJobId, int task) {
+        submittedJobId = arrayJobId;
+        arrayTask = task;
+        slurmJobId = arrayJobId + "_" + task;
+        slurmLog.println("Job "+internalJobId+" SLURM id "+slurmJobId);
+    }
+    
+    /**
+    * Get ready to be submitted, either by run or as part of a job array.
+    *
+    * @return false if the command isn't to be run
+    */
+    public boolean prepareToRun() {
+        removeFlagFile();
+        
+        if (dontRunCommand) {
+            System.out.println("Not running command for job "+internalJobId);            
+            submittedJobId = internalJobId;
+            slurmJobId = Long.toString(submittedJobId);
+            return false;
+        }
+        
+        return true;
+    }
+
+    public void run() {
+        if (!prepareToRun()) {
+            return;
+        }
+        
+        String commandString = getCommandString();
+        String wrapString = getWrappedCommand();
         ArrayList<String> pbCommands = new ArrayList<String>();
 
 //        pbCommands.add("sbatch");
@@ -235,6 +284,8 @@ public class SlurmSchedulerJob {
                     //System.out.println("   got id "+submittedJobId);
                 }
             }
+            arrayTask = -1;
+            slurmJobId = Long.toString(submittedJobId);
 
             slurmLog.println("Job "+internalJobId+" SLURM id "+submittedJobId);
             
@@ -252,6 +303,20 @@ public class SlurmSchedulerJob {
         return submittedJobId;
     }
     
+    /**
+    * @return SLURM ID as shown by sacct, e.g. 1234 or 1234_5 for an array task
+    */
+    public String getSlurmJobId() {
+        return slurmJobId;
+    }
+    
+    /**
+    * @return whether the job is a task of a job array
+    */
+    public boolean isArrayTask() {
+        return arrayTask >= 0;
+    }
+    
     public boolean hasFinished() {
         if (dontRunCommand) {
             return true;
@@ -289,6 +354,19 @@ public class SlurmSchedulerJob {
         return internalJobId;
     }
     
+    /**
+    * Run time as seen by polling SLURM, so only as accurate as the polling interval.
+    *
+    * @return ms from first seeing the job running to first seeing it completed, or -1 if not known
+    */
+    public long getRunTime() {
+        if ((runningTime == 0) || (completedTime == 0)) {
+            return -1;
+        }
+        
+        return (completedTime - runningTime) / 1000000;
+    }
+    
     public String getLog() {
         return logFilename;
     }
@@ -362,32 +440,37 @@ public class SlurmSchedulerJob {
         return stateString;
     }
     
-    public void queryJobState() {        
+    /**
+    * Update the job's state from a batch query of SLURM.
+    *
+    * @param  slurmStates  states from SlurmStatePoller, by SLURM job ID
+    * @return true if the state changed
+    */
+    public boolean updateJobState(Hashtable<String, String> slurmStates) {
+        int previousState = jobState;
+        
         if (dontRunCommand) {
             jobState=STATE_COMPLETED;
-            return;
+            return jobState != previousState;
         }
                 
-        if (submittedJobId > 0) {
+        if (slurmJobId != null) {
             try {
-                String command = "sacct -j "+submittedJobId+" -b -X";
-                Process process = Runtime.getRuntime().exec(command);
-
-                BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));   
-                String line;
-                slurmLog.println("Job "+internalJobId+" running "+command);
-                while ((line = reader.readLine()) != null) {
-                    String[] fields = line.trim().split("\\s+");
-                    if (fields[0].compareTo(Long.toString(submittedJobId)) == 0) {
-                        slurmLog.println("Job "+internalJobId+"      GOT "+line);
-                        String state = fields[1];
-                        parseJobState(state);
-                        if (jobState == STATE_UNKNOWN) {
-                            schedulerLog.println("Error: couldn't parse sacct state '"+state+"'");
-                        }
-                    } else {
-                        slurmLog.println("Job "+internalJobId+" IGNORING "+line);
+                String state = slurmStates.get(slurmJobId);
+                if (state != null) {
+                    slurmLog.println("Job "+internalJobId+"      GOT "+slurmJobId+" "+state);
+                    parseJobState(state);
+                    if (jobState == STATE_UNKNOWN) {
+                        schedulerLog.println("Error: couldn't parse sacct state '"+state+"'");
                     }
+                } else {
+                    // Array tasks that haven't started are shown as a range
+                    slurmLog.println("Job "+internalJobId+" no state for "+slurmJobId);
+                }
+                
+                // Note the time it was first observed running
+                if ((jobState == STATE_RUNNING) && (runningTime == 0)) {
+                    runningTime = System.nanoTime();
                 }
                 
                 if (jobState == STATE_COMPLETED) {
@@ -462,11 +545,6 @@ public class SlurmSchedulerJob {
                     }
                 }
 
-                reader = new BufferedReader(new InputStreamReader(process.getErrorStream()));   
-                while ((line = reader.readLine()) != null) {
-                    System.out.println("Error line: "+line);
-                }
-                
                 // We may be able to resubmit it and try again...
                 if ((jobState == STATE_FAILED) ||
                     (jobState == STATE_BOOT_FAIL) ||
@@ -486,6 +564,8 @@ public class SlurmSchedulerJob {
         } else {
             System.out.println("Job not submitted");
         }
+        
+        return jobState != previousState;
     }
     
     public boolean checkJobFailed() {
@@ -512,6 +592,22 @@ public class SlurmSchedulerJob {
         memory = m;
     }
     
+    public String getMemory() {
+        return memory;
+    }
+    
+    public int getCPUs() {
+        return nCPUs;
+    }
+    
+    public String getQueue() {
+        return partition;
+    }
+    
+    public String getJobName() {
+        return jobName;
+    }
+    
     public void setCPUs(int n) {
         nCPUs = n;
     }
@@ -526,6 +622,9 @@ public class SlurmSchedulerJob {
         if (resubmissionAttempts > 0) {
             schedulerLog.println("Job "+internalJobId+" ("+submittedJobId+") failed. Resubmitting.");
             jobState = STATE_UNKNOWN;
+            // Time the new attempt only, not the failed one or the wait to requeue
+            runningTime = 0;
+            completedTime = 0;
             this.run();
             resubmissionAttempts--;
             resubmitted = true;
@@ -0,0 +1,78 @@
+/*
+ * Author: Richard M. Leggett
+ * © Copyright 2021 Earlham Institute
+ */
+package uk.ac.earlham.marti.schedule;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import uk.ac.earlham.marti.core.MARTiLog;
+
+/**
+ * Gets the state of many SLURM jobs with as few calls to sacct as possible,
+ * rather than one call per job, to keep the load on slurmctld down.
+ *
+ * @author Richard M. Leggett
+ */
+public class SlurmStatePoller {
+    // Keep command lines to a sensible length
+    private final static int MAX_IDS_PER_QUERY = 200;
+    private MARTiLog slurmLog;
+    private int queryCount = 0;
+
+    public SlurmStatePoller(MARTiLog l) {
+        slurmLog = l;
+    }
+
+    /**
+    * Query the state of a set of jobs.
+    *
+    * @param  ids  SLURM job IDs - the ID of a job array covers all its tasks
+    * @return state (e.g. RUNNING) by SLURM job ID, with array tasks as arrayid_task
+    */
+    public Hashtable<String, String> queryStates(ArrayList<String> ids) {
+        Hashtable<String, String> states = new Hashtable<String, String>();
+
+        for (int from=0; from<ids.size(); from+=MAX_IDS_PER_QUERY) {
+            int to = Math.min(from + MAX_IDS_PER_QUERY, ids.size());
+            String idList = String.join(",", ids.subList(from, to));
+            queryCount++;
+
+            try {
+                ProcessBuilder pb = new ProcessBuilder("sacct", "-X", "-n", "-P", "-o", "JobID,State", "-j", idList);
+                Process process = pb.start();
+                slurmLog.println("Querying "+(to - from)+" jobs: sacct -X -n -P -o JobID,State -j "+idList);
+
+                BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split("\\|");
+                    if ((fields.length >= 2) && (fields[1].trim().length() > 0)) {
+                        // e.g. "CANCELLED by 1234"
+                        String state = fields[1].trim().split("\\s+")[0];
+                        states.put(fields[0].trim(), state);
+                    } else if (line.trim().length() > 0) {
+                        slurmLog.println("IGNORING "+line);
+                    }
+                }
+
+                reader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+                while ((line = reader.readLine()) != null) {
+                    System.out.println("Error line: "+line);
+                }
+                process.waitFor();
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+
+        return states;
+    }
+
+    public int getQueryCount() {
+        return queryCount;
+    }
+}
@@ -5,10 +5,21 @@
 package uk.ac.earlham.marti.watcher;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.*;
 import java.util.Hashtable;
 import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import uk.ac.earlham.marti.core.MARTiEngineOptions;
 import uk.ac.earlham.marti.core.MARTiProgress;
 import uk.ac.earlham.marti.core.MARTiLog;
@@ -16,9 +27,21 @@ import uk.ac.earlham.marti.core.MARTiLog;
 /**
  * Watch directories for new files.
  * 
+ * By default each watched directory is listed on every scan. In events mode,
+ * directories are registered with a WatchService and a watcher thread notes
+ * files as they are created or written to, with a full scan every so often as
+ * a safety net for events that are lost (e.g. on network filesystems). A file
+ * noted this way is only queued once its size and modification time have
+ * stayed the same for FileWatcherSettleTime ms, so one that is created and
+ * then filled isn't read part written. The watcher thread checks settling
+ * files every SETTLE_CHECK_INTERVAL ms and wakes the main loop when it queues
+ * one.
+ * 
  * @author Richard M. Leggett
  */
 public class FileWatcher {
+    // ms between checks of files waiting to settle in events mode
+    private final static int SETTLE_CHECK_INTERVAL = 100;
     private MARTiEngineOptions options;
     private int filesToProcess = 0;
     private int filesProcessed = 0;
@@ -30,12 +53,58 @@ public class FileWatcher {
     private ArrayList<FileWatcherItem> fileDirsToWatch = new ArrayList<FileWatcherItem>();
     private Hashtable<String, Integer> batchDirs = new Hashtable<String, Integer>();
     private Hashtable<String, Integer> allFiles = new Hashtable<String, Integer>();
-    private LinkedList<FileWatcherItem> pendingFiles = new LinkedList<FileWatcherItem>();
+    private LinkedBlockingQueue<FileWatcherItem> pendingFiles = new LinkedBlockingQueue<FileWatcherItem>();
     private MARTiProgress progressReport = null;
+    private WatchService watchService = null;
+    private Hashtable<WatchKey, FileWatcherItem> watchKeys = new Hashtable<WatchKey, FileWatcherItem>();
+    private Hashtable<String, WatchKey> registeredDirs = new Hashtable<String, WatchKey>();
+    private long lastReconcileTime = System.nanoTime();
+    private boolean reconcileRequested = false;
+    private Hashtable<String, SettlingFile> settlingFiles = new Hashtable<String, SettlingFile>();
+    
+    // A file seen in events mode that is waiting to stop changing
+    private static class SettlingFile {
+        File file;
+        int passOrFail;
+        long size;
+        long modified;
+        long changeTime;
+        
+        SettlingFile(File f, int pf) {
+            file = f;
+            passOrFail = pf;
+            size = f.length();
+            modified = f.lastModified();
+            changeTime = System.nanoTime();
+        }
+    }
     
     public FileWatcher(MARTiEngineOptions o, MARTiProgress pr) {
         options = o;
         progressReport = pr;
+        
+        if (options.getFileWatcherMode() == MARTiEngineOptions.FILEWATCHER_EVENTS) {
+            startWatchService();
+        }
+    }
+    
+    private void startWatchService() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            System.out.println("Error: couldn't start WatchService, so scanning directories instead");
+            e.printStackTrace();
+            watchService = null;
+            return;
+        }
+        
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                watchForEvents();
+            }
+        }, "FileWatcher");
+        t.setDaemon(true);
+        t.start();
     }
     
     //public FileWatcher(NanoOKOptions o, String d) {
@@ -60,12 +129,37 @@ public class FileWatcher {
     }
     
     public synchronized FileWatcherItem getPendingFile() {
-        if (pendingFiles.size() > 0) {
+        FileWatcherItem fwi = pendingFiles.poll();
+        if (fwi != null) {
             filesProcessed++;
-            return pendingFiles.removeFirst();
-        } else {
+        }
+        return fwi;
+    }
+    
+    /**
+    * Wait for a pending file. Not synchronized, so that files can be added while waiting.
+    *
+    * @param  waitMs  maximum time to wait, in ms
+    * @return next file, or null if none arrived in time
+    */
+    public FileWatcherItem getPendingFile(long waitMs) {
+        FileWatcherItem fwi = null;
+        
+        try {
+            fwi = pendingFiles.poll(waitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
             return null;
         }
+        
+        if (fwi != null) {
+            fileTaken();
+        }
+        
+        return fwi;
+    }
+    
+    private synchronized void fileTaken() {
+        filesProcessed++;
     }
 
     public void writeProgress() {
@@ -94,91 +188,307 @@ public class FileWatcher {
         }
     }
     
-    private File[] getTimeSortedFileList(File d) {
-        File[] files = d.listFiles();
+    private File[] getTimeSortedFileList(File[] files) {
+        // Obtain the array of (file, timestamp) pairs.
+        FilePair[] pairs = new FilePair[files.length];
+        for (int i=0; i<files.length; i++) {
+            pairs[i] = new FilePair(files[i]);
+        }
+
+        // Sort them by timestamp.
+        Arrays.sort(pairs);
+
+        // Take the sorted pairs and extract only the file part, discarding the timestamp.
+        for (int i = 0; i < files.length; i++) {
+            files[i] = pairs[i].f;
+        }
+        
+        return files;
+    }
+    
+    /**
+    * Queue a file if it's one we haven't seen before.
+    *
+    * @param  file  file found in a watched directory
+    * @param  pf    pass or fail type of the directory
+    * @return true if the file was new
+    */
+    private synchronized boolean addFileIfNew(File file, int pf) {
+        if (file.getName().startsWith(".")) {
+            return false;
+        }
+        
+        if (allFiles.containsKey(file.getPath())) {
+            return false;
+        }
+        
+        if (!file.isFile()) {
+            return false;
+        }
+        
+        options.getLog().println("Got file "+file.getPath());
+        allFiles.put(file.getPath(), 1);
+        this.addPendingFile(file.getPath(), pf);
+        lastFileTime = System.nanoTime();
+        return true;
+    }
+    
+    /**
+    * Note a file that has been created or written to in events mode.
+    *
+    * @param  file  file in a watched directory
+    * @param  pf    pass or fail type of the directory
+    * @return true if the file wasn't already known
+    */
+    private synchronized boolean fileChanged(File file, int pf) {
+        if (file.getName().startsWith(".") || allFiles.containsKey(file.getPath())) {
+            return false;
+        }
+        
+        // Something is being written, so don't time out
+        lastFileTime = System.nanoTime();
+
+        SettlingFile sf = settlingFiles.get(file.getPath());
+        if (sf == null) {
+            settlingFiles.put(file.getPath(), new SettlingFile(file, pf));
+            return true;
+        }
+        
+        sf.changeTime = System.nanoTime();
+        return false;
+    }
+    
+    /**
+    * Queue files that haven't changed for the settle time, oldest first.
+    *
+    * @return number of files queued
+    */
+    private synchronized int addSettledFiles() {
+        ArrayList<SettlingFile> settled = new ArrayList<SettlingFile>();
+        long settleTime = options.getFileWatcherSettleTime();
+        Iterator<SettlingFile> it = settlingFiles.values().iterator();
         
-        if (files == null) {
-            options.getLog().println("Directory "+d.getPath()+" doesn't exist");
-            System.out.println("Directory "+d.getPath()+" doesn't exist");
-        } else if (files.length <= 0) {
-            options.getLog().println("Directory "+d.getPath()+" empty");
-        } else {        
-            // Obtain the array of (file, timestamp) pairs.
-            FilePair[] pairs = new FilePair[files.length];
-            for (int i=0; i<files.length; i++) {
-                pairs[i] = new FilePair(files[i]);
+        while (it.hasNext()) {
+            SettlingFile sf = it.next();
+            long size = sf.file.length();
+            long modified = sf.file.lastModified();
+            
+            if (!sf.file.exists()) {
+                it.remove();
+            } else if ((size != sf.size) || (modified != sf.modified)) {
+                sf.size = size;
+                sf.modified = modified;
+                sf.changeTime = System.nanoTime();
+            } else if ((System.nanoTime() - sf.changeTime) / 1000000 >= settleTime) {
+                it.remove();
+                settled.add(sf);
             }
+        }
+        
+        Collections.sort(settled, new Comparator<SettlingFile>() {
+            public int compare(SettlingFile a, SettlingFile b) {
+                return Long.compare(a.modified, b.modified);
+            }
+        });
+        
+        int count = 0;
+        for (int i=0; i<settled.size(); i++) {
+            if (addFileIfNew(settled.get(i).file, settled.get(i).passOrFail)) {
+                count++;
+            }
+        }
+        
+        return count;
+    }
+    
+    private synchronized boolean hasSettlingFiles() {
+        return settlingFiles.size() > 0;
+    }
+    
+    /**
+    * Queue any files that have settled, and wake the main loop if there were some.
+    */
+    private void queueSettledFiles() {
+        if (addSettledFiles() > 0) {
+            options.writeStartedFlag();
+            options.getMainLoopSignal().signal();
+        }
+    }
+    
+    private int scanDirectory(FileWatcherItem dir) {
+        int count = 0;
+        String dirName = dir.getPathname();
+        options.getLog().println("Scanning "+dirName);
+        File d = new File(dirName);
 
-            // Sort them by timestamp.
-            Arrays.sort(pairs);
+        if (d.exists()) {
+            File[] listOfFiles = d.listFiles();
 
-            // Take the sorted pairs and extract only the file part, discarding the timestamp.
-            for (int i = 0; i < files.length; i++) {
-                files[i] = pairs[i].f;
-            }
+            if (listOfFiles == null) {
+                options.getLog().println("Directory "+dirName+" doesn't exist");
+                System.out.println("Directory "+dirName+" doesn't exist");
+            } else if (listOfFiles.length <= 0) {
+                options.getLog().println("Directory "+dirName+" empty");
+            } else {
+                // Only files we haven't seen need a stat to sort them
+                ArrayList<File> unseenFiles = new ArrayList<File>();
+                for (File file : listOfFiles) {
+                    if ((!file.getName().startsWith(".")) && (!allFiles.containsKey(file.getPath()))) {
+                        unseenFiles.add(file);
+                    }
+                }
+                
+                File[] newFiles = getTimeSortedFileList(unseenFiles.toArray(new File[0]));
+                for (File file : newFiles) {
+                    if (watchService != null) {
+                        if (fileChanged(file, dir.getPassOrFail())) {
+                            count++;
+                        }
+                    } else if (addFileIfNew(file, dir.getPassOrFail())) {
+                        count++;
+                    }
+                }            
+            }    
+        } else {
+            options.getLog().println("Directory "+dirName+" doesn't exist");
         }
         
-        return files;
+        return count;
     }
     
-    public void scan() {
-        int count = 0;          
+    /**
+    * Register any watched directories that have appeared since the last scan.
+    * Each is scanned once when registered, to pick up files already there.
+    */
+    private int registerNewDirectories() {
+        int count = 0;
+        
         for (int i=0; i<fileDirsToWatch.size(); i++) {
             FileWatcherItem dir = fileDirsToWatch.get(i);
             String dirName = dir.getPathname();
-            options.getLog().println("Scanning "+dirName);
-            File d = new File(dirName);
             
-            if (d.exists()) {
-                File[] listOfFiles = getTimeSortedFileList(d);
-
-                if (listOfFiles == null) {
-                    options.getLog().println("Directory "+dirName+" doesn't exist");
-                    System.out.println("Directory "+dirName+" doesn't exist");
-                } else if (listOfFiles.length <= 0) {
-                    options.getLog().println("Directory "+dirName+" empty");
+            if (!registeredDirs.containsKey(dirName)) {
+                File d = new File(dirName);
+                if (d.isDirectory()) {
+                    try {
+                        WatchKey key = Paths.get(dirName).register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                        watchKeys.put(key, dir);
+                        registeredDirs.put(dirName, key);
+                        options.getLog().println("Watching "+dirName+" for events");
+                    } catch (IOException e) {
+                        System.out.println("Error: couldn't watch "+dirName);
+                        e.printStackTrace();
+                    }
+                    count += scanDirectory(dir);
+                }
+            }
+        }
+        
+        return count;
+    }
+    
+    private void watchForEvents() {
+        try {
+            while (true) {
+                // Only wake on a timer while there are files waiting to settle
+                WatchKey key;
+                if (hasSettlingFiles()) {
+                    key = watchService.poll(SETTLE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
                 } else {
-                    for (File file : listOfFiles) {
-                        if (file.isFile()) {
-                            if (!file.getName().startsWith(("."))) {
-                                if (!allFiles.containsKey(file.getPath())) {
-                                    count++;
-                                    options.getLog().println("Got file "+file.getPath());
-                                    allFiles.put(file.getPath(), 1);
-                                    this.addPendingFile(file.getPath(), dir.getPassOrFail());
-                                    if (count == 1) {
-                                        options.writeStartedFlag();
-                                    }
-                                }
-                            }
+                    key = watchService.take();
+                }
+                
+                if (key != null) {
+                    FileWatcherItem dir = watchKeys.get(key);
+                    
+                    // Files are queued once they stop changing
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            requestReconcile();
+                        } else if (dir != null) {
+                            Path p = ((Path)key.watchable()).resolve((Path)event.context());
+                            fileChanged(p.toFile(), dir.getPassOrFail());
                         }
-                    }            
-                }    
-            } else {
-                options.getLog().println("Directory "+dirName+" doesn't exist");
+                    }
+                    
+                    if (!key.reset()) {
+                        // Directory has gone - it will be registered again if it comes back
+                        watchKeys.remove(key);
+                        if (dir != null) {
+                            registeredDirs.remove(dir.getPathname());
+                        }
+                    }
+                }
+                
+                queueSettledFiles();
             }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            options.getLog().println("FileWatcher thread exiting");
+        }
+    }
+    
+    private synchronized void requestReconcile() {
+        reconcileRequested = true;
+    }
+    
+    private synchronized boolean reconcileDue() {
+        long secsSinceReconcile = (System.nanoTime() - lastReconcileTime) / 1000000000;
+        
+        if (reconcileRequested || (secsSinceReconcile >= options.getFileWatcherReconcileInterval())) {
+            reconcileRequested = false;
+            lastReconcileTime = System.nanoTime();
+            return true;
+        }
+        
+        return false;
+    }
+    
+    public void scan() {
+        int count = 0;
+        
+        if (watchService != null) {
+            // New files arrive through watchForEvents, so only new directories and the occasional full scan here.
+            // Files found by a scan are checked here too, as the watcher thread may be waiting for an event.
+            registerNewDirectories();
+            if (reconcileDue()) {
+                options.getLog().println("Reconciliation scan");
+                int missed = 0;
+                for (int i=0; i<fileDirsToWatch.size(); i++) {
+                    missed += scanDirectory(fileDirsToWatch.get(i));
+                }
+                if (missed > 0) {
+                    options.getLog().println("Reconciliation scan found "+missed+" files missed by events");
+                }
+            }
+            count = addSettledFiles();
+        } else {
+            for (int i=0; i<fileDirsToWatch.size(); i++) {
+                count += scanDirectory(fileDirsToWatch.get(i));
+            }
+        }
+        
+        if (count > 0) {
+            options.writeStartedFlag();
         }
         
         options.getLog().println(MARTiLog.LOGLEVEL_FILEWATCHERTIMEOUT, "Found "+count + " new files.");
 
-        if (count == 0) {
+        synchronized(this) {
             long timeSince = System.nanoTime() - lastFileTime;
             secsSinceLast = timeSince / 1000000000;
-            options.getLog().println(MARTiLog.LOGLEVEL_NOTSEENFILEFOR, "Not seen file for " + (secsSinceLast) + "s");
-        } else {
-            lastFileTime = System.nanoTime();
         }
+        options.getLog().println(MARTiLog.LOGLEVEL_NOTSEENFILEFOR, "Not seen file for " + (secsSinceLast) + "s");
     }
     
     public long getSecsSinceLastFile() {
         return secsSinceLast;
     }
     
-    public int getPendingFiles() {
+    public synchronized int getPendingFiles() {
         return pendingFiles.size();
     }
     
-    public boolean timedOut() {
+    public synchronized boolean timedOut() {
         options.getLog().println(MARTiLog.LOGLEVEL_FILEWATCHERTIMEOUT, "In FileWatcher timedOut: size = " + pendingFiles.size() + " time = " + secsSinceLast + " timeout = "+options.getFileWatcherTimeout());
         
         if (pendingFiles.size() == 0) {        
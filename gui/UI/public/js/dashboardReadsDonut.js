@@ -51,7 +51,7 @@ var key = function(d) {
     };
 
 var readsDonutColor = d3.scale.ordinal()
-    .range(['#33a02c','#1f78b4','#ff7f00','#e31a1c']);
+    .range(['#33a02c','#1f78b4','#ff7f00','#e31a1c','#6a3d9a']);
 
 
 var dropdownGeneList = [];
@@ -64,14 +64,17 @@ function plotReadsDonut(data) {
 
 
     var passedFilterAwaitingAnalysis = data.readsPassedFilter - data.readsAnalysed;
-    var awaitingFilter = data.readsPassBasecall - (data.readsFailedFilter + data.readsPassedFilter);
+    // Older sample.json files don't have the depletion counts
+    var depleted = (data.readsHostDepleted || 0) + (data.readsLowComplexity || 0);
+    var awaitingFilter = data.readsPassBasecall - (data.readsFailedFilter + data.readsPassedFilter + depleted);
 
 
     var plotData = [
     {label: "Passed filter and analysed", value: data.readsAnalysed},
     {label: "Passed filter, awaiting analysis", value: passedFilterAwaitingAnalysis},
     {label: "Awaiting filter", value: awaitingFilter},
-    {label: "Failed filter", value: data.readsFailedFilter}
+    {label: "Failed filter", value: data.readsFailedFilter},
+    {label: "Host or low complexity", value: depleted}
     ];
 
 